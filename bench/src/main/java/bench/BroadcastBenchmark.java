@@ -0,0 +1,175 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.ClypeData;
+import data.FrameCodec;
+import data.MessageClypeData;
+import data.SharedFrame;
+import data.UserDirectory;
+
+/**
+ * Measures the cost of one broadcast to 1, 100 and 10,000 recipients, encoding the message once
+ * into a SharedFrame against encoding it again for every recipient as the server used to.
+ * Recipients write into a channel that discards the bytes, so only encoding and copying are timed
+ *
+ * @author Will Dunklin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+	/**
+	 * The number of recipients of each broadcast
+	 */
+	@Param({"1", "100", "10000"})
+	public int recipients;
+	/**
+	 * The body format every recipient agreed on, serial or binary
+	 */
+	@Param({"serial", "binary"})
+	public String format;
+	/**
+	 * The message being broadcast
+	 */
+	private MessageClypeData message;
+	/**
+	 * The user ids shared by every recipient's codec, as on the server
+	 */
+	private UserDirectory users;
+	/**
+	 * One codec per recipient
+	 */
+	private FrameCodec[] codecs;
+	/**
+	 * The channel every recipient writes to
+	 */
+	private Discard channel;
+
+	/**
+	 * Builds the message and a codec for every recipient
+	 */
+	@Setup
+	public void setup() {
+		message = new MessageClypeData("bench", Payloads.text(256), Payloads.key, ClypeData.text);
+		users = new UserDirectory();
+		users.intern("bench");
+		codecs = new FrameCodec[recipients];
+		int bodyFormat = format.equals("binary") ? FrameCodec.binary : FrameCodec.serial;
+		for(int i = 0; i < recipients; i++)
+			codecs[i] = new FrameCodec(bodyFormat, users, true);
+		channel = new Discard();
+	}
+
+	/**
+	 * Encodes the message once and writes the shared encoding to every recipient
+	 * @return The number of bytes written
+	 * @throws IOException If the message cannot be encoded
+	 */
+	@Benchmark
+	public long encodeOnce() throws IOException {
+		SharedFrame frame = new SharedFrame(message, users);
+		long written = 0;
+		for(FrameCodec codec : codecs)
+			written += channel.write(codec.frameOf(frame));
+		frame.release();
+		return written;
+	}
+
+	/**
+	 * Encodes the message again for every recipient
+	 * @return The number of bytes written
+	 * @throws IOException If the message cannot be encoded
+	 */
+	@Benchmark
+	public long encodePerRecipient() throws IOException {
+		long written = 0;
+		for(FrameCodec codec : codecs) {
+			byte[] body = codec.encode(message);
+			ByteBuffer frame = ByteBuffer.allocate(FrameCodec.headerLength + body.length);
+			frame.putInt(body.length).put(body).flip();
+			written += channel.write(frame);
+		}
+		return written;
+	}
+
+	/**
+	 * A channel that accepts and drops every byte, like a socket that is never full
+	 */
+	private static class Discard implements GatheringByteChannel {
+
+		/**
+		 * Drops the remaining bytes of a buffer
+		 * @param source The buffer
+		 * @return The number of bytes dropped
+		 */
+		@Override
+		public int write(ByteBuffer source) {
+			int count = source.remaining();
+			source.position(source.limit());
+			return count;
+		}
+
+		/**
+		 * Drops the remaining bytes of some buffers
+		 * @param sources The buffers
+		 * @param offset The index of the first buffer
+		 * @param length The number of buffers
+		 * @return The number of bytes dropped
+		 */
+		@Override
+		public long write(ByteBuffer[] sources, int offset, int length) {
+			long count = 0;
+			for(int i = offset; i < offset + length; i++)
+				count += write(sources[i]);
+			return count;
+		}
+
+		/**
+		 * Drops the remaining bytes of some buffers
+		 * @param sources The buffers
+		 * @return The number of bytes dropped
+		 */
+		@Override
+		public long write(ByteBuffer[] sources) {
+			return write(sources, 0, sources.length);
+		}
+
+		/**
+		 * Always open
+		 * @return true
+		 */
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		/**
+		 * Does nothing
+		 */
+		@Override
+		public void close() {
+		}
+
+	}
+
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.ClypeData;
+import data.MessageClypeData;
+import data.VigenereCipher;
+
+/**
+ * Measures ClypeData encryption and decryption across payload sizes, through the public
+ * MessageClypeData constructor and getData(key) as well as straight on a byte array
+ *
+ * @author Will Dunklin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CipherBenchmark {
+	/**
+	 * The number of characters or bytes encrypted
+	 */
+	@Param({"64", "1024", "65536", "1048576", "16777216"})
+	public int size;
+	/**
+	 * The plain text
+	 */
+	private String plain;
+	/**
+	 * A message holding the encrypted text
+	 */
+	private MessageClypeData encrypted;
+	/**
+	 * The plain text as bytes, encrypted in place by {@link #encryptBytes()}
+	 */
+	private byte[] bytes;
+
+	/**
+	 * Builds the payloads
+	 */
+	@Setup
+	public void setup() {
+		plain = Payloads.text(size);
+		encrypted = new MessageClypeData("bench", plain, Payloads.key, ClypeData.text);
+		bytes = plain.getBytes();
+	}
+
+	/**
+	 * Encrypts a String into a new message
+	 * @return The message
+	 */
+	@Benchmark
+	public MessageClypeData encryptString() {
+		return new MessageClypeData("bench", plain, Payloads.key, ClypeData.text);
+	}
+
+	/**
+	 * Decrypts a message's String
+	 * @return The decrypted String
+	 */
+	@Benchmark
+	public String decryptString() {
+		return encrypted.getData(Payloads.key);
+	}
+
+	/**
+	 * Encrypts bytes in place, the path taken by streamed file chunks
+	 * @return The number of letters encrypted
+	 */
+	@Benchmark
+	public long encryptBytes() {
+		return VigenereCipher.forKey(Payloads.key).encrypt(bytes, 0, bytes, 0, bytes.length, 0);
+	}
+
+}
@@ -0,0 +1,88 @@
+package bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.ClypeData;
+import data.FileClypeData;
+
+/**
+ * Measures FileClypeData.readFileContents(key), which reads a whole file onto the heap and
+ * encrypts it, over file sizes from 1 KiB up.
+ *
+ * A 1 GiB file is supported but left out by default since it needs about 8 GiB of heap;
+ * run it with -p size=1073741824
+ *
+ * @author Will Dunklin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class FileReadBenchmark {
+	/**
+	 * The size of the file in bytes
+	 */
+	@Param({"1024", "1048576", "67108864"})
+	public int size;
+	/**
+	 * The file being read
+	 */
+	private File file;
+
+	/**
+	 * Writes the file
+	 * @throws IOException If the file cannot be written
+	 */
+	@Setup
+	public void setup() throws IOException {
+		file = File.createTempFile("clype-bench", ".txt");
+		int chunk = 1 << 20;
+		try(Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+			String text = Payloads.text(Math.min(size, chunk));
+			for(int written = 0; written < size; written += chunk)
+				out.write(text, 0, Math.min(chunk, size - written));
+		}
+	}
+
+	/**
+	 * Deletes the file
+	 */
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Reads and encrypts the file
+	 * @return The file data
+	 * @throws IOException If the file cannot be read
+	 */
+	@Benchmark
+	public FileClypeData readFileContents() throws IOException {
+		FileClypeData data = new FileClypeData("bench", file.getPath(), ClypeData.file);
+		data.readFileContents(Payloads.key);
+		return data;
+	}
+
+}
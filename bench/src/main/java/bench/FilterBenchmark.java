@@ -0,0 +1,114 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.ClypeData;
+import data.FileChunkClypeData;
+import data.MessageClypeData;
+import main.SubscriptionFilter;
+
+/**
+ * Measures the cost per message of checking a recipient's SubscriptionFilter, as the server does
+ * for every recipient with a filter before queuing relayed data. The messages mix types, senders,
+ * sizes and rooms so every key of the filter both passes and rejects some of them
+ *
+ * @author Will Dunklin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+	/**
+	 * The number of messages checked per invocation
+	 */
+	private static final int messageCount = 1024;
+	/**
+	 * The filter checked, written as the FILTER command takes it
+	 */
+	@Param({"types file,chunk", "users u1,u2,u3", "size 0-1024", "rooms r1", "types text users u1,u2,u3 size 64-4096 rooms r1,r2"})
+	public String filter;
+	/**
+	 * The filter built from {@link #filter}
+	 */
+	private SubscriptionFilter subscription;
+	/**
+	 * The messages checked
+	 */
+	private ClypeData[] messages;
+	/**
+	 * The length of each message's payload, worked out once per broadcast on the server
+	 */
+	private long[] sizes;
+
+	/**
+	 * Builds the filter and the messages
+	 */
+	@Setup
+	public void setup() {
+		subscription = SubscriptionFilter.parse(filter);
+		Random random = new Random(42);
+		messages = new ClypeData[messageCount];
+		sizes = new long[messageCount];
+		for(int i = 0; i < messageCount; i++) {
+			String userName = "u" + random.nextInt(32);
+			if(random.nextInt(4) == 0)
+				messages[i] = new FileChunkClypeData(userName, "file" + i, 0, 8192, 0, new byte[random.nextInt(8192)]);
+			else
+				messages[i] = new MessageClypeData(userName, Payloads.text(16 + random.nextInt(2048)), Payloads.key, ClypeData.text);
+			if(random.nextInt(2) == 0)
+				messages[i].setRoom("r" + random.nextInt(4));
+			sizes[i] = SubscriptionFilter.sizeOf(messages[i]);
+		}
+	}
+
+	/**
+	 * Checks every message against the filter
+	 * @return The number of messages the filter passes
+	 */
+	@Benchmark
+	@OperationsPerInvocation(messageCount)
+	public int matches() {
+		int passed = 0;
+		for(int i = 0; i < messageCount; i++) {
+			ClypeData message = messages[i];
+			if(subscription.matches(message.getType(), message.getUserName(), message.getRoom(), sizes[i]))
+				passed++;
+		}
+		return passed;
+	}
+
+	/**
+	 * Works out each message's payload length and checks it against the filter, as a broadcast to
+	 * one filtering recipient does
+	 * @return The number of messages the filter passes
+	 */
+	@Benchmark
+	@OperationsPerInvocation(messageCount)
+	public int sizeAndMatches() {
+		int passed = 0;
+		for(ClypeData message : messages) {
+			if(subscription.matches(message))
+				passed++;
+		}
+		return passed;
+	}
+
+}
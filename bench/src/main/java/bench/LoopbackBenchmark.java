@@ -0,0 +1,162 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.ClypeData;
+import data.FrameCodec;
+import data.Handshake;
+import data.MessageClypeData;
+import main.ClypeServer;
+
+/**
+ * Measures a message's round trip from a client through a ClypeServer on loopback and back,
+ * the server relaying it to its sender as it does to every client.
+ *
+ * The client speaks the same handshake and frames as ClypeClient, without its console loop.
+ * The server's per-message logging is silenced so it does not flood the benchmark output
+ *
+ * @author Will Dunklin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+	/**
+	 * The server engine: threads for a thread per client, nio for event loops
+	 */
+	@Param({"threads", "nio"})
+	public String engine;
+	/**
+	 * The frame format the client offers
+	 */
+	@Param({"serial", "binary"})
+	public String format;
+	/**
+	 * The number of characters in each message
+	 */
+	@Param({"16", "4096"})
+	public int size;
+	/**
+	 * The server
+	 */
+	private ClypeServer server;
+	/**
+	 * The thread running the server's accept loop
+	 */
+	private Thread serverThread;
+	/**
+	 * The client's socket
+	 */
+	private Socket socket;
+	/**
+	 * Reads frames from the server
+	 */
+	private DataInputStream in;
+	/**
+	 * Writes frames to the server
+	 */
+	private DataOutputStream out;
+	/**
+	 * The client's codec
+	 */
+	private FrameCodec codec;
+	/**
+	 * The message sent on every round trip
+	 */
+	private MessageClypeData message;
+
+	/**
+	 * Starts the server and connects the client
+	 * @throws Exception If the server or client cannot start
+	 */
+	@Setup
+	public void setup() throws Exception {
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		int port;
+		try(ServerSocket probe = new ServerSocket(0)) {
+			port = probe.getLocalPort();
+		}
+		server = new ClypeServer(port, 16, engine.equals("nio") ? 1 : 0);
+		serverThread = new Thread(server::start, "bench-server");
+		serverThread.start();
+		socket = connect(port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		int formats = 1 << (format.equals("binary") ? FrameCodec.binary : FrameCodec.serial);
+		codec = new Handshake("bench", formats).connect(in, out);
+		message = new MessageClypeData("bench", Payloads.text(size), ClypeData.text);
+	}
+
+	/**
+	 * Disconnects the client and stops the server
+	 * @throws Exception If the server thread does not finish
+	 */
+	@TearDown
+	public void tearDown() throws Exception {
+		socket.close();
+		server.stop();
+		serverThread.join();
+	}
+
+	/**
+	 * Sends a message and waits for the server to relay it back
+	 * @return The relayed message
+	 * @throws IOException If the connection fails
+	 */
+	@Benchmark
+	public ClypeData roundTrip() throws IOException {
+		codec.writeFrame(out, message);
+		out.flush();
+		return codec.readFrame(in);
+	}
+
+	/**
+	 * Connects to the server, retrying until its accept loop is listening
+	 * @param port The server's port
+	 * @return The connected socket
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private static Socket connect(int port) throws InterruptedException {
+		for(int attempt = 0; ; attempt++) {
+			try {
+				return new Socket("localhost", port);
+			} catch(IOException ioe) {
+				if(attempt == 100)
+					throw new IllegalStateException("Server did not start", ioe);
+				Thread.sleep(50);
+			}
+		}
+	}
+
+}
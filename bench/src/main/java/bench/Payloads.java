@@ -0,0 +1,47 @@
+package bench;
+
+import java.util.Random;
+
+/**
+ * Builds the repeatable payloads shared by the benchmarks
+ *
+ * @author Will Dunklin
+ *
+ */
+final class Payloads {
+	/**
+	 * The key every benchmark encrypts with
+	 */
+	static final String key = "ClypeBenchmarkKey";
+
+	/**
+	 * Not instantiable
+	 */
+	private Payloads() {
+	}
+
+	/**
+	 * Builds chat-like text: printable ASCII words with a line break roughly every 80 characters
+	 * @param length The number of characters
+	 * @return The text
+	 */
+	static String text(int length) {
+		Random random = new Random(length);
+		char[] text = new char[length];
+		for(int i = 0; i < length; i++) {
+			int r = random.nextInt(100);
+			if(r < 1)
+				text[i] = '\n';
+			else if(r < 16)
+				text[i] = ' ';
+			else if(r < 20)
+				text[i] = (char) ('!' + random.nextInt(15));
+			else if(r < 30)
+				text[i] = (char) ('A' + random.nextInt(26));
+			else
+				text[i] = (char) ('a' + random.nextInt(26));
+		}
+		return new String(text);
+	}
+
+}
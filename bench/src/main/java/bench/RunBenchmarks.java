@@ -0,0 +1,36 @@
+package bench;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes their results as JSON to results/clype-&lt;version&gt;.json,
+ * so the results of two releases can be compared. The version is taken from the clype.version
+ * system property and defaults to 1.0. Arguments are passed on to JMH
+ *
+ * @author Will Dunklin
+ *
+ */
+public class RunBenchmarks {
+
+	/**
+	 * Runs the benchmarks
+	 * @param args JMH command line arguments, e.g. a benchmark name pattern
+	 * @throws Exception If JMH fails or the arguments are invalid
+	 */
+	public static void main(String[] args) throws Exception {
+		File results = new File("results", "clype-" + System.getProperty("clype.version", "1.0") + ".json");
+		results.getParentFile().mkdirs();
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.resultFormat(ResultFormatType.JSON)
+				.result(results.getPath())
+				.build()).run();
+		System.out.println("Results written to " + results.getAbsolutePath());
+	}
+
+}
@@ -0,0 +1,128 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.ClypeData;
+import data.FileClypeData;
+import data.FrameCodec;
+import data.MessageClypeData;
+
+/**
+ * Measures ObjectOutputStream round trips of MessageClypeData and FileClypeData, with the
+ * binary FrameCodec round trip of the same message alongside for comparison
+ *
+ * @author Will Dunklin
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+	/**
+	 * The number of characters in the message text or file contents
+	 */
+	@Param({"16", "1024", "65536"})
+	public int size;
+	/**
+	 * The message being round tripped
+	 */
+	private MessageClypeData message;
+	/**
+	 * The file being round tripped
+	 */
+	private FileClypeData file;
+	/**
+	 * A binary codec for the comparison round trip
+	 */
+	private FrameCodec binary;
+
+	/**
+	 * Builds the message and reads the file contents from a temporary file
+	 * @throws IOException If the temporary file cannot be written or read
+	 */
+	@Setup
+	public void setup() throws IOException {
+		String text = Payloads.text(size);
+		message = new MessageClypeData("bench", text, ClypeData.text);
+		File contents = File.createTempFile("clype-bench", ".txt");
+		try {
+			Files.write(contents.toPath(), text.getBytes(StandardCharsets.UTF_8));
+			file = new FileClypeData("bench", contents.getPath(), ClypeData.file);
+			file.readFileContents();
+		} finally {
+			contents.delete();
+		}
+		binary = new FrameCodec(FrameCodec.binary);
+	}
+
+	/**
+	 * Writes a message with ObjectOutputStream and reads it back
+	 * @return The message read back
+	 * @throws Exception If the round trip fails
+	 */
+	@Benchmark
+	public Object messageRoundTrip() throws Exception {
+		return roundTrip(message);
+	}
+
+	/**
+	 * Writes a file with ObjectOutputStream and reads it back
+	 * @return The file read back
+	 * @throws Exception If the round trip fails
+	 */
+	@Benchmark
+	public Object fileRoundTrip() throws Exception {
+		return roundTrip(file);
+	}
+
+	/**
+	 * Encodes a message with the binary codec and decodes it back
+	 * @return The message decoded
+	 * @throws IOException If the round trip fails
+	 */
+	@Benchmark
+	public ClypeData messageBinaryRoundTrip() throws IOException {
+		byte[] body = binary.encode(message);
+		return binary.decode(body, 0, body.length);
+	}
+
+	/**
+	 * Writes an object with a fresh ObjectOutputStream and reads it back, as a serial frame does
+	 * @param data The object
+	 * @return The object read back
+	 * @throws Exception If the round trip fails
+	 */
+	private static Object roundTrip(ClypeData data) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(data);
+		}
+		try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			return in.readObject();
+		}
+	}
+
+}
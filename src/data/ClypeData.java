@@ -27,11 +27,19 @@ public abstract class ClypeData implements Serializable{
 	 * The time and date the data was sent
 	 */
 	private Date date;
+	/**
+	 * The room the data is sent to, null if it is sent to everyone
+	 */
+	private String room;
+	/**
+	 * The id given to the data by the server node that first accepted it, 0 if it is not relayed between nodes
+	 */
+	private long origin;
 	
 	/**
 	 * Constant variables representing the type values
 	 */
-	public static final int list = 0, exit = 1, file = 2, text = 3;
+	public static final int list = 0, exit = 1, file = 2, text = 3, chunk = 4, replay = 5, query = 6, stats = 7, rooms = 8, filter = 9, peer = 10, replica = 11;
 	
 	/**
 	 * Initializes ClypeData instance variables
@@ -39,9 +47,21 @@ public abstract class ClypeData implements Serializable{
 	 * @param type The type of data being sent
 	 */
 	ClypeData(String userName, int type) {
+		this(userName, type, new Date());
+	}
+	
+	/**
+	 * Initializes ClypeData instance variables with the date it was originally sent
+	 * @param userName The name of the sending user
+	 * @param type The type of data being sent
+	 * @param date The time and date the data was sent
+	 */
+	ClypeData(String userName, int type, Date date) {
 		this.userName =  userName;
 		this.type = type;
-		this.date = new Date();
+		this.date = date;
+		this.room = null;
+		this.origin = 0;
 	}
 	
 	/**
@@ -84,6 +104,38 @@ public abstract class ClypeData implements Serializable{
 		return date;
 	}
 
+	/**
+	 * Gets the room the data is sent to
+	 * @return room, null if it is sent to everyone
+	 */
+	public String getRoom() {
+		return room;
+	}
+
+	/**
+	 * Sets the room the data is sent to, so only the room's members receive it
+	 * @param room The name of the room, null to send it to everyone
+	 */
+	public void setRoom(String room) {
+		this.room = room;
+	}
+
+	/**
+	 * Gets the id given to the data by the server node that first accepted it
+	 * @return origin, 0 if the data is not relayed between nodes
+	 */
+	public long getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * Sets the id given to the data by the server node that first accepted it
+	 * @param origin The id, 0 if the data is not relayed between nodes
+	 */
+	public void setOrigin(long origin) {
+		this.origin = origin;
+	}
+
 	/**
 	 * Abstract method implemented in MessgaeClypeData and FileClypeData
 	 * Returns a String containing the data of a message or file
@@ -104,19 +156,7 @@ public abstract class ClypeData implements Serializable{
 	 * @return encryptedText The encrypted String
 	 */
 	protected static String encrypt(String inputStringToEncrypt, String key) {
-		String encryptedText = "";
-		int i = 0;
-		char[] k = key.toCharArray();
-		for(char m : inputStringToEncrypt.toCharArray()) {
-			if(Character.isLetter(m)) {
-				char encrypted = (char) encryptChar(m, k[i % k.length]);
-				encryptedText += (Character.isUpperCase(m) ? Character.toUpperCase(encrypted): encrypted);
-				++i;
-			} else {
-				encryptedText += m;
-			}
-		}
-		return encryptedText;
+		return VigenereCipher.forKey(key).encrypt(inputStringToEncrypt);
 	}
 	
 	/**
@@ -126,54 +166,35 @@ public abstract class ClypeData implements Serializable{
 	 * @return decryptedText The decrypted String
 	 */
 	protected static String decrypt(String inputStringToDecrypt, String key) {
-		String decryptedText = "";
-		int i = 0;
-		char[] k = key.toCharArray();
-		for(char c : inputStringToDecrypt.toCharArray()) {
-			if(Character.isLetter(c)) {
-				char decrypted = (char) decryptChar(c, k[i % k.length]);
-				decryptedText += (Character.isUpperCase(c) ? Character.toUpperCase(decrypted): decrypted);
-				++i;
-			} else {
-				decryptedText += c;
-			}
-		}
-		return decryptedText;
-	}
-	
-	/**
-	 * Encrypts a specific character using the Vignre cipher algorithm
-	 * @param m The input character getting encrypted
-	 * @param k The key character
-	 * @return result of the Vignre cipher encryption for m and k
-	 */
-	private static int encryptChar(char m, char k) {
-		return ((letterToInt(m) + letterToInt(k)) % 26) + 97;
+		return VigenereCipher.forKey(key).decrypt(inputStringToDecrypt);
 	}
 	
 	/**
-	 * Decrypts a specific character using the Vignre cipher algorithm
-	 * @param m The input character getting decrypted
-	 * @param k The key character
-	 * @return The result of the Vignre cipher decryption for m and k
+	 * Encrypts bytes in place using the Vignre cipher, continuing from a position in the key.
+	 * 
+	 * Only ASCII letters are shifted and advance the key, so any other byte, including every byte
+	 * of a multi-byte UTF-8 character, passes through untouched and binary data survives a round trip
+	 * @param bytes The buffer holding the bytes
+	 * @param offset The index of the first byte to encrypt
+	 * @param length The number of bytes to encrypt
+	 * @param key The encryption key
+	 * @param keyIndex The number of letters encrypted before these bytes
+	 * @return The number of letters encrypted including these bytes
 	 */
-	private static int decryptChar(char m, char k) {
-		int result = (letterToInt(m) - letterToInt(k)) % 26;
-		if(result < 0)
-			result += 26;
-		return result + 97;
+	protected static long encrypt(byte[] bytes, int offset, int length, String key, long keyIndex) {
+		return VigenereCipher.forKey(key).encrypt(bytes, offset, bytes, offset, length, keyIndex);
 	}
 	
 	/**
-	 * Converts a letter to its position in the alphabet
-	 * @param c Character being converted
-	 * @return The converted letter
+	 * Decrypts bytes in place using the Vignre cipher, continuing from a position in the key
+	 * @param bytes The buffer holding the bytes
+	 * @param offset The index of the first byte to decrypt
+	 * @param length The number of bytes to decrypt
+	 * @param key The decryption key
+	 * @param keyIndex The number of letters decrypted before these bytes
+	 * @return The number of letters decrypted including these bytes
 	 */
-	private static int letterToInt(int c) {
-		if(c >= 65 && c < 91)
-			return c - 65;
-		if(c >= 97 && c < 123)
-			return c - 97;
-		return 0;
+	protected static long decrypt(byte[] bytes, int offset, int length, String key, long keyIndex) {
+		return VigenereCipher.forKey(key).decrypt(bytes, offset, bytes, offset, length, keyIndex);
 	}
 }
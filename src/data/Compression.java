@@ -0,0 +1,401 @@
+package data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * The payload compression agreed on for one connection, and what it has saved.
+ *
+ * Payloads shorter than {@link #threshold} are sent as they are. Longer ones are compressed with
+ * the agreed {@link PayloadCodec}, and sent compressed only if that leaves at most
+ * {@link #maxRatio} of their length. After {@link #poorLimit} poor results in a row, such as a
+ * run of chunks of an already compressed file, the next {@link #skipAfterPoor} payloads are sent
+ * without trying, so incompressible data costs little CPU.
+ *
+ * A compressed payload is sent as a varint of its original length followed by the codec's output.
+ * Codecs are registered under an id from 1 to {@link #maxId}; the {@link Handshake} offers them as
+ * a bit mask of ids and {@link #none} means no compression
+ *
+ * @author Will Dunklin
+ *
+ */
+public class Compression {
+	/**
+	 * The id meaning no compression
+	 */
+	public static final int none = 0;
+	/**
+	 * The largest codec id, so every id fits a bit of the handshake's mask byte
+	 */
+	public static final int maxId = 7;
+	/**
+	 * The default threshold is 1 KiB
+	 */
+	public static final int defaultThreshold = 1024;
+	/**
+	 * The default ratio is 0.9, so compression must save at least a tenth of the payload
+	 */
+	public static final double defaultMaxRatio = 0.9;
+	/**
+	 * The number of poor results in a row after which payloads are sent without trying
+	 */
+	private static final int poorLimit = 8;
+	/**
+	 * The number of payloads sent without trying after {@link #poorLimit} poor results
+	 */
+	private static final int skipAfterPoor = 32;
+	/**
+	 * Registered codecs, by id
+	 */
+	private static final PayloadCodec[] codecs = new PayloadCodec[maxId + 1];
+	/**
+	 * Measures CPU time, null if the JVM cannot measure it for the current thread
+	 */
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean().isCurrentThreadCpuTimeSupported()
+			? ManagementFactory.getThreadMXBean() : null;
+	/**
+	 * The codec agreed on for the connection
+	 */
+	private PayloadCodec codec;
+	/**
+	 * The length a payload must reach to be compressed
+	 */
+	private int threshold;
+	/**
+	 * The largest compressed length, as a fraction of the payload's, worth sending
+	 */
+	private double maxRatio;
+	/**
+	 * The number of poor results in a row
+	 */
+	private int poorStreak;
+	/**
+	 * The number of payloads still to send without trying
+	 */
+	private int skipping;
+	/**
+	 * The number of payload bytes sent, before compression
+	 */
+	private long rawBytesSent;
+	/**
+	 * The number of payload bytes sent, after compression
+	 */
+	private long wireBytesSent;
+	/**
+	 * The number of payloads sent compressed
+	 */
+	private long framesCompressed;
+	/**
+	 * The number of payloads at or above the threshold sent as they were
+	 */
+	private long framesSkipped;
+	/**
+	 * The number of payload bytes received, after decompression
+	 */
+	private long rawBytesReceived;
+	/**
+	 * The number of payload bytes received, as sent
+	 */
+	private long wireBytesReceived;
+	/**
+	 * The CPU time spent compressing, in nanoseconds
+	 */
+	private long compressNanos;
+	/**
+	 * The CPU time spent decompressing, in nanoseconds
+	 */
+	private long decompressNanos;
+
+	static {
+		register(new DeflateCodec());
+	}
+
+	/**
+	 * Initializes Compression instance variables
+	 * @param codec The codec agreed on for the connection
+	 * @param threshold The length a payload must reach to be compressed
+	 * @param maxRatio The largest compressed length, as a fraction of the payload's, worth sending
+	 * @throws IllegalArgumentException If the codec is null, the threshold is not positive or the ratio is not between 0 and 1
+	 */
+	public Compression(PayloadCodec codec, int threshold, double maxRatio) throws IllegalArgumentException {
+		if(codec == null || threshold < 1 || maxRatio <= 0 || maxRatio > 1)
+			throw new IllegalArgumentException("Compression cannot be initialized with those variables");
+		this.codec = codec;
+		this.threshold = threshold;
+		this.maxRatio = maxRatio;
+	}
+
+	/**
+	 * Defaults {@link #threshold} to {@link #defaultThreshold} and {@link #maxRatio} to {@link #defaultMaxRatio}
+	 * @param codec The codec agreed on for the connection
+	 */
+	public Compression(PayloadCodec codec) {
+		this(codec, defaultThreshold, defaultMaxRatio);
+	}
+
+	/**
+	 * Registers a codec so it can be offered and agreed on, replacing any codec with the same id
+	 * @param codec The codec
+	 * @throws IllegalArgumentException If its id is out of range
+	 */
+	public static synchronized void register(PayloadCodec codec) throws IllegalArgumentException {
+		if(codec.getId() < 1 || codec.getId() > maxId)
+			throw new IllegalArgumentException("Codec ids must be from 1 to " + maxId);
+		codecs[codec.getId()] = codec;
+	}
+
+	/**
+	 * Finds a registered codec by id
+	 * @param id The id
+	 * @return The codec, null if none is registered under the id
+	 */
+	public static synchronized PayloadCodec codecOf(int id) {
+		return id < 1 || id > maxId ? null : codecs[id];
+	}
+
+	/**
+	 * Finds the id of a registered codec by name
+	 * @param name The name, such as "deflate", or "none"
+	 * @return The id, {@link #none} for "none"
+	 * @throws IllegalArgumentException If no codec has that name
+	 */
+	public static synchronized int idOf(String name) throws IllegalArgumentException {
+		if(name.equalsIgnoreCase("none"))
+			return none;
+		for(PayloadCodec codec : codecs) {
+			if(codec != null && codec.getName().equalsIgnoreCase(name))
+				return codec.getId();
+		}
+		throw new IllegalArgumentException("Unknown compression " + name);
+	}
+
+	/**
+	 * Gets the bit mask of every registered codec
+	 * @return The mask, bit n set for id n
+	 */
+	public static synchronized int supported() {
+		int mask = 0;
+		for(int id = 1; id <= maxId; id++) {
+			if(codecs[id] != null)
+				mask |= 1 << id;
+		}
+		return mask;
+	}
+
+	/**
+	 * Picks the registered codec with the highest id offered by both sides
+	 * @param offered Bit mask of the ids offered by one side
+	 * @param accepted Bit mask of the ids accepted by the other
+	 * @return The id, {@link #none} if no codec is shared
+	 */
+	public static int choose(int offered, int accepted) {
+		int shared = offered & accepted & supported();
+		for(int id = maxId; id >= 1; id--) {
+			if((shared & (1 << id)) != 0)
+				return id;
+		}
+		return none;
+	}
+
+	/**
+	 * Compresses a payload for sending if it is long enough and compresses well enough
+	 * @param payload The payload
+	 * @return A varint of the payload's length followed by the compressed bytes, null to send the payload as it is
+	 */
+	public byte[] compress(byte[] payload) {
+		if(!worthTrying(payload.length)) {
+			sent(payload.length, null);
+			return null;
+		}
+		long start = cpuTime();
+		byte[] compressed = codec.compress(payload, 0, payload.length);
+		ByteArrayOutputStream out = null;
+		if(compressed.length <= payload.length * maxRatio) {
+			out = new ByteArrayOutputStream(compressed.length + 5);
+			FrameCodec.writeVarLong(out, payload.length);
+			out.write(compressed, 0, compressed.length);
+		}
+		long spent = cpuTime() - start;
+		byte[] packed = out == null ? null : out.toByteArray();
+		synchronized(this) {
+			compressNanos += spent;
+			if(packed == null) {
+				if(++poorStreak >= poorLimit) {
+					poorStreak = 0;
+					skipping = skipAfterPoor;
+				}
+			} else {
+				poorStreak = 0;
+			}
+		}
+		sent(payload.length, packed);
+		return packed;
+	}
+
+	/**
+	 * Decides whether a payload is compressed, counting down the payloads sent without trying
+	 * @param length The length of the payload
+	 * @return True if it should be compressed
+	 */
+	private synchronized boolean worthTrying(int length) {
+		if(length < threshold)
+			return false;
+		if(skipping > 0) {
+			skipping--;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Counts a payload sent on the connection
+	 * @param rawLength The length of the payload
+	 * @param packed What was sent instead of it, null if it was sent as it is
+	 */
+	public synchronized void sent(int rawLength, byte[] packed) {
+		rawBytesSent += rawLength;
+		wireBytesSent += packed == null ? rawLength : packed.length;
+		if(packed != null)
+			framesCompressed++;
+		else if(rawLength >= threshold)
+			framesSkipped++;
+	}
+
+	/**
+	 * Restores a payload received compressed
+	 * @param body The buffer holding the frame body
+	 * @param offset The index of the varint in front of the compressed bytes
+	 * @param length The number of bytes from the varint to the end of the body
+	 * @return The payload
+	 * @throws IOException If the payload is corrupt, has a negative length or is longer than {@link FrameCodec#maxFrameLength}
+	 */
+	public byte[] decompress(byte[] body, int offset, int length) throws IOException {
+		FrameCodec.Reader in = new FrameCodec.Reader(body, offset, length);
+		long rawLength = in.readVarLong();
+		if(rawLength < 0)
+			throw new StreamCorruptedException("Compressed payload has a negative length");
+		if(rawLength > FrameCodec.maxFrameLength)
+			throw new StreamCorruptedException("Compressed payload too long");
+		int start = offset + length - in.remaining();
+		long began = cpuTime();
+		byte[] payload = codec.decompress(body, start, in.remaining(), (int) rawLength);
+		long spent = cpuTime() - began;
+		synchronized(this) {
+			decompressNanos += spent;
+			rawBytesReceived += payload.length;
+			wireBytesReceived += length;
+		}
+		return payload;
+	}
+
+	/**
+	 * Counts a payload received as it was sent
+	 * @param length The length of the payload
+	 */
+	public synchronized void received(int length) {
+		rawBytesReceived += length;
+		wireBytesReceived += length;
+	}
+
+	/**
+	 * Gets the CPU time of the current thread, or the wall clock time if the JVM cannot measure it
+	 * @return The time in nanoseconds
+	 */
+	private static long cpuTime() {
+		return threads == null ? System.nanoTime() : threads.getCurrentThreadCpuTime();
+	}
+
+	/**
+	 * Gets the codec agreed on for the connection
+	 * @return codec
+	 */
+	public PayloadCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Gets the length a payload must reach to be compressed
+	 * @return threshold
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Gets how much smaller sent payloads were made, as their length before compression over their length after
+	 * @return The ratio, 1 if nothing has been sent
+	 */
+	public synchronized double getSentRatio() {
+		return wireBytesSent == 0 ? 1 : (double) rawBytesSent / wireBytesSent;
+	}
+
+	/**
+	 * Gets how much smaller received payloads were made, as their length after decompression over their length as sent
+	 * @return The ratio, 1 if nothing has been received
+	 */
+	public synchronized double getReceivedRatio() {
+		return wireBytesReceived == 0 ? 1 : (double) rawBytesReceived / wireBytesReceived;
+	}
+
+	/**
+	 * Gets the number of payload bytes sent, before compression
+	 * @return rawBytesSent
+	 */
+	public synchronized long getRawBytesSent() {
+		return rawBytesSent;
+	}
+
+	/**
+	 * Gets the number of payload bytes sent, after compression
+	 * @return wireBytesSent
+	 */
+	public synchronized long getWireBytesSent() {
+		return wireBytesSent;
+	}
+
+	/**
+	 * Gets the number of payloads sent compressed
+	 * @return framesCompressed
+	 */
+	public synchronized long getFramesCompressed() {
+		return framesCompressed;
+	}
+
+	/**
+	 * Gets the number of payloads long enough to compress that were sent as they were
+	 * @return framesSkipped
+	 */
+	public synchronized long getFramesSkipped() {
+		return framesSkipped;
+	}
+
+	/**
+	 * Gets the CPU time spent compressing
+	 * @return compressNanos
+	 */
+	public synchronized long getCompressNanos() {
+		return compressNanos;
+	}
+
+	/**
+	 * Gets the CPU time spent decompressing
+	 * @return decompressNanos
+	 */
+	public synchronized long getDecompressNanos() {
+		return decompressNanos;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public synchronized String toString() {
+		return String.format("Compression [codec=%s, sent %d -> %d bytes (%.2fx, %d compressed, %d skipped), received %d -> %d bytes (%.2fx), cpu %.1f ms compressing, %.1f ms decompressing]",
+				codec.getName(), rawBytesSent, wireBytesSent, getSentRatio(), framesCompressed, framesSkipped, wireBytesReceived, rawBytesReceived,
+				getReceivedRatio(), compressNanos / 1e6, decompressNanos / 1e6);
+	}
+
+}
@@ -0,0 +1,157 @@
+package data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses payloads with the JDK's Deflate, without the zlib header and checksum since frames
+ * already have a length and TCP its own checks.
+ *
+ * Deflaters and Inflaters are borrowed from small bounded pools and reset and returned after each
+ * frame, so the native zlib state is reused rather than made per frame, and is not held per thread
+ * when every client has a thread of its own. One found with its pool full is ended at once
+ *
+ * @author Will Dunklin
+ *
+ */
+public class DeflateCodec implements PayloadCodec {
+	/**
+	 * The id Deflate is offered under
+	 */
+	public static final int id = 1;
+	/**
+	 * The most idle Deflaters, and the most idle Inflaters, kept for reuse, one per processor
+	 */
+	public static final int poolSize = Math.max(2, Runtime.getRuntime().availableProcessors());
+	/**
+	 * The Deflate level, from 1 (fastest) to 9 (smallest)
+	 */
+	private int level;
+	/**
+	 * The idle Deflaters
+	 */
+	private ArrayBlockingQueue<Deflater> deflaters;
+	/**
+	 * The idle Inflaters
+	 */
+	private ArrayBlockingQueue<Inflater> inflaters;
+
+	/**
+	 * Initializes DeflateCodec instance variables
+	 * @param level The Deflate level, from 1 (fastest) to 9 (smallest)
+	 * @throws IllegalArgumentException If the level is out of range
+	 */
+	public DeflateCodec(int level) throws IllegalArgumentException {
+		if(level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Deflate level must be from 1 to 9");
+		this.level = level;
+		this.deflaters = new ArrayBlockingQueue<Deflater>(poolSize);
+		this.inflaters = new ArrayBlockingQueue<Inflater>(poolSize);
+	}
+
+	/**
+	 * Defaults {@link #level} to 6, zlib's balance of speed and size
+	 */
+	public DeflateCodec() {
+		this(6);
+	}
+
+	/**
+	 * Gets the id Deflate is offered under
+	 * @return {@link #id}
+	 */
+	@Override
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the name Deflate is configured by
+	 * @return "deflate"
+	 */
+	@Override
+	public String getName() {
+		return "deflate";
+	}
+
+	/**
+	 * Compresses bytes with a pooled Deflater
+	 * @param data The buffer holding the bytes
+	 * @param offset The index of the first byte
+	 * @param length The number of bytes
+	 * @return The compressed bytes
+	 */
+	@Override
+	public byte[] compress(byte[] data, int offset, int length) {
+		Deflater deflater = deflaters.poll();
+		if(deflater == null)
+			deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length / 2));
+			byte[] buffer = new byte[Math.min(64 * 1024, Math.max(256, length))];
+			while(!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.reset();
+			if(!deflaters.offer(deflater))
+				deflater.end();
+		}
+	}
+
+	/**
+	 * Restores bytes with a pooled Inflater
+	 * @param data The buffer holding the compressed bytes
+	 * @param offset The index of the first compressed byte
+	 * @param length The number of compressed bytes
+	 * @param rawLength The number of bytes they were compressed from
+	 * @return The restored bytes
+	 * @throws IOException If rawLength is negative, or the bytes are corrupt or do not restore to rawLength bytes
+	 */
+	@Override
+	public byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException {
+		if(rawLength < 0)
+			throw new StreamCorruptedException("Compressed payload has a negative length");
+		Inflater inflater = inflaters.poll();
+		if(inflater == null)
+			inflater = new Inflater(true);
+		inflater.setInput(data, offset, length);
+		byte[] raw = new byte[rawLength];
+		try {
+			int count = 0;
+			while(count < rawLength) {
+				int inflated = inflater.inflate(raw, count, rawLength - count);
+				if(inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				count += inflated;
+			}
+			if(count != rawLength)
+				throw new StreamCorruptedException("Compressed payload does not match its length");
+		} catch(DataFormatException dfe) {
+			throw new StreamCorruptedException("Corrupt compressed payload");
+		} finally {
+			inflater.reset();
+			if(!inflaters.offer(inflater))
+				inflater.end();
+		}
+		return raw;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "DeflateCodec [level=" + level + "]";
+	}
+
+}
@@ -0,0 +1,210 @@
+package data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Class that handles one piece of a file streamed between ClypeClients via the ClypeServer.
+ *
+ * A file is sent as a sequence of chunks read by a {@link FileChunkReader}, each holding the raw
+ * bytes found at {@link #offset} of a file {@link #totalLength} bytes long, and written back in
+ * place by a {@link FileChunkWriter}. Contents are encrypted per byte so binary files arrive intact
+ *
+ * @author Will Dunklin
+ *
+ */
+public class FileChunkClypeData extends ClypeData {
+
+	/**
+	 * Unique identifier for FileChunkClypeData during serialization
+	 */
+	private static final long serialVersionUID = -2474620184327516391L;
+	/**
+	 * The name of the file being sent
+	 */
+	private String fileName;
+	/**
+	 * The position of this chunk in the file
+	 */
+	private long offset;
+	/**
+	 * The length of the whole file
+	 */
+	private long totalLength;
+	/**
+	 * The number of letters encrypted before this chunk, where decryption resumes in the key
+	 */
+	private long keyIndex;
+	/**
+	 * The encrypted bytes of this chunk
+	 */
+	private byte[] contents;
+
+	/**
+	 * Initializes FileChunkClypeData instance variables
+	 * @param userName The name of the sending user
+	 * @param fileName The name of the file being sent
+	 * @param offset The position of this chunk in the file
+	 * @param totalLength The length of the whole file
+	 * @param keyIndex The number of letters encrypted before this chunk
+	 * @param contents The encrypted bytes of this chunk
+	 */
+	public FileChunkClypeData(String userName, String fileName, long offset, long totalLength, long keyIndex, byte[] contents) {
+		super(userName, chunk);
+		this.fileName = fileName;
+		this.offset = offset;
+		this.totalLength = totalLength;
+		this.keyIndex = keyIndex;
+		this.contents = contents;
+	}
+
+	/**
+	 * Initializes FileChunkClypeData instance variables with the date it was originally sent
+	 * @param userName The name of the sending user
+	 * @param fileName The name of the file being sent
+	 * @param offset The position of this chunk in the file
+	 * @param totalLength The length of the whole file
+	 * @param keyIndex The number of letters encrypted before this chunk
+	 * @param contents The encrypted bytes of this chunk
+	 * @param date The time and date the data was sent
+	 */
+	FileChunkClypeData(String userName, String fileName, long offset, long totalLength, long keyIndex, byte[] contents, Date date) {
+		super(userName, chunk, date);
+		this.fileName = fileName;
+		this.offset = offset;
+		this.totalLength = totalLength;
+		this.keyIndex = keyIndex;
+		this.contents = contents;
+	}
+
+	/**
+	 * Gets the name of the file being sent
+	 * @return fileName
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Gets the position of this chunk in the file
+	 * @return offset
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Gets the length of the whole file
+	 * @return totalLength
+	 */
+	public long getTotalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * Gets the number of letters encrypted before this chunk
+	 * @return keyIndex
+	 */
+	public long getKeyIndex() {
+		return keyIndex;
+	}
+
+	/**
+	 * Checks whether this is the final chunk of the file
+	 * @return True if this chunk reaches the end of the file
+	 */
+	public boolean isLast() {
+		return offset + contents.length >= totalLength;
+	}
+
+	/**
+	 * Gets the encrypted bytes of this chunk
+	 * @return contents
+	 */
+	public byte[] getContents() {
+		return contents;
+	}
+
+	/**
+	 * Gets a decrypted copy of the bytes of this chunk
+	 * @param key The decryption key
+	 * @return The decrypted bytes
+	 */
+	public byte[] getContents(String key) {
+		byte[] decrypted = contents.clone();
+		decrypt(decrypted, 0, decrypted.length, key, keyIndex);
+		return decrypted;
+	}
+
+	/**
+	 * Gets the encrypted bytes of this chunk, one char per byte
+	 * @return The bytes as an ISO-8859-1 String
+	 */
+	public String getData() {
+		return new String(contents, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Gets the decrypted bytes of this chunk, one char per byte
+	 * @param key The decryption key
+	 * @return The bytes as an ISO-8859-1 String
+	 */
+	public String getData(String key) {
+		return new String(getContents(key), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Generates unique hash based on states of instance variables
+	 */
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + Arrays.hashCode(contents);
+		result = prime * result + ((fileName == null) ? 0 : fileName.hashCode());
+		result = prime * result + (int) (keyIndex ^ (keyIndex >>> 32));
+		result = prime * result + (int) (offset ^ (offset >>> 32));
+		result = prime * result + (int) (totalLength ^ (totalLength >>> 32));
+		return result;
+	}
+
+	/**
+	 * Checks if instance variables are equal to the tested object
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		FileChunkClypeData other = (FileChunkClypeData) obj;
+		if (!Arrays.equals(contents, other.contents))
+			return false;
+		if (fileName == null) {
+			if (other.fileName != null)
+				return false;
+		} else if (!fileName.equals(other.fileName))
+			return false;
+		if (keyIndex != other.keyIndex)
+			return false;
+		if (offset != other.offset)
+			return false;
+		if (totalLength != other.totalLength)
+			return false;
+		return true;
+	}
+
+	/**
+	 * Prints class and instance variables, leaving out the contents
+	 */
+	@Override
+	public String toString() {
+		return "FileChunkClypeData [fileName=" + fileName + ", offset=" + offset + ", length=" + contents.length
+				+ ", totalLength=" + totalLength + ", keyIndex=" + keyIndex + ", getUserName()=" + getUserName()
+				+ ", getType()=" + getType() + ", getDate()=" + getDate() + "]";
+	}
+
+}
@@ -0,0 +1,150 @@
+package data;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a file as a sequence of encrypted {@link FileChunkClypeData} of at most {@link #chunkSize} bytes.
+ *
+ * Only one chunk is read at a time, so memory use is bounded by the chunk size whatever the
+ * size of the file. The file's length is taken when it is opened
+ *
+ * @author Will Dunklin
+ *
+ */
+public class FileChunkReader implements Closeable {
+	/**
+	 * The default chunk size is 64 KiB
+	 */
+	public static final int defaultChunkSize = 64 * 1024;
+	/**
+	 * The largest chunk size allowed, 16 MiB, well below the largest frame
+	 */
+	public static final int maxChunkSize = 16 * 1024 * 1024;
+	/**
+	 * The name of the sending user
+	 */
+	private String userName;
+	/**
+	 * The name of the file being read
+	 */
+	private String fileName;
+	/**
+	 * The encryption key, null for no encryption
+	 */
+	private String key;
+	/**
+	 * The largest number of bytes in one chunk
+	 */
+	private int chunkSize;
+	/**
+	 * The stream reading the file
+	 */
+	private InputStream in;
+	/**
+	 * The length of the file
+	 */
+	private long totalLength;
+	/**
+	 * The number of bytes read so far
+	 */
+	private long offset;
+	/**
+	 * The number of letters encrypted so far
+	 */
+	private long keyIndex;
+	/**
+	 * Whether the final chunk has been read
+	 */
+	private boolean finished;
+
+	/**
+	 * Initializes FileChunkReader instance variables and opens the file
+	 * @param userName The name of the sending user
+	 * @param fileName The name of the file being read
+	 * @param key The encryption key, null for no encryption
+	 * @param chunkSize The largest number of bytes in one chunk
+	 * @throws IOException If the file cannot be opened
+	 * @throws IllegalArgumentException If the chunk size is not between 1 and {@link #maxChunkSize}
+	 */
+	public FileChunkReader(String userName, String fileName, String key, int chunkSize) throws IOException, IllegalArgumentException {
+		if(chunkSize < 1 || chunkSize > maxChunkSize)
+			throw new IllegalArgumentException("Chunk size must be between 1 and " + maxChunkSize);
+		this.userName = userName;
+		this.fileName = fileName;
+		this.key = key;
+		this.chunkSize = chunkSize;
+		FileInputStream file = new FileInputStream(fileName);
+		this.totalLength = file.getChannel().size();
+		this.in = file;
+		this.offset = 0;
+		this.keyIndex = 0;
+		this.finished = false;
+	}
+
+	/**
+	 * Defaults {@link #chunkSize} to {@link #defaultChunkSize}
+	 * @param userName The name of the sending user
+	 * @param fileName The name of the file being read
+	 * @param key The encryption key, null for no encryption
+	 * @throws IOException If the file cannot be opened
+	 */
+	public FileChunkReader(String userName, String fileName, String key) throws IOException {
+		this(userName, fileName, key, defaultChunkSize);
+	}
+
+	/**
+	 * Reads and encrypts the next chunk of the file.
+	 *
+	 * An empty file is sent as a single empty chunk so the receiver still creates it
+	 * @return The next chunk or null once the whole file has been read
+	 * @throws IOException If the file cannot be read
+	 */
+	public FileChunkClypeData next() throws IOException {
+		if(finished)
+			return null;
+		int length = (int) Math.min(chunkSize, totalLength - offset);
+		byte[] contents = new byte[length];
+		int read = 0;
+		while(read < length) {
+			int count = in.read(contents, read, length - read);
+			if(count < 0)
+				throw new IOException("File " + fileName + " shrank while being read");
+			read += count;
+		}
+		long chunkKeyIndex = keyIndex;
+		if(key != null)
+			keyIndex = ClypeData.encrypt(contents, 0, length, key, keyIndex);
+		FileChunkClypeData chunk = new FileChunkClypeData(userName, fileName, offset, totalLength, chunkKeyIndex, contents);
+		offset += length;
+		finished = offset >= totalLength;
+		return chunk;
+	}
+
+	/**
+	 * Gets the length of the file
+	 * @return totalLength
+	 */
+	public long getTotalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * Gets the largest number of bytes in one chunk
+	 * @return chunkSize
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
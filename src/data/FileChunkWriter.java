@@ -0,0 +1,177 @@
+package data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes received {@link FileChunkClypeData} back into a file, decrypting each chunk in place.
+ *
+ * Chunks are written at their own offset, so they may arrive in any order or more than once; the
+ * file is complete once every byte of its length has been covered by some chunk. Every length,
+ * offset and key index is checked before use, since they are read from the wire
+ *
+ * @author Will Dunklin
+ *
+ */
+public class FileChunkWriter implements Closeable {
+	/**
+	 * The largest file length a sender may announce
+	 */
+	public static final long maxFileLength = 4L * 1024 * 1024 * 1024;
+	/**
+	 * The file being written
+	 */
+	private File file;
+	/**
+	 * The decryption key, null for no decryption
+	 */
+	private String key;
+	/**
+	 * Random access to the file being written
+	 */
+	private RandomAccessFile out;
+	/**
+	 * The length of the whole file
+	 */
+	private long totalLength;
+	/**
+	 * The ranges of the file written so far, from the first offset of each to the offset after it,
+	 * with touching ranges merged
+	 */
+	private TreeMap<Long, Long> covered;
+	/**
+	 * The number of distinct bytes written so far
+	 */
+	private long written;
+	/**
+	 * The {@link System#currentTimeMillis()} the file was created or a chunk last written at
+	 */
+	private long lastWrittenAt;
+
+	/**
+	 * Initializes FileChunkWriter instance variables and creates the file.
+	 *
+	 * Only the last part of the sent file name is used, so a sender cannot write outside the directory
+	 * @param directory The directory the file is written to
+	 * @param fileName The name of the file as sent
+	 * @param totalLength The length of the whole file
+	 * @param key The decryption key, null for no decryption
+	 * @throws IOException If the length is negative or above {@link #maxFileLength}, or the file cannot be created
+	 */
+	public FileChunkWriter(File directory, String fileName, long totalLength, String key) throws IOException {
+		if(totalLength < 0 || totalLength > maxFileLength)
+			throw new IOException("File length must be between 0 and " + maxFileLength);
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		this.file = fileFor(directory, fileName);
+		this.key = key;
+		this.totalLength = totalLength;
+		this.covered = new TreeMap<Long, Long>();
+		this.written = 0;
+		this.lastWrittenAt = System.currentTimeMillis();
+		this.out = new RandomAccessFile(file, "rw");
+		this.out.setLength(totalLength);
+	}
+
+	/**
+	 * Finds the file a sent file name is written to, the last part of the name in the directory
+	 * @param directory The directory the file is written to
+	 * @param fileName The name of the file as sent
+	 * @return The file
+	 */
+	public static File fileFor(File directory, String fileName) {
+		return new File(directory, new File(fileName).getName());
+	}
+
+	/**
+	 * Decrypts a chunk and writes it at its offset
+	 * @param chunk The received chunk
+	 * @throws IOException If the chunk does not fit the file, has a negative key index or cannot be written
+	 */
+	public void write(FileChunkClypeData chunk) throws IOException {
+		byte[] contents = chunk.getContents();
+		if(contents == null || chunk.getTotalLength() != totalLength || chunk.getOffset() < 0
+				|| chunk.getOffset() > totalLength - contents.length)
+			throw new IOException("Chunk does not fit in " + file);
+		if(chunk.getKeyIndex() < 0)
+			throw new IOException("Chunk of " + file + " has a negative key index");
+		if(key != null)
+			ClypeData.decrypt(contents, 0, contents.length, key, chunk.getKeyIndex());
+		out.seek(chunk.getOffset());
+		out.write(contents);
+		cover(chunk.getOffset(), chunk.getOffset() + contents.length);
+		lastWrittenAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Marks a range of the file as written, merging it with the ranges it overlaps or touches and
+	 * counting only the bytes no earlier chunk covered
+	 * @param start The first offset written
+	 * @param end The offset after the last one written
+	 */
+	private void cover(long start, long end) {
+		if(start == end)
+			return;
+		Map.Entry<Long, Long> before = covered.floorEntry(start);
+		if(before != null && before.getValue() >= start) {
+			if(before.getValue() >= end)
+				return;
+			start = before.getKey();
+			written -= before.getValue() - before.getKey();
+			covered.remove(start);
+		}
+		Map.Entry<Long, Long> after;
+		while((after = covered.ceilingEntry(start)) != null && after.getKey() <= end) {
+			end = Math.max(end, after.getValue());
+			written -= after.getValue() - after.getKey();
+			covered.remove(after.getKey());
+		}
+		covered.put(start, end);
+		written += end - start;
+	}
+
+	/**
+	 * Checks whether every byte of the file has been written
+	 * @return True if the file is complete
+	 */
+	public boolean isComplete() {
+		return written >= totalLength;
+	}
+
+	/**
+	 * Gets the file being written
+	 * @return file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets when the file was created or a chunk last written
+	 * @return lastWrittenAt
+	 */
+	public long getLastWrittenAt() {
+		return lastWrittenAt;
+	}
+
+	/**
+	 * Gets the length of the whole file
+	 * @return totalLength
+	 */
+	public long getTotalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * Closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+}
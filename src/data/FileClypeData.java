@@ -8,6 +8,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.util.Date;
 
 /**
  * Class that handles file messages that get transferred between CypeClients via the ClypeServer
@@ -42,6 +43,20 @@ public class FileClypeData extends ClypeData {
 		this.fileContents = null;
 	}
 	
+	/**
+	 * Initializes FileClypeData instance variables with received contents and the date it was originally sent
+	 * @param userName The name of the sending user
+	 * @param fileName The name of the file being sent
+	 * @param fileContents The String representation of the contents being sent
+	 * @param type The type of data being sent
+	 * @param date The time and date the data was sent
+	 */
+	FileClypeData(String userName, String fileName, String fileContents, int type, Date date) {
+		super(userName, type, date);
+		this.fileName = fileName;
+		this.fileContents = fileContents;
+	}
+	
 	/**
 	 * Defaults {@link #userName} to be "Anon"
 	 * and {@link #type} to 2
@@ -91,19 +106,19 @@ public class FileClypeData extends ClypeData {
 	private void readFile(String key) throws IOException{
 		try {
 			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(this.fileName), "UTF-8"));
-			String contents = "";
+			StringBuilder contents = new StringBuilder();
 			String line = "";
 			
 			while (line != null) {
 				line = br.readLine();
 				if(line != null)
-					contents += line + System.lineSeparator();
+					contents.append(line).append(System.lineSeparator());
 			}
 			
 			if(key == null)
-				this.fileContents = contents;
+				this.fileContents = contents.toString();
 			else
-				this.fileContents = encrypt(contents, key);
+				this.fileContents = encrypt(contents.toString(), key);
 			
 			br.close();
 		} catch(FileNotFoundException fnfe) {
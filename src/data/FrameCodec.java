@@ -0,0 +1,851 @@
+package data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Converts ClypeData to and from the length-prefixed frames sent between ClypeClients and the ClypeServer.
+ *
+ * Every frame is a 4 byte big-endian length followed by that many bytes holding one ClypeData,
+ * so a frame can be cut out of a byte stream without blocking. The body is written in the format
+ * agreed by the {@link Handshake}:
+ *
+ * {@link #serial} holds one independently serialized ClypeData, and reading it refuses every class
+ * other than the ClypeData types and the types of their fields.
+ *
+ * {@link #binary} holds a type byte, the date as a varint of epoch milliseconds, the user as a
+ * varint of (id &lt;&lt; 1 | hasName) followed by the name until the id has been used on the
+ * connection by a frame other than a file or chunk, since a server may write those after frames
+ * queued later, then the payload. A message's payload is its raw UTF-8 text; a file's is its name
+ * followed by a presence byte and the raw UTF-8 contents; a file chunk's is its file name, varints
+ * of its offset, the file's length and its key index, then its raw bytes. Strings other than the
+ * trailing payload are a varint of (length + 1), 0 meaning null, followed by UTF-8 bytes. When the
+ * connection agreed on a {@link Compression}, {@link #compressed} may be set in the type byte, and
+ * everything after the user is then sent as compressed by it; file chunks sent this way are never
+ * spooled by the server.
+ *
+ * A codec belongs to one connection. Encoding is synchronized because the first use of a user id
+ * must reach the peer before any frame that leaves the name out
+ *
+ * @author Will Dunklin
+ *
+ */
+public class FrameCodec {
+	/**
+	 * Constant variables representing the body formats
+	 */
+	public static final int serial = 0, binary = 1;
+	/**
+	 * Bit mask of every format this codec supports
+	 */
+	public static final int allFormats = (1 << serial) | (1 << binary);
+	/**
+	 * The number of bytes in a frame header
+	 */
+	public static final int headerLength = 4;
+	/**
+	 * The largest frame a peer may send, 64 MiB
+	 */
+	public static final int maxFrameLength = 64 * 1024 * 1024;
+	/**
+	 * Bit of a binary type byte set when everything after the user is compressed
+	 */
+	public static final int compressed = 0x80;
+	/**
+	 * Flag set on a binary body's type byte when the name of a room follows the user
+	 */
+	public static final int addressed = 0x40;
+	/**
+	 * Flag set on a binary body's type byte when the data's origin id follows the user and room
+	 */
+	public static final int originated = 0x20;
+	/**
+	 * The format of the bodies written and read by this codec
+	 */
+	private int format;
+	/**
+	 * The user ids shared with the peer
+	 */
+	private UserDirectory users;
+	/**
+	 * Whether received user names are given ids locally instead of trusting the peer's, only done by the server
+	 */
+	private boolean internUsers;
+	/**
+	 * User ids whose names have already been sent to the peer
+	 */
+	private BitSet announced;
+	/**
+	 * The compression agreed on with the peer, null if payloads are never compressed
+	 */
+	private volatile Compression compression;
+
+	/**
+	 * Initializes FrameCodec instance variables
+	 * @param format The body format, {@link #serial} or {@link #binary}
+	 * @param users The user ids shared with the peer
+	 * @param internUsers Whether received user names are given ids locally instead of trusting the peer's
+	 * @throws IllegalArgumentException If the format is unknown
+	 */
+	public FrameCodec(int format, UserDirectory users, boolean internUsers) throws IllegalArgumentException {
+		if(format != serial && format != binary)
+			throw new IllegalArgumentException("Unknown frame format " + format);
+		this.format = format;
+		this.users = users;
+		this.internUsers = internUsers;
+		this.announced = new BitSet();
+		this.compression = null;
+	}
+
+	/**
+	 * Defaults {@link #users} to an empty directory that does not intern new users
+	 * @param format The body format, {@link #serial} or {@link #binary}
+	 */
+	public FrameCodec(int format) {
+		this(format, new UserDirectory(), false);
+	}
+
+	/**
+	 * Defaults {@link #format} to {@link #serial}
+	 */
+	public FrameCodec() {
+		this(serial);
+	}
+
+	/**
+	 * Encodes ClypeData into the body of a frame
+	 * @param data The data being encoded
+	 * @return The encoded bytes
+	 * @throws IOException If the data cannot be encoded
+	 */
+	public byte[] encode(ClypeData data) throws IOException {
+		if(format == serial)
+			return encodeSerial(data);
+		synchronized(this) {
+			return encodeBinary(data, compression);
+		}
+	}
+
+	/**
+	 * Decodes the body of a frame back into ClypeData
+	 * @param body The buffer holding the frame body
+	 * @param offset The index of the first byte of the body
+	 * @param length The number of bytes in the body
+	 * @return The decoded data
+	 * @throws IOException If the body is not valid ClypeData
+	 */
+	public ClypeData decode(byte[] body, int offset, int length) throws IOException {
+		if(format == serial)
+			return decodeSerial(body, offset, length);
+		return decodeBinary(body, offset, length);
+	}
+
+	/**
+	 * Writes ClypeData to a stream as one frame
+	 * @param out The stream being written to
+	 * @param data The data being sent
+	 * @throws IOException If the stream cannot be written to
+	 */
+	public void writeFrame(DataOutputStream out, ClypeData data) throws IOException {
+		writeBody(out, encode(data));
+	}
+
+	/**
+	 * Reads one frame from a stream, blocking until it has fully arrived
+	 * @param in The stream being read from
+	 * @return The decoded data
+	 * @throws IOException If the stream ends or the frame is invalid
+	 */
+	public ClypeData readFrame(DataInputStream in) throws IOException {
+		byte[] body = readBody(in);
+		return decode(body, 0, body.length);
+	}
+
+	/**
+	 * Measures the fields in front of a binary file chunk's payload, so the payload can be handled
+	 * without decoding it. Decoding just those bytes gives the chunk with empty contents
+	 * @param body The buffer holding the start of the frame body
+	 * @param offset The index of the first byte of the body
+	 * @param length The number of body bytes available
+	 * @return The number of bytes before the payload, or -1 if this is not a binary chunk or its
+	 * fields do not fit in the available bytes
+	 */
+	public int chunkPrefixLength(byte[] body, int offset, int length) {
+		if(format != binary || length < 1 || ((body[offset] & 0xFF) & ~(addressed | originated)) != ClypeData.chunk)
+			return -1;
+		try {
+			Reader in = new Reader(body, offset, length);
+			int type = in.readByte();
+			in.readVarLong();
+			if((in.readVarLong() & 1) != 0)
+				in.readString();
+			if((type & addressed) != 0)
+				in.readString();
+			if((type & originated) != 0)
+				in.readVarLong();
+			in.readString();
+			in.readVarLong();
+			in.readVarLong();
+			in.readVarLong();
+			return length - in.remaining();
+		} catch(StreamCorruptedException sce) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Encodes the frame header and every field in front of a binary file chunk's payload,
+	 * so the payload can be written after it from elsewhere
+	 * @param metadata The chunk, with empty contents
+	 * @param payloadLength The length of the payload that will follow
+	 * @return The frame header followed by the body up to the payload
+	 */
+	public byte[] encodeChunkPrefix(FileChunkClypeData metadata, int payloadLength) {
+		byte[] prefix;
+		synchronized(this) {
+			prefix = encodeBinary(metadata, null);
+		}
+		byte[] frame = new byte[headerLength + prefix.length];
+		putLength(frame, prefix.length + payloadLength);
+		System.arraycopy(prefix, 0, frame, headerLength, prefix.length);
+		return frame;
+	}
+
+	/**
+	 * Gets the buffers making up a shared frame for this codec's peer, to be written in order.
+	 * Only the head of a binary frame depends on the peer; the rest is the shared encoding itself
+	 * @param shared The shared frame
+	 * @return Read-only buffers over the frame header and body
+	 * @throws IOException If the data cannot be encoded
+	 */
+	public ByteBuffer[] frameOf(SharedFrame shared) throws IOException {
+		if(format == serial)
+			return new ByteBuffer[] { ByteBuffer.wrap(shared.serialFrame()).asReadOnlyBuffer() };
+		if(shared.getUsers() != users)
+			return new ByteBuffer[] { ByteBuffer.wrap(frame(encode(shared.getData()))) };
+		boolean packed = packs(shared);
+		return new ByteBuffer[] { ByteBuffer.wrap(headOf(shared, packed)).asReadOnlyBuffer(),
+				ByteBuffer.wrap(shared.binaryPayload(packed)).asReadOnlyBuffer() };
+	}
+
+	/**
+	 * Writes a shared frame to a stream
+	 * @param out The stream being written to
+	 * @param shared The shared frame
+	 * @throws IOException If the stream cannot be written to
+	 */
+	public void writeFrame(DataOutputStream out, SharedFrame shared) throws IOException {
+		if(format == serial) {
+			out.write(shared.serialFrame());
+		} else if(shared.getUsers() != users) {
+			writeFrame(out, shared.getData());
+		} else {
+			boolean packed = packs(shared);
+			out.write(headOf(shared, packed));
+			out.write(shared.binaryPayload(packed));
+		}
+	}
+
+	/**
+	 * Decides whether a shared binary frame is sent to the peer compressed, compressing it if this is
+	 * the first connection to need it
+	 * @param shared The shared frame
+	 * @return True if the compressed payload is sent
+	 */
+	private boolean packs(SharedFrame shared) {
+		Compression compression = this.compression;
+		return compression != null && shared.pack(compression);
+	}
+
+	/**
+	 * Picks the head of a shared binary frame matching what the peer knows of its user
+	 * @param shared The shared frame
+	 * @param packed Whether the compressed payload follows
+	 * @return The frame header and fields in front of the payload
+	 */
+	private byte[] headOf(SharedFrame shared, boolean packed) {
+		synchronized(this) {
+			return shared.binaryHead(announce(shared.getData()), packed);
+		}
+	}
+
+	/**
+	 * Gets the format of the bodies written and read by this codec
+	 * @return format
+	 */
+	public int getFormat() {
+		return format;
+	}
+
+	/**
+	 * Gets the compression agreed on with the peer
+	 * @return compression, null if payloads are never compressed
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Sets the compression agreed on with the peer, set by the {@link Handshake} before any frame is sent
+	 * @param compression The compression, null to never compress payloads
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Gets the user ids shared with the peer
+	 * @return users
+	 */
+	public UserDirectory getUsers() {
+		return users;
+	}
+
+	/**
+	 * Checks that a length read from a frame header is allowed
+	 * @param length The body length from the header
+	 * @return The length
+	 * @throws StreamCorruptedException If the length is negative or larger than {@link #maxFrameLength}
+	 */
+	public static int checkLength(int length) throws StreamCorruptedException {
+		return checkLength(length, maxFrameLength);
+	}
+
+	/**
+	 * Checks that a length read from a frame header is allowed before anything is allocated for it
+	 * @param length The body length from the header
+	 * @param maxLength The largest length allowed
+	 * @return The length
+	 * @throws StreamCorruptedException If the length is negative or larger than maxLength
+	 */
+	public static int checkLength(int length, int maxLength) throws StreamCorruptedException {
+		if(length < 0 || length > maxLength)
+			throw new StreamCorruptedException("Invalid frame length " + length);
+		return length;
+	}
+
+	/**
+	 * Writes an already encoded body to a stream as one frame
+	 * @param out The stream being written to
+	 * @param body The encoded body
+	 * @throws IOException If the stream cannot be written to
+	 */
+	public static void writeBody(DataOutputStream out, byte[] body) throws IOException {
+		out.writeInt(body.length);
+		out.write(body);
+	}
+
+	/**
+	 * Puts a frame header in front of an encoded body
+	 * @param body The encoded body
+	 * @return The whole frame
+	 */
+	static byte[] frame(byte[] body) {
+		byte[] frame = new byte[headerLength + body.length];
+		putLength(frame, body.length);
+		System.arraycopy(body, 0, frame, headerLength, body.length);
+		return frame;
+	}
+
+	/**
+	 * Writes a frame header at the start of a buffer
+	 * @param frame The buffer, at least {@link #headerLength} long
+	 * @param length The length of the body
+	 */
+	static void putLength(byte[] frame, int length) {
+		frame[0] = (byte) (length >>> 24);
+		frame[1] = (byte) (length >>> 16);
+		frame[2] = (byte) (length >>> 8);
+		frame[3] = (byte) length;
+	}
+
+	/**
+	 * Reads the body of one frame from a stream without decoding it
+	 * @param in The stream being read from
+	 * @return The encoded body
+	 * @throws IOException If the stream ends or the length is invalid
+	 */
+	public static byte[] readBody(DataInputStream in) throws IOException {
+		return readBody(in, maxFrameLength);
+	}
+
+	/**
+	 * Reads the body of one frame no longer than a limit from a stream without decoding it
+	 * @param in The stream being read from
+	 * @param maxLength The largest body length allowed
+	 * @return The encoded body
+	 * @throws IOException If the stream ends or the length is invalid
+	 */
+	public static byte[] readBody(DataInputStream in, int maxLength) throws IOException {
+		byte[] body = new byte[checkLength(in.readInt(), maxLength)];
+		in.readFully(body);
+		return body;
+	}
+
+	/**
+	 * Serializes ClypeData with Java serialization
+	 * @param data The data being encoded
+	 * @return The serialized bytes
+	 * @throws IOException If the data cannot be serialized
+	 */
+	static byte[] encodeSerial(ClypeData data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(data);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Deserializes ClypeData with Java serialization
+	 * @param body The buffer holding the frame body
+	 * @param offset The index of the first byte of the body
+	 * @param length The number of bytes in the body
+	 * @return The decoded data
+	 * @throws IOException If the body is not valid ClypeData
+	 */
+	private static ClypeData decodeSerial(byte[] body, int offset, int length) throws IOException {
+		ObjectInputStream in = new ClypeObjectInputStream(new ByteArrayInputStream(body, offset, length));
+		try {
+			Object data = in.readObject();
+			if(!(data instanceof ClypeData))
+				throw new StreamCorruptedException("Frame does not hold ClypeData");
+			return (ClypeData) data;
+		} catch(ClassNotFoundException cnfe) {
+			throw new StreamCorruptedException("Class was not found.");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads serialized ClypeData, refusing to load any class other than the ClypeData types and
+	 * the types of their fields, so an untrusted peer cannot make the server build arbitrary objects
+	 */
+	private static class ClypeObjectInputStream extends ObjectInputStream {
+		/**
+		 * Names of the only classes a serial frame may hold
+		 */
+		private static final Set<String> allowed = new HashSet<>(Arrays.asList(
+				ClypeData.class.getName(), MessageClypeData.class.getName(), FileClypeData.class.getName(),
+				FileChunkClypeData.class.getName(), Date.class.getName(), byte[].class.getName()));
+
+		/**
+		 * Constructor that reads the stream header
+		 * @param in The stream being read from
+		 * @throws IOException If the stream header is not valid
+		 */
+		ClypeObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			if(!allowed.contains(desc.getName()))
+				throw new InvalidClassException(desc.getName(), "Class is not allowed in a frame");
+			return super.resolveClass(desc);
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+			throw new InvalidClassException("Proxy classes are not allowed in a frame");
+		}
+	}
+
+	/**
+	 * Reads the date of a binary frame body without decoding the rest of it
+	 * @param buffer The buffer holding the body
+	 * @param offset The index of the first byte of the body
+	 * @return The date, in epoch milliseconds, 0 if the body is malformed
+	 */
+	public static long dateOf(ByteBuffer buffer, int offset) {
+		ByteBuffer body = buffer.duplicate();
+		body.position(offset + 1);
+		long date = readVarLong(body);
+		return date < 0 ? 0 : date;
+	}
+
+	/**
+	 * Reads the user name of a binary frame body that carries it, without decoding the rest of it
+	 * @param buffer The buffer holding the body
+	 * @param offset The index of the first byte of the body
+	 * @return The user name, null if the body leaves it out or is malformed
+	 */
+	public static String userNameOf(ByteBuffer buffer, int offset) {
+		ByteBuffer body = buffer.duplicate();
+		body.position(offset + 1);
+		if(readVarLong(body) < 0 || (readVarLong(body) & 1) != 1)
+			return null;
+		long length = readVarLong(body) - 1;
+		if(length < 0 || length > body.remaining())
+			return null;
+		byte[] name = new byte[(int) length];
+		body.get(name);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads an unsigned variable length integer from a buffer
+	 * @param buffer The buffer, positioned at the varint and left after it
+	 * @return The value, -1 if the buffer ends first or the varint is too long
+	 */
+	private static long readVarLong(ByteBuffer buffer) {
+		long value = 0;
+		for(int shift = 0; shift < 64 && buffer.hasRemaining(); shift += 7) {
+			int b = buffer.get() & 0xFF;
+			value |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		return -1;
+	}
+
+	/**
+	 * Decodes a binary frame that carries its user's name and is not compressed, such as a record
+	 * of the server's message log, without a codec of its connection
+	 * @param frame The frame header and body, left unchanged
+	 * @return The decoded data
+	 * @throws IOException If the body is not valid ClypeData
+	 */
+	public static ClypeData decodeRecord(ByteBuffer frame) throws IOException {
+		ByteBuffer source = frame.duplicate();
+		source.position(source.position() + headerLength);
+		byte[] body = new byte[source.remaining()];
+		source.get(body);
+		return new FrameCodec(binary, new UserDirectory(), true).decodeBinary(body, 0, body.length);
+	}
+
+	/**
+	 * Encodes ClypeData in the compact binary format
+	 * @param data The data being encoded
+	 * @param compression The compression to try on the payload, null to never compress it
+	 * @return The encoded bytes
+	 */
+	private byte[] encodeBinary(ClypeData data, Compression compression) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+		if(compression == null) {
+			writeHead(out, data, users.idOf(data.getUserName()), announce(data), false);
+			writePayload(out, data);
+			return out.toByteArray();
+		}
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+		writePayload(payload, data);
+		byte[] raw = payload.toByteArray();
+		byte[] packed = compression.compress(raw);
+		writeHead(out, data, users.idOf(data.getUserName()), announce(data), packed != null);
+		if(packed != null)
+			out.write(packed, 0, packed.length);
+		else
+			out.write(raw, 0, raw.length);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decides whether a user's name must be written, marking it as sent to the peer unless the
+	 * data is a file or chunk, which may reach the peer after frames encoded later
+	 * @param data The data being encoded
+	 * @return True if the peer does not know the user's id yet
+	 */
+	private boolean announce(ClypeData data) {
+		int id = users.idOf(data.getUserName());
+		if(id != 0 && announced.get(id))
+			return false;
+		if(id != 0 && data.getType() != ClypeData.file && data.getType() != ClypeData.chunk)
+			announced.set(id);
+		return true;
+	}
+
+	/**
+	 * Checks whether the peer already knows a user's name, so frames from that user no longer
+	 * carry it and may be left out without breaking later frames
+	 * @param userName The user name
+	 * @return True if frames from the user can be decoded on their own
+	 */
+	public synchronized boolean knows(String userName) {
+		if(format == serial)
+			return true;
+		int id = users.idOf(userName);
+		return id != 0 && announced.get(id);
+	}
+
+	/**
+	 * Writes the binary fields in front of the payload: the type, the date, the user, and the room
+	 * and origin if there are any
+	 * @param out The buffer being written to
+	 * @param data The data being encoded
+	 * @param id The user's id, 0 if it has none
+	 * @param withName Whether the user name follows the id
+	 * @param packed Whether the fields after the user are compressed
+	 */
+	static void writeHead(ByteArrayOutputStream out, ClypeData data, int id, boolean withName, boolean packed) {
+		writeHead(out, data, data.getDate().getTime(), id, withName, packed);
+	}
+
+	/**
+	 * Writes the binary fields in front of the payload with a date other than the data's own
+	 * @param out The buffer being written to
+	 * @param data The data being encoded
+	 * @param date The date written, in epoch milliseconds
+	 * @param id The user's id, 0 if it has none
+	 * @param withName Whether the user name follows the id
+	 * @param packed Whether the fields after the user are compressed
+	 */
+	static void writeHead(ByteArrayOutputStream out, ClypeData data, long date, int id, boolean withName, boolean packed) {
+		out.write(data.getType() | (packed ? compressed : 0) | (data.getRoom() != null ? addressed : 0) | (data.getOrigin() != 0 ? originated : 0));
+		writeVarLong(out, date);
+		if(withName) {
+			writeVarLong(out, ((long) id << 1) | 1);
+			writeString(out, data.getUserName());
+		} else {
+			writeVarLong(out, (long) id << 1);
+		}
+		if(data.getRoom() != null)
+			writeString(out, data.getRoom());
+		if(data.getOrigin() != 0)
+			writeVarLong(out, data.getOrigin());
+	}
+
+	/**
+	 * Writes the binary fields after the user, which are the same for every recipient
+	 * @param out The buffer being written to
+	 * @param data The data being encoded
+	 */
+	static void writePayload(ByteArrayOutputStream out, ClypeData data) {
+		if(data instanceof FileChunkClypeData) {
+			FileChunkClypeData chunk = (FileChunkClypeData) data;
+			writeString(out, chunk.getFileName());
+			writeVarLong(out, chunk.getOffset());
+			writeVarLong(out, chunk.getTotalLength());
+			writeVarLong(out, chunk.getKeyIndex());
+			out.write(chunk.getContents(), 0, chunk.getContents().length);
+		} else if(data instanceof FileClypeData) {
+			writeString(out, ((FileClypeData) data).getFileName());
+			String contents = data.getData();
+			out.write(contents == null ? 0 : 1);
+			if(contents != null)
+				writeRaw(out, contents);
+		} else {
+			writeRaw(out, data.getData());
+		}
+	}
+
+	/**
+	 * Decodes ClypeData from the compact binary format
+	 * @param body The buffer holding the frame body
+	 * @param offset The index of the first byte of the body
+	 * @param length The number of bytes in the body
+	 * @return The decoded data
+	 * @throws IOException If the body is not valid ClypeData
+	 */
+	private ClypeData decodeBinary(byte[] body, int offset, int length) throws IOException {
+		Reader in = new Reader(body, offset, length);
+		int type = in.readByte();
+		boolean packed = (type & compressed) != 0;
+		boolean inRoom = (type & addressed) != 0;
+		boolean hasOrigin = (type & originated) != 0;
+		type &= ~(compressed | addressed | originated);
+		Date date = new Date(in.readVarLong());
+		long user = in.readVarLong();
+		int id = (int) (user >>> 1);
+		String userName;
+		if((user & 1) != 0) {
+			userName = in.readString();
+			if(internUsers) {
+				if(userName != null)
+					users.intern(userName);
+			} else if(id != 0) {
+				users.define(id, userName);
+			}
+		} else {
+			userName = users.nameOf(id);
+			if(userName == null)
+				throw new StreamCorruptedException("Unknown user id " + id);
+		}
+		String room = inRoom ? in.readString() : null;
+		long origin = hasOrigin ? in.readVarLong() : 0;
+		Compression compression = this.compression;
+		if(packed) {
+			if(compression == null)
+				throw new StreamCorruptedException("Compressed frame without agreed compression");
+			byte[] payload = compression.decompress(body, in.position, in.remaining());
+			in = new Reader(payload, 0, payload.length);
+		} else if(compression != null) {
+			compression.received(in.remaining());
+		}
+		ClypeData data;
+		if(type == ClypeData.chunk) {
+			String fileName = in.readString();
+			long chunkOffset = in.readVarLong();
+			long totalLength = in.readVarLong();
+			long keyIndex = in.readVarLong();
+			data = new FileChunkClypeData(userName, fileName, chunkOffset, totalLength, keyIndex, in.readRestBytes(), date);
+		} else if(type == ClypeData.file) {
+			String fileName = in.readString();
+			String contents = in.readByte() == 0 ? null : in.readRest();
+			data = new FileClypeData(userName, fileName, contents, type, date);
+		} else {
+			data = new MessageClypeData(userName, in.readRest(), type, date);
+		}
+		data.setRoom(room);
+		data.setOrigin(origin);
+		return data;
+	}
+
+	/**
+	 * Writes an unsigned variable length integer, 7 bits per byte with the high bit marking continuation
+	 * @param out The buffer being written to
+	 * @param value The value being written
+	 */
+	static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Writes a String as a varint of its length + 1 and its UTF-8 bytes, null as a single 0
+	 * @param out The buffer being written to
+	 * @param value The String being written
+	 */
+	static void writeString(ByteArrayOutputStream out, String value) {
+		if(value == null) {
+			out.write(0);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, bytes.length + 1L);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Writes a String as its UTF-8 bytes alone, used for the payload at the end of a frame
+	 * @param out The buffer being written to
+	 * @param value The String being written, null is written as empty
+	 */
+	private static void writeRaw(ByteArrayOutputStream out, String value) {
+		if(value == null)
+			return;
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Cursor over a binary frame body
+	 */
+	static class Reader {
+		/**
+		 * The buffer holding the body
+		 */
+		private byte[] buffer;
+		/**
+		 * The index of the next byte to read
+		 */
+		private int position;
+		/**
+		 * The index after the last byte of the body
+		 */
+		private int end;
+
+		/**
+		 * Initializes Reader instance variables
+		 * @param buffer The buffer holding the body
+		 * @param offset The index of the first byte of the body
+		 * @param length The number of bytes in the body
+		 */
+		Reader(byte[] buffer, int offset, int length) {
+			this.buffer = buffer;
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		/**
+		 * Reads one unsigned byte
+		 * @return The byte
+		 * @throws StreamCorruptedException If the body has ended
+		 */
+		int readByte() throws StreamCorruptedException {
+			if(position >= end)
+				throw new StreamCorruptedException("Frame ended early");
+			return buffer[position++] & 0xFF;
+		}
+
+		/**
+		 * Reads an unsigned variable length integer
+		 * @return The value
+		 * @throws StreamCorruptedException If the body has ended or the varint is too long
+		 */
+		long readVarLong() throws StreamCorruptedException {
+			long value = 0;
+			for(int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if((b & 0x80) == 0)
+					return value;
+			}
+			throw new StreamCorruptedException("Malformed varint");
+		}
+
+		/**
+		 * Reads a String written by {@link FrameCodec#writeString(ByteArrayOutputStream, String)}
+		 * @return The String or null
+		 * @throws StreamCorruptedException If the body has ended
+		 */
+		String readString() throws StreamCorruptedException {
+			long length = readVarLong() - 1;
+			if(length < 0)
+				return null;
+			if(length > end - position)
+				throw new StreamCorruptedException("Frame ended early");
+			String value = new String(buffer, position, (int) length, StandardCharsets.UTF_8);
+			position += (int) length;
+			return value;
+		}
+
+		/**
+		 * Reads the rest of the body as UTF-8 text
+		 * @return The text
+		 */
+		String readRest() {
+			String value = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+			position = end;
+			return value;
+		}
+
+		/**
+		 * Reads the rest of the body as raw bytes
+		 * @return A copy of the remaining bytes
+		 */
+		byte[] readRestBytes() {
+			byte[] value = Arrays.copyOfRange(buffer, position, end);
+			position = end;
+			return value;
+		}
+
+		/**
+		 * Gets the number of unread bytes
+		 * @return The number of unread bytes
+		 */
+		int remaining() {
+			return end - position;
+		}
+	}
+
+}
@@ -0,0 +1,328 @@
+package data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The first frame each side sends, used to agree on the {@link FrameCodec} format.
+ *
+ * The client's hello holds the magic number, the protocol version, a bit mask of the formats
+ * it supports and its user name. The server answers with the chosen format and the id it
+ * assigned to the user, or {@link #refused} if the two have no format in common or the user
+ * name is refused. No frame of the handshake may be longer than {@link #maxLength}.
+ *
+ * A client offering payload compression adds a bit mask of {@link Compression} codec ids after its
+ * name, and the server then adds the chosen id, or {@link Compression#none}, after the user id.
+ * Peers that predate compression neither send nor expect these bytes.
+ *
+ * A server connecting to another as one of its links, under a user name reserved for them, must
+ * prove that it knows the secret the servers share. The server answers such a hello with a
+ * challenge instead: {@link #challenge} followed by {@link #nonceLength} random bytes drawn for
+ * this connection alone. The client sends back an HMAC-SHA256 of the nonce and its user name keyed
+ * with the secret, and only then gets the answer above, {@link #refused} if the proof is wrong. Since
+ * the nonce is never reused, a proof read off one connection is worthless on any other
+ *
+ * @author Will Dunklin
+ *
+ */
+public class Handshake {
+	/**
+	 * Magic number opening every client hello, "CLYP"
+	 */
+	private static final int magic = 0x434C5950;
+	/**
+	 * The protocol version
+	 */
+	public static final int version = 1;
+	/**
+	 * Format sent by the server when no format is shared
+	 */
+	public static final int refused = 0xFF;
+	/**
+	 * The largest body of a hello, challenge, proof or answer, so a peer that has not shaken hands
+	 * cannot make the other side allocate a whole frame
+	 */
+	public static final int maxLength = 1024;
+	/**
+	 * First byte of the server's challenge to a client connecting under a reserved name
+	 */
+	public static final int challenge = 0xFE;
+	/**
+	 * The number of random bytes in a challenge
+	 */
+	public static final int nonceLength = 16;
+	/**
+	 * Source of challenge nonces
+	 */
+	private static final SecureRandom random = new SecureRandom();
+	/**
+	 * The algorithm proofs of the shared secret are made with
+	 */
+	private static final String proofAlgorithm = "HmacSHA256";
+	/**
+	 * The name of the connecting user
+	 */
+	private String userName;
+	/**
+	 * Bit mask of the formats the client supports
+	 */
+	private int formats;
+	/**
+	 * Bit mask of the compression codec ids the client supports
+	 */
+	private int compressions;
+	/**
+	 * The secret servers share, used by the client to answer a challenge, null if it knows none
+	 */
+	private String secret;
+
+	/**
+	 * Initializes Handshake instance variables
+	 * @param userName The name of the connecting user
+	 * @param formats Bit mask of the formats the client supports
+	 * @param compressions Bit mask of the compression codec ids the client supports, 0 for none
+	 * @param secret The secret servers share, proven if the server challenges the client, null for none
+	 */
+	public Handshake(String userName, int formats, int compressions, String secret) {
+		this.userName = userName;
+		this.formats = formats;
+		this.compressions = compressions & 0xFF;
+		this.secret = secret;
+	}
+
+	/**
+	 * Defaults {@link #secret} to none
+	 * @param userName The name of the connecting user
+	 * @param formats Bit mask of the formats the client supports
+	 * @param compressions Bit mask of the compression codec ids the client supports, 0 for none
+	 */
+	public Handshake(String userName, int formats, int compressions) {
+		this(userName, formats, compressions, null);
+	}
+
+	/**
+	 * Defaults {@link #compressions} to none
+	 * @param userName The name of the connecting user
+	 * @param formats Bit mask of the formats the client supports
+	 */
+	public Handshake(String userName, int formats) {
+		this(userName, formats, 0);
+	}
+
+	/**
+	 * Gets the name of the connecting user
+	 * @return userName
+	 */
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * Gets the bit mask of the formats the client supports
+	 * @return formats
+	 */
+	public int getFormats() {
+		return formats;
+	}
+
+	/**
+	 * Gets the bit mask of the compression codec ids the client supports
+	 * @return compressions
+	 */
+	public int getCompressions() {
+		return compressions;
+	}
+
+	/**
+	 * Checks whether the client's answer to a challenge proves it knows a secret
+	 * @param secret The secret
+	 * @param nonce The nonce the client was challenged with
+	 * @param proof The client's answer
+	 * @return True if the answer is the proof of the secret for this nonce and user name, false if it is not or the secret is null
+	 */
+	public boolean proves(String secret, byte[] nonce, byte[] proof) {
+		return secret != null && MessageDigest.isEqual(proof, prove(secret, nonce, userName));
+	}
+
+	/**
+	 * Makes the proof a client connecting under a user name gives that it knows a secret
+	 * @param secret The secret servers share
+	 * @param nonce The nonce the server challenged the client with
+	 * @param userName The name the client connects under
+	 * @return The HMAC-SHA256 of the nonce followed by the user name, keyed with the secret
+	 */
+	public static byte[] prove(String secret, byte[] nonce, String userName) {
+		try {
+			Mac mac = Mac.getInstance(proofAlgorithm);
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), proofAlgorithm));
+			mac.update(nonce);
+			return mac.doFinal(userName.getBytes(StandardCharsets.UTF_8));
+		} catch(GeneralSecurityException gse) {
+			// every Java platform is required to support HmacSHA256
+			throw new IllegalStateException(gse);
+		}
+	}
+
+	/**
+	 * Picks the preferred format supported by both sides
+	 * @param serverFormats Bit mask of the formats the server supports
+	 * @return The chosen format or {@link #refused}
+	 */
+	public int choose(int serverFormats) {
+		int shared = formats & serverFormats;
+		if((shared & (1 << FrameCodec.binary)) != 0)
+			return FrameCodec.binary;
+		if((shared & (1 << FrameCodec.serial)) != 0)
+			return FrameCodec.serial;
+		return refused;
+	}
+
+	/**
+	 * Picks the compression codec with the highest id supported by both sides
+	 * @param serverCompressions Bit mask of the compression codec ids the server accepts
+	 * @return The chosen id or {@link Compression#none}
+	 */
+	public int chooseCompression(int serverCompressions) {
+		return Compression.choose(compressions, serverCompressions);
+	}
+
+	/**
+	 * Encodes the client hello as a frame body
+	 * @return The encoded body
+	 * @throws IOException If the hello cannot be encoded
+	 */
+	public byte[] encode() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(magic);
+		out.writeByte(version);
+		out.writeByte(formats);
+		out.writeUTF(userName);
+		if(compressions != 0)
+			out.writeByte(compressions);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a client hello from a frame body
+	 * @param body The buffer holding the frame body
+	 * @param offset The index of the first byte of the body
+	 * @param length The number of bytes in the body
+	 * @return The decoded hello
+	 * @throws IOException If the body is not a hello for this protocol version
+	 */
+	public static Handshake decode(byte[] body, int offset, int length) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, offset, length));
+		if(in.readInt() != magic)
+			throw new StreamCorruptedException("Not a Clype client");
+		if(in.readUnsignedByte() != version)
+			throw new StreamCorruptedException("Unsupported protocol version");
+		int formats = in.readUnsignedByte();
+		String userName = in.readUTF();
+		int compressions = in.available() > 0 ? in.readUnsignedByte() : 0;
+		return new Handshake(userName, formats, compressions);
+	}
+
+	/**
+	 * Draws a fresh nonce to challenge one client with
+	 * @return {@link #nonceLength} random bytes
+	 */
+	public static byte[] newNonce() {
+		byte[] nonce = new byte[nonceLength];
+		random.nextBytes(nonce);
+		return nonce;
+	}
+
+	/**
+	 * Encodes the server's challenge as a frame body
+	 * @param nonce The nonce drawn for the client
+	 * @return The encoded body
+	 */
+	public static byte[] encodeChallenge(byte[] nonce) {
+		byte[] body = new byte[1 + nonce.length];
+		body[0] = (byte) challenge;
+		System.arraycopy(nonce, 0, body, 1, nonce.length);
+		return body;
+	}
+
+	/**
+	 * Encodes the server's answer as a frame body
+	 * @param format The chosen format or {@link #refused}
+	 * @param userId The id assigned to the user
+	 * @return The encoded body
+	 */
+	public static byte[] encodeReply(int format, int userId) {
+		return new byte[] { (byte) format, (byte) (userId >>> 24), (byte) (userId >>> 16),
+				(byte) (userId >>> 8), (byte) userId };
+	}
+
+	/**
+	 * Encodes the server's answer to a client that offered compression as a frame body
+	 * @param format The chosen format or {@link #refused}
+	 * @param userId The id assigned to the user
+	 * @param compression The chosen compression codec id or {@link Compression#none}
+	 * @return The encoded body
+	 */
+	public static byte[] encodeReply(int format, int userId, int compression) {
+		byte[] reply = Arrays.copyOf(encodeReply(format, userId), 6);
+		reply[5] = (byte) compression;
+		return reply;
+	}
+
+	/**
+	 * Sends this hello from the client and waits for the server's answer, first answering its
+	 * challenge if it sends one
+	 * @param in The stream from the server
+	 * @param out The stream to the server
+	 * @return A codec using the chosen format and compression, with the user's assigned id already known
+	 * @throws IOException If the server refuses every format, challenges a client without a secret or the streams fail
+	 */
+	public FrameCodec connect(DataInputStream in, DataOutputStream out) throws IOException {
+		FrameCodec.writeBody(out, encode());
+		out.flush();
+		byte[] reply = FrameCodec.readBody(in, maxLength);
+		if(reply.length == 1 + nonceLength && (reply[0] & 0xFF) == challenge) {
+			if(secret == null)
+				throw new StreamCorruptedException("Server asked for a secret that was not given");
+			FrameCodec.writeBody(out, prove(secret, Arrays.copyOfRange(reply, 1, reply.length), userName));
+			out.flush();
+			reply = FrameCodec.readBody(in, maxLength);
+		}
+		if(reply.length != 5 && (reply.length != 6 || compressions == 0))
+			throw new StreamCorruptedException("Malformed handshake reply");
+		int format = reply[0] & 0xFF;
+		if(format == refused)
+			throw new StreamCorruptedException("Server supports none of the offered formats or refused the user name");
+		int userId = ((reply[1] & 0xFF) << 24) | ((reply[2] & 0xFF) << 16) | ((reply[3] & 0xFF) << 8) | (reply[4] & 0xFF);
+		FrameCodec codec = new FrameCodec(format);
+		codec.getUsers().define(userId, userName);
+		int compression = reply.length == 6 ? reply[5] & 0xFF : Compression.none;
+		if(compression != Compression.none) {
+			if((compressions & (1 << compression)) == 0 || Compression.codecOf(compression) == null)
+				throw new StreamCorruptedException("Server chose a compression that was not offered");
+			codec.setCompression(new Compression(Compression.codecOf(compression)));
+		}
+		return codec;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "Handshake [userName=" + userName + ", formats=" + formats + ", compressions=" + compressions + ", secret=" + (secret != null) + "]";
+	}
+
+}
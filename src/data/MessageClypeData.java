@@ -1,5 +1,7 @@
 package data;
 
+import java.util.Date;
+
 /**
  * Class that handles text messages that get transferred between CypeClients via the ClypeServer.
  * 
@@ -30,6 +32,18 @@ public class MessageClypeData extends ClypeData {
 		this.message = message;
 	}
 
+	/**
+	 * Initializes MessageClypeData instance variables with the date it was originally sent
+	 * @param userName The name of the sending user
+	 * @param message The text component of the message
+	 * @param type The type of data being sent
+	 * @param date The time and date the data was sent
+	 */
+	MessageClypeData(String userName, String message, int type, Date date) {
+		super(userName, type, date);
+		this.message = message;
+	}
+
 	/**
 	 * Initializes MessageClypeData instance variables
 	 * @param userName The name of the sending user
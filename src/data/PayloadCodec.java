@@ -0,0 +1,49 @@
+package data;
+
+import java.io.IOException;
+
+/**
+ * A compression algorithm for the payload of binary frames, registered with {@link Compression}
+ * and agreed on by the {@link Handshake}.
+ *
+ * Implementations are shared by every connection using them, so they must be safe to call from
+ * many threads at once
+ *
+ * @author Will Dunklin
+ *
+ */
+public interface PayloadCodec {
+
+	/**
+	 * Gets the id the codec is offered under in the handshake, from 1 to {@link Compression#maxId}
+	 * @return The id
+	 */
+	int getId();
+
+	/**
+	 * Gets the name the codec is configured by, such as "deflate"
+	 * @return The name
+	 */
+	String getName();
+
+	/**
+	 * Compresses bytes
+	 * @param data The buffer holding the bytes
+	 * @param offset The index of the first byte
+	 * @param length The number of bytes
+	 * @return The compressed bytes, which may be longer than the input
+	 */
+	byte[] compress(byte[] data, int offset, int length);
+
+	/**
+	 * Restores bytes compressed by {@link #compress(byte[], int, int)}
+	 * @param data The buffer holding the compressed bytes
+	 * @param offset The index of the first compressed byte
+	 * @param length The number of compressed bytes
+	 * @param rawLength The number of bytes they were compressed from
+	 * @return The restored bytes
+	 * @throws IOException If the bytes are corrupt or do not restore to rawLength bytes
+	 */
+	byte[] decompress(byte[] data, int offset, int length, int rawLength) throws IOException;
+
+}
@@ -0,0 +1,302 @@
+package data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One ClypeData encoded once and shared by every recipient of a broadcast.
+ *
+ * Each format is encoded the first time a recipient needs it. A binary frame is kept in three
+ * parts: the fields in front of the user name with and without the name, and the payload after
+ * it, so each recipient's codec only picks the head matching what its peer already knows and
+ * writes the same payload as everyone else. The encoded bytes are never changed once made.
+ *
+ * The payload is also compressed at most once, by the first recipient whose connection agreed on
+ * a {@link Compression}, and the result, or the decision not to compress, is shared by every
+ * recipient using the same codec.
+ *
+ * Every queue holding the frame keeps a reference to it, and the encodings are dropped when the
+ * last reference is released. The time spent encoding is added up so the server can measure it
+ * once per broadcast rather than once per recipient
+ *
+ * @author Will Dunklin
+ *
+ */
+public class SharedFrame {
+	/**
+	 * The data being sent
+	 */
+	private ClypeData data;
+	/**
+	 * The user ids the binary encoding refers to
+	 */
+	private UserDirectory users;
+	/**
+	 * The id of the data's user in {@link #users}, 0 if it has none
+	 */
+	private int userId;
+	/**
+	 * The whole serial frame, null until needed
+	 */
+	private byte[] serialFrame;
+	/**
+	 * The binary frame header and fields up to and including the user name, null until needed
+	 */
+	private byte[] namedHead;
+	/**
+	 * The binary frame header and fields up to the user id, leaving out the name, null until needed
+	 */
+	private byte[] compactHead;
+	/**
+	 * Every binary field after the user, null until needed
+	 */
+	private byte[] payload;
+	/**
+	 * The codec {@link #packedPayload} was made with, null until a recipient compresses the payload
+	 */
+	private PayloadCodec packedBy;
+	/**
+	 * The compressed payload, null until needed or if it did not compress well
+	 */
+	private byte[] packedPayload;
+	/**
+	 * The binary frame header and fields up to and including the user name, for the compressed payload
+	 */
+	private byte[] packedNamedHead;
+	/**
+	 * The binary frame header and fields up to the user id, for the compressed payload
+	 */
+	private byte[] packedCompactHead;
+	/**
+	 * The number of holders of this frame
+	 */
+	private AtomicInteger references;
+	/**
+	 * The {@link System#nanoTime()} the data was received at, 0 if it was not received from a client
+	 */
+	private long receivedAt;
+	/**
+	 * The nanoseconds spent encoding and compressing so far
+	 */
+	private long encodeNanos;
+
+	/**
+	 * Initializes SharedFrame instance variables, held once by its creator
+	 * @param data The data being sent
+	 * @param users The user ids the binary encoding refers to
+	 * @param receivedAt The {@link System#nanoTime()} the data was received at, 0 if it was not received from a client
+	 */
+	public SharedFrame(ClypeData data, UserDirectory users, long receivedAt) {
+		this.data = data;
+		this.users = users;
+		this.userId = users.idOf(data.getUserName());
+		this.references = new AtomicInteger(1);
+		this.receivedAt = receivedAt;
+		this.encodeNanos = 0;
+	}
+
+	/**
+	 * Defaults {@link #receivedAt} to 0, for data not received from a client
+	 * @param data The data being sent
+	 * @param users The user ids the binary encoding refers to
+	 */
+	public SharedFrame(ClypeData data, UserDirectory users) {
+		this(data, users, 0);
+	}
+
+	/**
+	 * Gets the serial frame, encoding it on first use
+	 * @return The frame header and serialized body
+	 * @throws IOException If the data cannot be serialized
+	 */
+	synchronized byte[] serialFrame() throws IOException {
+		checkHeld();
+		if(serialFrame == null) {
+			long start = System.nanoTime();
+			serialFrame = FrameCodec.frame(FrameCodec.encodeSerial(data));
+			encodeNanos += System.nanoTime() - start;
+		}
+		return serialFrame;
+	}
+
+	/**
+	 * Gets the head of the binary frame, encoding the frame on first use
+	 * @param withName Whether the user name is written after the user id
+	 * @param packed Whether the compressed payload follows, only once {@link #pack(Compression)} returned true
+	 * @return The frame header and every field up to the payload
+	 */
+	synchronized byte[] binaryHead(boolean withName, boolean packed) {
+		encodeBinary();
+		if(packed)
+			return withName ? packedNamedHead : packedCompactHead;
+		return withName ? namedHead : compactHead;
+	}
+
+	/**
+	 * Gets the payload of the binary frame, encoding the frame on first use
+	 * @param packed Whether to get the compressed payload, only once {@link #pack(Compression)} returned true
+	 * @return Every field after the user
+	 */
+	synchronized byte[] binaryPayload(boolean packed) {
+		encodeBinary();
+		return packed ? packedPayload : payload;
+	}
+
+	/**
+	 * Compresses the binary payload for a recipient, unless it was already compressed with the same codec,
+	 * and counts what the recipient is sent
+	 * @param compression The recipient's compression
+	 * @return True if the recipient is sent the compressed payload
+	 */
+	synchronized boolean pack(Compression compression) {
+		encodeBinary();
+		if(packedBy != compression.getCodec()) {
+			long start = System.nanoTime();
+			packedBy = compression.getCodec();
+			packedPayload = compression.compress(payload);
+			if(packedPayload != null) {
+				packedNamedHead = head(true, packedPayload.length, true);
+				packedCompactHead = userId == 0 ? packedNamedHead : head(false, packedPayload.length, true);
+			}
+			encodeNanos += System.nanoTime() - start;
+		} else {
+			compression.sent(payload.length, packedPayload);
+		}
+		return packedPayload != null;
+	}
+
+	/**
+	 * Encodes a binary frame body that decodes on its own, for the server's message log: the user
+	 * is always written by name with id 0, since ids do not outlive the server, and the payload is
+	 * never compressed. The date is the one the log keeps the record under rather than the date the
+	 * sender gave, which the server cannot trust
+	 * @param date The date of the record, in epoch milliseconds
+	 * @return The body, without a frame header
+	 */
+	public synchronized byte[] recordBody(long date) {
+		encodeBinary();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + 32);
+		FrameCodec.writeHead(out, data, date, 0, true, false);
+		out.write(payload, 0, payload.length);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encodes the binary frame once
+	 */
+	private void encodeBinary() {
+		checkHeld();
+		if(payload != null)
+			return;
+		long start = System.nanoTime();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+		FrameCodec.writePayload(out, data);
+		payload = out.toByteArray();
+		namedHead = head(true, payload.length, false);
+		compactHead = userId == 0 ? namedHead : head(false, payload.length, false);
+		encodeNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Encodes the frame header and fields in front of the payload
+	 * @param withName Whether the user name is written after the user id
+	 * @param payloadLength The length of the payload following the head
+	 * @param packed Whether the payload is compressed
+	 * @return The head
+	 */
+	private byte[] head(boolean withName, int payloadLength, boolean packed) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		FrameCodec.writeHead(out, data, userId, withName, packed);
+		byte[] head = out.toByteArray();
+		FrameCodec.putLength(head, head.length - FrameCodec.headerLength + payloadLength);
+		return head;
+	}
+
+	/**
+	 * Checks the frame has not been released by every holder
+	 * @throws IllegalStateException If it has
+	 */
+	private void checkHeld() throws IllegalStateException {
+		if(references.get() <= 0)
+			throw new IllegalStateException("SharedFrame used after its last release");
+	}
+
+	/**
+	 * Adds a holder of this frame
+	 */
+	public void retain() {
+		references.incrementAndGet();
+	}
+
+	/**
+	 * Removes a holder of this frame, dropping the encodings when none remain
+	 */
+	public void release() {
+		if(references.decrementAndGet() == 0) {
+			synchronized(this) {
+				serialFrame = null;
+				namedHead = null;
+				compactHead = null;
+				payload = null;
+				packedBy = null;
+				packedPayload = null;
+				packedNamedHead = null;
+				packedCompactHead = null;
+			}
+		}
+	}
+
+	/**
+	 * Gets the data being sent
+	 * @return data
+	 */
+	public ClypeData getData() {
+		return data;
+	}
+
+	/**
+	 * Gets the time the data was received at
+	 * @return receivedAt, in {@link System#nanoTime()} units, 0 if it was not received from a client
+	 */
+	public long getReceivedAt() {
+		return receivedAt;
+	}
+
+	/**
+	 * Gets the time spent encoding and compressing the frame so far
+	 * @return encodeNanos
+	 */
+	public synchronized long getEncodeNanos() {
+		return encodeNanos;
+	}
+
+	/**
+	 * Gets the user ids the binary encoding refers to
+	 * @return users
+	 */
+	public UserDirectory getUsers() {
+		return users;
+	}
+
+	/**
+	 * Gets the id of the data's user
+	 * @return userId
+	 */
+	public int getUserId() {
+		return userId;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "SharedFrame [data=" + data + ", userId=" + userId + ", references=" + references + "]";
+	}
+
+}
@@ -0,0 +1,97 @@
+package data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two-way table between user names and the small ids that stand in for them in binary frames.
+ *
+ * The server owns the authoritative directory and hands out ids; a client's directory only
+ * learns the ids the server tells it about. Id 0 is never assigned and means "not interned"
+ *
+ * @author Will Dunklin
+ *
+ */
+public class UserDirectory {
+	/**
+	 * Ids of every known user name
+	 */
+	private ConcurrentHashMap<String, Integer> ids;
+	/**
+	 * User names of every known id
+	 */
+	private ConcurrentHashMap<Integer, String> names;
+	/**
+	 * The last id handed out by {@link #intern(String)}
+	 */
+	private AtomicInteger lastId;
+
+	/**
+	 * Initializes UserDirectory instance variables
+	 */
+	public UserDirectory() {
+		this.ids = new ConcurrentHashMap<String, Integer>();
+		this.names = new ConcurrentHashMap<Integer, String>();
+		this.lastId = new AtomicInteger(0);
+	}
+
+	/**
+	 * Gets the id of a user name, assigning a new one if it has none
+	 * @param userName The user name
+	 * @return The user's id
+	 */
+	public int intern(String userName) {
+		Integer id = ids.get(userName);
+		if(id != null)
+			return id;
+		synchronized(this) {
+			id = ids.get(userName);
+			if(id == null) {
+				id = lastId.incrementAndGet();
+				names.put(id, userName);
+				ids.put(userName, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * Records an id assigned elsewhere, normally by the server
+	 * @param id The user's id
+	 * @param userName The user name
+	 */
+	public void define(int id, String userName) {
+		names.put(id, userName);
+		ids.put(userName, id);
+	}
+
+	/**
+	 * Gets the id of a user name
+	 * @param userName The user name
+	 * @return The user's id or 0 if it has none
+	 */
+	public int idOf(String userName) {
+		if(userName == null)
+			return 0;
+		Integer id = ids.get(userName);
+		return id == null ? 0 : id;
+	}
+
+	/**
+	 * Gets the user name of an id
+	 * @param id The user's id
+	 * @return The user name or null if the id is unknown
+	 */
+	public String nameOf(int id) {
+		return names.get(id);
+	}
+
+	/**
+	 * Gets the number of known users
+	 * @return The number of known users
+	 */
+	public int size() {
+		return names.size();
+	}
+
+}
@@ -0,0 +1,552 @@
+package data;
+
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encrypts and decrypts with the Vigenere cipher used by every ClypeData, one key at a time.
+ *
+ * The shift of every key character is worked out once into a table of the 128 ASCII characters,
+ * so a character is encrypted with a single array lookup and nothing is allocated per character.
+ * Results are written into buffers supplied by the caller.
+ *
+ * Output matches the original cipher exactly: characters are shifted only if they are letters and
+ * the key advances only on letters. A non-ASCII letter counts as the letter 'a' and comes out as
+ * a plain ASCII letter, upper case if the input was. Byte buffers only shift ASCII letters, so
+ * every byte of a multi-byte character passes through untouched.
+ *
+ * Arrays of at least {@link #parallelThreshold} characters or bytes are split into pieces of
+ * {@link #splitLength} that are shifted in parallel on the common ForkJoinPool. Because the key
+ * only advances on letters, the letters in every piece are counted in a first parallel pass and
+ * summed to find where in the key each piece starts, so the result is identical to shifting
+ * sequentially. On a single core the extra counting pass only costs time, so arrays stay sequential
+ *
+ * @author Will Dunklin
+ *
+ */
+public class VigenereCipher {
+	/**
+	 * The number of characters covered by the lookup tables
+	 */
+	private static final int tableSize = 128;
+	/**
+	 * The smallest number of characters or bytes shifted in parallel, 1 MiB
+	 */
+	public static final int parallelThreshold = 1 << 20;
+	/**
+	 * The number of characters or bytes in each piece shifted in parallel, 128 KiB
+	 */
+	public static final int splitLength = 1 << 17;
+	/**
+	 * The cipher for the most recently used key, reused while the key stays the same
+	 */
+	private static volatile VigenereCipher lastCipher;
+	/**
+	 * The key
+	 */
+	private String key;
+	/**
+	 * The encrypted form of every ASCII character, one table per key character
+	 */
+	private char[][] encryptTable;
+	/**
+	 * The decrypted form of every ASCII character, one table per key character
+	 */
+	private char[][] decryptTable;
+	/**
+	 * The encrypted form of a lower case non-ASCII letter, one per key character
+	 */
+	private char[] encryptOther;
+	/**
+	 * The decrypted form of a lower case non-ASCII letter, one per key character
+	 */
+	private char[] decryptOther;
+
+	/**
+	 * Initializes VigenereCipher instance variables, building the tables for a key
+	 * @param key The key
+	 * @throws IllegalArgumentException If the key is null or empty
+	 */
+	public VigenereCipher(String key) throws IllegalArgumentException {
+		if(key == null || key.isEmpty())
+			throw new IllegalArgumentException("The key must not be empty");
+		this.key = key;
+		this.encryptTable = new char[key.length()][tableSize];
+		this.decryptTable = new char[key.length()][tableSize];
+		this.encryptOther = new char[key.length()];
+		this.decryptOther = new char[key.length()];
+		for(int i = 0; i < key.length(); i++) {
+			int shift = letterToInt(key.charAt(i));
+			for(int c = 0; c < tableSize; c++) {
+				encryptTable[i][c] = shiftChar(c, shift);
+				decryptTable[i][c] = shiftChar(c, 26 - shift);
+			}
+			encryptOther[i] = (char) ('a' + shift);
+			decryptOther[i] = (char) ('a' + (26 - shift) % 26);
+		}
+	}
+
+	/**
+	 * Gets a cipher for a key, reusing the last one built if the key is the same
+	 * @param key The key
+	 * @return The cipher
+	 * @throws IllegalArgumentException If the key is null or empty
+	 */
+	public static VigenereCipher forKey(String key) throws IllegalArgumentException {
+		VigenereCipher cipher = lastCipher;
+		if(cipher == null || !cipher.key.equals(key)) {
+			cipher = new VigenereCipher(key);
+			lastCipher = cipher;
+		}
+		return cipher;
+	}
+
+	/**
+	 * Encrypts characters into a target array, which may be the source array
+	 * @param source The characters being encrypted
+	 * @param sourceOffset The index of the first character to encrypt
+	 * @param target The array the encrypted characters are written to
+	 * @param targetOffset The index the first encrypted character is written to
+	 * @param length The number of characters
+	 * @param keyIndex The number of letters encrypted before these characters
+	 * @return The number of letters encrypted including these characters
+	 */
+	public long encrypt(char[] source, int sourceOffset, char[] target, int targetOffset, int length, long keyIndex) {
+		if(length >= parallelThreshold && ForkJoinPool.getCommonPoolParallelism() > 1)
+			return shiftParallel(new Split(source, target, null, null, encryptTable, encryptOther), sourceOffset,
+					targetOffset, length, keyIndex);
+		return shift(source, sourceOffset, target, targetOffset, length, keyIndex, encryptTable, encryptOther);
+	}
+
+	/**
+	 * Decrypts characters into a target array, which may be the source array
+	 * @param source The characters being decrypted
+	 * @param sourceOffset The index of the first character to decrypt
+	 * @param target The array the decrypted characters are written to
+	 * @param targetOffset The index the first decrypted character is written to
+	 * @param length The number of characters
+	 * @param keyIndex The number of letters decrypted before these characters
+	 * @return The number of letters decrypted including these characters
+	 */
+	public long decrypt(char[] source, int sourceOffset, char[] target, int targetOffset, int length, long keyIndex) {
+		if(length >= parallelThreshold && ForkJoinPool.getCommonPoolParallelism() > 1)
+			return shiftParallel(new Split(source, target, null, null, decryptTable, decryptOther), sourceOffset,
+					targetOffset, length, keyIndex);
+		return shift(source, sourceOffset, target, targetOffset, length, keyIndex, decryptTable, decryptOther);
+	}
+
+	/**
+	 * Encrypts bytes into a target array, which may be the source array
+	 * @param source The bytes being encrypted
+	 * @param sourceOffset The index of the first byte to encrypt
+	 * @param target The array the encrypted bytes are written to
+	 * @param targetOffset The index the first encrypted byte is written to
+	 * @param length The number of bytes
+	 * @param keyIndex The number of letters encrypted before these bytes
+	 * @return The number of letters encrypted including these bytes
+	 */
+	public long encrypt(byte[] source, int sourceOffset, byte[] target, int targetOffset, int length, long keyIndex) {
+		if(length >= parallelThreshold && ForkJoinPool.getCommonPoolParallelism() > 1)
+			return shiftParallel(new Split(null, null, source, target, encryptTable, null), sourceOffset,
+					targetOffset, length, keyIndex);
+		return shift(source, sourceOffset, target, targetOffset, length, keyIndex, encryptTable);
+	}
+
+	/**
+	 * Decrypts bytes into a target array, which may be the source array
+	 * @param source The bytes being decrypted
+	 * @param sourceOffset The index of the first byte to decrypt
+	 * @param target The array the decrypted bytes are written to
+	 * @param targetOffset The index the first decrypted byte is written to
+	 * @param length The number of bytes
+	 * @param keyIndex The number of letters decrypted before these bytes
+	 * @return The number of letters decrypted including these bytes
+	 */
+	public long decrypt(byte[] source, int sourceOffset, byte[] target, int targetOffset, int length, long keyIndex) {
+		if(length >= parallelThreshold && ForkJoinPool.getCommonPoolParallelism() > 1)
+			return shiftParallel(new Split(null, null, source, target, decryptTable, null), sourceOffset,
+					targetOffset, length, keyIndex);
+		return shift(source, sourceOffset, target, targetOffset, length, keyIndex, decryptTable);
+	}
+
+	/**
+	 * Encrypts the remaining characters of a buffer into another buffer, advancing both
+	 * @param source The characters being encrypted
+	 * @param target The buffer the encrypted characters are written to
+	 * @param keyIndex The number of letters encrypted before these characters
+	 * @return The number of letters encrypted including these characters
+	 * @throws BufferOverflowException If the target has less room than the source has characters
+	 */
+	public long encrypt(CharBuffer source, CharBuffer target, long keyIndex) {
+		return shift(source, target, keyIndex, encryptTable, encryptOther);
+	}
+
+	/**
+	 * Decrypts the remaining characters of a buffer into another buffer, advancing both
+	 * @param source The characters being decrypted
+	 * @param target The buffer the decrypted characters are written to
+	 * @param keyIndex The number of letters decrypted before these characters
+	 * @return The number of letters decrypted including these characters
+	 * @throws BufferOverflowException If the target has less room than the source has characters
+	 */
+	public long decrypt(CharBuffer source, CharBuffer target, long keyIndex) {
+		return shift(source, target, keyIndex, decryptTable, decryptOther);
+	}
+
+	/**
+	 * Encrypts a String from the start of the key
+	 * @param text The String being encrypted
+	 * @return The encrypted String
+	 */
+	public String encrypt(String text) {
+		char[] chars = text.toCharArray();
+		encrypt(chars, 0, chars, 0, chars.length, 0);
+		return new String(chars);
+	}
+
+	/**
+	 * Decrypts a String from the start of the key
+	 * @param text The String being decrypted
+	 * @return The decrypted String
+	 */
+	public String decrypt(String text) {
+		char[] chars = text.toCharArray();
+		decrypt(chars, 0, chars, 0, chars.length, 0);
+		return new String(chars);
+	}
+
+	/**
+	 * Shifts a large array in parallel: counts the letters of every piece, sums the counts into
+	 * each piece's position in the key, then shifts every piece from its position
+	 * @param split The arrays and tables being used
+	 * @param sourceOffset The index of the first source element
+	 * @param targetOffset The index of the first target element
+	 * @param length The number of elements
+	 * @param keyIndex The number of letters shifted before these elements
+	 * @return The number of letters shifted including these elements
+	 */
+	private static long shiftParallel(Split split, int sourceOffset, int targetOffset, int length, long keyIndex) {
+		int pieces = (length + splitLength - 1) / splitLength;
+		long[] starts = new long[pieces];
+		split.prepare(sourceOffset, targetOffset, length, starts);
+		ForkJoinPool.commonPool().invoke(split.forPieces(0, pieces, true));
+		long letters = keyIndex;
+		for(int i = 0; i < pieces; i++) {
+			long count = starts[i];
+			starts[i] = letters;
+			letters += count;
+		}
+		ForkJoinPool.commonPool().invoke(split.forPieces(0, pieces, false));
+		return letters;
+	}
+
+	/**
+	 * Counts the letters among characters, the characters that advance the key
+	 * @param source The characters
+	 * @param offset The index of the first character
+	 * @param length The number of characters
+	 * @return The number of letters
+	 */
+	private static long countLetters(char[] source, int offset, int length) {
+		long letters = 0;
+		for(int end = offset + length; offset < end; offset++) {
+			char c = source[offset];
+			if(isAsciiLetter(c) || (c >= tableSize && Character.isLetter(c)))
+				++letters;
+		}
+		return letters;
+	}
+
+	/**
+	 * Counts the ASCII letters among bytes, the bytes that advance the key
+	 * @param source The bytes
+	 * @param offset The index of the first byte
+	 * @param length The number of bytes
+	 * @return The number of letters
+	 */
+	private static long countLetters(byte[] source, int offset, int length) {
+		long letters = 0;
+		for(int end = offset + length; offset < end; offset++) {
+			if(isAsciiLetter(source[offset]))
+				++letters;
+		}
+		return letters;
+	}
+
+	/**
+	 * Master method to the char array encrypt and decrypt methods
+	 * @param source The source characters
+	 * @param sourceOffset The index of the first source character
+	 * @param target The target array
+	 * @param targetOffset The index of the first target character
+	 * @param length The number of characters
+	 * @param keyIndex The number of letters shifted before these characters
+	 * @param table The ASCII tables to shift with
+	 * @param other The lower case results for non-ASCII letters
+	 * @return The number of letters shifted including these characters
+	 */
+	private static long shift(char[] source, int sourceOffset, char[] target, int targetOffset, int length, long keyIndex,
+			char[][] table, char[] other) {
+		int k = (int) (keyIndex % table.length);
+		long letters = keyIndex;
+		for(int end = sourceOffset + length; sourceOffset < end; sourceOffset++, targetOffset++) {
+			char c = source[sourceOffset];
+			char shifted;
+			if(isAsciiLetter(c)) {
+				shifted = table[k][c];
+			} else if(c >= tableSize && Character.isLetter(c)) {
+				shifted = Character.isUpperCase(c) ? (char) (other[k] - 32) : other[k];
+			} else {
+				target[targetOffset] = c;
+				continue;
+			}
+			target[targetOffset] = shifted;
+			if(++k == table.length)
+				k = 0;
+			++letters;
+		}
+		return letters;
+	}
+
+	/**
+	 * Master method to the byte array encrypt and decrypt methods
+	 * @param source The source bytes
+	 * @param sourceOffset The index of the first source byte
+	 * @param target The target array
+	 * @param targetOffset The index of the first target byte
+	 * @param length The number of bytes
+	 * @param keyIndex The number of letters shifted before these bytes
+	 * @param table The ASCII tables to shift with
+	 * @return The number of letters shifted including these bytes
+	 */
+	private static long shift(byte[] source, int sourceOffset, byte[] target, int targetOffset, int length, long keyIndex,
+			char[][] table) {
+		int k = (int) (keyIndex % table.length);
+		long letters = keyIndex;
+		for(int end = sourceOffset + length; sourceOffset < end; sourceOffset++, targetOffset++) {
+			byte b = source[sourceOffset];
+			if(!isAsciiLetter(b)) {
+				target[targetOffset] = b;
+				continue;
+			}
+			target[targetOffset] = (byte) table[k][b];
+			if(++k == table.length)
+				k = 0;
+			++letters;
+		}
+		return letters;
+	}
+
+	/**
+	 * Master method to the CharBuffer encrypt and decrypt methods
+	 * @param source The source buffer
+	 * @param target The target buffer
+	 * @param keyIndex The number of letters shifted before these characters
+	 * @param table The ASCII tables to shift with
+	 * @param other The lower case results for non-ASCII letters
+	 * @return The number of letters shifted including these characters
+	 */
+	private long shift(CharBuffer source, CharBuffer target, long keyIndex, char[][] table, char[] other) {
+		int length = source.remaining();
+		if(target.remaining() < length)
+			throw new BufferOverflowException();
+		if(source.hasArray() && target.hasArray() && !target.isReadOnly()) {
+			keyIndex = shift(source.array(), source.arrayOffset() + source.position(), target.array(),
+					target.arrayOffset() + target.position(), length, keyIndex, table, other);
+			source.position(source.position() + length);
+			target.position(target.position() + length);
+			return keyIndex;
+		}
+		int k = (int) (keyIndex % table.length);
+		long letters = keyIndex;
+		while(source.hasRemaining()) {
+			char c = source.get();
+			if(isAsciiLetter(c)) {
+				target.put(table[k][c]);
+			} else if(c >= tableSize && Character.isLetter(c)) {
+				target.put(Character.isUpperCase(c) ? (char) (other[k] - 32) : other[k]);
+			} else {
+				target.put(c);
+				continue;
+			}
+			if(++k == table.length)
+				k = 0;
+			++letters;
+		}
+		return letters;
+	}
+
+	/**
+	 * Checks whether a character is an ASCII letter
+	 * @param c The character
+	 * @return True if the character is between 'A' and 'Z' or 'a' and 'z'
+	 */
+	private static boolean isAsciiLetter(int c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+	}
+
+	/**
+	 * Shifts an ASCII character forward through the alphabet, keeping its case
+	 * @param c The character
+	 * @param shift The number of letters to shift by, from 0 to 26
+	 * @return The shifted letter, or the character itself if it is not a letter
+	 */
+	private static char shiftChar(int c, int shift) {
+		if(c >= 'A' && c <= 'Z')
+			return (char) ('A' + (c - 'A' + shift) % 26);
+		if(c >= 'a' && c <= 'z')
+			return (char) ('a' + (c - 'a' + shift) % 26);
+		return (char) c;
+	}
+
+	/**
+	 * Converts a letter to its position in the alphabet
+	 * @param c Character being converted
+	 * @return The converted letter, 0 for anything but an ASCII letter
+	 */
+	private static int letterToInt(int c) {
+		if(c >= 65 && c < 91)
+			return c - 65;
+		if(c >= 97 && c < 123)
+			return c - 97;
+		return 0;
+	}
+
+	/**
+	 * A parallel shift of one large char or byte array, split into pieces of {@link #splitLength}.
+	 *
+	 * Each task covers a range of pieces and splits it in half until it covers a single piece, which
+	 * it either counts the letters of or shifts
+	 */
+	private static class Split extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		/**
+		 * The source and target characters, null when shifting bytes
+		 */
+		private char[] sourceChars, targetChars;
+		/**
+		 * The source and target bytes, null when shifting characters
+		 */
+		private byte[] sourceBytes, targetBytes;
+		/**
+		 * The ASCII tables to shift with
+		 */
+		private char[][] table;
+		/**
+		 * The lower case results for non-ASCII letters, null when shifting bytes
+		 */
+		private char[] other;
+		/**
+		 * The index of the first source and target element of the whole array range
+		 */
+		private int sourceOffset, targetOffset;
+		/**
+		 * The number of elements in the whole array range
+		 */
+		private int length;
+		/**
+		 * The letter count of every piece after counting, then the key index every piece starts at
+		 */
+		private long[] starts;
+		/**
+		 * The first piece and the piece after the last covered by this task
+		 */
+		private int from, to;
+		/**
+		 * True to count letters, false to shift
+		 */
+		private boolean count;
+
+		/**
+		 * Initializes Split instance variables for the arrays and tables of a parallel shift
+		 * @param sourceChars The source characters, null when shifting bytes
+		 * @param targetChars The target characters, null when shifting bytes
+		 * @param sourceBytes The source bytes, null when shifting characters
+		 * @param targetBytes The target bytes, null when shifting characters
+		 * @param table The ASCII tables to shift with
+		 * @param other The lower case results for non-ASCII letters, null when shifting bytes
+		 */
+		Split(char[] sourceChars, char[] targetChars, byte[] sourceBytes, byte[] targetBytes,
+				char[][] table, char[] other) {
+			this.sourceChars = sourceChars;
+			this.targetChars = targetChars;
+			this.sourceBytes = sourceBytes;
+			this.targetBytes = targetBytes;
+			this.table = table;
+			this.other = other;
+		}
+
+		/**
+		 * Sets the array range being shifted and where piece counts and starts are kept
+		 * @param sourceOffset The index of the first source element
+		 * @param targetOffset The index of the first target element
+		 * @param length The number of elements
+		 * @param starts One slot per piece for its letter count and then its key index
+		 */
+		void prepare(int sourceOffset, int targetOffset, int length, long[] starts) {
+			this.sourceOffset = sourceOffset;
+			this.targetOffset = targetOffset;
+			this.length = length;
+			this.starts = starts;
+		}
+
+		/**
+		 * Creates a task covering a range of pieces
+		 * @param from The first piece
+		 * @param to The piece after the last
+		 * @param count True to count letters, false to shift
+		 * @return The task
+		 */
+		Split forPieces(int from, int to, boolean count) {
+			Split task = new Split(sourceChars, targetChars, sourceBytes, targetBytes, table, other);
+			task.prepare(sourceOffset, targetOffset, length, starts);
+			task.from = from;
+			task.to = to;
+			task.count = count;
+			return task;
+		}
+
+		/**
+		 * Counts or shifts a single piece, or splits the range of pieces in half
+		 */
+		@Override
+		protected void compute() {
+			if(to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(forPieces(from, middle, count), forPieces(middle, to, count));
+				return;
+			}
+			int start = from * splitLength;
+			int pieceLength = Math.min(splitLength, length - start);
+			if(count) {
+				starts[from] = sourceChars != null ? countLetters(sourceChars, sourceOffset + start, pieceLength)
+						: countLetters(sourceBytes, sourceOffset + start, pieceLength);
+			} else if(sourceChars != null) {
+				shift(sourceChars, sourceOffset + start, targetChars, targetOffset + start, pieceLength,
+						starts[from], table, other);
+			} else {
+				shift(sourceBytes, sourceOffset + start, targetBytes, targetOffset + start, pieceLength,
+						starts[from], table);
+			}
+		}
+	}
+
+	/**
+	 * Gets the key
+	 * @return key
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "VigenereCipher [keyLength=" + key.length() + "]";
+	}
+
+}
@@ -0,0 +1,712 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import data.ClypeData;
+import data.Compression;
+import data.FileChunkClypeData;
+import data.Handshake;
+import data.MessageClypeData;
+import data.SharedFrame;
+import data.UserDirectory;
+
+/**
+ * Shared hub that relays data from one client to every connected client, or to the members of a room.
+ *
+ * Connections are kept in a copy-on-write list so broadcasts never hold a lock
+ * while joins and leaves, which are far rarer, pay for the copy. Each broadcast is encoded once
+ * into a {@link SharedFrame} that every connection writes as is, and messages, files and file
+ * chunks are also appended to the server's {@link MessageLog}, if it keeps one, so they can be
+ * replayed later. A spooled chunk is read off its spool once to be logged, since the spool is
+ * deleted after the relay.
+ * What every connection sends and is sent is counted in the hub's {@link ServerMetrics}. Data
+ * sent to a room goes only to the room's members, found in the hub's {@link RoomIndex}, and is
+ * not logged, so it cannot be replayed by clients outside the room. A client with a
+ * {@link SubscriptionFilter} is only sent the relayed data its filter passes, checked before the
+ * data is encoded for it. When the server is part of a {@link Federation}, data its clients send is
+ * also forwarded to the other nodes, and data from other nodes is relayed to its clients. When the
+ * log is streamed to standby servers by a {@link Replication} in sync mode, logged data is held
+ * until a standby has it before it is relayed
+ *
+ * @author Will Dunklin
+ *
+ */
+public class BroadcastHub {
+	/**
+	 * Every client currently connected to the server
+	 */
+	private CopyOnWriteArrayList<ClientConnection> clients;
+	/**
+	 * The user ids shared by every connection's codec
+	 */
+	private UserDirectory users;
+	/**
+	 * The number of frames dropped for clients that have since disconnected
+	 */
+	private AtomicLong retiredDroppedFrames;
+	/**
+	 * The number of bytes dropped for clients that have since disconnected
+	 */
+	private AtomicLong retiredDroppedBytes;
+	/**
+	 * The number of clients disconnected because their outbound queue overflowed
+	 */
+	private AtomicLong overflowDisconnects;
+	/**
+	 * The number of flushes to clients that have since disconnected
+	 */
+	private AtomicLong retiredFlushes;
+	/**
+	 * The number of frames carried by flushes to clients that have since disconnected
+	 */
+	private AtomicLong retiredFramesFlushed;
+	/**
+	 * The log relayed messages and files are appended to, null if none are kept
+	 */
+	private volatile MessageLog log;
+	/**
+	 * Who is connected, answering LISTUSERS
+	 */
+	private PresenceRegistry presence;
+	/**
+	 * What the hub's clients send and are sent, and how long relaying takes
+	 */
+	private ServerMetrics metrics;
+	/**
+	 * Where joins and leaves are logged
+	 */
+	private volatile ServerLogger logger;
+	/**
+	 * The members of every room
+	 */
+	private RoomIndex rooms;
+	/**
+	 * The other server nodes data is forwarded to, null if the server runs alone
+	 */
+	private volatile Federation federation;
+	/**
+	 * What streams the log to standby servers, null if it is not streamed
+	 */
+	private volatile Replication replication;
+	/**
+	 * The secret other servers prove in their handshake to link to this one, null if none may
+	 */
+	private volatile String secret;
+
+	/**
+	 * Initializes BroadcastHub instance variables
+	 * @param users The user ids shared by every connection's codec
+	 */
+	public BroadcastHub(UserDirectory users) {
+		this.clients = new CopyOnWriteArrayList<ClientConnection>();
+		this.users = users;
+		this.retiredDroppedFrames = new AtomicLong();
+		this.retiredDroppedBytes = new AtomicLong();
+		this.overflowDisconnects = new AtomicLong();
+		this.retiredFlushes = new AtomicLong();
+		this.retiredFramesFlushed = new AtomicLong();
+		this.log = null;
+		this.presence = new PresenceRegistry(users);
+		this.metrics = new ServerMetrics(this);
+		this.logger = new ServerLogger(null);
+		this.rooms = new RoomIndex();
+		this.federation = null;
+		this.replication = null;
+		this.secret = null;
+	}
+
+	/**
+	 * Defaults {@link #users} to an empty directory
+	 */
+	public BroadcastHub() {
+		this(new UserDirectory());
+	}
+
+	/**
+	 * Adds a client to the hub
+	 * @param client The newly connected client
+	 */
+	public void add(ClientConnection client) {
+		clients.add(client);
+	}
+
+	/**
+	 * Checks whether a user name is reserved for links from other nodes of the federation or from
+	 * standbys, which a client may only take by answering a {@link Handshake} challenge
+	 * @param userName The user name
+	 * @return True if the name is reserved
+	 */
+	public boolean reserves(String userName) {
+		return Federation.isPeerName(userName) || Replication.isStandbyName(userName);
+	}
+
+	/**
+	 * Decides whether a client may connect under the reserved user name it gave
+	 * @param hello The client's hello
+	 * @param nonce The nonce the client was challenged with
+	 * @param proof The client's answer to the challenge
+	 * @return True if the answer proves the hub's secret, false if it does not or the hub has none
+	 */
+	public boolean admits(Handshake hello, byte[] nonce, byte[] proof) {
+		return hello.proves(secret, nonce, proof);
+	}
+
+	/**
+	 * Marks a client present once its handshake has given its user name. A link from another node
+	 * of the federation or from a standby is instead taken out of the clients broadcasts reach, and
+	 * a link the federation refuses is closed
+	 * @param client The client
+	 */
+	public void joined(ClientConnection client) {
+		Federation federation = this.federation;
+		if(federation != null && Federation.isPeerName(client.getUserName())) {
+			if(!federation.accepted(client)) {
+				client.close();
+				return;
+			}
+			clients.remove(client);
+			logger.log(ServerLogger.joined, client.getUserName(), -1, 0, null);
+			return;
+		}
+		Replication replication = this.replication;
+		if(replication != null && Replication.isStandbyName(client.getUserName())) {
+			replication.accepted(client);
+			clients.remove(client);
+			logger.log(ServerLogger.joined, client.getUserName(), -1, 0, null);
+			return;
+		}
+		presence.join(client);
+		logger.log(ServerLogger.joined, client.getUserName(), -1, 0, null);
+	}
+
+	/**
+	 * Removes a client from the hub, from the users present and from its rooms
+	 * @param client The disconnecting client
+	 */
+	public void remove(ClientConnection client) {
+		Federation federation = this.federation;
+		if(federation != null && federation.isPeer(client)) {
+			federation.removed(client);
+			logger.log(ServerLogger.left, client.getUserName(), -1, 0, client.getCompression());
+			return;
+		}
+		Replication replication = this.replication;
+		if(replication != null && replication.isStandby(client)) {
+			replication.removed(client);
+			logger.log(ServerLogger.left, client.getUserName(), -1, 0, client.getCompression());
+			return;
+		}
+		presence.leave(client);
+		rooms.leaveAll(client);
+		if(clients.remove(client))
+			retire(client);
+	}
+
+	/**
+	 * Keeps the counters of a client's outbound queue once it leaves the hub, and logs the leave
+	 * with what compression saved on its connection
+	 * @param client The disconnecting client
+	 */
+	private void retire(ClientConnection client) {
+		Compression compression = client.getCompression();
+		logger.log(ServerLogger.left, client.getUserName(), -1, 0, compression);
+		OutboundQueue outbound = client.getOutbound();
+		retiredDroppedFrames.addAndGet(outbound.getDroppedFrames());
+		retiredDroppedBytes.addAndGet(outbound.getDroppedBytes());
+		if(outbound.isOverflowed())
+			overflowDisconnects.incrementAndGet();
+		retiredFlushes.addAndGet(outbound.getFlushPolicy().getFlushes());
+		retiredFramesFlushed.addAndGet(outbound.getFlushPolicy().getFramesFlushed());
+	}
+
+	/**
+	 * Sends data to every connected client, or to the members of its room if it has one, that does
+	 * not filter it out, logging it if it is a message, file or file chunk sent to everyone. In sync replication
+	 * logged data is held until a standby has it, and relayed by {@link #deliver(ClypeData, SharedFrame)}
+	 * @param data The data to relay
+	 * @param receivedAt The {@link System#nanoTime()} the data was received at, 0 if it was not received from a client
+	 */
+	public void broadcast(ClypeData data, long receivedAt) {
+		SharedFrame frame = new SharedFrame(data, users, receivedAt);
+		MessageLog log = data.getRoom() == null && (data.getType() == ClypeData.text || data.getType() == ClypeData.file
+				|| data.getType() == ClypeData.chunk) ? this.log : null;
+		Replication replication = this.replication;
+		if(log != null && replication != null && replication.isSync()) {
+			if(!replication.hold(log.append(frame), data, frame))
+				deliver(data, frame);
+			return;
+		}
+		send(data, frame);
+		if(log != null)
+			log.append(frame);
+		finish(frame);
+	}
+
+	/**
+	 * Sends data held for a standby, once the standby has it or has taken too long
+	 * @param data The data to relay
+	 * @param frame The data's frame, released once sent
+	 */
+	void deliver(ClypeData data, SharedFrame frame) {
+		send(data, frame);
+		finish(frame);
+	}
+
+	/**
+	 * Sends a frame to every connected client, or to the members of its room if it has one, that
+	 * does not filter it out
+	 * @param data The data in the frame
+	 * @param frame The frame
+	 */
+	private void send(ClypeData data, SharedFrame frame) {
+		long size = -1;
+		int filtered = 0;
+		for(ClientConnection client : data.getRoom() != null ? Arrays.asList(rooms.members(data.getRoom())) : clients) {
+			SubscriptionFilter filter = client.getFilter();
+			if(filter != null) {
+				if(size < 0)
+					size = SubscriptionFilter.sizeOf(data);
+				if(!filter.matches(data.getType(), data.getUserName(), data.getRoom(), size)) {
+					filtered++;
+					continue;
+				}
+			}
+			client.sendShared(frame);
+		}
+		if(filtered > 0)
+			metrics.filtered(filtered);
+	}
+
+	/**
+	 * Counts the time taken to encode a relayed frame and releases it
+	 * @param frame The frame
+	 */
+	private void finish(SharedFrame frame) {
+		long encodeNanos = frame.getEncodeNanos();
+		if(encodeNanos > 0)
+			metrics.encoded(encodeNanos);
+		frame.release();
+	}
+
+	/**
+	 * Relays data received from a connection. Data a client sent is given an origin id, sent to this
+	 * node's clients and forwarded to the other nodes of the federation; data from another node is
+	 * only sent to this node's clients, unless it was already received
+	 * @param from The connection the data was received from
+	 * @param data The data
+	 * @param receivedAt The {@link System#nanoTime()} the data was received at
+	 */
+	public void relay(ClientConnection from, ClypeData data, long receivedAt) {
+		Federation federation = this.federation;
+		if(federation == null) {
+			broadcast(data, receivedAt);
+		} else if(federation.isPeer(from)) {
+			if(data.getType() != ClypeData.peer && federation.admit(data))
+				broadcast(data, receivedAt);
+		} else if(data.getType() != ClypeData.peer) {
+			federation.stamp(data);
+			broadcast(data, receivedAt);
+			federation.forward(data);
+		}
+	}
+
+	/**
+	 * Relays a spooled file chunk received from a connection, as {@link #relay(ClientConnection, ClypeData, long)} does
+	 * @param from The connection the chunk was received from
+	 * @param chunk The spooled chunk
+	 */
+	public void relaySpooled(ClientConnection from, SpooledChunk chunk) {
+		Federation federation = this.federation;
+		if(federation == null) {
+			broadcastSpooled(chunk);
+		} else if(federation.isPeer(from)) {
+			if(federation.admit(chunk.getMetadata()))
+				broadcastSpooled(chunk);
+		} else {
+			federation.stamp(chunk.getMetadata());
+			broadcastSpooled(chunk);
+			federation.forward(chunk);
+		}
+	}
+
+	/**
+	 * Defaults the time the data was received at to 0, not recording how long relaying it takes
+	 * @param data The data to relay
+	 */
+	public void broadcast(ClypeData data) {
+		broadcast(data, 0);
+	}
+
+	/**
+	 * Answers a client's LISTUSERS request from the users present
+	 * @param client The client asking
+	 * @param request The {@link ClypeData#list} request, as described by {@link PresenceRegistry}
+	 */
+	public void listUsers(ClientConnection client, ClypeData request) {
+		presence.answer(client, request);
+	}
+
+	/**
+	 * Answers a client's STATS request from the hub's metrics
+	 * @param client The client asking
+	 * @param request The {@link ClypeData#stats} request, as described by {@link ServerMetrics#answer(String)}
+	 */
+	public void stats(ClientConnection client, ClypeData request) {
+		client.send(new MessageClypeData(client.getUserName(), metrics.answer(request.getData()), ClypeData.stats));
+	}
+
+	/**
+	 * Answers a client's request to join, leave or list rooms
+	 * @param client The client asking
+	 * @param request The {@link ClypeData#rooms} request, as described by {@link RoomIndex}
+	 */
+	public void rooms(ClientConnection client, ClypeData request) {
+		rooms.answer(client, request);
+	}
+
+	/**
+	 * Sets what a client wants relayed to it, replying with the filter now in place
+	 * @param client The client asking
+	 * @param request The {@link ClypeData#filter} request, written as described by {@link SubscriptionFilter}
+	 */
+	public void filter(ClientConnection client, ClypeData request) {
+		String reply;
+		try {
+			SubscriptionFilter filter = SubscriptionFilter.parse(request.getData());
+			client.setFilter(filter);
+			reply = "=" + (filter == null ? "clear" : filter.toString());
+		} catch(IllegalArgumentException iae) {
+			reply = "!" + iae.getMessage();
+		}
+		client.send(new MessageClypeData(client.getUserName(), reply, ClypeData.filter));
+	}
+
+	/**
+	 * Takes in a standby's request for records or acknowledgement, ignored from anyone else
+	 * @param client The standby
+	 * @param request The {@link ClypeData#replica} message, as described by {@link Replication}
+	 */
+	public void replica(ClientConnection client, ClypeData request) {
+		Replication replication = this.replication;
+		if(replication != null && replication.isStandby(client))
+			replication.answer(client, request);
+	}
+
+	/**
+	 * Sends a client the logged messages and files it asked for, or a reply of its request's type
+	 * holding "!" and what is wrong with the request
+	 * @param client The client asking
+	 * @param request A {@link ClypeData#replay} holding "last N" or "since T" as described by
+	 * {@link MessageLog#replay(String)}, or a {@link ClypeData#query} holding "from T1 to T2" and
+	 * optionally "user NAME" as described by {@link MessageLog#query(String)}
+	 */
+	public void replay(ClientConnection client, ClypeData request) {
+		MessageLog log = this.log;
+		if(log == null)
+			return;
+		try {
+			List<ByteBuffer> frames = request.getType() == ClypeData.query ? log.query(request.getData()) : log.replay(request.getData());
+			for(ByteBuffer frame : frames)
+				client.sendLogged(frame);
+		} catch(IllegalArgumentException iae) {
+			client.send(new MessageClypeData(client.getUserName(), "!" + iae.getMessage(), request.getType()));
+		}
+	}
+
+	/**
+	 * Sends a spooled file chunk to every connected client, or to the members of its room if it has
+	 * one, that does not filter it out, logging it if it was sent to everyone. In sync replication a
+	 * logged chunk is relayed from the heap by {@link #broadcast(ClypeData, long)} instead, so it can
+	 * be held until a standby has it after its spool is gone
+	 * @param chunk The spooled chunk to relay
+	 */
+	public void broadcastSpooled(SpooledChunk chunk) {
+		FileChunkClypeData metadata = chunk.getMetadata();
+		MessageLog log = metadata.getRoom() == null ? this.log : null;
+		if(log != null) {
+			FileChunkClypeData loaded;
+			try {
+				loaded = chunk.load();
+			} catch(IOException ioe) {
+				System.err.println("An error occurred. " + ioe.getMessage());
+				loaded = null;
+			}
+			Replication replication = this.replication;
+			if(loaded != null && replication != null && replication.isSync()) {
+				broadcast(loaded, 0);
+				return;
+			}
+			if(loaded != null) {
+				SharedFrame frame = new SharedFrame(loaded, users);
+				log.append(frame);
+				frame.release();
+			}
+		}
+		int filtered = 0;
+		for(ClientConnection client : metadata.getRoom() != null ? Arrays.asList(rooms.members(metadata.getRoom())) : clients) {
+			SubscriptionFilter filter = client.getFilter();
+			if(filter != null && !filter.matches(ClypeData.chunk, metadata.getUserName(), metadata.getRoom(), chunk.getLength())) {
+				filtered++;
+				continue;
+			}
+			client.sendSpooled(chunk);
+		}
+		if(filtered > 0)
+			metrics.filtered(filtered);
+	}
+
+	/**
+	 * Disconnects every connected client
+	 */
+	public void closeAll() {
+		for(ClientConnection client : clients) {
+			client.close();
+			remove(client);
+		}
+	}
+
+	/**
+	 * Gets the number of frames dropped for slow clients since the hub was created
+	 * @return The number of dropped frames
+	 */
+	public long getDroppedFrames() {
+		long dropped = retiredDroppedFrames.get();
+		for(ClientConnection client : clients)
+			dropped += client.getOutbound().getDroppedFrames();
+		return dropped;
+	}
+
+	/**
+	 * Gets the number of bytes dropped for slow clients since the hub was created
+	 * @return The number of dropped bytes
+	 */
+	public long getDroppedBytes() {
+		long dropped = retiredDroppedBytes.get();
+		for(ClientConnection client : clients)
+			dropped += client.getOutbound().getDroppedBytes();
+		return dropped;
+	}
+
+	/**
+	 * Gets the number of writes flushed to clients since the hub was created
+	 * @return The number of flushes
+	 */
+	public long getFlushes() {
+		long flushes = retiredFlushes.get();
+		for(ClientConnection client : clients)
+			flushes += client.getOutbound().getFlushPolicy().getFlushes();
+		return flushes;
+	}
+
+	/**
+	 * Gets the number of frames carried by the writes flushed to clients since the hub was created
+	 * @return The number of frames flushed
+	 */
+	public long getFramesFlushed() {
+		long frames = retiredFramesFlushed.get();
+		for(ClientConnection client : clients)
+			frames += client.getOutbound().getFlushPolicy().getFramesFlushed();
+		return frames;
+	}
+
+	/**
+	 * Gets the number of frames waiting to be written to every connected client
+	 * @return The number of queued frames
+	 */
+	public long getQueuedFrames() {
+		long queued = 0;
+		for(ClientConnection client : clients)
+			queued += client.getOutbound().size();
+		return queued;
+	}
+
+	/**
+	 * Lists the counters of every connected client
+	 * @return A line per client, its user name followed by its {@link ConnectionStats} and queue
+	 */
+	public String[] connectionStats() {
+		Object[] connected = clients.toArray();
+		String[] lines = new String[connected.length];
+		for(int i = 0; i < connected.length; i++) {
+			ClientConnection client = (ClientConnection) connected[i];
+			lines[i] = client.getUserName() + " " + client.getStats() + " queued=" + client.getOutbound().size() + "/"
+					+ client.getOutbound().getQueuedBytes() + "B";
+		}
+		return lines;
+	}
+
+	/**
+	 * Gets the number of bytes waiting to be written to every connected client
+	 * @return The number of queued bytes
+	 */
+	public long getQueuedBytes() {
+		long queued = 0;
+		for(ClientConnection client : clients)
+			queued += client.getOutbound().getQueuedBytes();
+		return queued;
+	}
+
+	/**
+	 * Checks whether every connected client is under its bulk credit, so more file data can be relayed without waiting
+	 * @return True if no client is out of bulk credit
+	 */
+	public boolean hasBulkCredit() {
+		for(ClientConnection client : clients) {
+			if(!client.getOutbound().hasBulkCredit())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether more file data from a connection can be relayed without waiting, that is whether
+	 * every client and, unless the connection is from another node, every link it is forwarded over
+	 * is under its bulk credit
+	 * @param from The connection sending file data
+	 * @return True if nothing the data goes to is out of bulk credit
+	 */
+	public boolean hasBulkCredit(ClientConnection from) {
+		if(!hasBulkCredit())
+			return false;
+		Federation federation = this.federation;
+		return federation == null || federation.isPeer(from) || federation.hasBulkCredit();
+	}
+
+	/**
+	 * Waits until the links file data from a connection is forwarded over are under their bulk credit,
+	 * for at most the given time. Clients are not waited for here, since queueing for them already waits
+	 * @param from The connection that sent file data
+	 * @param millis The longest to wait, in milliseconds
+	 */
+	public void awaitForwardCredit(ClientConnection from, long millis) {
+		Federation federation = this.federation;
+		if(federation != null && !federation.isPeer(from))
+			federation.awaitBulkCredit(millis);
+	}
+
+	/**
+	 * Gets the number of clients disconnected because their outbound queue overflowed
+	 * @return overflowDisconnects
+	 */
+	public long getOverflowDisconnects() {
+		return overflowDisconnects.get();
+	}
+
+	/**
+	 * Gets who is connected
+	 * @return presence
+	 */
+	public PresenceRegistry getPresence() {
+		return presence;
+	}
+
+	/**
+	 * Gets the members of every room
+	 * @return rooms
+	 */
+	public RoomIndex getRooms() {
+		return rooms;
+	}
+
+	/**
+	 * Gets the other server nodes data is forwarded to
+	 * @return federation, null if the server runs alone
+	 */
+	public Federation getFederation() {
+		return federation;
+	}
+
+	/**
+	 * Sets the other server nodes data is forwarded to
+	 * @param federation The federation, null to run alone
+	 */
+	public void setFederation(Federation federation) {
+		this.federation = federation;
+	}
+
+	/**
+	 * Gets what streams the log to standby servers
+	 * @return replication, null if the log is not streamed
+	 */
+	public Replication getReplication() {
+		return replication;
+	}
+
+	/**
+	 * Sets what streams the log to standby servers
+	 * @param replication The replication, null to stream to none
+	 */
+	public void setReplication(Replication replication) {
+		this.replication = replication;
+	}
+
+	/**
+	 * Gets the secret other servers prove to link to this one
+	 * @return secret, null if none may
+	 */
+	public String getSecret() {
+		return secret;
+	}
+
+	/**
+	 * Sets the secret other servers prove to link to this one, and that this one proves to link to them
+	 * @param secret The secret, null to accept no links
+	 */
+	public void setSecret(String secret) {
+		this.secret = secret;
+	}
+
+	/**
+	 * Gets what the hub's clients send and are sent
+	 * @return metrics
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets where joins and leaves are logged
+	 * @return logger
+	 */
+	public ServerLogger getLogger() {
+		return logger;
+	}
+
+	/**
+	 * Sets where joins and leaves are logged
+	 * @param logger The logger
+	 */
+	public void setLogger(ServerLogger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Gets the log relayed messages and files are appended to
+	 * @return log, null if none are kept
+	 */
+	public MessageLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Sets the log relayed messages and files are appended to
+	 * @param log The log, null to keep none
+	 */
+	public void setLog(MessageLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Gets the number of connected clients
+	 * @return The number of connected clients
+	 */
+	public int size() {
+		return clients.size();
+	}
+
+}
@@ -0,0 +1,77 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import data.FileChunkClypeData;
+
+/**
+ * Keeps the {@link FileSpool} of every file a single client is currently streaming to the server.
+ *
+ * Belongs to one connection and is only used from the thread reading that connection
+ *
+ * @author Will Dunklin
+ *
+ */
+public class ChunkSpooler {
+	/**
+	 * The number of leading body bytes inspected to recognise a spoolable chunk, 1 KiB.
+	 * Frames no longer than this are decoded on the heap as usual
+	 */
+	public static final int prefixLength = 1024;
+	/**
+	 * The directory spool files are created in
+	 */
+	private File directory;
+	/**
+	 * The spool of every file being received, keyed by file name
+	 */
+	private HashMap<String, FileSpool> spools;
+
+	/**
+	 * Initializes ChunkSpooler instance variables
+	 * @param directory The directory spool files are created in
+	 */
+	public ChunkSpooler(File directory) {
+		this.directory = directory;
+		this.spools = new HashMap<String, FileSpool>();
+	}
+
+	/**
+	 * Reserves room in the file's spool for a chunk's payload, creating the spool for a new file
+	 * @param metadata The chunk's metadata, with empty contents
+	 * @param payloadLength The length of the chunk's payload
+	 * @return The chunk, whose payload must then be written to its spool
+	 * @throws IOException If a new spool cannot be created
+	 */
+	public SpooledChunk begin(FileChunkClypeData metadata, int payloadLength) throws IOException {
+		FileSpool spool = spools.get(metadata.getFileName());
+		if(spool == null) {
+			spool = new FileSpool(directory);
+			spools.put(metadata.getFileName(), spool);
+		}
+		return new SpooledChunk(spool, spool.reserve(payloadLength), payloadLength, metadata);
+	}
+
+	/**
+	 * Marks a chunk's payload as fully spooled, letting go of the spool after the file's final chunk
+	 * @param chunk The spooled chunk
+	 */
+	public void finish(SpooledChunk chunk) {
+		if(chunk.isLast()) {
+			spools.remove(chunk.getMetadata().getFileName());
+			chunk.getSpool().release();
+		}
+	}
+
+	/**
+	 * Lets go of every spool, used when the client disconnects mid-transfer
+	 */
+	public void closeAll() {
+		for(FileSpool spool : spools.values())
+			spool.release();
+		spools.clear();
+	}
+
+}
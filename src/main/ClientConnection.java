@@ -0,0 +1,88 @@
+package main;
+
+import java.nio.ByteBuffer;
+
+import data.ClypeData;
+import data.Compression;
+import data.SharedFrame;
+
+/**
+ * A client connected to the ClypeServer, independent of the engine serving it
+ *
+ * @author Will Dunklin
+ *
+ */
+public interface ClientConnection {
+
+	/**
+	 * Sends data to the client
+	 * @param data The data to be sent to the client
+	 */
+	void send(ClypeData data);
+
+	/**
+	 * Sends data already encoded for every recipient of a broadcast
+	 * @param frame The shared frame to be sent to the client
+	 */
+	void sendShared(SharedFrame frame);
+
+	/**
+	 * Sends a file chunk whose payload is held in a spool
+	 * @param chunk The spooled chunk to be sent to the client
+	 */
+	void sendSpooled(SpooledChunk chunk);
+
+	/**
+	 * Sends a record of the server's message log, as a binary frame that carries its user's name
+	 * @param frame The frame header and body, a view of the log not to be changed
+	 */
+	void sendLogged(ByteBuffer frame);
+
+	/**
+	 * Gets the frames waiting to be written to the client
+	 * @return The client's outbound queue
+	 */
+	OutboundQueue getOutbound();
+
+	/**
+	 * Gets what the client has sent and been sent
+	 * @return The client's counters
+	 */
+	ConnectionStats getStats();
+
+	/**
+	 * Gets what the client wants relayed to it
+	 * @return The client's filter, null if every relayed data is wanted
+	 */
+	SubscriptionFilter getFilter();
+
+	/**
+	 * Sets what the client wants relayed to it
+	 * @param filter The filter, null to relay every data
+	 */
+	void setFilter(SubscriptionFilter filter);
+
+	/**
+	 * Gets the name the client connected with
+	 * @return The user name, null until the handshake completes
+	 */
+	String getUserName();
+
+	/**
+	 * Gets the payload compression agreed with the client
+	 * @return The compression, null if none was agreed or the handshake has not completed
+	 */
+	Compression getCompression();
+
+	/**
+	 * Closes the connection to the client
+	 */
+	void close();
+
+	/**
+	 * Checks whether the connection to the client is closed
+	 * @return True if the connection is closed
+	 */
+	boolean isClosed();
+
+}
@@ -0,0 +1,96 @@
+package main;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+
+import data.ClypeData;
+import data.FrameCodec;
+import data.MessageClypeData;
+
+/**
+ * Receives data from the ClypeServer on its own thread for a full-duplex ClypeClient.
+ *
+ * Frames are read as soon as they arrive and put on the client's delivery queue, so incoming
+ * broadcasts never wait for the user to type a line and the client can send without waiting for
+ * replies. When the queue is full the listener stops reading, which pushes back on the server
+ * through the socket. The queue always ends with an exit, the server's own or one added here
+ * when the connection drops
+ *
+ * @author Will Dunklin
+ *
+ */
+public class ClientSideServerListener implements Runnable {
+	/**
+	 * The client being listened for
+	 */
+	private ClypeClient client;
+	/**
+	 * Receives framed data from ClypeServer
+	 */
+	private DataInputStream inFromServer;
+	/**
+	 * Decodes frames in the format agreed with the server
+	 */
+	private FrameCodec codec;
+	/**
+	 * Received data waiting to be delivered to the user
+	 */
+	private BlockingQueue<ClypeData> deliveries;
+
+	/**
+	 * Initializes ClientSideServerListener instance variables
+	 * @param client The client being listened for
+	 * @param inFromServer Receives framed data from ClypeServer
+	 * @param codec Decodes frames in the format agreed with the server
+	 * @param deliveries Received data waiting to be delivered to the user
+	 */
+	public ClientSideServerListener(ClypeClient client, DataInputStream inFromServer, FrameCodec codec,
+			BlockingQueue<ClypeData> deliveries) {
+		this.client = client;
+		this.inFromServer = inFromServer;
+		this.codec = codec;
+		this.deliveries = deliveries;
+	}
+
+	/**
+	 * Receives data until the server sends back the client's exit or the connection drops
+	 */
+	@Override
+	public void run() {
+		ClypeData data = null;
+		try {
+			do {
+				data = codec.readFrame(inFromServer);
+				deliveries.put(data);
+			} while(data.getType() != ClypeData.exit);
+		} catch(EOFException eofe) {
+			if(!client.isClosed())
+				System.err.println("The server closed the connection.");
+		} catch(IOException ioe) {
+			if(!client.isClosed())
+				System.err.println("An error occurred.");
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if(data == null || data.getType() != ClypeData.exit) {
+				client.connectionLost();
+				try {
+					deliveries.put(new MessageClypeData(client.getUserName(), "", ClypeData.exit));
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "ClientSideServerListener [client=" + client.getUserName() + ", pendingDeliveries=" + deliveries.size() + "]";
+	}
+
+}
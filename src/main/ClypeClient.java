@@ -1,14 +1,32 @@
 package main;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import data.ClypeData;
+import data.Compression;
+import data.FileChunkClypeData;
+import data.FileChunkReader;
+import data.FileChunkWriter;
 import data.FileClypeData;
+import data.FrameCodec;
+import data.Handshake;
 import data.MessageClypeData;
 
 /**
@@ -32,10 +50,14 @@ public class ClypeClient {
 	 * The port the server is hosted under
 	 */
 	private int port;
+	/**
+	 * Bit mask of the frame formats offered to the server
+	 */
+	private int formats;
 	/**
 	 * Boolean signifier showing if the connection is closed
 	 */
-	private boolean closeConnection;
+	private volatile boolean closeConnection;
 	/**
 	 * Data to be sent to the server
 	 */
@@ -44,10 +66,18 @@ public class ClypeClient {
 	 * Data to be received from the server
 	 */
 	private ClypeData dataToReceiveFromServer;
+	/**
+	 * The number of received data a full-duplex client holds before it stops reading from the server
+	 */
+	private static final int deliveryQueueLength = 1024;
 	/**
 	 * The default port is 7000
 	 */
 	private static final int defaultPort = 7000;
+	/**
+	 * The number of milliseconds a streamed file may go without a chunk before it is dropped, 60 seconds
+	 */
+	private static final long downloadTimeoutMillis = 60000;
 	/**
 	 * Input reader to read client user's instructions
 	 */
@@ -55,34 +85,97 @@ public class ClypeClient {
 	/**
 	 * Secure key used to encrypt data using the Vignre cipher
 	 */
-	private static final String key = "WSPLXZXJQSMCACZYCQDUFSBWJAFUMYDZVPMPX";
+	static final String key = "WSPLXZXJQSMCACZYCQDUFSBWJAFUMYDZVPMPX";
+	/**
+	 * Receives framed data from ClypeServer
+	 */
+	private DataInputStream inFromServer;
+	/**
+	 * Sends framed data to ClypeServer
+	 */
+	private DataOutputStream outToServer;
+	/**
+	 * Encodes and decodes frames in the format agreed with the server
+	 */
+	private FrameCodec codec;
+	/**
+	 * The largest number of bytes in one chunk of a streamed file, 0 to send files whole
+	 */
+	private int fileChunkSize;
+	/**
+	 * The directory streamed files are saved to, in a folder per sender
+	 */
+	private File downloadDirectory;
+	/**
+	 * Streamed files still being received, keyed by sender and file name
+	 */
+	private HashMap<String, FileChunkWriter> downloads;
+	/**
+	 * Whether data is received on its own thread while the user types, rather than one reply per line
+	 */
+	private boolean fullDuplex;
 	/**
-	 * Receives serialized data from ClypeServer
+	 * Received data waiting to be delivered to the user in full-duplex mode
 	 */
-	private ObjectInputStream inFromServer;
+	private BlockingQueue<ClypeData> deliveries;
 	/**
-	 * Sends serialized data to ClypeServer
+	 * Threads streaming files to the server in full-duplex mode
 	 */
-	private ObjectOutputStream outToServer;
+	private ArrayList<Thread> uploads;
+	/**
+	 * The number of messages waiting to be written, which file chunks wait behind
+	 */
+	private AtomicInteger waitingMessages;
+	/**
+	 * The users present on the server, filled in by the first LISTUSERS and kept up to date by the changes pushed after it
+	 */
+	private TreeSet<String> roster;
+	/**
+	 * The version of {@link #roster}, -1 before the first LISTUSERS
+	 */
+	private volatile long rosterVersion;
 	
 	/**
 	 * Initializes ClypeClient instance variables
 	 * @param userName The name of the client user
 	 * @param hostName The name of the computer representing the server
 	 * @param port The port the server is hosted on
+	 * @param formats Bit mask of the frame formats offered to the server
 	 * @throws IllegalArgumentException If the input data is malformatted
 	 */
-	public ClypeClient(String userName, String hostName, int port) throws IllegalArgumentException {
-		if(userName == null || hostName == null || port < 1024)
+	public ClypeClient(String userName, String hostName, int port, int formats) throws IllegalArgumentException {
+		if(userName == null || hostName == null || port < 1024 || (formats & FrameCodec.allFormats) == 0)
 			throw new IllegalArgumentException("The ClypeClient cannot be intitalized with those vairables");
 		this.userName = userName;
 		this.hostName = hostName;
 		this.port = port;
+		this.formats = formats & FrameCodec.allFormats;
 		this.closeConnection = false;
 		this.dataToSendToServer = null;
 		this.dataToReceiveFromServer = null;
 		this.inFromServer = null;
 		this.outToServer = null;
+		this.codec = null;
+		this.fileChunkSize = FileChunkReader.defaultChunkSize;
+		this.downloadDirectory = new File("downloads");
+		this.downloads = new HashMap<String, FileChunkWriter>();
+		this.fullDuplex = true;
+		this.deliveries = null;
+		this.uploads = new ArrayList<Thread>();
+		this.waitingMessages = new AtomicInteger();
+		this.roster = new TreeSet<String>();
+		this.rosterVersion = -1;
+	}
+
+	/**
+	 * Defaults {@link #formats} to every format, letting the server pick
+	 * @param userName The name of the client user
+	 * @param hostName The name of the computer representing the server
+	 * @param port The port the server is hosted on
+	 * @throws IllegalArgumentException If the input data is malformatted
+	 */
+	public ClypeClient(String userName, String hostName, int port) throws IllegalArgumentException {
+		this(userName, hostName, port, FrameCodec.allFormats);
 	}
 
 	/**
@@ -147,15 +240,21 @@ public class ClypeClient {
 		try {
 			System.out.println("Welcome to Clype 1.0");
 			Socket server = new Socket(hostName, port);
-			outToServer = new ObjectOutputStream(server.getOutputStream());
-			inFromServer = new ObjectInputStream(server.getInputStream());
+			outToServer = new DataOutputStream(new BufferedOutputStream(server.getOutputStream()));
+			inFromServer = new DataInputStream(new BufferedInputStream(server.getInputStream()));
+			codec = new Handshake(userName, formats, Compression.supported()).connect(inFromServer, outToServer);
 			inFromStd = new Scanner(System.in);
-			while(!closeConnection) {
-				readClientData();
-				sendData();
-				receiveData();
-				printData();
+			if(fullDuplex) {
+				runFullDuplex();
+			} else {
+				while(!closeConnection) {
+					readClientData();
+					sendData();
+					receiveData();
+					printData();
+				}
 			}
+			dropDownloads(Long.MAX_VALUE);
 			server.close();
 			outToServer.close();
 			inFromServer.close();
@@ -164,28 +263,98 @@ public class ClypeClient {
 			System.err.println("Unknown host cannot connect.");
 		} catch(IOException ioe) {
 			System.err.println("An error occurred.");
+		} catch(InterruptedException ie) {
+			System.err.println("An error occurred.");
+		}
+	}
+
+	/**
+	 * Sends everything the user types without waiting for replies, while a
+	 * {@link ClientSideServerListener} receives data and a delivery thread prints it
+	 * @throws InterruptedException If interrupted while waiting for the last delivery
+	 */
+	private void runFullDuplex() throws InterruptedException {
+		deliveries = new ArrayBlockingQueue<ClypeData>(deliveryQueueLength);
+		Thread listener = new Thread(new ClientSideServerListener(this, inFromServer, codec, deliveries), "clype-listener");
+		Thread delivery = new Thread(this::deliverData, "clype-delivery");
+		listener.start();
+		delivery.start();
+		while(!closeConnection) {
+			readClientData();
+			if(dataToSendToServer == null)
+				continue;
+			if(dataToSendToServer.getType() == ClypeData.exit)
+				awaitUploads();
+			if(!closeConnection || dataToSendToServer.getType() == ClypeData.exit)
+				sendData();
+		}
+		delivery.join();
+		listener.join();
+	}
+
+	/**
+	 * Prints received data in full-duplex mode until the server sends back the exit
+	 */
+	private void deliverData() {
+		try {
+			ClypeData data;
+			do {
+				data = deliveries.take();
+				dataToReceiveFromServer = data;
+				printData();
+			} while(data.getType() != ClypeData.exit);
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
 		}
 	}
+
+	/**
+	 * Marks the connection closed after the server dropped it, called by the {@link ClientSideServerListener}
+	 */
+	void connectionLost() {
+		closeConnection = true;
+	}
 	
 	/**
-	 * Sends data to the server
+	 * Sends data to the server, ahead of any file chunks waiting to be written
 	 */
 	public void sendData() {
+		waitingMessages.incrementAndGet();
 		try {
-			outToServer.writeObject(dataToSendToServer);
+			synchronized(this) {
+				codec.writeFrame(outToServer, dataToSendToServer);
+				outToServer.flush();
+			}
 		} catch (IOException ioe) {
 			System.err.println("An error occurred.");
+		} finally {
+			if(waitingMessages.decrementAndGet() == 0) {
+				synchronized(this) {
+					notifyAll();
+				}
+			}
 		}
 	}
+
+	/**
+	 * Sends a file chunk to the server once no messages are waiting to be written
+	 * @param chunk The chunk
+	 * @throws IOException If the chunk cannot be written
+	 * @throws InterruptedException If interrupted while waiting for messages
+	 */
+	private synchronized void sendChunk(FileChunkClypeData chunk) throws IOException, InterruptedException {
+		while(waitingMessages.get() > 0)
+			wait();
+		codec.writeFrame(outToServer, chunk);
+		outToServer.flush();
+	}
 	
 	/**
 	 * Receives data from the server
 	 */
 	public void receiveData() {
 		try {
-			dataToReceiveFromServer = (ClypeData) inFromServer.readObject();
-		} catch (ClassNotFoundException cnfe) {
-			System.err.println("Class was not found.");
+			dataToReceiveFromServer = codec.readFrame(inFromServer);
 		} catch (IOException ioe) {
 			System.err.println("An error occurred.");
 		}
@@ -195,19 +364,55 @@ public class ClypeClient {
 	 * Prints the collected data
 	 */
 	public void printData() {
+		dropDownloads(downloadTimeoutMillis);
+		if(dataToReceiveFromServer instanceof FileChunkClypeData) {
+			saveChunk((FileChunkClypeData) dataToReceiveFromServer);
+			return;
+		}
+		if(dataToReceiveFromServer != null && dataToReceiveFromServer.getType() == ClypeData.list) {
+			printPresence(dataToReceiveFromServer);
+			return;
+		}
+		if(dataToReceiveFromServer != null && (dataToReceiveFromServer.getType() == ClypeData.stats || dataToReceiveFromServer.getType() == ClypeData.rooms
+				|| dataToReceiveFromServer.getType() == ClypeData.filter || dataToReceiveFromServer.getType() == ClypeData.replay
+				|| dataToReceiveFromServer.getType() == ClypeData.query)) {
+			System.out.println(dataToReceiveFromServer.getData());
+			return;
+		}
 		if(dataToReceiveFromServer != null && dataToReceiveFromServer.getData() != null && dataToReceiveFromServer.getType() != ClypeData.exit) {
+			if(dataToReceiveFromServer.getRoom() != null)
+				System.out.print("[" + dataToReceiveFromServer.getRoom() + "] ");
 			if(dataToReceiveFromServer.getType() == ClypeData.text)
 				System.out.print(dataToReceiveFromServer.getUserName() + ": ");
 			System.out.println(dataToReceiveFromServer.getData(key));
 		}
 	}
 	
+	/**
+	 * Updates the roster from a LISTUSERS reply or a pushed change, printing every user for a reply
+	 * and just who joined or left for a change
+	 * @param data The reply or change
+	 */
+	private void printPresence(ClypeData data) {
+		String body = data.getData();
+		char kind = body == null || body.isEmpty() ? ' ' : body.charAt(0);
+		synchronized(roster) {
+			rosterVersion = PresenceRegistry.apply(roster, rosterVersion, data);
+			if(kind == '+')
+				System.out.println(data.getUserName() + " joined");
+			else if(kind == '-')
+				System.out.println(data.getUserName() + " left");
+			else
+				System.out.println("Users: " + String.join(", ", roster));
+		}
+	}
+
 	/**
 	 * Reads data entered from the client user
 	 */
 	public void readClientData() {
-		String line = null;
-		if(inFromStd.hasNext())
+		String line = "DONE";
+		if(inFromStd.hasNextLine())
 			line = inFromStd.nextLine();
 		Scanner lineScan = new Scanner(line);
 		
@@ -215,23 +420,60 @@ public class ClypeClient {
 		if(lineScan.hasNext())
 			token = lineScan.next();
 		
-		if(token.equals("DONE")) {
+		if("DONE".equals(token)) {
 			closeConnection = true;
 			dataToSendToServer = new MessageClypeData(userName, "", ClypeData.exit);
 		}
-		else if(token.equals("SENDFILE")) {
+		else if("SENDFILE".equals(token)) {
 			if(lineScan.hasNext()) {
 				String fileName = lineScan.next();
-				dataToSendToServer = new FileClypeData(userName, fileName, ClypeData.file);
-				try {
-					((FileClypeData) dataToSendToServer).readFileContents(key);
-				} catch(IOException ioe){
-					System.err.println("An error occurred.");
+				if(fileChunkSize > 0 && fullDuplex) {
+					upload(fileName);
+				} else if(fileChunkSize > 0) {
+					streamFile(fileName);
+				} else {
+					dataToSendToServer = new FileClypeData(userName, fileName, ClypeData.file);
+					try {
+						((FileClypeData) dataToSendToServer).readFileContents(key);
+					} catch(IOException ioe){
+						System.err.println("An error occurred.");
+					}
 				}
 			}
 		}
-		else if(token.equals("LISTUSERS")) {
-			dataToSendToServer = new MessageClypeData(userName, userName, key, ClypeData.list);
+		else if("LISTUSERS".equals(token)) {
+			dataToSendToServer = new MessageClypeData(userName, rosterVersion < 0 ? "subscribe" : "since " + rosterVersion, ClypeData.list);
+		}
+		else if("REPLAY".equals(token)) {
+			String request = lineScan.hasNext() ? lineScan.next() : "";
+			if("SINCE".equalsIgnoreCase(request) && lineScan.hasNext())
+				request = "since " + lineScan.next();
+			else
+				request = "last " + request;
+			dataToSendToServer = new MessageClypeData(userName, request, ClypeData.replay);
+		}
+		else if("QUERY".equals(token)) {
+			String request = "from " + (lineScan.hasNext() ? lineScan.next() : "") + " to " + (lineScan.hasNext() ? lineScan.next() : "");
+			if(lineScan.hasNext())
+				request += " user " + lineScan.next();
+			dataToSendToServer = new MessageClypeData(userName, request, ClypeData.query);
+		}
+		else if("STATS".equals(token)) {
+			dataToSendToServer = new MessageClypeData(userName, lineScan.hasNext() ? lineScan.next().toLowerCase() : "", ClypeData.stats);
+		}
+		else if("JOIN".equals(token) || "LEAVE".equals(token)) {
+			dataToSendToServer = new MessageClypeData(userName, token.toLowerCase() + " " + (lineScan.hasNext() ? lineScan.next() : ""), ClypeData.rooms);
+		}
+		else if("ROOMS".equals(token)) {
+			dataToSendToServer = new MessageClypeData(userName, "list", ClypeData.rooms);
+		}
+		else if("FILTER".equals(token)) {
+			dataToSendToServer = new MessageClypeData(userName, lineScan.hasNextLine() ? lineScan.nextLine().trim() : "", ClypeData.filter);
+		}
+		else if(token != null && token.length() > 1 && token.charAt(0) == '#') {
+			String message = lineScan.hasNextLine() ? lineScan.nextLine().trim() : "";
+			dataToSendToServer = new MessageClypeData(userName, message, key, ClypeData.text);
+			dataToSendToServer.setRoom(token.substring(1));
 		}
 		else {
 			dataToSendToServer = new MessageClypeData(userName, line, key, ClypeData.text);
@@ -239,6 +481,205 @@ public class ClypeClient {
 		lineScan.close();
 	}
 
+	/**
+	 * Streams a file to the server in encrypted chunks of at most {@link #fileChunkSize} bytes.
+	 * 
+	 * Every chunk but the last is sent here, so no more than one chunk is held at a time; the last is
+	 * left in {@link #dataToSendToServer} for {@link #start()}. Used in lockstep mode, where each chunk
+	 * waits for the server's reply; full-duplex clients {@link #upload(String)} instead
+	 * @param fileName The name of the file being sent
+	 */
+	private void streamFile(String fileName) {
+		try {
+			FileChunkReader reader = new FileChunkReader(userName, fileName, key, fileChunkSize);
+			try {
+				FileChunkClypeData chunk = reader.next();
+				FileChunkClypeData next;
+				while((next = reader.next()) != null) {
+					dataToSendToServer = chunk;
+					sendData();
+					if(!fullDuplex) {
+						receiveData();
+						printData();
+					}
+					chunk = next;
+				}
+				dataToSendToServer = chunk;
+			} finally {
+				reader.close();
+			}
+		} catch(FileNotFoundException fnfe) {
+			System.err.println("Could not find file");
+			dataToSendToServer = new FileClypeData(userName, fileName, ClypeData.file);
+		} catch(IOException ioe) {
+			System.err.println("An error occurred.");
+			dataToSendToServer = new FileClypeData(userName, fileName, ClypeData.file);
+		}
+	}
+
+	/**
+	 * Streams a file to the server on its own thread in full-duplex mode, so the user can keep
+	 * chatting. Each chunk waits for any messages typed meanwhile to be written first
+	 * @param fileName The name of the file being sent
+	 */
+	private void upload(String fileName) {
+		dataToSendToServer = null;
+		Thread upload = new Thread(() -> {
+			try {
+				FileChunkReader reader = new FileChunkReader(userName, fileName, key, fileChunkSize);
+				try {
+					FileChunkClypeData chunk;
+					while((chunk = reader.next()) != null && !closeConnection)
+						sendChunk(chunk);
+				} finally {
+					reader.close();
+				}
+			} catch(FileNotFoundException fnfe) {
+				System.err.println("Could not find file");
+			} catch(IOException ioe) {
+				System.err.println("An error occurred.");
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}, "clype-upload-" + fileName);
+		uploads.add(upload);
+		upload.start();
+	}
+
+	/**
+	 * Waits for every file being streamed to the server to be sent
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private void awaitUploads() throws InterruptedException {
+		for(Thread upload : uploads)
+			upload.join();
+		uploads.clear();
+	}
+
+	/**
+	 * Writes a received chunk into its file in the sender's folder of {@link #downloadDirectory},
+	 * announcing the file once complete. A file is refused while another download is writing the same
+	 * path, so two transfers never write into one file
+	 * @param chunk The received chunk
+	 */
+	private void saveChunk(FileChunkClypeData chunk) {
+		String download = chunk.getUserName() + "/" + chunk.getFileName();
+		try {
+			FileChunkWriter writer = downloads.get(download);
+			if(writer == null) {
+				File directory = new File(downloadDirectory, folderOf(chunk.getUserName()));
+				File file = FileChunkWriter.fileFor(directory, chunk.getFileName());
+				for(FileChunkWriter other : downloads.values()) {
+					if(other.getFile().equals(file)) {
+						if(chunk.getOffset() == 0)
+							System.err.println("Could not write " + chunk.getFileName() + " from " + chunk.getUserName()
+								+ ", " + file.getPath() + " is still being received");
+						return;
+					}
+				}
+				writer = new FileChunkWriter(directory, chunk.getFileName(), chunk.getTotalLength(), key);
+				downloads.put(download, writer);
+			}
+			writer.write(chunk);
+			if(writer.isComplete()) {
+				writer.close();
+				downloads.remove(download);
+				System.out.println(chunk.getUserName() + " sent " + chunk.getFileName() + " (" + writer.getTotalLength()
+						+ " bytes), saved to " + writer.getFile().getPath());
+			}
+		} catch(IOException ioe) {
+			System.err.println("Could not write file");
+		}
+	}
+
+	/**
+	 * Gets the folder of {@link #downloadDirectory} a sender's files are saved to, its user name with
+	 * anything but letters, digits, dots, dashes and underscores replaced so it stays one folder
+	 * @param userName The sender's user name
+	 * @return The folder name
+	 */
+	private static String folderOf(String userName) {
+		String folder = userName == null ? "" : userName.replaceAll("[^A-Za-z0-9._-]", "_");
+		return folder.matches("\\.*") ? "_" + folder : folder;
+	}
+
+	/**
+	 * Closes and deletes every streamed file no chunk has arrived for in the given time, so a transfer
+	 * the sender abandoned does not keep its file open
+	 * @param idleMillis The longest a file may go without a chunk, {@link Long#MAX_VALUE} to drop every one
+	 */
+	private void dropDownloads(long idleMillis) {
+		if(downloads.isEmpty())
+			return;
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, FileChunkWriter>> pending = downloads.entrySet().iterator();
+		while(pending.hasNext()) {
+			FileChunkWriter writer = pending.next().getValue();
+			if(idleMillis != Long.MAX_VALUE && now - writer.getLastWrittenAt() < idleMillis)
+				continue;
+			pending.remove();
+			try {
+				writer.close();
+			} catch(IOException ioe) {
+				System.err.println("An error occurred.");
+			}
+			if(!writer.getFile().delete())
+				System.err.println("Could not delete " + writer.getFile().getPath());
+			System.out.println("Dropped incomplete " + writer.getFile().getPath());
+		}
+	}
+
+	/**
+	 * Sets the largest number of bytes in one chunk of a streamed file
+	 * @param fileChunkSize The chunk size, 0 to send files whole
+	 * @throws IllegalArgumentException If the chunk size is negative or above {@link FileChunkReader#maxChunkSize}
+	 */
+	public void setFileChunkSize(int fileChunkSize) throws IllegalArgumentException {
+		if(fileChunkSize < 0 || fileChunkSize > FileChunkReader.maxChunkSize)
+			throw new IllegalArgumentException("Chunk size must be between 0 and " + FileChunkReader.maxChunkSize);
+		this.fileChunkSize = fileChunkSize;
+	}
+
+	/**
+	 * Gets the largest number of bytes in one chunk of a streamed file
+	 * @return fileChunkSize
+	 */
+	public int getFileChunkSize() {
+		return fileChunkSize;
+	}
+
+	/**
+	 * Sets the directory streamed files are saved to
+	 * @param downloadDirectory The directory
+	 */
+	public void setDownloadDirectory(File downloadDirectory) {
+		this.downloadDirectory = downloadDirectory;
+	}
+
+	/**
+	 * Sets whether data is received on its own thread while the user types, takes effect on {@link #start()}
+	 * @param fullDuplex True for full-duplex, false to wait for one reply after every line
+	 */
+	public void setFullDuplex(boolean fullDuplex) {
+		this.fullDuplex = fullDuplex;
+	}
+
+	/**
+	 * Gets whether data is received on its own thread while the user types
+	 * @return fullDuplex
+	 */
+	public boolean isFullDuplex() {
+		return fullDuplex;
+	}
+
+	/**
+	 * Checks whether the connection to the server is closed
+	 * @return closeConnection
+	 */
+	public boolean isClosed() {
+		return closeConnection;
+	}
+
 	/**
 	 * Gets the name of the client user
 	 * @return userName  
@@ -263,6 +704,14 @@ public class ClypeClient {
 		return port;
 	}
 
+	/**
+	 * Gets the bit mask of the frame formats offered to the server
+	 * @return formats
+	 */
+	public int getFormats() {
+		return formats;
+	}
+
 	/**
 	 * Generates unique hash based on states of instance variables
 	 */
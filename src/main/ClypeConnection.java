@@ -0,0 +1,501 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import data.ClypeData;
+import data.Compression;
+import data.FrameCodec;
+import data.Handshake;
+import data.MessageClypeData;
+
+/**
+ * A connection to a ClypeServer for programs rather than people, shared by any number of
+ * {@link ClypeSession}s.
+ *
+ * Sends never block: each returns a CompletableFuture that completes once the data has been
+ * written to the socket. Writes are made by one writer thread, which only flushes when it runs out
+ * of queued data, so bursts of sends go out together, and while sends arrive close together it
+ * waits briefly for the next one as its {@link FlushPolicy} says. Queued control and text data is written
+ * before queued file data, so messages never wait behind more than the chunk being written. Received data is handed to every listener
+ * and session on one listener thread. Every session sends under its own user name over this
+ * socket, and since the server relays everything to every connection, each received data is
+ * delivered to every session, so hundreds of bots can share a few sockets and two threads each
+ *
+ * @author Will Dunklin
+ *
+ */
+public class ClypeConnection {
+	/**
+	 * The name of the computer representing the server
+	 */
+	private String hostName;
+	/**
+	 * The port the server is hosted under
+	 */
+	private int port;
+	/**
+	 * The name the connection shakes hands and exits with
+	 */
+	private String userName;
+	/**
+	 * Bit mask of the frame formats offered to the server
+	 */
+	private int formats;
+	/**
+	 * The key data is encrypted with
+	 */
+	private String key;
+	/**
+	 * The secret servers share, proven in the handshake, null if none is
+	 */
+	private String secret;
+	/**
+	 * The socket connected to the server
+	 */
+	private Socket socket;
+	/**
+	 * Sends framed data to ClypeServer, only used by the writer thread
+	 */
+	private DataOutputStream outToServer;
+	/**
+	 * Receives framed data from ClypeServer, only used by the listener thread
+	 */
+	private DataInputStream inFromServer;
+	/**
+	 * Encodes and decodes frames in the format agreed with the server
+	 */
+	private FrameCodec codec;
+	/**
+	 * The single writer thread and its queue of writes
+	 */
+	private ThreadPoolExecutor writer;
+	/**
+	 * Sends written since the last flush, only used by the writer thread
+	 */
+	private ArrayList<CompletableFuture<Void>> unflushed;
+	/**
+	 * The {@link System#nanoTime()} the oldest unflushed send was written at, only used by the writer thread
+	 */
+	private long heldSince;
+	/**
+	 * Decides how long the writer thread waits for more sends before flushing
+	 */
+	private FlushPolicy flushPolicy;
+	/**
+	 * The number of sends queued so far, keeping sends of the same priority in order
+	 */
+	private AtomicLong sequence;
+	/**
+	 * Listeners for everything received on this connection
+	 */
+	private CopyOnWriteArrayList<ClypeListener> listeners;
+	/**
+	 * The sessions sharing this connection
+	 */
+	private CopyOnWriteArrayList<ClypeSession> sessions;
+	/**
+	 * Completes when the connection has closed
+	 */
+	private CompletableFuture<Void> closed;
+	/**
+	 * Boolean signifier showing if the connection is closing or closed
+	 */
+	private volatile boolean closeConnection;
+
+	/**
+	 * Initializes ClypeConnection instance variables, the connection is made by {@link #connect()}
+	 * @param hostName The name of the computer representing the server
+	 * @param port The port the server is hosted on
+	 * @param userName The name the connection shakes hands and exits with
+	 * @param formats Bit mask of the frame formats offered to the server
+	 * @param key The key data is encrypted with
+	 * @param secret The secret servers share, proven in the handshake by a server linking to another, null for none
+	 * @throws IllegalArgumentException If the input data is malformatted
+	 */
+	public ClypeConnection(String hostName, int port, String userName, int formats, String key, String secret) throws IllegalArgumentException {
+		if(hostName == null || userName == null || key == null || key.isEmpty() || port < 1024
+				|| (formats & FrameCodec.allFormats) == 0)
+			throw new IllegalArgumentException("The ClypeConnection cannot be initialized with those variables");
+		this.hostName = hostName;
+		this.port = port;
+		this.userName = userName;
+		this.formats = formats & FrameCodec.allFormats;
+		this.key = key;
+		this.secret = secret;
+		this.writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+		this.unflushed = new ArrayList<CompletableFuture<Void>>();
+		this.heldSince = 0;
+		this.flushPolicy = new FlushPolicy();
+		this.sequence = new AtomicLong();
+		this.listeners = new CopyOnWriteArrayList<ClypeListener>();
+		this.sessions = new CopyOnWriteArrayList<ClypeSession>();
+		this.closed = new CompletableFuture<Void>();
+		this.closeConnection = false;
+	}
+
+	/**
+	 * Defaults {@link #secret} to none
+	 * @param hostName The name of the computer representing the server
+	 * @param port The port the server is hosted on
+	 * @param userName The name the connection shakes hands and exits with
+	 * @param formats Bit mask of the frame formats offered to the server
+	 * @param key The key data is encrypted with
+	 * @throws IllegalArgumentException If the input data is malformatted
+	 */
+	public ClypeConnection(String hostName, int port, String userName, int formats, String key) throws IllegalArgumentException {
+		this(hostName, port, userName, formats, key, null);
+	}
+
+	/**
+	 * Defaults {@link #formats} to every format and {@link #key} to the key ClypeClient uses
+	 * @param hostName The name of the computer representing the server
+	 * @param port The port the server is hosted on
+	 * @param userName The name the connection shakes hands and exits with
+	 * @throws IllegalArgumentException If the input data is malformatted
+	 */
+	public ClypeConnection(String hostName, int port, String userName) throws IllegalArgumentException {
+		this(hostName, port, userName, FrameCodec.allFormats, ClypeClient.key);
+	}
+
+	/**
+	 * Connects to the server, shakes hands and starts receiving
+	 * @return This connection
+	 * @throws IOException If the server cannot be reached or refuses the connection
+	 */
+	public ClypeConnection connect() throws IOException {
+		socket = new Socket(hostName, port);
+		socket.setTcpNoDelay(true);
+		outToServer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		inFromServer = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		try {
+			codec = new Handshake(userName, formats, Compression.supported(), secret).connect(inFromServer, outToServer);
+		} catch(IOException ioe) {
+			socket.close();
+			throw ioe;
+		}
+		Thread listener = new Thread(this::receive, "clype-connection-" + userName);
+		listener.setDaemon(true);
+		listener.start();
+		return this;
+	}
+
+	/**
+	 * Opens a session that sends under its own user name over this connection
+	 * @param sessionUserName The session's user name
+	 * @return The session
+	 */
+	public ClypeSession openSession(String sessionUserName) {
+		ClypeSession session = new ClypeSession(this, sessionUserName);
+		sessions.add(session);
+		return session;
+	}
+
+	/**
+	 * Stops delivering data to a session, called when the session closes
+	 * @param session The session
+	 */
+	void removeSession(ClypeSession session) {
+		sessions.remove(session);
+	}
+
+	/**
+	 * Adds a listener for everything received on this connection
+	 * @param listener The listener
+	 */
+	public void addListener(ClypeListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener
+	 * @param listener The listener
+	 */
+	public void removeListener(ClypeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Sends data to the server without waiting
+	 * @param data The data, sent under the user name it carries
+	 * @return A future completing once the data has been written to the socket, or failing if it could not be
+	 * @throws IllegalArgumentException If the data is an exit, which would close the connection for every
+	 * session; use {@link #close()} instead
+	 */
+	public CompletableFuture<Void> send(ClypeData data) throws IllegalArgumentException {
+		if(data.getType() == ClypeData.exit)
+			throw new IllegalArgumentException("Close the connection instead of sending an exit");
+		return queue(data);
+	}
+
+	/**
+	 * Queues data for the writer thread
+	 * @param data The data
+	 * @return A future completing once the data has been written to the socket, or failing if it could not be
+	 */
+	private CompletableFuture<Void> queue(ClypeData data) {
+		CompletableFuture<Void> sent = new CompletableFuture<Void>();
+		if(closeConnection && data.getType() != ClypeData.exit) {
+			sent.completeExceptionally(new IOException("Connection closed"));
+			return sent;
+		}
+		try {
+			writer.execute(new Write(data, sent, sequence.getAndIncrement()));
+			flushPolicy.arrived();
+		} catch(RejectedExecutionException ree) {
+			sent.completeExceptionally(new IOException("Connection closed"));
+		}
+		return sent;
+	}
+
+	/**
+	 * Writes queued data on the writer thread, flushing when no more writes are queued or expected
+	 * within the flush policy's window. Writes queued while waiting are taken straight from the queue
+	 * @param write The first write
+	 */
+	private void write(Write write) {
+		try {
+			while(write != null) {
+				codec.writeFrame(outToServer, write.data);
+				if(unflushed.isEmpty())
+					heldSince = System.nanoTime();
+				unflushed.add(write.sent);
+				if(!writer.getQueue().isEmpty())
+					return;
+				long wait = flushPolicy.waitNanos(heldSince);
+				write = wait > 0 ? (Write) writer.getQueue().poll(wait, TimeUnit.NANOSECONDS) : null;
+			}
+		} catch(IOException ioe) {
+			if(write != null && !unflushed.contains(write.sent))
+				write.sent.completeExceptionally(ioe);
+			for(CompletableFuture<Void> future : unflushed)
+				future.completeExceptionally(ioe);
+			unflushed.clear();
+			return;
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			outToServer.flush();
+			flushPolicy.flushed(unflushed.size());
+			for(CompletableFuture<Void> future : unflushed)
+				future.complete(null);
+		} catch(IOException ioe) {
+			for(CompletableFuture<Void> future : unflushed)
+				future.completeExceptionally(ioe);
+		}
+		unflushed.clear();
+	}
+
+	/**
+	 * Receives data until the server sends back this connection's exit or the connection drops,
+	 * handing each to every listener and session
+	 */
+	private void receive() {
+		IOException cause = null;
+		try {
+			while(true) {
+				ClypeData data = codec.readFrame(inFromServer);
+				if(data.getType() == ClypeData.exit && userName.equals(data.getUserName()))
+					break;
+				for(ClypeListener listener : listeners)
+					deliver(listener, data);
+				for(ClypeSession session : sessions)
+					session.deliver(data);
+			}
+		} catch(EOFException eofe) {
+			if(!closeConnection)
+				cause = eofe;
+		} catch(IOException ioe) {
+			if(!closeConnection)
+				cause = ioe;
+		}
+		closeConnection = true;
+		writer.shutdown();
+		try {
+			socket.close();
+		} catch(IOException ioe) {
+			System.err.println("An error occurred.");
+		}
+		for(ClypeListener listener : listeners)
+			listener.onClose(cause);
+		for(ClypeSession session : sessions)
+			session.connectionClosed(cause);
+		closed.complete(null);
+	}
+
+	/**
+	 * Hands data to a listener, keeping the listener thread alive if the listener throws
+	 * @param listener The listener
+	 * @param data The data
+	 */
+	static void deliver(ClypeListener listener, ClypeData data) {
+		try {
+			listener.onData(data);
+		} catch(RuntimeException re) {
+			System.err.println("An error occurred. " + re);
+		}
+	}
+
+	/**
+	 * Closes the connection: tells the server this connection is exiting and completes once the
+	 * server has answered and every listener has been told
+	 * @return A future completing once the connection has closed
+	 */
+	public CompletableFuture<Void> close() {
+		if(!closeConnection) {
+			closeConnection = true;
+			queue(new MessageClypeData(userName, "", ClypeData.exit));
+			writer.shutdown();
+		}
+		return closed;
+	}
+
+	/**
+	 * Closes the socket at once without telling the server, failing every send still queued, as a
+	 * link between servers does when the other server stops reading
+	 */
+	void abort() {
+		closeConnection = true;
+		for(Runnable write : writer.shutdownNow())
+			((Write) write).sent.completeExceptionally(new IOException("Connection aborted"));
+		try {
+			socket.close();
+		} catch(IOException ioe) {
+			System.err.println("An error occurred.");
+		}
+	}
+
+	/**
+	 * Checks whether the connection is closing or closed
+	 * @return closeConnection
+	 */
+	public boolean isClosed() {
+		return closeConnection;
+	}
+
+	/**
+	 * Gets the key data is encrypted with
+	 * @return key
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Gets the name the connection shakes hands and exits with
+	 * @return userName
+	 */
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * Gets the number of sessions sharing this connection
+	 * @return The number of sessions
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * Gets the payload compression agreed with the server, which also reports what it saved
+	 * @return The compression, null if none was agreed or the connection is not made yet
+	 */
+	public Compression getCompression() {
+		FrameCodec codec = this.codec;
+		return codec == null ? null : codec.getCompression();
+	}
+
+	/**
+	 * Gets the policy deciding when sends are flushed, which also counts the sends per flush
+	 * @return flushPolicy
+	 */
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * A queued send, ordered with control and text data first, then file data, then the closing
+	 * exit, and by when it was queued within each
+	 */
+	private class Write implements Runnable, Comparable<Write> {
+		/**
+		 * The data being sent
+		 */
+		private ClypeData data;
+		/**
+		 * Completed once the data is flushed
+		 */
+		private CompletableFuture<Void> sent;
+		/**
+		 * 0 for control and text data, 1 for files and chunks, 2 for the exit
+		 */
+		private int rank;
+		/**
+		 * The position of the send among every send of the connection
+		 */
+		private long sequence;
+
+		/**
+		 * Initializes Write instance variables
+		 * @param data The data being sent
+		 * @param sent Completed once the data is flushed
+		 * @param sequence The position of the send among every send of the connection
+		 */
+		Write(ClypeData data, CompletableFuture<Void> sent, long sequence) {
+			this.data = data;
+			this.sent = sent;
+			if(data.getType() == ClypeData.exit)
+				this.rank = 2;
+			else if(data.getType() == ClypeData.file || data.getType() == ClypeData.chunk)
+				this.rank = 1;
+			else
+				this.rank = 0;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Writes the data on the writer thread
+		 */
+		@Override
+		public void run() {
+			write(this);
+		}
+
+		/**
+		 * Orders by rank, then by sequence
+		 * @param other The other send
+		 */
+		@Override
+		public int compareTo(Write other) {
+			if(rank != other.rank)
+				return Integer.compare(rank, other.rank);
+			return Long.compare(sequence, other.sequence);
+		}
+
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "ClypeConnection [hostName=" + hostName + ", port=" + port + ", userName=" + userName
+				+ ", sessions=" + sessions.size() + ", closeConnection=" + closeConnection + "]";
+	}
+
+}
@@ -0,0 +1,98 @@
+package main;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Spreads sessions over a fixed number of {@link ClypeConnection}s to one server, connecting
+ * each the first time a session is placed on it and replacing it if it has closed.
+ *
+ * Since the server relays everything to every connection, each session still receives every data
+ * once, while the server and the program only pay for a few sockets
+ *
+ * @author Will Dunklin
+ *
+ */
+public class ClypeConnectionPool {
+	/**
+	 * The name of the computer representing the server
+	 */
+	private String hostName;
+	/**
+	 * The port the server is hosted under
+	 */
+	private int port;
+	/**
+	 * The prefix of every connection's user name, followed by its index
+	 */
+	private String userName;
+	/**
+	 * The pooled connections, null until first used
+	 */
+	private ClypeConnection[] connections;
+	/**
+	 * The index of the connection the next session is placed on
+	 */
+	private int next;
+
+	/**
+	 * Initializes ClypeConnectionPool instance variables
+	 * @param hostName The name of the computer representing the server
+	 * @param port The port the server is hosted on
+	 * @param userName The prefix of every connection's user name
+	 * @param size The number of connections
+	 * @throws IllegalArgumentException If the size is below 1
+	 */
+	public ClypeConnectionPool(String hostName, int port, String userName, int size) throws IllegalArgumentException {
+		if(size < 1)
+			throw new IllegalArgumentException("A ClypeConnectionPool needs at least one connection");
+		this.hostName = hostName;
+		this.port = port;
+		this.userName = userName;
+		this.connections = new ClypeConnection[size];
+		this.next = 0;
+	}
+
+	/**
+	 * Opens a session on the next connection in turn
+	 * @param sessionUserName The session's user name
+	 * @return The session
+	 * @throws IOException If a connection has to be made and cannot be
+	 */
+	public synchronized ClypeSession openSession(String sessionUserName) throws IOException {
+		int index = next;
+		next = (next + 1) % connections.length;
+		if(connections[index] == null || connections[index].isClosed())
+			connections[index] = new ClypeConnection(hostName, port, userName + index).connect();
+		return connections[index].openSession(sessionUserName);
+	}
+
+	/**
+	 * Closes every connection
+	 * @return A future completing once every connection has closed
+	 */
+	public synchronized CompletableFuture<Void> close() {
+		CompletableFuture<?>[] closing = new CompletableFuture<?>[connections.length];
+		for(int i = 0; i < connections.length; i++)
+			closing[i] = connections[i] == null ? CompletableFuture.completedFuture(null) : connections[i].close();
+		return CompletableFuture.allOf(closing);
+	}
+
+	/**
+	 * Gets the number of connections
+	 * @return The pool size
+	 */
+	public int size() {
+		return connections.length;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "ClypeConnectionPool [hostName=" + hostName + ", port=" + port + ", userName=" + userName + ", size="
+				+ connections.length + "]";
+	}
+
+}
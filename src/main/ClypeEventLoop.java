@@ -0,0 +1,289 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single-threaded, non-blocking event loop serving a share of the server's clients.
+ *
+ * Each loop owns one Selector and every {@link NioClientConnection} registered with it, so a
+ * connection's buffers are only ever touched from this loop's thread. Other threads hand work to
+ * the loop through lock-free queues and wake the selector.
+ *
+ * Reads go through one direct buffer shared by all of the loop's connections; a connection only
+ * keeps a buffer of its own while it holds a partially received frame, which keeps idle connections
+ * cheap, and spooled file payloads go from this buffer to disk without touching the heap.
+ *
+ * Connections are flushed once per pass, after every key has been handled, so all the frames
+ * queued for a client during a pass go out in one gathering write through the loop's batch arrays.
+ * A connection whose reading or writing throws anything unexpected is closed on its own, so one
+ * client cannot take the loop and every other client on it down.
+ *
+ * A connection that sends file data while some client is out of bulk credit stops being read
+ * until the loop sees every client back under its credit, or until the server's queue latency
+ * threshold has passed, after which the slow client's queue overflows instead
+ *
+ * @author Will Dunklin
+ *
+ */
+public class ClypeEventLoop implements Runnable {
+	/**
+	 * The size of the read buffer shared by the loop's connections, 64 KiB
+	 */
+	private static final int readBufferSize = 64 * 1024;
+	/**
+	 * How often paused connections are checked for returned credit, 5 milliseconds
+	 */
+	private static final long creditPollMillis = 5;
+	/**
+	 * The most frames written to a connection with one gathering write
+	 */
+	private static final int batchFrames = 64;
+	/**
+	 * The server whose clients this loop serves
+	 */
+	private ClypeServer server;
+	/**
+	 * Selector watching every connection owned by this loop
+	 */
+	private Selector selector;
+	/**
+	 * Read buffer shared by every connection owned by this loop
+	 */
+	private ByteBuffer readBuffer;
+	/**
+	 * Accepted channels waiting to be registered with the selector
+	 */
+	private ConcurrentLinkedQueue<SocketChannel> pendingChannels;
+	/**
+	 * The frames being written with one gathering write, shared by the loop's connections
+	 */
+	private OutboundFrame[] writeBatch;
+	/**
+	 * The buffers of {@link #writeBatch}, shared by the loop's connections
+	 */
+	private ByteBuffer[] writeBuffers;
+	/**
+	 * Connections with newly queued outgoing frames
+	 */
+	private ConcurrentLinkedQueue<NioClientConnection> pendingFlushes;
+	/**
+	 * Connections not being read until every client has bulk credit, only used by the loop
+	 */
+	private ArrayList<NioClientConnection> paused;
+	/**
+	 * The time the first of the paused connections was paused
+	 */
+	private long pausedAt;
+	/**
+	 * The thread running this loop
+	 */
+	private Thread thread;
+	/**
+	 * Boolean signifier showing if the loop is stopped
+	 */
+	private volatile boolean closeConnection;
+
+	/**
+	 * Initializes ClypeEventLoop instance variables
+	 * @param server The server whose clients this loop serves
+	 * @throws IOException If the selector cannot be opened
+	 */
+	public ClypeEventLoop(ClypeServer server) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+		this.writeBatch = new OutboundFrame[batchFrames];
+		this.writeBuffers = new ByteBuffer[batchFrames * 2];
+		this.pendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+		this.pendingFlushes = new ConcurrentLinkedQueue<NioClientConnection>();
+		this.paused = new ArrayList<NioClientConnection>();
+		this.pausedAt = 0;
+		this.thread = null;
+		this.closeConnection = false;
+	}
+
+	/**
+	 * Starts the loop on a new thread
+	 * @param name The name of the thread
+	 */
+	public void start(String name) {
+		thread = new Thread(this, name);
+		thread.start();
+	}
+
+	/**
+	 * Hands an accepted channel to this loop, callable from any thread
+	 * @param channel The accepted channel
+	 */
+	public void register(SocketChannel channel) {
+		pendingChannels.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Asks the loop to write a connection's queued frames, callable from any thread
+	 * @param connection The connection with queued frames
+	 */
+	void scheduleFlush(NioClientConnection connection) {
+		pendingFlushes.add(connection);
+		if(Thread.currentThread() != thread)
+			selector.wakeup();
+	}
+
+	/**
+	 * Checks whether the calling thread is this loop's own
+	 * @return True if called by the loop
+	 */
+	boolean isLoopThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Stops reading from a connection until everything its file data goes to has bulk credit, only called by the loop
+	 * @param connection The connection sending file data
+	 */
+	void pause(NioClientConnection connection) {
+		if(paused.isEmpty())
+			pausedAt = System.currentTimeMillis();
+		paused.add(connection);
+	}
+
+	/**
+	 * Runs the loop until {@link #stop()} is called
+	 */
+	@Override
+	public void run() {
+		try {
+			while(!closeConnection) {
+				selector.select(paused.isEmpty() ? 0 : creditPollMillis);
+				resumePaused();
+				registerPending();
+				flushPending();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioClientConnection connection = (NioClientConnection) key.attachment();
+					if(!key.isValid())
+						continue;
+					try {
+						if(key.isReadable())
+							connection.onReadable(readBuffer);
+						if(key.isValid() && key.isWritable())
+							connection.flush(writeBatch, writeBuffers);
+					} catch(RuntimeException re) {
+						System.err.println("An error occurred.");
+						connection.close();
+					}
+				}
+				flushPending();
+			}
+		} catch(IOException | ClosedSelectorException e) {
+			if(!closeConnection)
+				System.err.println("An error occurred.");
+		} finally {
+			closeAll();
+		}
+	}
+
+	/**
+	 * Reads from each paused connection again once everything its file data goes to has bulk credit,
+	 * or from all of them once they have waited too long
+	 */
+	private void resumePaused() {
+		if(paused.isEmpty())
+			return;
+		boolean expired = System.currentTimeMillis() - pausedAt >= server.getMaxQueuedMillis();
+		Iterator<NioClientConnection> waiting = paused.iterator();
+		while(waiting.hasNext()) {
+			NioClientConnection connection = waiting.next();
+			if(expired || server.getHub().hasBulkCredit(connection)) {
+				connection.resumeReading();
+				waiting.remove();
+			}
+		}
+	}
+
+	/**
+	 * Registers every channel handed to the loop since the last pass
+	 */
+	private void registerPending() {
+		SocketChannel channel;
+		while((channel = pendingChannels.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				NioClientConnection connection = new NioClientConnection(server, this, channel, key);
+				key.attach(connection);
+				server.getHub().add(connection);
+			} catch(IOException ioe) {
+				System.err.println("An error occurred.");
+				try {
+					channel.close();
+				} catch(IOException closeIoe) {
+					System.err.println("An error occurred.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the frames queued for every connection scheduled since the last pass
+	 */
+	private void flushPending() {
+		NioClientConnection connection;
+		while((connection = pendingFlushes.poll()) != null)
+			connection.flush(writeBatch, writeBuffers);
+	}
+
+	/**
+	 * Closes every connection owned by the loop along with its selector, then runs the flushes still
+	 * pending so connections closed by other threads let go of their spools
+	 */
+	private void closeAll() {
+		try {
+			for(SelectionKey key : selector.keys()) {
+				if(key.attachment() != null)
+					((NioClientConnection) key.attachment()).close();
+			}
+			flushPending();
+			selector.close();
+		} catch(IOException | ClosedSelectorException e) {
+			System.err.println("An error occurred.");
+		}
+	}
+
+	/**
+	 * Stops the loop and closes its connections
+	 */
+	public void stop() {
+		closeConnection = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Waits for the loop's thread to finish
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void join() throws InterruptedException {
+		if(thread != null)
+			thread.join();
+	}
+
+	/**
+	 * Gets the number of connections owned by the loop
+	 * @return The number of registered connections
+	 */
+	public int size() {
+		return selector.keys().size();
+	}
+
+}
@@ -0,0 +1,31 @@
+package main;
+
+import java.io.IOException;
+
+import data.ClypeData;
+
+/**
+ * Receives data from a {@link ClypeConnection} or {@link ClypeSession} as it arrives.
+ *
+ * Called on the connection's listener thread, so implementations must return quickly and hand
+ * any slow work to another thread
+ *
+ * @author Will Dunklin
+ *
+ */
+public interface ClypeListener {
+
+	/**
+	 * Called for every data received from the server
+	 * @param data The received data, still encrypted
+	 */
+	void onData(ClypeData data);
+
+	/**
+	 * Called once when the connection closes
+	 * @param cause The error that closed the connection, null if it was closed normally
+	 */
+	default void onClose(IOException cause) {
+	}
+
+}
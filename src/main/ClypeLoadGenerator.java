@@ -0,0 +1,654 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import data.ClypeData;
+import data.Compression;
+import data.FileChunkClypeData;
+import data.FrameCodec;
+import data.Handshake;
+import data.MessageClypeData;
+
+/**
+ * Drives load against a ClypeServer from many simulated clients without a console.
+ *
+ * Every simulated client connects and shakes hands like ClypeClient, then sends a mix of text
+ * messages, LISTUSERS requests and files (sent as a single chunk, as ClypeClient streams them).
+ * Each item carries the time it was meant to be sent, and its latency is recorded when the server
+ * relays it back to its sender. In closed-loop mode every client sends its next item as soon as the
+ * last one comes back; in open-loop mode items are sent at a fixed total rate whether or not earlier
+ * ones have come back, and latency is measured from the scheduled time so a stalled server is not
+ * hidden. Throughput and latency percentiles are printed for every report interval and for the
+ * whole run.
+ *
+ * Options are given as name=value arguments:
+ * <pre>
+ * host=localhost    server host
+ * port=7000         server port
+ * server=none       start a server in this JVM on loopback: threads, nio or nio=N (implies host=localhost)
+ * flushWindow=200   microseconds the in-process server may hold writes to busy clients back to batch them
+ * clients=100       number of simulated clients
+ * mode=closed       closed or open
+ * rate=1000         items per second across all clients, open mode only
+ * think=0           milliseconds each client waits before its next item, closed mode only
+ * mix=text:90,list:5,file:5  relative weights of each kind of item
+ * textSize=64       characters in each text message
+ * fileSize=65536    bytes in each file
+ * format=all        frame formats offered: serial, binary or all
+ * compress=none     payload compression offered, and accepted by the in-process server: none or deflate
+ * fileData=random   contents of each file: random bytes, or text that compresses well
+ * duration=60       seconds to run, 0 to run until killed
+ * report=10         seconds between interval reports
+ * </pre>
+ *
+ * @author Will Dunklin
+ *
+ */
+public class ClypeLoadGenerator {
+	/**
+	 * Index of text messages in the traffic mix
+	 */
+	private static final int text = 0;
+	/**
+	 * Index of LISTUSERS requests in the traffic mix
+	 */
+	private static final int list = 1;
+	/**
+	 * Index of files in the traffic mix
+	 */
+	private static final int file = 2;
+	/**
+	 * The names of the kinds of item, in mix order
+	 */
+	private static final String[] kindNames = {"text", "list", "file"};
+	/**
+	 * The prefix of the file names of sent files, followed by the scheduled send time
+	 */
+	private static final String filePrefix = "load-";
+
+	/**
+	 * The server host
+	 */
+	private String host;
+	/**
+	 * The server port
+	 */
+	private int port;
+	/**
+	 * The server engine started in this JVM, null to use a running server
+	 */
+	private String serverEngine;
+	/**
+	 * The flush window of the server started in this JVM, in microseconds
+	 */
+	private long flushWindowMicros;
+	/**
+	 * The number of simulated clients
+	 */
+	private int clientCount;
+	/**
+	 * Whether items are sent at a fixed rate rather than each after the last came back
+	 */
+	private boolean openLoop;
+	/**
+	 * Items per second across all clients in open-loop mode
+	 */
+	private double rate;
+	/**
+	 * Milliseconds each client waits before its next item in closed-loop mode
+	 */
+	private long thinkMillis;
+	/**
+	 * The cumulative weights of text, list and file items
+	 */
+	private int[] mix;
+	/**
+	 * Characters in each text message
+	 */
+	private int textSize;
+	/**
+	 * Bytes in each file
+	 */
+	private int fileSize;
+	/**
+	 * The frame formats offered in the handshake
+	 */
+	private int formats;
+	/**
+	 * Words text files are made of
+	 */
+	private static final String[] words = {"the", "server", "relays", "every", "message", "to", "all", "clients", "and", "file",
+			"chunks", "are", "spooled", "while", "a", "slow", "reader", "waits", "for", "its", "queue", "of", "frames", "sent",
+			"over", "link", "between", "sites", "with", "user", "names", "in", "binary", "format"};
+	/**
+	 * Bit mask of the compression codec ids offered in the handshake
+	 */
+	private int compressions;
+	/**
+	 * Whether files hold text rather than random bytes
+	 */
+	private boolean textFiles;
+	/**
+	 * Seconds to run, 0 to run until killed
+	 */
+	private long durationSeconds;
+	/**
+	 * Seconds between interval reports
+	 */
+	private long reportSeconds;
+
+	/**
+	 * The simulated clients
+	 */
+	private SimulatedClient[] clients;
+	/**
+	 * Latencies in microseconds of the whole run, by kind of item
+	 */
+	private LatencyHistogram[] totalLatency;
+	/**
+	 * Latencies in microseconds since the last report, by kind of item
+	 */
+	private LatencyHistogram[] intervalLatency;
+	/**
+	 * The number of items sent
+	 */
+	private AtomicLong sent;
+	/**
+	 * The number of frames received by all clients, including other clients' items
+	 */
+	private AtomicLong received;
+	/**
+	 * Whether the run is over
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * Initializes ClypeLoadGenerator instance variables from name=value options
+	 * @param options The options, see the class description
+	 * @throws IllegalArgumentException If an option is unknown or its value is invalid
+	 */
+	public ClypeLoadGenerator(String[] options) throws IllegalArgumentException {
+		HashMap<String, String> values = new HashMap<String, String>();
+		for(String option : options) {
+			int equals = option.indexOf('=');
+			if(equals < 0)
+				throw new IllegalArgumentException("Expected name=value but got " + option);
+			values.put(option.substring(0, equals), option.substring(equals + 1));
+		}
+		this.host = take(values, "host", "localhost");
+		this.port = Integer.parseInt(take(values, "port", Integer.toString(ClypeServer.defaultPort)));
+		String server = take(values, "server", "none");
+		this.serverEngine = server.equals("none") ? null : server;
+		if(serverEngine != null)
+			this.host = "localhost";
+		this.flushWindowMicros = Long.parseLong(take(values, "flushWindow", Long.toString(FlushPolicy.defaultMaxWindowMicros)));
+		this.clientCount = Integer.parseInt(take(values, "clients", "100"));
+		String mode = take(values, "mode", "closed");
+		if(!mode.equals("closed") && !mode.equals("open"))
+			throw new IllegalArgumentException("mode must be closed or open");
+		this.openLoop = mode.equals("open");
+		this.rate = Double.parseDouble(take(values, "rate", "1000"));
+		this.thinkMillis = Long.parseLong(take(values, "think", "0"));
+		this.mix = parseMix(take(values, "mix", "text:90,list:5,file:5"));
+		this.textSize = Integer.parseInt(take(values, "textSize", "64"));
+		this.fileSize = Integer.parseInt(take(values, "fileSize", "65536"));
+		String format = take(values, "format", "all");
+		if(format.equals("all"))
+			this.formats = FrameCodec.allFormats;
+		else if(format.equals("binary"))
+			this.formats = 1 << FrameCodec.binary;
+		else if(format.equals("serial"))
+			this.formats = 1 << FrameCodec.serial;
+		else
+			throw new IllegalArgumentException("format must be serial, binary or all");
+		int compression = Compression.idOf(take(values, "compress", "none"));
+		this.compressions = compression == Compression.none ? 0 : 1 << compression;
+		String fileData = take(values, "fileData", "random");
+		if(!fileData.equals("random") && !fileData.equals("text"))
+			throw new IllegalArgumentException("fileData must be random or text");
+		this.textFiles = fileData.equals("text");
+		this.durationSeconds = Long.parseLong(take(values, "duration", "60"));
+		this.reportSeconds = Long.parseLong(take(values, "report", "10"));
+		if(!values.isEmpty())
+			throw new IllegalArgumentException("Unknown options " + values.keySet());
+		if(clientCount < 1 || rate <= 0 || textSize < 20 || fileSize < 0 || reportSeconds < 1)
+			throw new IllegalArgumentException("clients, rate and report must be positive and textSize at least 20");
+		this.totalLatency = new LatencyHistogram[kindNames.length];
+		this.intervalLatency = new LatencyHistogram[kindNames.length];
+		for(int i = 0; i < kindNames.length; i++) {
+			totalLatency[i] = new LatencyHistogram();
+			intervalLatency[i] = new LatencyHistogram();
+		}
+		this.sent = new AtomicLong();
+		this.received = new AtomicLong();
+		this.stopped = false;
+	}
+
+	/**
+	 * Removes an option from the parsed options
+	 * @param values The parsed options
+	 * @param name The option's name
+	 * @param defaultValue The value used if the option was not given
+	 * @return The option's value
+	 */
+	private static String take(HashMap<String, String> values, String name, String defaultValue) {
+		String value = values.remove(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Parses a traffic mix such as text:90,list:5,file:5 into cumulative weights
+	 * @param mix The traffic mix
+	 * @return The cumulative weights of text, list and file items
+	 * @throws IllegalArgumentException If the mix is malformed or all weights are 0
+	 */
+	private static int[] parseMix(String mix) throws IllegalArgumentException {
+		int[] weights = new int[kindNames.length];
+		for(String part : mix.split(",")) {
+			String[] kindWeight = part.split(":");
+			int kind = Arrays.asList(kindNames).indexOf(kindWeight[0]);
+			if(kind < 0 || kindWeight.length != 2)
+				throw new IllegalArgumentException("mix must look like text:90,list:5,file:5");
+			weights[kind] = Integer.parseInt(kindWeight[1]);
+		}
+		for(int i = 1; i < weights.length; i++)
+			weights[i] += weights[i - 1];
+		if(weights[weights.length - 1] <= 0)
+			throw new IllegalArgumentException("mix must have a positive weight");
+		return weights;
+	}
+
+	/**
+	 * Runs the load: starts the server if asked to, connects every client, sends until the
+	 * duration is up and prints the reports
+	 * @throws IOException If a client cannot connect
+	 * @throws InterruptedException If interrupted while running
+	 */
+	public void run() throws IOException, InterruptedException {
+		ClypeServer server = null;
+		Thread serverThread = null;
+		PrintStream console = System.out;
+		if(serverEngine != null) {
+			int loops = 0;
+			if(serverEngine.startsWith("nio"))
+				loops = serverEngine.contains("=") ? Integer.parseInt(serverEngine.substring(4))
+						: Runtime.getRuntime().availableProcessors();
+			else if(!serverEngine.equals("threads"))
+				throw new IllegalArgumentException("server must be none, threads, nio or nio=N");
+			System.setOut(quiet());
+			server = new ClypeServer(port, clientCount + 16, loops);
+			server.setFlushWindowMicros(flushWindowMicros);
+			server.setCompression(compressions, Compression.defaultThreshold);
+			serverThread = new Thread(server::start, "load-server");
+			serverThread.start();
+		}
+
+		ExecutorService receivers = ClypeServer.newClientExecutor(clientCount);
+		clients = new SimulatedClient[clientCount];
+		try {
+			for(int i = 0; i < clientCount; i++) {
+				clients[i] = new SimulatedClient("load" + i);
+				receivers.execute(clients[i]);
+			}
+			console.println("Connected " + clientCount + " clients to " + host + ":" + port + " ("
+					+ (openLoop ? "open loop at " + rate + " items/s" : "closed loop") + ")");
+
+			long start = System.nanoTime();
+			Thread reporter = new Thread(() -> report(console, start), "load-reporter");
+			reporter.setDaemon(true);
+			reporter.start();
+			if(openLoop) {
+				sendOpenLoop(start);
+			} else {
+				for(SimulatedClient client : clients)
+					client.sendNext(System.nanoTime());
+				if(durationSeconds > 0)
+					TimeUnit.SECONDS.sleep(durationSeconds);
+				else
+					reporter.join();
+			}
+			stopped = true;
+			printSummary(console, System.nanoTime() - start, server);
+		} finally {
+			stopped = true;
+			PrintStream errors = System.err;
+			if(server != null)
+				System.setErr(quiet());
+			for(SimulatedClient client : clients)
+				if(client != null)
+					client.close();
+			receivers.shutdownNow();
+			if(server != null) {
+				server.stop();
+				serverThread.join();
+				System.setOut(console);
+				System.setErr(errors);
+			}
+		}
+	}
+
+	/**
+	 * Creates a stream that discards everything, used to silence the in-process server's logging
+	 * of every frame and of clients dropping at the end of the run
+	 * @return The stream
+	 */
+	private static PrintStream quiet() {
+		return new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		});
+	}
+
+	/**
+	 * Sends items at the fixed rate, cycling through the clients, until the duration is up
+	 * @param start The time the run started, in System.nanoTime
+	 */
+	private void sendOpenLoop(long start) {
+		double period = 1e9 / rate;
+		long end = durationSeconds > 0 ? start + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+		for(long i = 0; !stopped; i++) {
+			long scheduled = start + (long) (i * period);
+			if(scheduled - end >= 0)
+				return;
+			long wait = scheduled - System.nanoTime();
+			if(wait > 0)
+				LockSupport.parkNanos(wait);
+			clients[(int) (i % clientCount)].sendNext(scheduled);
+		}
+	}
+
+	/**
+	 * Prints throughput and latency for every report interval until the run is over
+	 * @param console The stream reports are printed to
+	 * @param start The time the run started, in System.nanoTime
+	 */
+	private void report(PrintStream console, long start) {
+		long lastSent = 0, lastReceived = 0;
+		long end = durationSeconds > 0 ? start + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+		while(!stopped) {
+			try {
+				TimeUnit.SECONDS.sleep(reportSeconds);
+			} catch(InterruptedException ie) {
+				return;
+			}
+			if(stopped || System.nanoTime() - end > 0)
+				return;
+			LatencyHistogram interval = new LatencyHistogram();
+			for(LatencyHistogram kind : intervalLatency)
+				interval.add(kind.drain());
+			long sentNow = sent.get(), receivedNow = received.get();
+			console.printf("%6ds sent %8.0f/s received %9.0f/s latency us p50 %7d p99 %8d p99.9 %8d max %8d%n",
+					TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+					(sentNow - lastSent) / (double) reportSeconds, (receivedNow - lastReceived) / (double) reportSeconds,
+					interval.valueAtPercentile(50), interval.valueAtPercentile(99), interval.valueAtPercentile(99.9),
+					interval.getMax());
+			lastSent = sentNow;
+			lastReceived = receivedNow;
+		}
+	}
+
+	/**
+	 * Prints the totals and latency percentiles of the whole run, and how well the server batched its
+	 * writes when it runs in this JVM
+	 * @param console The stream the summary is printed to
+	 * @param elapsed The length of the run in nanoseconds
+	 * @param server The server started in this JVM, null if there is none
+	 */
+	private void printSummary(PrintStream console, long elapsed, ClypeServer server) {
+		double seconds = elapsed / 1e9;
+		console.printf("Sent %d items (%.0f/s), received %d frames (%.0f/s) in %.1f s%n",
+				sent.get(), sent.get() / seconds, received.get(), received.get() / seconds, seconds);
+		if(server != null) {
+			long flushes = server.getHub().getFlushes();
+			long frames = server.getHub().getFramesFlushed();
+			console.printf("Server wrote %d frames in %d writes (%.2f frames per write)%n", frames, flushes,
+					flushes == 0 ? 0.0 : (double) frames / flushes);
+		}
+		if(compressions != 0)
+			printCompression(console);
+		console.println("kind   count       mean us   p50     p90     p99     p99.9   p99.99  max");
+		LatencyHistogram all = new LatencyHistogram();
+		for(int i = 0; i <= kindNames.length; i++) {
+			LatencyHistogram h = i < kindNames.length ? totalLatency[i] : all;
+			if(i < kindNames.length)
+				all.add(h);
+			console.printf("%-6s %-11d %-9.0f %-7d %-7d %-7d %-7d %-7d %d%n", i < kindNames.length ? kindNames[i] : "all",
+					h.getCount(), h.getMean(), h.valueAtPercentile(50), h.valueAtPercentile(90), h.valueAtPercentile(99),
+					h.valueAtPercentile(99.9), h.valueAtPercentile(99.99), h.getMax());
+		}
+	}
+
+	/**
+	 * Prints what compression saved across every client's connection
+	 * @param console The stream the summary is printed to
+	 */
+	private void printCompression(PrintStream console) {
+		long rawSent = 0, wireSent = 0, compressNanos = 0, decompressNanos = 0, compressed = 0, skipped = 0;
+		for(SimulatedClient client : clients) {
+			Compression compression = client.codec.getCompression();
+			if(compression == null)
+				continue;
+			rawSent += compression.getRawBytesSent();
+			wireSent += compression.getWireBytesSent();
+			compressed += compression.getFramesCompressed();
+			skipped += compression.getFramesSkipped();
+			compressNanos += compression.getCompressNanos();
+			decompressNanos += compression.getDecompressNanos();
+		}
+		console.printf("Clients sent %d payload bytes as %d (%.2fx, %d compressed, %d skipped), cpu %.1f ms compressing, %.1f ms decompressing%n",
+				rawSent, wireSent, wireSent == 0 ? 1.0 : (double) rawSent / wireSent, compressed, skipped, compressNanos / 1e6, decompressNanos / 1e6);
+	}
+
+	/**
+	 * Records the latency of an item that came back to its sender
+	 * @param kind The kind of item
+	 * @param scheduled The time it was meant to be sent, in System.nanoTime
+	 */
+	private void recordLatency(int kind, long scheduled) {
+		long micros = (System.nanoTime() - scheduled) / 1000;
+		totalLatency[kind].record(micros);
+		intervalLatency[kind].record(micros);
+	}
+
+	/**
+	 * One simulated client: its connection, the receiver that drains it and the items it sends
+	 */
+	private class SimulatedClient implements Runnable {
+		/**
+		 * The client's user name
+		 */
+		private String userName;
+		/**
+		 * The socket connected to the server
+		 */
+		private Socket socket;
+		/**
+		 * Receives frames from the server
+		 */
+		private DataInputStream in;
+		/**
+		 * Sends frames to the server
+		 */
+		private DataOutputStream out;
+		/**
+		 * The codec agreed with the server
+		 */
+		private FrameCodec codec;
+		/**
+		 * Padding appended to text messages
+		 */
+		private String padding;
+		/**
+		 * Contents of sent files
+		 */
+		private byte[] fileContents;
+		/**
+		 * The scheduled send times of LISTUSERS requests not yet answered, oldest first, since replies carry no stamp
+		 */
+		private ConcurrentLinkedQueue<Long> listsWaiting;
+		/**
+		 * The users present as of the last LISTUSERS reply
+		 */
+		private HashSet<String> roster;
+		/**
+		 * The version of {@link #roster}, -1 before the first reply, so later requests only ask what changed
+		 */
+		private volatile long rosterVersion;
+
+		/**
+		 * Initializes SimulatedClient instance variables, connecting and shaking hands with the server
+		 * @param userName The client's user name
+		 * @throws IOException If the client cannot connect
+		 */
+		SimulatedClient(String userName) throws IOException {
+			this.userName = userName;
+			this.socket = connect();
+			this.socket.setTcpNoDelay(true);
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			this.codec = new Handshake(userName, formats, compressions).connect(in, out);
+			char[] pad = new char[textSize - 20];
+			Arrays.fill(pad, 'x');
+			this.padding = new String(pad);
+			this.fileContents = new byte[fileSize];
+			this.listsWaiting = new ConcurrentLinkedQueue<Long>();
+			this.roster = new HashSet<String>();
+			this.rosterVersion = -1;
+			if(textFiles) {
+				StringBuilder text = new StringBuilder(fileSize + 16);
+				while(text.length() < fileSize)
+					text.append(words[ThreadLocalRandom.current().nextInt(words.length)]).append(text.length() % 72 < 64 ? ' ' : '\n');
+				System.arraycopy(text.toString().getBytes(StandardCharsets.UTF_8), 0, fileContents, 0, fileSize);
+			} else {
+				ThreadLocalRandom.current().nextBytes(fileContents);
+			}
+		}
+
+		/**
+		 * Connects to the server, retrying while an in-process server is still starting
+		 * @return The connected socket
+		 * @throws IOException If the server cannot be reached
+		 */
+		private Socket connect() throws IOException {
+			for(int attempt = 0; ; attempt++) {
+				try {
+					return new Socket(host, port);
+				} catch(IOException ioe) {
+					if(serverEngine == null || attempt == 100)
+						throw ioe;
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+				}
+			}
+		}
+
+		/**
+		 * Sends an item of a kind picked from the traffic mix
+		 * @param scheduled The time the item was meant to be sent, in System.nanoTime
+		 */
+		void sendNext(long scheduled) {
+			int pick = ThreadLocalRandom.current().nextInt(mix[mix.length - 1]);
+			int kind = 0;
+			while(pick >= mix[kind])
+				kind++;
+			ClypeData data;
+			String stamp = String.format("%019d", scheduled);
+			if(kind == file)
+				data = new FileChunkClypeData(userName, filePrefix + stamp, 0, fileSize, 0, fileContents);
+			else if(kind == list)
+				data = new MessageClypeData(userName, rosterVersion < 0 ? "snapshot" : "since " + rosterVersion, ClypeData.list);
+			else
+				data = new MessageClypeData(userName, stamp + ' ' + padding, ClypeData.text);
+			try {
+				synchronized(this) {
+					if(kind == list)
+						listsWaiting.add(scheduled);
+					codec.writeFrame(out, data);
+					out.flush();
+				}
+				sent.incrementAndGet();
+			} catch(IOException ioe) {
+				if(!stopped)
+					System.err.println("An error occurred. " + ioe.getMessage());
+			}
+		}
+
+		/**
+		 * Drains frames from the server, recording the latency of this client's own items and,
+		 * in closed-loop mode, sending the next item when one comes back
+		 */
+		@Override
+		public void run() {
+			try {
+				while(!stopped) {
+					ClypeData data = codec.readFrame(in);
+					received.incrementAndGet();
+					if(!userName.equals(data.getUserName()))
+						continue;
+					if(data instanceof FileChunkClypeData) {
+						recordLatency(file, Long.parseLong(((FileChunkClypeData) data).getFileName().substring(filePrefix.length())));
+					} else if(data.getType() == ClypeData.list) {
+						Long scheduled = listsWaiting.poll();
+						if(scheduled == null)
+							continue;
+						rosterVersion = PresenceRegistry.apply(roster, rosterVersion, data);
+						recordLatency(list, scheduled);
+					} else {
+						recordLatency(text, Long.parseLong(data.getData().substring(0, 19)));
+					}
+					if(!openLoop && !stopped) {
+						if(thinkMillis > 0)
+							TimeUnit.MILLISECONDS.sleep(thinkMillis);
+						sendNext(System.nanoTime());
+					}
+				}
+			} catch(IOException | InterruptedException e) {
+				if(!stopped)
+					System.err.println("An error occurred. " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Closes the connection to the server
+		 */
+		void close() {
+			try {
+				socket.close();
+			} catch(IOException ioe) {
+				System.err.println("An error occurred.");
+			}
+		}
+	}
+
+	/**
+	 * Runs the load generator
+	 * @param args name=value options, see the class description
+	 */
+	public static void main(String[] args) {
+		try {
+			new ClypeLoadGenerator(args).run();
+		} catch(IllegalArgumentException iae) {
+			System.err.println(iae.getMessage());
+		} catch(IOException | InterruptedException e) {
+			System.err.println("An error occurred. " + e.getMessage());
+		}
+	}
+
+}
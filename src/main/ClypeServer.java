@@ -1,18 +1,43 @@
 package main;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import data.ClypeData;
+import data.Compression;
+import data.FrameCodec;
+import data.UserDirectory;
 
 /**
  * Class that runs Clype's internal server.
- * 
- * Communicates between one or more ClypeClients and provides the user data
- * 
+ *
+ * Accepts any number of ClypeClients and relays their data to every connected client
+ * through a {@link BroadcastHub}. Clients are either served by blocking I/O on a thread each
+ * or, when {@link #eventLoops} is set, by that many non-blocking {@link ClypeEventLoop}s.
+ *
+ * Every client's outgoing frames wait in an {@link OutboundQueue} bounded by
+ * {@link #maxQueuedBytes} and {@link #maxQueuedMillis}, handled by {@link #overflowPolicy} when a
+ * client reads too slowly. When a {@link MessageLog} is set, relayed messages and files are kept
+ * in it and replayed to clients that ask. While running, the hub's {@link ServerMetrics} are
+ * registered over JMX and, when {@link #metricsFile} is set, appended to it periodically. What the
+ * server does is written by a {@link ServerLogger} on its own thread, never by the threads relaying.
+ * Several servers can serve one cluster as the nodes of a {@link Federation}. The log can be
+ * streamed to standby servers by a {@link Replication}, and a server started as a standby with a
+ * {@link StandbyLink} copies its primary's log and only serves clients once promoted
+ *
  * @author Will Dunklin
  *
  */
@@ -21,44 +46,174 @@ public class ClypeServer {
 	 * The port the server is hosted on
 	 */
 	private int port;
-	/** 
+	/**
 	 * Boolean signifier showing if the connection is closed
 	 */
 	private boolean closeConnection;
 	/**
-	 * Data to be received from a client
+	 * The maximum number of clients served at once when virtual threads are unavailable
 	 */
-	private ClypeData dataToReceiveFromClient;
+	private int maxConnections;
 	/**
-	 * Data to be sent to a client
+	 * The number of non-blocking event loops, 0 to serve every client on its own thread
 	 */
-	private ClypeData dataToSendToClient;
+	private int eventLoops;
 	/**
-	 * The default port is 7000
+	 * The hub that relays data between all connected clients
+	 */
+	private BroadcastHub hub;
+	/**
+	 * Bit mask of the frame formats offered to clients
+	 */
+	private int formats;
+	/**
+	 * Bit mask of the compression codec ids accepted from clients, 0 to never compress
+	 */
+	private int compressions;
+	/**
+	 * The length a payload must reach to be compressed
+	 */
+	private int compressThreshold;
+	/**
+	 * The ids of every user that has connected, shared by every client's codec
+	 */
+	private UserDirectory users;
+	/**
+	 * The directory streamed file chunks are spooled to while being relayed
+	 */
+	private File spoolDirectory;
+	/**
+	 * The log relayed messages and files are kept in, null to keep none
+	 */
+	private MessageLog log;
+	/**
+	 * The file the server's metrics are appended to periodically, null to append them nowhere
+	 */
+	private File metricsFile;
+	/**
+	 * The number of milliseconds between lines appended to {@link #metricsFile}
+	 */
+	private long metricsMillis;
+	/**
+	 * Where what the server does is logged
+	 */
+	private ServerLogger logger;
+	/**
+	 * The other server nodes data is forwarded to, null if the server runs alone
+	 */
+	private Federation federation;
+	/**
+	 * What streams the log to standby servers, null if it is not streamed
+	 */
+	private Replication replication;
+	/**
+	 * The link to the primary this server is a standby of, null if it is not a standby
+	 */
+	private volatile StandbyLink standby;
+	/**
+	 * The socket accepting new clients for the thread per client engine
 	 */
-	private static final int defaultPort = 7000;
+	private ServerSocket sskt;
 	/**
-	 * Receives serialized data from ClypeClient
+	 * The channel accepting new clients for the event loop engine
 	 */
-	private ObjectInputStream inFromClient;
+	private ServerSocketChannel ssc;
 	/**
-	 * Sends serialized data to ClypeClient
+	 * The running event loops, null for the thread per client engine
 	 */
-	private ObjectOutputStream outToClient;
-	
+	private ClypeEventLoop[] loops;
+	/**
+	 * Runs the tasks writing to clients of the thread per client engine, null for the event loop engine
+	 */
+	private ExecutorService writers;
+	/**
+	 * What a client's outbound queue does when it overflows, one of the {@link OutboundQueue} policies
+	 */
+	private int overflowPolicy;
+	/**
+	 * The number of bytes queued for a client past which its queue overflows
+	 */
+	private long maxQueuedBytes;
+	/**
+	 * The number of milliseconds a frame may wait for a client before its queue overflows
+	 */
+	private long maxQueuedMillis;
+	/**
+	 * The size of each client socket's kernel send buffer, 0 to leave it to the OS. Frames in the
+	 * kernel can no longer be put behind urgent ones, so a small buffer keeps chat ahead of file
+	 * data on slow links, at the cost of throughput on links with long round trips
+	 */
+	private int sendBufferSize;
+	/**
+	 * The longest a frame written to a busy client is held back so it can be flushed with the frames
+	 * after it, in microseconds, 0 to flush every frame at once
+	 */
+	private long flushWindowMicros;
+	/**
+	 * The default port is 7000
+	 */
+	static final int defaultPort = 7000;
+	/**
+	 * The default maximum number of clients served at once is 1024
+	 */
+	private static final int defaultMaxConnections = 1024;
+
 	/**
 	 * Initializes ClypeServer instance variables
 	 * @param port The port the server is hosted on
-	 * @throws IllegalArgumentException If the port is invalid
+	 * @param maxConnections The maximum number of clients served at once by the fallback thread pool
+	 * @param eventLoops The number of non-blocking event loops, 0 to serve every client on its own thread
+	 * @throws IllegalArgumentException If the port, maxConnections or eventLoops is invalid
 	 */
-	public ClypeServer(int port) throws IllegalArgumentException {
-		if(port < 1024)
+	public ClypeServer(int port, int maxConnections, int eventLoops) throws IllegalArgumentException {
+		if(port < 1024 || maxConnections < 1 || eventLoops < 0)
 			throw new IllegalArgumentException("ClypeServer cannot be intitalized with that port");
 		this.port = port;
-		this.dataToSendToClient = null;
-		this.dataToReceiveFromClient = null;
-		this.inFromClient = null;
-		this.outToClient = null;
+		this.maxConnections = maxConnections;
+		this.eventLoops = eventLoops;
+		this.closeConnection = false;
+		this.formats = FrameCodec.allFormats;
+		this.compressions = 0;
+		this.compressThreshold = Compression.defaultThreshold;
+		this.users = new UserDirectory();
+		this.hub = new BroadcastHub(users);
+		this.spoolDirectory = new File(System.getProperty("java.io.tmpdir"), "clype-spool");
+		this.log = null;
+		this.metricsFile = null;
+		this.metricsMillis = ServerMetrics.defaultDumpMillis;
+		this.logger = new ServerLogger(System.out);
+		hub.setLogger(logger);
+		this.federation = null;
+		this.replication = null;
+		this.standby = null;
+		this.sskt = null;
+		this.ssc = null;
+		this.loops = null;
+		this.writers = null;
+		this.overflowPolicy = OutboundQueue.dropOldest;
+		this.maxQueuedBytes = OutboundQueue.defaultMaxBytes;
+		this.maxQueuedMillis = OutboundQueue.defaultMaxMillis;
+		this.sendBufferSize = 0;
+		this.flushWindowMicros = FlushPolicy.defaultMaxWindowMicros;
+	}
+
+	/**
+	 * Defaults {@link #eventLoops} to 0, serving every client on its own thread
+	 * @param port The port the server is hosted on
+	 * @param maxConnections The maximum number of clients served at once by the fallback thread pool
+	 * @throws IllegalArgumentException If the port or maxConnections is invalid
+	 */
+	public ClypeServer(int port, int maxConnections) throws IllegalArgumentException {
+		this(port, maxConnections, 0);
+	}
+
+	/**
+	 * Defaults {@link #maxConnections} to {@link #defaultMaxConnections}
+	 * @param port The port the server is hosted on
+	 * @throws IllegalArgumentException If the port is invalid
+	 */
+	public ClypeServer(int port) throws IllegalArgumentException {
+		this(port, defaultMaxConnections);
 	}
 
 	/**
@@ -67,91 +222,667 @@ public class ClypeServer {
 	public ClypeServer() {
 		this(defaultPort);
 	}
-	
+
 	/**
 	 * Main method called on start
+	 *
+	 * Takes an optional port followed by any of an engine, "nio" for one event loop per core or
+	 * "nio=N" for N event loops, "overflow=P" for the overflow policy of outbound queues (block,
+	 * dropOldest, dropNewest or disconnect), "queueBytes=N" and "queueMillis=N" for their thresholds,
+	 * the first also bounding what a link to another node of a federation may hold unwritten,
+	 * "sendBuffer=N" for the size of client sockets' send buffers, "flushWindow=N" for the
+	 * microseconds writes to busy clients may be held back to be batched, "compress=C" for the
+	 * payload compression accepted from clients (deflate or none), "compressMin=N" for the
+	 * length a payload must reach to be compressed, "log=D" to keep relayed messages and files in a
+	 * log in directory D, "logSegment=N" for the size of its segment files, "logRetainMillis=N" and
+	 * "logRetainBytes=N" for how long and how much of it is kept and "logSyncMillis=N" for how often
+	 * it is forced to disk, "metrics=F" to append the server's metrics to file F every
+	 * "metricsMillis=N" milliseconds, "events=F" to log what the server does to file F instead of
+	 * standard output or "events=none" to log nothing, "eventsSample=N" to log one in N messages,
+	 * "eventsRate=N" to log at most N records a second and "eventsBuffer=N" for the number of
+	 * records waiting to be written past which more are dropped, "peers=H:P,H:P" to join a
+	 * federation with the nodes at those hosts and ports and "node=N" for this node's id in it,
+	 * which must be given with peers and differ from every other node's, "secretFile=F" for a file
+	 * holding the secret the nodes share, "replication=M" to stream the log to standbys in mode M
+	 * (async or sync) and "replicationTimeout=N" for the milliseconds data waits for a standby in sync mode,
+	 * or "standby=H:P" to start as a standby of the primary at that host and port, copying its log,
+	 * and "promoteAfter=N" for the milliseconds the primary must be unreachable before this server
+	 * promotes itself and serves clients. Replication and standbys need a log, and they and
+	 * federations need a secret
 	 * @param args Command line arguments
 	 */
 	public static void main(String[] args) {
 		ClypeServer server;
-		if(args.length == 0) {
-			server = new ClypeServer();
-		} else {
+		int port = defaultPort;
+		int loops = 0;
+		if(args.length > 0) {
 			String[] part1 = args[0].split("@");
 			try {
-				server = new ClypeServer(Integer.parseInt(part1[0]));
+				port = Integer.parseInt(part1[0]);
 			} catch(NumberFormatException nfe) {
 				throw new NumberFormatException("Port entered incorrectly.");
 			}
 		}
+		int overflowPolicy = OutboundQueue.dropOldest;
+		long maxQueuedBytes = OutboundQueue.defaultMaxBytes;
+		long maxQueuedMillis = OutboundQueue.defaultMaxMillis;
+		int sendBufferSize = 0;
+		long flushWindowMicros = FlushPolicy.defaultMaxWindowMicros;
+		int compression = Compression.none;
+		int compressThreshold = Compression.defaultThreshold;
+		File logDirectory = null;
+		int logSegmentBytes = MessageLog.defaultSegmentBytes;
+		long logRetainMillis = 0;
+		long logRetainBytes = 0;
+		long logSyncMillis = MessageLog.defaultSyncMillis;
+		File metricsFile = null;
+		long metricsMillis = ServerMetrics.defaultDumpMillis;
+		String events = null;
+		int eventsSample = 1;
+		int eventsRate = 0;
+		int eventsBuffer = ServerLogger.defaultCapacity;
+		String peers = null;
+		File secretFile = null;
+		int node = 0;
+		int replicationMode = -1;
+		long replicationTimeout = Replication.defaultTimeoutMillis;
+		String primary = null;
+		long promoteAfter = 0;
+		for(int i = 1; i < args.length; i++) {
+			String[] part2 = args[i].split("=");
+			try {
+				if(part2[0].equals("nio"))
+					loops = part2.length == 1 ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(part2[1]);
+				else if(part2[0].equals("overflow") && part2.length == 2)
+					overflowPolicy = OutboundQueue.policyOf(part2[1]);
+				else if(part2[0].equals("queueBytes") && part2.length == 2)
+					maxQueuedBytes = Long.parseLong(part2[1]);
+				else if(part2[0].equals("queueMillis") && part2.length == 2)
+					maxQueuedMillis = Long.parseLong(part2[1]);
+				else if(part2[0].equals("sendBuffer") && part2.length == 2)
+					sendBufferSize = Integer.parseInt(part2[1]);
+				else if(part2[0].equals("flushWindow") && part2.length == 2)
+					flushWindowMicros = Long.parseLong(part2[1]);
+				else if(part2[0].equals("compress") && part2.length == 2)
+					compression = Compression.idOf(part2[1]);
+				else if(part2[0].equals("compressMin") && part2.length == 2)
+					compressThreshold = Integer.parseInt(part2[1]);
+				else if(part2[0].equals("log") && part2.length == 2)
+					logDirectory = new File(part2[1]);
+				else if(part2[0].equals("logSegment") && part2.length == 2)
+					logSegmentBytes = Integer.parseInt(part2[1]);
+				else if(part2[0].equals("logRetainMillis") && part2.length == 2)
+					logRetainMillis = Long.parseLong(part2[1]);
+				else if(part2[0].equals("logRetainBytes") && part2.length == 2)
+					logRetainBytes = Long.parseLong(part2[1]);
+				else if(part2[0].equals("logSyncMillis") && part2.length == 2)
+					logSyncMillis = Long.parseLong(part2[1]);
+				else if(part2[0].equals("metrics") && part2.length == 2)
+					metricsFile = new File(part2[1]);
+				else if(part2[0].equals("metricsMillis") && part2.length == 2)
+					metricsMillis = Long.parseLong(part2[1]);
+				else if(part2[0].equals("events") && part2.length == 2)
+					events = part2[1];
+				else if(part2[0].equals("eventsSample") && part2.length == 2)
+					eventsSample = Integer.parseInt(part2[1]);
+				else if(part2[0].equals("eventsRate") && part2.length == 2)
+					eventsRate = Integer.parseInt(part2[1]);
+				else if(part2[0].equals("eventsBuffer") && part2.length == 2)
+					eventsBuffer = Integer.parseInt(part2[1]);
+				else if(part2[0].equals("peers") && part2.length == 2)
+					peers = part2[1];
+				else if(part2[0].equals("secretFile") && part2.length == 2)
+					secretFile = new File(part2[1]);
+				else if(part2[0].equals("node") && part2.length == 2)
+					node = Integer.parseInt(part2[1]);
+				else if(part2[0].equals("replication") && part2.length == 2)
+					replicationMode = Replication.modeOf(part2[1]);
+				else if(part2[0].equals("replicationTimeout") && part2.length == 2)
+					replicationTimeout = Long.parseLong(part2[1]);
+				else if(part2[0].equals("standby") && part2.length == 2)
+					primary = part2[1];
+				else if(part2[0].equals("promoteAfter") && part2.length == 2)
+					promoteAfter = Long.parseLong(part2[1]);
+				else
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+			} catch(NumberFormatException nfe) {
+				throw new NumberFormatException(part2[0] + " entered incorrectly.");
+			}
+		}
+		server = new ClypeServer(port, defaultMaxConnections, loops);
+		server.setOverflowPolicy(overflowPolicy, maxQueuedBytes, maxQueuedMillis);
+		server.setSendBufferSize(sendBufferSize);
+		server.setFlushWindowMicros(flushWindowMicros);
+		server.setCompression(compression == Compression.none ? 0 : 1 << compression, compressThreshold);
+		server.setMetricsFile(metricsFile, metricsMillis);
+		try {
+			if(events == null)
+				server.setLogger(new ServerLogger(System.out, false, eventsBuffer, eventsSample, eventsRate));
+			else if(events.equals("none"))
+				server.setLogger(new ServerLogger(null));
+			else
+				server.setLogger(new ServerLogger(new FileOutputStream(events, true), true, eventsBuffer, eventsSample, eventsRate));
+		} catch(IOException ioe) {
+			System.err.println("An error occurred. " + ioe.getMessage());
+			return;
+		}
+		if(logDirectory != null) {
+			try {
+				server.setLog(new MessageLog(logDirectory, logSegmentBytes, logRetainMillis, logRetainBytes, logSyncMillis));
+			} catch(IOException ioe) {
+				System.err.println("An error occurred. " + ioe.getMessage());
+				return;
+			}
+		}
+		if(secretFile != null) {
+			try {
+				server.setSecret(new String(Files.readAllBytes(secretFile.toPath()), StandardCharsets.UTF_8).trim());
+			} catch(IOException ioe) {
+				System.err.println("An error occurred. " + ioe.getMessage());
+				return;
+			}
+		}
+		if((peers != null || replicationMode >= 0 || primary != null) && secretFile == null)
+			throw new IllegalArgumentException("Federations, replication and standbys need secretFile=F");
+		if(peers != null && node == 0)
+			throw new IllegalArgumentException("Federations need node=N");
+		if(peers != null) {
+			Federation federation = new Federation(server.getHub(), node);
+			federation.setMaxQueuedBytes(maxQueuedBytes);
+			for(String peer : peers.split(",")) {
+				String[] hostPort = peer.split(":");
+				if(hostPort.length != 2)
+					throw new IllegalArgumentException("Peers must be given as host:port");
+				try {
+					federation.addPeer(hostPort[0], Integer.parseInt(hostPort[1]));
+				} catch(NumberFormatException nfe) {
+					throw new NumberFormatException("peers entered incorrectly.");
+				}
+			}
+			server.setFederation(federation);
+		}
+		if((replicationMode >= 0 || primary != null) && logDirectory == null)
+			throw new IllegalArgumentException("Replication and standbys need log=D");
+		if(replicationMode >= 0)
+			server.setReplication(new Replication(server.getHub(), replicationMode, replicationTimeout));
+		if(primary != null) {
+			String[] hostPort = primary.split(":");
+			if(hostPort.length != 2)
+				throw new IllegalArgumentException("The primary must be given as host:port");
+			try {
+				server.setStandby(new StandbyLink(hostPort[0], Integer.parseInt(hostPort[1]), port, server.getLog(),
+						server.getHub().getSecret(), promoteAfter));
+			} catch(NumberFormatException nfe) {
+				throw new NumberFormatException("standby entered incorrectly.");
+			}
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(server.getLogger()::close));
 		server.start();
 	}
-	
+
 	/**
-	 * Starts the server
+	 * Starts the server and accepts clients until {@link #stop()} is called, then closes the log
+	 * and stops publishing metrics and logging. A standby first copies its primary's log until it
+	 * is promoted, and only then accepts clients
 	 */
 	public void start() {
-		System.out.println("Starting server");
+		logger.start();
+		logger.log(ServerLogger.started, null, -1, 0, (eventLoops > 0 ? "nio=" + eventLoops : "threads") + " port=" + port
+				+ (federation != null ? " node=" + federation.getNode() : "") + (standby != null ? " standby" : ""));
+		ServerMetrics metrics = hub.getMetrics();
+		metrics.register(port);
+		if(metricsFile != null)
+			metrics.dumpTo(metricsFile, metricsMillis);
 		try {
-			ServerSocket sskt = new ServerSocket(port);
-			System.out.println("Waiting to accept client");
-			Socket client = sskt.accept();
-			System.out.println("Accepted client");
-			outToClient = new ObjectOutputStream(client.getOutputStream());
-			inFromClient = new ObjectInputStream(client.getInputStream());
+			StandbyLink standby = this.standby;
+			if(standby != null) {
+				standby.start();
+				try {
+					if(!standby.awaitPromotion() || closeConnection)
+						return;
+				} catch(InterruptedException ie) {
+					return;
+				}
+				logger.log(ServerLogger.promoted, null, -1, 0, standby.getPrimary() + " applied=" + standby.getApplied());
+			}
+			if(federation != null)
+				federation.start();
+			if(replication != null)
+				replication.start();
+			if(eventLoops > 0)
+				startEventLoops();
+			else
+				startThreadPerClient();
+		} finally {
+			if(federation != null)
+				federation.close();
+			if(replication != null)
+				replication.close();
+			metrics.close();
+			if(log != null)
+				log.close();
+			logger.log(ServerLogger.stopped, null, -1, 0, null);
+			logger.close();
+		}
+	}
+
+	/**
+	 * Serves every client with blocking I/O on its own thread
+	 */
+	private void startThreadPerClient() {
+		ExecutorService clientThreads = newClientExecutor(maxConnections);
+		writers = newClientExecutor(maxConnections);
+		try {
+			sskt = new ServerSocket(port);
 			while(!closeConnection) {
-				receiveData();
-				sendData();
+				Socket client = sskt.accept();
+				if(sendBufferSize > 0)
+					client.setSendBufferSize(sendBufferSize);
+				logger.log(ServerLogger.accepted, null, -1, 0, client.getRemoteSocketAddress());
+				ServerSideClientIO clientIO = new ServerSideClientIO(this, client);
+				hub.add(clientIO);
+				try {
+					clientThreads.execute(clientIO);
+				} catch(RejectedExecutionException ree) {
+					System.err.println("Server is full, refusing client.");
+					hub.remove(clientIO);
+					client.close();
+				}
 			}
-			sskt.close();
-			client.close();
-			outToClient.close();
-			inFromClient.close();
 		} catch (IOException ioe) {
-			System.err.println("An error occurred.");
+			if(!closeConnection)
+				System.err.println("An error occurred.");
+		} finally {
+			clientThreads.shutdownNow();
+			hub.closeAll();
+			writers.shutdownNow();
 		}
 	}
-	
+
 	/**
-	 * Receives data from client
+	 * Serves every client with non-blocking I/O, spreading accepted clients across the event loops
 	 */
-	public void receiveData() {
+	private void startEventLoops() {
 		try {
-			dataToReceiveFromClient = (ClypeData) inFromClient.readObject();
-			dataToSendToClient = dataToReceiveFromClient;
-			
-			System.out.println(dataToReceiveFromClient.toString());
-			
-			if(dataToReceiveFromClient.getType() == ClypeData.exit)
-				closeConnection = true;
-		} catch (ClassNotFoundException cnfe) {
-			System.err.println("Class was not found.");
+			ssc = ServerSocketChannel.open();
+			ssc.bind(new InetSocketAddress(port), 1024);
+			loops = new ClypeEventLoop[eventLoops];
+			for(int i = 0; i < loops.length; i++) {
+				loops[i] = new ClypeEventLoop(this);
+				loops[i].start("clype-event-loop-" + i);
+			}
+			int next = 0;
+			while(!closeConnection) {
+				SocketChannel client = ssc.accept();
+				client.socket().setTcpNoDelay(true);
+				if(sendBufferSize > 0)
+					client.socket().setSendBufferSize(sendBufferSize);
+				logger.log(ServerLogger.accepted, null, -1, 0, client.socket().getRemoteSocketAddress());
+				loops[next].register(client);
+				next = (next + 1) % loops.length;
+			}
 		} catch (IOException ioe) {
-			if(ioe.getMessage().equals("Connection reset"))
-				closeConnection = true;
-			System.err.println("An error occurred.");
+			if(!closeConnection)
+				System.err.println("An error occurred.");
+		} finally {
+			if(loops != null) {
+				for(ClypeEventLoop loop : loops) {
+					if(loop != null)
+						loop.stop();
+				}
+			}
+			hub.closeAll();
 		}
 	}
-	
+
 	/**
-	 * Sends data to client
+	 * Stops accepting clients and disconnects every connected client
 	 */
-	public void sendData() {
+	public void stop() {
+		closeConnection = true;
+		StandbyLink standby = this.standby;
+		if(standby != null)
+			standby.close();
 		try {
-			outToClient.writeObject(dataToSendToClient);
+			if(sskt != null)
+				sskt.close();
+			if(ssc != null)
+				ssc.close();
 		} catch (IOException ioe) {
-			System.err.println("An error occurred. "+ioe.getMessage());
+			System.err.println("An error occurred.");
 		}
 	}
 
+	/**
+	 * Creates the executor that runs one {@link ServerSideClientIO} per client.
+	 *
+	 * Uses one virtual thread per client when the running JDK supports them,
+	 * otherwise a thread pool that refuses clients past maxConnections
+	 * @param maxConnections The maximum number of clients served by the fallback pool
+	 * @return The executor for client connections
+	 */
+	static ExecutorService newClientExecutor(int maxConnections) {
+		try {
+			Method virtual = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) virtual.invoke(null);
+		} catch(ReflectiveOperationException roe) {
+			return new ThreadPoolExecutor(0, maxConnections, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+		}
+	}
+
+	/**
+	 * Creates the outbound queue of a newly connected client
+	 * @return An empty queue with the server's overflow policy and thresholds
+	 */
+	OutboundQueue newOutboundQueue() {
+		return new OutboundQueue(overflowPolicy, maxQueuedBytes, maxQueuedMillis, flushWindowMicros);
+	}
+
+	/**
+	 * Gets the executor running the tasks writing to clients of the thread per client engine
+	 * @return writers
+	 */
+	ExecutorService getWriters() {
+		return writers;
+	}
+
+	/**
+	 * Sets how clients that read too slowly are handled, applied to clients connecting afterwards
+	 * @param overflowPolicy One of the {@link OutboundQueue} policies
+	 * @param maxQueuedBytes The number of bytes queued for a client past which its queue overflows
+	 * @param maxQueuedMillis The number of milliseconds a frame may wait before its queue overflows
+	 * @throws IllegalArgumentException If the policy is unknown or a threshold is not positive
+	 */
+	public void setOverflowPolicy(int overflowPolicy, long maxQueuedBytes, long maxQueuedMillis) throws IllegalArgumentException {
+		new OutboundQueue(overflowPolicy, maxQueuedBytes, maxQueuedMillis);
+		this.overflowPolicy = overflowPolicy;
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.maxQueuedMillis = maxQueuedMillis;
+	}
+
+	/**
+	 * Sets the size of each client socket's kernel send buffer, applied to clients connecting afterwards
+	 * @param sendBufferSize The size in bytes, 0 to leave it to the OS
+	 * @throws IllegalArgumentException If the size is negative
+	 */
+	public void setSendBufferSize(int sendBufferSize) throws IllegalArgumentException {
+		if(sendBufferSize < 0)
+			throw new IllegalArgumentException("The send buffer size cannot be negative");
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * Gets the size of each client socket's kernel send buffer
+	 * @return sendBufferSize, 0 if left to the OS
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Sets the longest a frame written to a busy client is held back to be flushed with the frames after it,
+	 * applied to clients connecting afterwards
+	 * @param flushWindowMicros The window in microseconds, 0 to flush every frame at once
+	 * @throws IllegalArgumentException If the window is negative
+	 */
+	public void setFlushWindowMicros(long flushWindowMicros) throws IllegalArgumentException {
+		if(flushWindowMicros < 0)
+			throw new IllegalArgumentException("The flush window cannot be negative");
+		this.flushWindowMicros = flushWindowMicros;
+	}
+
+	/**
+	 * Gets the longest a frame written to a busy client is held back to be flushed with the frames after it
+	 * @return flushWindowMicros
+	 */
+	public long getFlushWindowMicros() {
+		return flushWindowMicros;
+	}
+
+	/**
+	 * Gets what a client's outbound queue does when it overflows
+	 * @return overflowPolicy
+	 */
+	public int getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Gets the number of bytes queued for a client past which its queue overflows
+	 * @return maxQueuedBytes
+	 */
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	/**
+	 * Gets the number of milliseconds a frame may wait for a client before its queue overflows
+	 * @return maxQueuedMillis
+	 */
+	public long getMaxQueuedMillis() {
+		return maxQueuedMillis;
+	}
+
+	/**
+	 * Gets the hub that relays data between connected clients
+	 * @return hub
+	 */
+	public BroadcastHub getHub() {
+		return hub;
+	}
+
+	/**
+	 * Gets the bit mask of the frame formats offered to clients
+	 * @return formats
+	 */
+	public int getFormats() {
+		return formats;
+	}
+
+	/**
+	 * Sets the payload compression accepted from clients, applied to clients connecting afterwards
+	 * @param compressions Bit mask of the compression codec ids accepted, 0 to never compress
+	 * @param compressThreshold The length a payload must reach to be compressed
+	 * @throws IllegalArgumentException If the threshold is not positive
+	 */
+	public void setCompression(int compressions, int compressThreshold) throws IllegalArgumentException {
+		if(compressThreshold < 1)
+			throw new IllegalArgumentException("The compression threshold must be positive");
+		this.compressions = compressions;
+		this.compressThreshold = compressThreshold;
+	}
+
+	/**
+	 * Gets the bit mask of the compression codec ids accepted from clients
+	 * @return compressions, 0 if payloads are never compressed
+	 */
+	public int getCompressions() {
+		return compressions;
+	}
+
+	/**
+	 * Gets the length a payload must reach to be compressed
+	 * @return compressThreshold
+	 */
+	public int getCompressThreshold() {
+		return compressThreshold;
+	}
+
+	/**
+	 * Makes the codec of a client that completed its handshake
+	 * @param format The frame format agreed with the client
+	 * @param compression The compression codec id agreed with the client, {@link Compression#none} for none
+	 * @return The codec, sharing the server's user ids
+	 */
+	FrameCodec newCodec(int format, int compression) {
+		FrameCodec codec = new FrameCodec(format, users, true);
+		if(compression != Compression.none)
+			codec.setCompression(new Compression(Compression.codecOf(compression), compressThreshold, Compression.defaultMaxRatio));
+		return codec;
+	}
+
+	/**
+	 * Gets the ids of every user that has connected
+	 * @return users
+	 */
+	public UserDirectory getUsers() {
+		return users;
+	}
+
+	/**
+	 * Gets the directory streamed file chunks are spooled to
+	 * @return spoolDirectory
+	 */
+	public File getSpoolDirectory() {
+		return spoolDirectory;
+	}
+
+	/**
+	 * Sets the directory streamed file chunks are spooled to
+	 * @param spoolDirectory The spool directory
+	 */
+	public void setSpoolDirectory(File spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	/**
+	 * Gets the log relayed messages and files are kept in
+	 * @return log, null if none are kept
+	 */
+	public MessageLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Sets the log relayed messages and files are kept in, before the server is started
+	 * @param log The log, null to keep none
+	 */
+	public void setLog(MessageLog log) {
+		this.log = log;
+		hub.setLog(log);
+	}
+
+	/**
+	 * Sets the file the server's metrics are appended to periodically, before the server is started
+	 * @param metricsFile The file, null to append them nowhere
+	 * @param metricsMillis The number of milliseconds between lines
+	 * @throws IllegalArgumentException If the interval is not positive
+	 */
+	public void setMetricsFile(File metricsFile, long metricsMillis) throws IllegalArgumentException {
+		if(metricsMillis < 1)
+			throw new IllegalArgumentException("The metrics interval must be positive");
+		this.metricsFile = metricsFile;
+		this.metricsMillis = metricsMillis;
+	}
+
+	/**
+	 * Gets the file the server's metrics are appended to periodically
+	 * @return metricsFile, null if they are appended nowhere
+	 */
+	public File getMetricsFile() {
+		return metricsFile;
+	}
+
+	/**
+	 * Gets the other server nodes data is forwarded to
+	 * @return federation, null if the server runs alone
+	 */
+	public Federation getFederation() {
+		return federation;
+	}
+
+	/**
+	 * Sets the secret other servers prove to link to this one, and this one proves to link to
+	 * them, before the server is started
+	 * @param secret The secret, null to accept no links
+	 */
+	public void setSecret(String secret) {
+		hub.setSecret(secret);
+	}
+
+	/**
+	 * Sets the other server nodes data is forwarded to, before the server is started
+	 * @param federation The federation, null to run alone
+	 */
+	public void setFederation(Federation federation) {
+		this.federation = federation;
+		hub.setFederation(federation);
+	}
+
+	/**
+	 * Gets what streams the log to standby servers
+	 * @return replication, null if the log is not streamed
+	 */
+	public Replication getReplication() {
+		return replication;
+	}
+
+	/**
+	 * Sets what streams the log to standby servers, after the log and before the server is started
+	 * @param replication The replication, null to stream to none
+	 */
+	public void setReplication(Replication replication) {
+		this.replication = replication;
+		hub.setReplication(replication);
+	}
+
+	/**
+	 * Gets the link to the primary this server is a standby of
+	 * @return standby, null if the server is not a standby
+	 */
+	public StandbyLink getStandby() {
+		return standby;
+	}
+
+	/**
+	 * Sets the link to the primary this server is a standby of, before the server is started
+	 * @param standby The link, null to serve clients at once
+	 */
+	public void setStandby(StandbyLink standby) {
+		this.standby = standby;
+	}
+
+	/**
+	 * Gets where what the server does is logged
+	 * @return logger
+	 */
+	public ServerLogger getLogger() {
+		return logger;
+	}
+
+	/**
+	 * Sets where what the server does is logged, before the server is started
+	 * @param logger The logger
+	 */
+	public void setLogger(ServerLogger logger) {
+		this.logger = logger;
+		hub.setLogger(logger);
+	}
+
 	/**
 	 * Gets the port the server is hosted on
-	 * @return port  
+	 * @return port
 	 */
 	public int getPort() {
 		return this.port;
 	}
-	
+
+	/**
+	 * Gets the maximum number of clients served at once by the fallback thread pool
+	 * @return maxConnections
+	 */
+	public int getMaxConnections() {
+		return this.maxConnections;
+	}
+
+	/**
+	 * Gets the number of non-blocking event loops, 0 when every client is served on its own thread
+	 * @return eventLoops
+	 */
+	public int getEventLoops() {
+		return this.eventLoops;
+	}
+
 	/**
 	 * Generates unique hash based on states of instance variables
 	 */
@@ -160,14 +891,14 @@ public class ClypeServer {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + (closeConnection ? 1231 : 1237);
-		result = prime * result + ((dataToReceiveFromClient == null) ? 0 : dataToReceiveFromClient.hashCode());
-		result = prime * result + ((dataToSendToClient == null) ? 0 : dataToSendToClient.hashCode());
+		result = prime * result + eventLoops;
+		result = prime * result + maxConnections;
 		result = prime * result + port;
 		return result;
 	}
 
 	/**
-	 * Checks if instance variables are equal to the tested object 
+	 * Checks if instance variables are equal to the tested object
 	 */
 	@Override
 	public boolean equals(Object obj) {
@@ -180,15 +911,9 @@ public class ClypeServer {
 		ClypeServer other = (ClypeServer) obj;
 		if (closeConnection != other.closeConnection)
 			return false;
-		if (dataToReceiveFromClient == null) {
-			if (other.dataToReceiveFromClient != null)
-				return false;
-		} else if (!dataToReceiveFromClient.equals(other.dataToReceiveFromClient))
+		if (eventLoops != other.eventLoops)
 			return false;
-		if (dataToSendToClient == null) {
-			if (other.dataToSendToClient != null)
-				return false;
-		} else if (!dataToSendToClient.equals(other.dataToSendToClient))
+		if (maxConnections != other.maxConnections)
 			return false;
 		if (port != other.port)
 			return false;
@@ -200,8 +925,9 @@ public class ClypeServer {
 	 */
 	@Override
 	public String toString() {
-		return "ClypeServer [port=" + port + ", closeConnection=" + closeConnection + ", dataToReceiveFromClient=" + 
-				dataToReceiveFromClient + ", dataToSendToClient=" + dataToSendToClient + ", hashCode()=" + hashCode() + "]";
+		return "ClypeServer [port=" + port + ", closeConnection=" + closeConnection + ", maxConnections=" +
+				maxConnections + ", eventLoops=" + eventLoops + ", connectedClients=" + hub.size() + ", hashCode()=" +
+				hashCode() + "]";
 	}
-	
+
 }
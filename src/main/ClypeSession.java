@@ -0,0 +1,368 @@
+package main;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import data.ClypeData;
+import data.FileChunkClypeData;
+import data.FileChunkReader;
+import data.MessageClypeData;
+
+/**
+ * One logical Clype user, such as a bot, sending under its own user name over a shared
+ * {@link ClypeConnection}.
+ *
+ * Every send returns a CompletableFuture instead of blocking. Everything the server relays is
+ * delivered to the session's listeners and to the futures returned by {@link #receive()}. Opening
+ * and closing a session costs no threads and no network traffic
+ *
+ * @author Will Dunklin
+ *
+ */
+public class ClypeSession {
+	/**
+	 * The connection this session sends over
+	 */
+	private ClypeConnection connection;
+	/**
+	 * The session's user name
+	 */
+	private String userName;
+	/**
+	 * The largest number of bytes in one chunk of a sent file
+	 */
+	private int fileChunkSize;
+	/**
+	 * Listeners for everything received by this session
+	 */
+	private CopyOnWriteArrayList<ClypeListener> listeners;
+	/**
+	 * Futures waiting for the next received data
+	 */
+	private ConcurrentLinkedQueue<CompletableFuture<ClypeData>> receivers;
+	/**
+	 * Boolean signifier showing if the session is closed
+	 */
+	private volatile boolean closeConnection;
+
+	/**
+	 * Initializes ClypeSession instance variables, sessions are opened by {@link ClypeConnection#openSession(String)}
+	 * @param connection The connection this session sends over
+	 * @param userName The session's user name
+	 * @throws IllegalArgumentException If the user name is null
+	 */
+	ClypeSession(ClypeConnection connection, String userName) throws IllegalArgumentException {
+		if(userName == null)
+			throw new IllegalArgumentException("The ClypeSession cannot be initialized without a user name");
+		this.connection = connection;
+		this.userName = userName;
+		this.fileChunkSize = FileChunkReader.defaultChunkSize;
+		this.listeners = new CopyOnWriteArrayList<ClypeListener>();
+		this.receivers = new ConcurrentLinkedQueue<CompletableFuture<ClypeData>>();
+		this.closeConnection = false;
+	}
+
+	/**
+	 * Sends a text message, encrypted like ClypeClient's
+	 * @param message The message
+	 * @return A future completing once the message has been written to the socket
+	 */
+	public CompletableFuture<Void> sendMessage(String message) {
+		return send(new MessageClypeData(userName, message, connection.getKey(), ClypeData.text));
+	}
+
+	/**
+	 * Sends a text message to the members of a room, as #ROOM MESSAGE does
+	 * @param room The name of the room
+	 * @param message The message
+	 * @return A future completing once the message has been written to the socket
+	 */
+	public CompletableFuture<Void> sendMessage(String room, String message) {
+		MessageClypeData data = new MessageClypeData(userName, message, connection.getKey(), ClypeData.text);
+		data.setRoom(room);
+		return send(data);
+	}
+
+	/**
+	 * Joins a room, as JOIN ROOM does, answered as described by {@link RoomIndex}
+	 * @param room The name of the room
+	 * @return A future completing once the request has been written to the socket
+	 */
+	public CompletableFuture<Void> joinRoom(String room) {
+		return send(new MessageClypeData(userName, "join " + room, ClypeData.rooms));
+	}
+
+	/**
+	 * Leaves a room, as LEAVE ROOM does
+	 * @param room The name of the room
+	 * @return A future completing once the request has been written to the socket
+	 */
+	public CompletableFuture<Void> leaveRoom(String room) {
+		return send(new MessageClypeData(userName, "leave " + room, ClypeData.rooms));
+	}
+
+	/**
+	 * Asks which rooms this session is in, as ROOMS does
+	 * @return A future completing once the request has been written to the socket
+	 */
+	public CompletableFuture<Void> listRooms() {
+		return send(new MessageClypeData(userName, "list", ClypeData.rooms));
+	}
+
+	/**
+	 * Asks the server to relay only the data a filter passes, as FILTER does, answered with the
+	 * filter in place or why it was refused
+	 * @param filter The filter, written as described by {@link SubscriptionFilter}, or "clear" to relay every data
+	 * @return A future completing once the request has been written to the socket
+	 */
+	public CompletableFuture<Void> filter(String filter) {
+		return send(new MessageClypeData(userName, filter, ClypeData.filter));
+	}
+
+	/**
+	 * Asks for the list of users present, answered with a snapshot as described by {@link PresenceRegistry}
+	 * @return A future completing once the request has been written to the socket
+	 */
+	public CompletableFuture<Void> listUsers() {
+		return send(new MessageClypeData(userName, "snapshot", ClypeData.list));
+	}
+
+	/**
+	 * Asks for the list of users present and then every join and leave as it happens, as the first LISTUSERS does.
+	 * {@link PresenceRegistry#apply(java.util.Collection, long, ClypeData)} keeps a copy of the list up to date from them
+	 * @return A future completing once the request has been written to the socket
+	 */
+	public CompletableFuture<Void> subscribeUsers() {
+		return send(new MessageClypeData(userName, "subscribe", ClypeData.list));
+	}
+
+	/**
+	 * Asks which users joined or left since a version of the list, as later LISTUSERS do
+	 * @param version The version of the list already held
+	 * @return A future completing once the request has been written to the socket
+	 */
+	public CompletableFuture<Void> listUsersSince(long version) {
+		return send(new MessageClypeData(userName, "since " + version, ClypeData.list));
+	}
+
+	/**
+	 * Asks the server to send again the newest messages and files it has logged, as REPLAY N does
+	 * @param count The number of messages and files
+	 * @return A future completing once the request has been written to the socket
+	 */
+	public CompletableFuture<Void> replayLast(int count) {
+		return send(new MessageClypeData(userName, "last " + count, ClypeData.replay));
+	}
+
+	/**
+	 * Asks the server to send again every message and file it has logged since a time, as REPLAY SINCE T does
+	 * @param timestamp The time, in epoch milliseconds
+	 * @return A future completing once the request has been written to the socket
+	 */
+	public CompletableFuture<Void> replaySince(long timestamp) {
+		return send(new MessageClypeData(userName, "since " + timestamp, ClypeData.replay));
+	}
+
+	/**
+	 * Asks the server for the messages and files it has logged between two times, as QUERY T1 T2 USER does
+	 * @param userName The name of the user whose messages and files are wanted, null for every user's
+	 * @param from The earliest time, in epoch milliseconds
+	 * @param to The latest time, in epoch milliseconds
+	 * @return A future completing once the request has been written to the socket
+	 */
+	public CompletableFuture<Void> query(String userName, long from, long to) {
+		return send(new MessageClypeData(this.userName, "from " + from + " to " + to + (userName == null ? "" : " user " + userName),
+				ClypeData.query));
+	}
+
+	/**
+	 * Asks the server for its metrics, as STATS does
+	 * @param connections True for the counters of every connected client, false for the server's totals
+	 * @return A future completing once the request has been written to the socket
+	 */
+	public CompletableFuture<Void> stats(boolean connections) {
+		return send(new MessageClypeData(userName, connections ? "connections" : "", ClypeData.stats));
+	}
+
+	/**
+	 * Streams a file in encrypted chunks of at most {@link #fileChunkSize} bytes. Each chunk is read
+	 * once the previous one has been written, so only one chunk of the file is held at a time
+	 * @param fileName The name of the file being sent
+	 * @return A future completing once the last chunk has been written to the socket
+	 */
+	public CompletableFuture<Void> sendFile(String fileName) {
+		FileChunkReader reader;
+		try {
+			reader = new FileChunkReader(userName, fileName, connection.getKey(), fileChunkSize);
+		} catch(IOException ioe) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(ioe);
+			return failed;
+		}
+		return sendChunks(reader).whenComplete((result, error) -> {
+			try {
+				reader.close();
+			} catch(IOException ioe) {
+				System.err.println("An error occurred.");
+			}
+		});
+	}
+
+	/**
+	 * Sends the remaining chunks of a file one after another
+	 * @param reader The reader of the file
+	 * @return A future completing once the last chunk has been written to the socket
+	 */
+	private CompletableFuture<Void> sendChunks(FileChunkReader reader) {
+		FileChunkClypeData chunk;
+		try {
+			chunk = reader.next();
+		} catch(IOException ioe) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(ioe);
+			return failed;
+		}
+		if(chunk == null)
+			return CompletableFuture.completedFuture(null);
+		return send(chunk).thenCompose(sent -> sendChunks(reader));
+	}
+
+	/**
+	 * Sends data under this session's user name
+	 * @param data The data, whose user name must be this session's
+	 * @return A future completing once the data has been written to the socket
+	 * @throws IllegalArgumentException If the data is an exit or carries another user name
+	 */
+	public CompletableFuture<Void> send(ClypeData data) throws IllegalArgumentException {
+		if(!userName.equals(data.getUserName()))
+			throw new IllegalArgumentException("Data must carry the session's user name");
+		if(closeConnection) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(new IOException("Session closed"));
+			return failed;
+		}
+		return connection.send(data);
+	}
+
+	/**
+	 * Waits for the next data received by this session. Data received while nobody is waiting is
+	 * only given to listeners
+	 * @return A future completing with the next received data, still encrypted
+	 */
+	public CompletableFuture<ClypeData> receive() {
+		CompletableFuture<ClypeData> next = new CompletableFuture<ClypeData>();
+		receivers.add(next);
+		if(closeConnection && receivers.remove(next))
+			next.completeExceptionally(new IOException("Session closed"));
+		return next;
+	}
+
+	/**
+	 * Adds a listener for everything received by this session
+	 * @param listener The listener
+	 */
+	public void addListener(ClypeListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener
+	 * @param listener The listener
+	 */
+	public void removeListener(ClypeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Hands received data to the listeners and every waiting future, called on the connection's listener thread
+	 * @param data The received data
+	 */
+	void deliver(ClypeData data) {
+		for(ClypeListener listener : listeners)
+			ClypeConnection.deliver(listener, data);
+		CompletableFuture<ClypeData> next;
+		while((next = receivers.poll()) != null)
+			next.complete(data);
+	}
+
+	/**
+	 * Tells the listeners and waiting futures that the connection has closed
+	 * @param cause The error that closed the connection, null if it was closed normally
+	 */
+	void connectionClosed(IOException cause) {
+		closeConnection = true;
+		for(ClypeListener listener : listeners)
+			listener.onClose(cause);
+		failReceivers(cause == null ? new IOException("Connection closed") : cause);
+	}
+
+	/**
+	 * Fails every waiting future
+	 * @param cause The reason
+	 */
+	private void failReceivers(IOException cause) {
+		CompletableFuture<ClypeData> next;
+		while((next = receivers.poll()) != null)
+			next.completeExceptionally(cause);
+	}
+
+	/**
+	 * Closes the session, leaving the connection open for its other sessions
+	 */
+	public void close() {
+		if(closeConnection)
+			return;
+		closeConnection = true;
+		connection.removeSession(this);
+		for(ClypeListener listener : listeners)
+			listener.onClose(null);
+		failReceivers(new IOException("Session closed"));
+	}
+
+	/**
+	 * Sets the largest number of bytes in one chunk of a sent file
+	 * @param fileChunkSize The chunk size
+	 * @throws IllegalArgumentException If the chunk size is not between 1 and {@link FileChunkReader#maxChunkSize}
+	 */
+	public void setFileChunkSize(int fileChunkSize) throws IllegalArgumentException {
+		if(fileChunkSize < 1 || fileChunkSize > FileChunkReader.maxChunkSize)
+			throw new IllegalArgumentException("Chunk size must be between 1 and " + FileChunkReader.maxChunkSize);
+		this.fileChunkSize = fileChunkSize;
+	}
+
+	/**
+	 * Checks whether the session is closed
+	 * @return closeConnection
+	 */
+	public boolean isClosed() {
+		return closeConnection;
+	}
+
+	/**
+	 * Gets the session's user name
+	 * @return userName
+	 */
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * Gets the connection this session sends over
+	 * @return connection
+	 */
+	public ClypeConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "ClypeSession [userName=" + userName + ", connection=" + connection.getUserName() + ", closeConnection="
+				+ closeConnection + "]";
+	}
+
+}
@@ -0,0 +1,112 @@
+package main;
+
+/**
+ * What one client has sent and been sent since it connected.
+ *
+ * Each pair of counters has a single writer, the thread receiving from the client for the
+ * counters in and the thread writing to it for the counters out, so they are plain volatile
+ * fields and counting costs no more than a write to memory
+ *
+ * @author Will Dunklin
+ *
+ */
+public class ConnectionStats {
+	/**
+	 * The number of frames received from the client
+	 */
+	private volatile long messagesIn;
+	/**
+	 * The number of bytes received from the client, frame headers included
+	 */
+	private volatile long bytesIn;
+	/**
+	 * The number of frames written to the client
+	 */
+	private volatile long messagesOut;
+	/**
+	 * The number of bytes written to the client, frame headers included
+	 */
+	private volatile long bytesOut;
+	/**
+	 * The time the client connected, in epoch milliseconds
+	 */
+	private long connectedAt;
+
+	/**
+	 * Initializes ConnectionStats instance variables for a client connecting now
+	 */
+	public ConnectionStats() {
+		this.messagesIn = 0;
+		this.bytesIn = 0;
+		this.messagesOut = 0;
+		this.bytesOut = 0;
+		this.connectedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Counts a frame received from the client, only called by the thread receiving from it
+	 * @param bytes The length of the frame
+	 */
+	void received(long bytes) {
+		messagesIn++;
+		bytesIn += bytes;
+	}
+
+	/**
+	 * Counts a frame written to the client, only called by the thread writing to it
+	 * @param bytes The length of the frame
+	 */
+	void sent(long bytes) {
+		messagesOut++;
+		bytesOut += bytes;
+	}
+
+	/**
+	 * Gets the number of frames received from the client
+	 * @return messagesIn
+	 */
+	public long getMessagesIn() {
+		return messagesIn;
+	}
+
+	/**
+	 * Gets the number of bytes received from the client
+	 * @return bytesIn
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * Gets the number of frames written to the client
+	 * @return messagesOut
+	 */
+	public long getMessagesOut() {
+		return messagesOut;
+	}
+
+	/**
+	 * Gets the number of bytes written to the client
+	 * @return bytesOut
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * Gets the time the client connected
+	 * @return connectedAt, in epoch milliseconds
+	 */
+	public long getConnectedAt() {
+		return connectedAt;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "in=" + messagesIn + "/" + bytesIn + "B out=" + messagesOut + "/" + bytesOut + "B connectedAt=" + connectedAt;
+	}
+
+}
@@ -0,0 +1,444 @@
+package main;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import data.ClypeData;
+import data.FileChunkClypeData;
+import data.MessageClypeData;
+
+/**
+ * Links this server to other ClypeServer nodes so that together they serve one cluster.
+ *
+ * Every node dials every other node it is given with a {@link PeerLink}, a connection like a
+ * client's made under the name {@link #peerPrefix} followed by the node's id, and accepts the
+ * same kind of connection from them, so each pair of nodes shares two connections, one each way.
+ * Only a connection proving the secret set on the nodes' hubs by {@link BroadcastHub#setSecret(String)}
+ * may take such a name, so no client can pose as a node.
+ * Data a client sends to this node is given an origin id, the node's id followed by a sequence
+ * number, relayed to this node's clients, and forwarded once over each link whose node has users
+ * present, or members of the data's room if it has one. Data arriving from another node is only
+ * relayed to this node's clients and never forwarded again, so nothing loops around the cluster,
+ * and data whose origin id is this node's own or was already seen from its node is dropped, so a
+ * connection from a node claiming this node's id is refused. Data
+ * from one node may arrive out of order, since its clients' reader threads forward concurrently
+ * and each link writes messages ahead of file chunks, so which sequence numbers were seen is kept
+ * for the last {@link #windowSize} of them rather than only the highest.
+ *
+ * Over each connection it accepts, this node tells the dialing node which users are present and
+ * which rooms have members here, first all of them and then each change, in {@link ClypeData#peer}
+ * messages of lines "=N" for this node's id, "+u NAME" or "-u NAME" for a user joining or
+ * leaving and "+r ROOM" or "-r ROOM" for a room being created or removed. The dialing node counts
+ * those users in its {@link PresenceRegistry}, so LISTUSERS on any node lists the whole cluster
+ *
+ * @author Will Dunklin
+ *
+ */
+public class Federation {
+	/**
+	 * The start of the user name every link between nodes connects with
+	 */
+	public static final String peerPrefix = "@peer/";
+	/**
+	 * The number of milliseconds a link waits before dialing its node again
+	 */
+	public static final long reconnectMillis = 1000;
+	/**
+	 * How often a client waiting to send more file data checks the links for returned credit, 5 milliseconds
+	 */
+	private static final long creditPollMillis = 5;
+	/**
+	 * The number of low bits of an origin id holding the sequence number, the bits above hold the node's id
+	 */
+	private static final int sequenceBits = 40;
+	/**
+	 * The number of sequence numbers below the highest received from a node that are still told apart
+	 * from those already received, data numbered lower is dropped as seen before
+	 */
+	public static final int windowSize = 1 << 16;
+	/**
+	 * The hub whose data is forwarded and whose clients receive data from other nodes
+	 */
+	private BroadcastHub hub;
+	/**
+	 * The id of this node, unique in the cluster
+	 */
+	private int node;
+	/**
+	 * The sequence number of the latest origin id given by this node
+	 */
+	private AtomicLong sequence;
+	/**
+	 * The links dialed to every other node
+	 */
+	private CopyOnWriteArrayList<PeerLink> links;
+	/**
+	 * The connections accepted from other nodes, with the id of the node on each
+	 */
+	private ConcurrentHashMap<ClientConnection, Integer> inbound;
+	/**
+	 * The sequence numbers lately received from each other node, by node id
+	 */
+	private ConcurrentHashMap<Integer, Window> lastSeen;
+	/**
+	 * The number of frames forwarded to other nodes
+	 */
+	private LongAdder forwarded;
+	/**
+	 * The number of frames received from other nodes and relayed to this node's clients
+	 */
+	private LongAdder received;
+	/**
+	 * The number of frames received from other nodes and dropped as seen before or sent by this node
+	 */
+	private LongAdder duplicates;
+	/**
+	 * The number of payload bytes a link may hold unwritten, past a quarter of them files are paced
+	 */
+	private volatile long maxQueuedBytes;
+	/**
+	 * The number of times a link was dropped because it would have held more than {@link #maxQueuedBytes}
+	 */
+	private LongAdder overflows;
+
+	/**
+	 * Initializes Federation instance variables
+	 * @param hub The hub whose data is forwarded
+	 * @param node The id of this node, unique in the cluster
+	 * @throws IllegalArgumentException If the node id is not between 1 and 65535
+	 */
+	public Federation(BroadcastHub hub, int node) throws IllegalArgumentException {
+		if(node < 1 || node > 0xFFFF)
+			throw new IllegalArgumentException("The node id must be between 1 and 65535.");
+		this.hub = hub;
+		this.node = node;
+		this.sequence = new AtomicLong();
+		this.links = new CopyOnWriteArrayList<PeerLink>();
+		this.inbound = new ConcurrentHashMap<ClientConnection, Integer>();
+		this.lastSeen = new ConcurrentHashMap<Integer, Window>();
+		this.forwarded = new LongAdder();
+		this.received = new LongAdder();
+		this.duplicates = new LongAdder();
+		this.maxQueuedBytes = OutboundQueue.defaultMaxBytes;
+		this.overflows = new LongAdder();
+	}
+
+	/**
+	 * Adds another node to dial once the federation starts
+	 * @param hostName The name of the computer running the node
+	 * @param port The port the node is hosted on
+	 * @throws IllegalArgumentException If the host name is missing or the port is invalid
+	 */
+	public void addPeer(String hostName, int port) throws IllegalArgumentException {
+		links.add(new PeerLink(this, hostName, port));
+	}
+
+	/**
+	 * Starts telling other nodes of this node's users and rooms, and dials every other node
+	 */
+	public void start() {
+		hub.getPresence().setLocalChanges((userName, joined) -> gossip((joined ? "+u " : "-u ") + userName));
+		hub.getRooms().setChanges((room, created) -> gossip((created ? "+r " : "-r ") + room));
+		for(PeerLink link : links)
+			link.start();
+	}
+
+	/**
+	 * Closes every link and every connection accepted from other nodes
+	 */
+	public void close() {
+		hub.getPresence().setLocalChanges(null);
+		hub.getRooms().setChanges(null);
+		for(PeerLink link : links)
+			link.close();
+		for(ClientConnection peer : inbound.keySet()) {
+			peer.close();
+			removed(peer);
+		}
+	}
+
+	/**
+	 * Checks whether a user name is one links between nodes connect with
+	 * @param userName The user name
+	 * @return True if it starts with {@link #peerPrefix}
+	 */
+	public static boolean isPeerName(String userName) {
+		return userName != null && userName.startsWith(peerPrefix);
+	}
+
+	/**
+	 * Checks whether a connection was accepted from another node
+	 * @param client The connection
+	 * @return True if it is a link from another node
+	 */
+	public boolean isPeer(ClientConnection client) {
+		return inbound.containsKey(client);
+	}
+
+	/**
+	 * Takes in a connection from another node once its handshake completes, telling it every user
+	 * present and room with members on this node. The users are listed while the
+	 * {@link PresenceRegistry} is locked and posted to its outbox, so no join or leave is told before
+	 * the list
+	 * @param peer The connection, whose user name holds the other node's id
+	 * @return True if it was taken in, false if its user name holds no valid node id or this node's own
+	 */
+	boolean accepted(ClientConnection peer) {
+		int peerNode;
+		try {
+			peerNode = Integer.parseInt(peer.getUserName().substring(peerPrefix.length()));
+		} catch(NumberFormatException nfe) {
+			return false;
+		}
+		if(peerNode == node) {
+			System.err.println("An error occurred. A peer connected with this node's own id " + node);
+			return false;
+		}
+		lastSeen.remove(peerNode);
+		PresenceRegistry presence = hub.getPresence();
+		synchronized(presence) {
+			inbound.put(peer, peerNode);
+			StringBuilder welcome = new StringBuilder("=").append(node);
+			for(String room : hub.getRooms().names())
+				welcome.append("\n+r ").append(room);
+			for(String userName : presence.localNames())
+				welcome.append("\n+u ").append(userName);
+			MessageClypeData message = new MessageClypeData(peerPrefix + node, welcome.toString(), ClypeData.peer);
+			presence.post(() -> peer.send(message));
+		}
+		presence.deliver();
+		return true;
+	}
+
+	/**
+	 * Forgets a connection from another node once it disconnects
+	 * @param peer The connection
+	 */
+	void removed(ClientConnection peer) {
+		inbound.remove(peer);
+	}
+
+	/**
+	 * Tells every connected node of a change on this one
+	 * @param line The change, one of the lines described above
+	 */
+	private void gossip(String line) {
+		if(inbound.isEmpty())
+			return;
+		MessageClypeData change = new MessageClypeData(peerPrefix + node, line, ClypeData.peer);
+		for(ClientConnection peer : inbound.keySet())
+			peer.send(change);
+	}
+
+	/**
+	 * Gives data a client sent to this node its origin id
+	 * @param data The data
+	 */
+	void stamp(ClypeData data) {
+		data.setOrigin(((long) node << sequenceBits) | sequence.incrementAndGet());
+	}
+
+	/**
+	 * Decides whether data received from another node should be relayed to this node's clients
+	 * @param data The data
+	 * @return False if it has no origin id, was sent by this node or was already received
+	 */
+	boolean admit(ClypeData data) {
+		long origin = data.getOrigin();
+		int originNode = (int) (origin >>> sequenceBits);
+		long number = origin & ((1L << sequenceBits) - 1);
+		if(origin == 0 || originNode == node) {
+			duplicates.increment();
+			return false;
+		}
+		if(!lastSeen.computeIfAbsent(originNode, n -> new Window()).add(number)) {
+			duplicates.increment();
+			return false;
+		}
+		received.increment();
+		return true;
+	}
+
+	/**
+	 * Forwards data a client sent to this node to every other node that wants it
+	 * @param data The data, already given its origin id
+	 */
+	void forward(ClypeData data) {
+		for(PeerLink link : links) {
+			if(link.wants(data.getRoom()) && link.forward(data))
+				forwarded.increment();
+		}
+	}
+
+	/**
+	 * Forwards a spooled file chunk a client sent to this node to every other node that wants it,
+	 * reading its payload from the spool only if some node does
+	 * @param chunk The chunk, whose metadata was already given its origin id
+	 */
+	void forward(SpooledChunk chunk) {
+		FileChunkClypeData loaded = null;
+		for(PeerLink link : links) {
+			if(!link.wants(chunk.getMetadata().getRoom()))
+				continue;
+			try {
+				if(loaded == null)
+					loaded = chunk.load();
+			} catch(IOException ioe) {
+				System.err.println("An error occurred. " + ioe.getMessage());
+				return;
+			}
+			if(link.forward(loaded))
+				forwarded.increment();
+		}
+	}
+
+	/**
+	 * Checks whether every link is under its bulk credit, so more file data can be forwarded without waiting
+	 * @return True if no link is out of bulk credit
+	 */
+	boolean hasBulkCredit() {
+		for(PeerLink link : links) {
+			if(!link.hasBulkCredit())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until every link is under its bulk credit, for at most the given time
+	 * @param millis The longest to wait, in milliseconds
+	 */
+	void awaitBulkCredit(long millis) {
+		long deadline = System.currentTimeMillis() + millis;
+		try {
+			while(!hasBulkCredit() && System.currentTimeMillis() < deadline)
+				Thread.sleep(creditPollMillis);
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Counts a link dropped because it would have held too much
+	 */
+	void overflowed() {
+		overflows.increment();
+	}
+
+	/**
+	 * Gets the number of payload bytes a link may hold unwritten
+	 * @return maxQueuedBytes
+	 */
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	/**
+	 * Sets the number of payload bytes a link may hold unwritten, past a quarter of them files are paced
+	 * @param maxQueuedBytes The bound, positive
+	 * @throws IllegalArgumentException If the bound is not positive
+	 */
+	public void setMaxQueuedBytes(long maxQueuedBytes) throws IllegalArgumentException {
+		if(maxQueuedBytes < 1)
+			throw new IllegalArgumentException("The queue bound must be positive.");
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	/**
+	 * Gets the hub whose data is forwarded
+	 * @return hub
+	 */
+	BroadcastHub getHub() {
+		return hub;
+	}
+
+	/**
+	 * Gets the id of this node
+	 * @return node
+	 */
+	public int getNode() {
+		return node;
+	}
+
+	/**
+	 * Gets the number of links currently connected to their node
+	 * @return The number of connected links
+	 */
+	public int getLinkedCount() {
+		int linked = 0;
+		for(PeerLink link : links) {
+			if(link.isLinked())
+				linked++;
+		}
+		return linked;
+	}
+
+	/**
+	 * Gets the federation's counters as text, one "name=value" per line
+	 * @return The summary
+	 */
+	public String getSummary() {
+		return "node=" + node + "\npeers=" + getLinkedCount() + "/" + links.size() + "\npeersIn=" + inbound.size()
+				+ "\nforwarded=" + forwarded.sum() + "\nfromPeers=" + received.sum() + "\npeerDuplicates=" + duplicates.sum()
+				+ "\npeerOverflows=" + overflows.sum();
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "Federation [node=" + node + ", links=" + links + ", inbound=" + inbound.size() + "]";
+	}
+
+	/**
+	 * The sequence numbers lately received from one node, one bit for each of the last
+	 * {@link Federation#windowSize} below the highest
+	 */
+	private static class Window {
+		/**
+		 * The highest sequence number received
+		 */
+		private long highest;
+		/**
+		 * Bit n % windowSize is set if sequence number n was received
+		 */
+		private long[] seen;
+
+		/**
+		 * Initializes Window instance variables
+		 */
+		private Window() {
+			this.highest = 0;
+			this.seen = new long[windowSize / 64];
+		}
+
+		/**
+		 * Marks a sequence number received
+		 * @param number The sequence number
+		 * @return False if it was already received, or is too far below the highest to tell
+		 */
+		private synchronized boolean add(long number) {
+			if(number <= 0 || number <= highest - windowSize)
+				return false;
+			if(number > highest) {
+				if(number - highest >= windowSize) {
+					Arrays.fill(seen, 0);
+				} else {
+					for(long cleared = highest + 1; cleared < number; cleared++)
+						seen[(int) (cleared % windowSize) >>> 6] &= ~(1L << (cleared & 63));
+				}
+				highest = number;
+			} else if((seen[(int) (number % windowSize) >>> 6] & (1L << (number & 63))) != 0) {
+				return false;
+			}
+			seen[(int) (number % windowSize) >>> 6] |= 1L << (number & 63);
+			return true;
+		}
+	}
+
+}
\ No newline at end of file
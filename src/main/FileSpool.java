@@ -0,0 +1,140 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A temporary file on the server holding the payloads of one streamed file as they arrive.
+ *
+ * Payloads are appended at reserved positions and relayed straight from the file to each
+ * recipient's socket, so they never have to be held on the heap. The spool is reference counted:
+ * the receiving connection holds one reference until the final chunk arrives and every queued
+ * relay holds one until it is written. The file is deleted when the last reference is released
+ *
+ * @author Will Dunklin
+ *
+ */
+public class FileSpool {
+	/**
+	 * The spool file
+	 */
+	private File file;
+	/**
+	 * Channel reading and writing the spool file
+	 */
+	private FileChannel channel;
+	/**
+	 * The number of bytes reserved so far
+	 */
+	private AtomicLong size;
+	/**
+	 * The number of holders of this spool
+	 */
+	private AtomicInteger references;
+
+	/**
+	 * Initializes FileSpool instance variables and creates the spool file
+	 * @param directory The directory the spool file is created in
+	 * @throws IOException If the spool file cannot be created
+	 */
+	public FileSpool(File directory) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		this.file = File.createTempFile("spool", ".part", directory);
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.DELETE_ON_CLOSE);
+		this.size = new AtomicLong(0);
+		this.references = new AtomicInteger(1);
+	}
+
+	/**
+	 * Reserves room for a payload at the end of the spool
+	 * @param length The length of the payload
+	 * @return The position of the reserved room
+	 */
+	public long reserve(int length) {
+		return size.getAndAdd(length);
+	}
+
+	/**
+	 * Writes bytes into reserved room
+	 * @param source The bytes, all of which are written
+	 * @param position The position to write them at
+	 * @throws IOException If the spool cannot be written
+	 */
+	public void write(ByteBuffer source, long position) throws IOException {
+		while(source.hasRemaining())
+			position += channel.write(source, position);
+	}
+
+	/**
+	 * Reads bytes from the spool
+	 * @param target The buffer being filled, filled completely
+	 * @param position The position to read from
+	 * @throws IOException If the spool cannot be read
+	 */
+	public void read(ByteBuffer target, long position) throws IOException {
+		while(target.hasRemaining()) {
+			int count = channel.read(target, position);
+			if(count < 0)
+				throw new IOException("Spool ended early");
+			position += count;
+		}
+	}
+
+	/**
+	 * Transfers bytes from the spool to a channel, without copying them through the heap when the
+	 * target is a socket channel
+	 * @param position The position to start at
+	 * @param count The largest number of bytes to transfer
+	 * @param target The channel being written to
+	 * @return The number of bytes transferred, possibly fewer than count
+	 * @throws IOException If the spool cannot be read or the target written
+	 */
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		return channel.transferTo(position, count, target);
+	}
+
+	/**
+	 * Adds a holder of this spool
+	 */
+	public void retain() {
+		references.incrementAndGet();
+	}
+
+	/**
+	 * Removes a holder of this spool, deleting the spool file when none remain
+	 */
+	public void release() {
+		if(references.decrementAndGet() == 0) {
+			try {
+				channel.close();
+			} catch(IOException ioe) {
+				System.err.println("Could not delete spool " + file);
+			}
+		}
+	}
+
+	/**
+	 * Gets the spool file
+	 * @return file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "FileSpool [file=" + file + ", size=" + size + ", references=" + references + "]";
+	}
+
+}
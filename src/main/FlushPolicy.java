@@ -0,0 +1,144 @@
+package main;
+
+/**
+ * Decides how long a writer holds written frames back before flushing them, so frames arriving
+ * close together go out in one write instead of one write each.
+ *
+ * The policy keeps a moving average of the time between frames. While frames arrive further apart
+ * than {@link #maxWindowNanos} the connection is treated as idle and every frame is flushed at once,
+ * adding no latency. Once they arrive closer together the writer waits a few average gaps for the
+ * next frame before flushing, never holding a frame back longer than the window in total. Also
+ * counts flushes and the frames they carried, so the frames per write can be reported
+ *
+ * @author Will Dunklin
+ *
+ */
+public class FlushPolicy {
+	/**
+	 * The default window is 200 microseconds
+	 */
+	public static final long defaultMaxWindowMicros = 200;
+	/**
+	 * How many average gaps the writer waits for the next frame
+	 */
+	private static final int gapsPerWindow = 4;
+	/**
+	 * The longest a written frame is held back before it is flushed, in nanoseconds, 0 to never hold frames back
+	 */
+	private long maxWindowNanos;
+	/**
+	 * The {@link System#nanoTime()} the last frame arrived at, 0 before the first
+	 */
+	private long lastArrival;
+	/**
+	 * The moving average of the nanoseconds between frames, -1 before the second frame
+	 */
+	private long averageGap;
+	/**
+	 * The number of flushes
+	 */
+	private long flushes;
+	/**
+	 * The number of frames carried by the flushes
+	 */
+	private long framesFlushed;
+
+	/**
+	 * Initializes FlushPolicy instance variables
+	 * @param maxWindowMicros The longest a written frame is held back before it is flushed, in microseconds, 0 to never hold frames back
+	 * @throws IllegalArgumentException If the window is negative
+	 */
+	public FlushPolicy(long maxWindowMicros) throws IllegalArgumentException {
+		if(maxWindowMicros < 0)
+			throw new IllegalArgumentException("FlushPolicy cannot be initialized with a negative window");
+		this.maxWindowNanos = maxWindowMicros * 1000L;
+		this.lastArrival = 0;
+		this.averageGap = -1;
+		this.flushes = 0;
+		this.framesFlushed = 0;
+	}
+
+	/**
+	 * Defaults the window to {@link #defaultMaxWindowMicros}
+	 */
+	public FlushPolicy() {
+		this(defaultMaxWindowMicros);
+	}
+
+	/**
+	 * Records that a frame was queued for writing
+	 */
+	public synchronized void arrived() {
+		long now = System.nanoTime();
+		if(lastArrival != 0) {
+			long gap = now - lastArrival;
+			averageGap = averageGap < 0 ? gap : averageGap + (gap - averageGap) / 8;
+		}
+		lastArrival = now;
+	}
+
+	/**
+	 * Gets how long the writer should wait for another frame before flushing, 0 while the connection is idle
+	 * @param heldSince The {@link System#nanoTime()} the oldest unflushed frame was written at
+	 * @return The nanoseconds to wait, 0 to flush now
+	 */
+	public synchronized long waitNanos(long heldSince) {
+		if(averageGap < 0 || averageGap >= maxWindowNanos)
+			return 0;
+		long left = heldSince + maxWindowNanos - System.nanoTime();
+		return Math.max(0, Math.min(left, gapsPerWindow * Math.max(averageGap, 1000L)));
+	}
+
+	/**
+	 * Records a flush
+	 * @param frames The number of frames it carried
+	 */
+	public synchronized void flushed(int frames) {
+		if(frames <= 0)
+			return;
+		flushes++;
+		framesFlushed += frames;
+	}
+
+	/**
+	 * Gets the number of flushes
+	 * @return flushes
+	 */
+	public synchronized long getFlushes() {
+		return flushes;
+	}
+
+	/**
+	 * Gets the number of frames carried by the flushes
+	 * @return framesFlushed
+	 */
+	public synchronized long getFramesFlushed() {
+		return framesFlushed;
+	}
+
+	/**
+	 * Gets the average number of frames carried by one flush
+	 * @return The frames per flush, 0 before the first flush
+	 */
+	public synchronized double getFramesPerFlush() {
+		return flushes == 0 ? 0 : (double) framesFlushed / flushes;
+	}
+
+	/**
+	 * Gets the longest a written frame is held back
+	 * @return The window, in microseconds
+	 */
+	public long getMaxWindowMicros() {
+		return maxWindowNanos / 1000L;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public synchronized String toString() {
+		return "FlushPolicy [maxWindowMicros=" + getMaxWindowMicros() + ", averageGapNanos=" + averageGap + ", flushes=" + flushes
+				+ ", framesFlushed=" + framesFlushed + "]";
+	}
+
+}
@@ -0,0 +1,193 @@
+package main;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in log-linear buckets, in the style of HdrHistogram, so percentiles of
+ * millions of samples can be read back in constant memory.
+ *
+ * Values below 128 have a bucket each; above that every power of two is split into 64 buckets,
+ * so a percentile is reported at most about 1.6% above the true value. Any thread may record
+ * while another reads or drains the histogram
+ *
+ * @author Will Dunklin
+ *
+ */
+public class LatencyHistogram {
+	/**
+	 * The number of values below which every value has its own bucket
+	 */
+	private static final int linearBuckets = 128;
+	/**
+	 * The number of buckets each power of two above {@link #linearBuckets} is split into
+	 */
+	private static final int subBuckets = 64;
+	/**
+	 * log2 of {@link #subBuckets}
+	 */
+	private static final int subBucketBits = 6;
+	/**
+	 * The number of buckets, enough for any non-negative long
+	 */
+	private static final int bucketCount = linearBuckets + (63 - subBucketBits) * subBuckets;
+	/**
+	 * The number of values recorded in every bucket
+	 */
+	private AtomicLongArray counts;
+	/**
+	 * The number of values recorded
+	 */
+	private AtomicLong totalCount;
+	/**
+	 * The sum of the values recorded
+	 */
+	private AtomicLong totalValue;
+	/**
+	 * The largest value recorded
+	 */
+	private AtomicLong maxValue;
+
+	/**
+	 * Initializes LatencyHistogram instance variables to an empty histogram
+	 */
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(bucketCount);
+		this.totalCount = new AtomicLong();
+		this.totalValue = new AtomicLong();
+		this.maxValue = new AtomicLong();
+	}
+
+	/**
+	 * Records a value
+	 * @param value The value, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if(value < 0)
+			value = 0;
+		counts.incrementAndGet(bucketOf(value));
+		totalCount.incrementAndGet();
+		totalValue.addAndGet(value);
+		long max;
+		while(value > (max = maxValue.get()) && !maxValue.compareAndSet(max, value));
+	}
+
+	/**
+	 * Adds every value recorded in another histogram to this one
+	 * @param other The other histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for(int i = 0; i < bucketCount; i++) {
+			long count = other.counts.get(i);
+			if(count != 0)
+				counts.addAndGet(i, count);
+		}
+		totalCount.addAndGet(other.totalCount.get());
+		totalValue.addAndGet(other.totalValue.get());
+		long max;
+		long otherMax = other.maxValue.get();
+		while(otherMax > (max = maxValue.get()) && !maxValue.compareAndSet(max, otherMax));
+	}
+
+	/**
+	 * Moves every value recorded so far into a new histogram, leaving this one empty. Values
+	 * recorded while draining end up in one of the two, never in both or neither
+	 * @return A histogram of the values recorded since the last drain
+	 */
+	public LatencyHistogram drain() {
+		LatencyHistogram drained = new LatencyHistogram();
+		long count = 0;
+		for(int i = 0; i < bucketCount; i++) {
+			long bucket = counts.getAndSet(i, 0);
+			if(bucket != 0) {
+				drained.counts.set(i, bucket);
+				count += bucket;
+			}
+		}
+		totalCount.addAndGet(-count);
+		drained.totalCount.set(count);
+		drained.totalValue.set(totalValue.getAndSet(0));
+		drained.maxValue.set(maxValue.getAndSet(0));
+		return drained;
+	}
+
+	/**
+	 * Gets the value below which a percentage of the recorded values fall
+	 * @param percentile The percentage, from 0 to 100
+	 * @return The highest value in the bucket holding that percentile, 0 if nothing was recorded
+	 */
+	public long valueAtPercentile(double percentile) {
+		long count = totalCount.get();
+		if(count == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+		long seen = 0;
+		for(int i = 0; i < bucketCount; i++) {
+			seen += counts.get(i);
+			if(seen >= target)
+				return Math.min(highestValueIn(i), maxValue.get());
+		}
+		return maxValue.get();
+	}
+
+	/**
+	 * Gets the number of values recorded
+	 * @return The count
+	 */
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * Gets the mean of the values recorded
+	 * @return The mean, 0 if nothing was recorded
+	 */
+	public double getMean() {
+		long count = totalCount.get();
+		return count == 0 ? 0 : (double) totalValue.get() / count;
+	}
+
+	/**
+	 * Gets the largest value recorded
+	 * @return maxValue
+	 */
+	public long getMax() {
+		return maxValue.get();
+	}
+
+	/**
+	 * Finds the bucket a value is counted in
+	 * @param value The non-negative value
+	 * @return The index of its bucket
+	 */
+	private static int bucketOf(long value) {
+		if(value < linearBuckets)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+		return linearBuckets + (shift - 1) * subBuckets + (int) ((value >>> shift) - subBuckets);
+	}
+
+	/**
+	 * Finds the highest value counted in a bucket
+	 * @param bucket The index of the bucket
+	 * @return The highest value
+	 */
+	private static long highestValueIn(int bucket) {
+		if(bucket < linearBuckets)
+			return bucket;
+		int shift = (bucket - linearBuckets) / subBuckets + 1;
+		long mantissa = (bucket - linearBuckets) % subBuckets + subBuckets;
+		long highest = ((mantissa + 1) << shift) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "LatencyHistogram [count=" + getCount() + ", mean=" + getMean() + ", p50=" + valueAtPercentile(50)
+				+ ", p99=" + valueAtPercentile(99) + ", max=" + getMax() + "]";
+	}
+
+}
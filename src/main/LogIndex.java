@@ -0,0 +1,500 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.function.IntToLongFunction;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Index of one {@link LogSegment}, finding its records by time and by user without reading the
+ * records in between.
+ *
+ * Every record is indexed at the later of its date and the time of the record before it, so the
+ * index stays in order even when clients' clocks disagree. Every {@link #interval}th record is
+ * kept in a sparse time index, and every record is kept in the posting list of its user. Both are
+ * searched by binary search.
+ *
+ * The index of the segment being appended to is held on the heap. Once the segment is full the
+ * index is sealed: written to a file next to the segment and mapped, so the heap only ever holds
+ * one segment's index. After a crash only indexes that were never sealed are rebuilt, by reading
+ * their segment again.
+ *
+ * The file holds a header, the sparse time index as (time, position) pairs, a directory of users
+ * sorted by name, their names, their postings as (time, position) pairs and a CRC-32 of the rest
+ *
+ * @author Will Dunklin
+ *
+ */
+public class LogIndex {
+	/**
+	 * The number of records between entries of the sparse time index
+	 */
+	public static final int interval = 64;
+	/**
+	 * The first 4 bytes of an index file, "CLIX"
+	 */
+	private static final int magic = 0x434C4958;
+	/**
+	 * The number of bytes in the header: the magic, record count, end, first and last time, and the sizes of both indexes
+	 */
+	private static final int headerLength = 36;
+	/**
+	 * The number of bytes in each (time, position) pair
+	 */
+	private static final int entryLength = 12;
+	/**
+	 * The number of bytes in each user's directory entry: where its name and postings are and how long they are
+	 */
+	private static final int userLength = 16;
+	/**
+	 * The index file
+	 */
+	private File file;
+	/**
+	 * The number of records indexed
+	 */
+	private int records;
+	/**
+	 * The position after the last record indexed
+	 */
+	private int end;
+	/**
+	 * The time of the first record indexed
+	 */
+	private long firstTime;
+	/**
+	 * The time of the last record indexed, or of the previous segment's last record while empty
+	 */
+	private long lastTime;
+	/**
+	 * The times of the sparse time index, null once sealed
+	 */
+	private long[] sparseTimes;
+	/**
+	 * The positions of the sparse time index, null once sealed
+	 */
+	private int[] sparsePositions;
+	/**
+	 * The number of entries in the sparse time index
+	 */
+	private int sparseCount;
+	/**
+	 * The posting list of each user, null once sealed
+	 */
+	private HashMap<String, Postings> users;
+	/**
+	 * The number of users with postings
+	 */
+	private int userCount;
+	/**
+	 * The mapped index file, null until sealed
+	 */
+	private MappedByteBuffer sealed;
+
+	/**
+	 * Initializes LogIndex instance variables for an empty index held on the heap
+	 * @param file The file the index is written to once sealed
+	 * @param floor The time of the previous segment's last record, the earliest time a record may be indexed at
+	 */
+	public LogIndex(File file, long floor) {
+		this.file = file;
+		this.records = 0;
+		this.end = 0;
+		this.firstTime = floor;
+		this.lastTime = floor;
+		this.sparseTimes = new long[16];
+		this.sparsePositions = new int[16];
+		this.sparseCount = 0;
+		this.users = new HashMap<String, Postings>();
+		this.userCount = 0;
+		this.sealed = null;
+	}
+
+	/**
+	 * Gets the file the index of a segment is written to
+	 * @param directory The directory of the log
+	 * @param baseSequence The sequence number of the segment's first record
+	 * @return The index file
+	 */
+	public static File fileOf(File directory, long baseSequence) {
+		return new File(directory, String.format("%020d.idx", baseSequence));
+	}
+
+	/**
+	 * Maps a sealed index file, checking it is complete and undamaged
+	 * @param file The index file
+	 * @return The index, null if the file is missing or damaged and the index must be rebuilt
+	 */
+	public static LogIndex load(File file) {
+		if(!file.isFile() || file.length() < headerLength + 4 || file.length() > Integer.MAX_VALUE)
+			return null;
+		MappedByteBuffer buffer;
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch(IOException ioe) {
+			return null;
+		}
+		int length = buffer.capacity() - 4;
+		ByteBuffer body = buffer.duplicate();
+		body.limit(length);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if(buffer.getInt(0) != magic || buffer.getInt(length) != (int) crc.getValue())
+			return null;
+		LogIndex index = new LogIndex(file, buffer.getLong(12));
+		index.records = buffer.getInt(4);
+		index.end = buffer.getInt(8);
+		index.lastTime = buffer.getLong(20);
+		index.sparseCount = buffer.getInt(28);
+		index.userCount = buffer.getInt(32);
+		index.sparseTimes = null;
+		index.sparsePositions = null;
+		index.users = null;
+		index.sealed = buffer;
+		return index;
+	}
+
+	/**
+	 * Indexes a record appended to the segment, only while the index is on the heap
+	 * @param position The position of the record in the segment
+	 * @param length The number of bytes in the whole record
+	 * @param timestamp The date of the record, in epoch milliseconds
+	 * @param userName The name of the record's user
+	 * @throws IllegalStateException If the index is sealed
+	 */
+	public synchronized void add(int position, int length, long timestamp, String userName) throws IllegalStateException {
+		if(sealed != null)
+			throw new IllegalStateException("Sealed LogIndex cannot be added to");
+		long time = Math.max(timestamp, lastTime);
+		if(records == 0)
+			firstTime = time;
+		if(records % interval == 0) {
+			if(sparseCount == sparseTimes.length) {
+				sparseTimes = Arrays.copyOf(sparseTimes, sparseCount * 2);
+				sparsePositions = Arrays.copyOf(sparsePositions, sparseCount * 2);
+			}
+			sparseTimes[sparseCount] = time;
+			sparsePositions[sparseCount] = position;
+			sparseCount++;
+		}
+		String user = userName == null ? "" : userName;
+		Postings postings = users.get(user);
+		if(postings == null) {
+			postings = new Postings();
+			users.put(user, postings);
+			userCount++;
+		}
+		postings.add(time, position);
+		lastTime = time;
+		records++;
+		end = position + length;
+	}
+
+	/**
+	 * Writes the index to its file, forces it to disk and maps it, dropping the heap copy
+	 * @throws IOException If the file cannot be written
+	 */
+	public synchronized void seal() throws IOException {
+		if(sealed != null)
+			return;
+		ArrayList<String> names = new ArrayList<String>(users.keySet());
+		Collections.sort(names);
+		byte[][] encodedNames = new byte[names.size()][];
+		long length = headerLength + (long) sparseCount * entryLength + (long) names.size() * userLength + 4;
+		for(int i = 0; i < names.size(); i++) {
+			encodedNames[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+			length += encodedNames[i].length + (long) users.get(names.get(i)).size * entryLength;
+		}
+		if(length > Integer.MAX_VALUE)
+			throw new IOException("LogIndex too large to seal");
+		ByteBuffer out = ByteBuffer.allocate((int) length);
+		out.putInt(magic).putInt(records).putInt(end).putLong(firstTime).putLong(lastTime).putInt(sparseCount).putInt(names.size());
+		for(int i = 0; i < sparseCount; i++)
+			out.putLong(sparseTimes[i]).putInt(sparsePositions[i]);
+		int nameOffset = headerLength + sparseCount * entryLength + names.size() * userLength;
+		int postingsOffset = nameOffset;
+		for(byte[] name : encodedNames)
+			postingsOffset += name.length;
+		for(int i = 0; i < names.size(); i++) {
+			Postings postings = users.get(names.get(i));
+			out.putInt(nameOffset).putInt(encodedNames[i].length).putInt(postingsOffset).putInt(postings.size);
+			nameOffset += encodedNames[i].length;
+			postingsOffset += postings.size * entryLength;
+		}
+		for(byte[] name : encodedNames)
+			out.put(name);
+		for(String name : names) {
+			Postings postings = users.get(name);
+			for(int i = 0; i < postings.size; i++)
+				out.putLong(postings.times[i]).putInt(postings.positions[i]);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(out.array(), 0, out.position());
+		out.putInt((int) crc.getValue());
+		out.flip();
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			while(out.hasRemaining())
+				channel.write(out);
+			channel.force(true);
+			sealed = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		}
+		sparseTimes = null;
+		sparsePositions = null;
+		users = null;
+	}
+
+	/**
+	 * Finds the records of a segment indexed between two times, oldest first, reading only the
+	 * postings of the user if one is given or the records from the sparse time index entry before
+	 * the first match otherwise
+	 * @param segment The segment this index belongs to
+	 * @param userName The name of the user whose records are wanted, null for every user's
+	 * @param from The earliest time, in epoch milliseconds
+	 * @param to The latest time, in epoch milliseconds
+	 * @param sink Takes the frame of each record found, returning false to stop
+	 * @return False if the sink stopped the search
+	 */
+	public synchronized boolean range(LogSegment segment, String userName, long from, long to, Predicate<ByteBuffer> sink) {
+		if(records == 0 || lastTime < from || firstTime > to)
+			return true;
+		if(userName != null)
+			return postingsRange(segment, userName, from, to, sink);
+		int entry = Math.max(0, firstAtOrAfter(sparseCount, i -> sparseTime(i), from) - 1);
+		int position = sparsePosition(entry);
+		long time = sparseTime(entry);
+		boolean first = true;
+		while(position < end) {
+			if(!first)
+				time = Math.max(time, segment.timestampAt(position));
+			first = false;
+			if(time > to)
+				break;
+			if(time >= from && !sink.test(segment.frameAt(position)))
+				return false;
+			position += segment.recordLengthAt(position);
+		}
+		return true;
+	}
+
+	/**
+	 * Finds a user's records indexed between two times in its posting list
+	 * @param segment The segment this index belongs to
+	 * @param userName The name of the user
+	 * @param from The earliest time, in epoch milliseconds
+	 * @param to The latest time, in epoch milliseconds
+	 * @param sink Takes the frame of each record found, returning false to stop
+	 * @return False if the sink stopped the search
+	 */
+	private boolean postingsRange(LogSegment segment, String userName, long from, long to, Predicate<ByteBuffer> sink) {
+		if(sealed == null) {
+			Postings postings = users.get(userName);
+			if(postings == null)
+				return true;
+			int size = postings.size;
+			for(int i = firstAtOrAfter(size, j -> postings.times[j], from); i < size && postings.times[i] <= to; i++) {
+				if(!sink.test(segment.frameAt(postings.positions[i])))
+					return false;
+			}
+			return true;
+		}
+		int user = findUser(userName);
+		if(user < 0)
+			return true;
+		int directory = headerLength + sparseCount * entryLength + user * userLength;
+		int offset = sealed.getInt(directory + 8);
+		int size = sealed.getInt(directory + 12);
+		for(int i = firstAtOrAfter(size, j -> sealed.getLong(offset + j * entryLength), from);
+				i < size && sealed.getLong(offset + i * entryLength) <= to; i++) {
+			if(!sink.test(segment.frameAt(sealed.getInt(offset + i * entryLength + 8))))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Finds a user in the sorted directory of a sealed index
+	 * @param userName The name of the user
+	 * @return The user's place in the directory, -1 if it has no records
+	 */
+	private int findUser(String userName) {
+		int directory = headerLength + sparseCount * entryLength;
+		int low = 0;
+		int high = userCount - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			byte[] name = new byte[sealed.getInt(directory + middle * userLength + 4)];
+			ByteBuffer bytes = sealed.duplicate();
+			bytes.position(sealed.getInt(directory + middle * userLength));
+			bytes.get(name);
+			int order = new String(name, StandardCharsets.UTF_8).compareTo(userName);
+			if(order < 0)
+				low = middle + 1;
+			else if(order > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the first of a sorted run of times at or after a time
+	 * @param size The number of times
+	 * @param times Gets the time at an index
+	 * @param from The time
+	 * @return The index of the first such time, size if there is none
+	 */
+	private static int firstAtOrAfter(int size, IntToLongFunction times, long from) {
+		int low = 0;
+		int high = size;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(times.applyAsLong(middle) < from)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Finds where a record starts, reading forward from the entry of the sparse time index before it
+	 * @param segment The segment indexed
+	 * @param record The number of the record in the segment, counting from 0
+	 * @return The position of the record
+	 */
+	public synchronized int positionOf(LogSegment segment, int record) {
+		int position = sparsePosition(record / interval);
+		for(int i = record % interval; i > 0; i--)
+			position += segment.recordLengthAt(position);
+		return position;
+	}
+
+	/**
+	 * Gets the time of an entry of the sparse time index
+	 * @param entry The index of the entry
+	 * @return The time, in epoch milliseconds
+	 */
+	private long sparseTime(int entry) {
+		return sealed == null ? sparseTimes[entry] : sealed.getLong(headerLength + entry * entryLength);
+	}
+
+	/**
+	 * Gets the position of an entry of the sparse time index
+	 * @param entry The index of the entry
+	 * @return The position of the record in the segment
+	 */
+	private int sparsePosition(int entry) {
+		return sealed == null ? sparsePositions[entry] : sealed.getInt(headerLength + entry * entryLength + 8);
+	}
+
+	/**
+	 * Deletes the index file
+	 * @return True if the file was deleted or was never written
+	 */
+	public boolean delete() {
+		return file.delete() || !file.exists();
+	}
+
+	/**
+	 * Checks whether the index has been written to its file
+	 * @return True once sealed
+	 */
+	public synchronized boolean isSealed() {
+		return sealed != null;
+	}
+
+	/**
+	 * Gets the number of records indexed
+	 * @return records
+	 */
+	public synchronized int getRecords() {
+		return records;
+	}
+
+	/**
+	 * Gets the position after the last record indexed
+	 * @return end
+	 */
+	public synchronized int getEnd() {
+		return end;
+	}
+
+	/**
+	 * Gets the time of the first record indexed
+	 * @return firstTime, in epoch milliseconds
+	 */
+	public synchronized long getFirstTime() {
+		return firstTime;
+	}
+
+	/**
+	 * Gets the time of the last record indexed
+	 * @return lastTime, in epoch milliseconds
+	 */
+	public synchronized long getLastTime() {
+		return lastTime;
+	}
+
+	/**
+	 * Gets the number of users with records in the segment
+	 * @return userCount
+	 */
+	public synchronized int getUserCount() {
+		return userCount;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public synchronized String toString() {
+		return "LogIndex [file=" + file.getName() + ", records=" + records + ", users=" + userCount + ", sparseEntries="
+				+ sparseCount + ", sealed=" + isSealed() + "]";
+	}
+
+	/**
+	 * The posting list of one user while the index is on the heap
+	 */
+	private static class Postings {
+		/**
+		 * The time of each record
+		 */
+		private long[] times = new long[4];
+		/**
+		 * The position of each record
+		 */
+		private int[] positions = new int[4];
+		/**
+		 * The number of records
+		 */
+		private int size = 0;
+
+		/**
+		 * Adds a record, which must be indexed no earlier than the last
+		 * @param time The time of the record
+		 * @param position The position of the record
+		 */
+		private void add(long time, int position) {
+			if(size == times.length) {
+				times = Arrays.copyOf(times, size * 2);
+				positions = Arrays.copyOf(positions, size * 2);
+			}
+			times[size] = time;
+			positions[size] = position;
+			size++;
+		}
+	}
+
+}
@@ -0,0 +1,314 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import data.FrameCodec;
+
+/**
+ * One file of a {@link MessageLog}, mapped into memory whole.
+ *
+ * The file is named after the sequence number of its first record and holds records back to back,
+ * each a CRC-32 of the body, the body's length and the body, a self-contained binary frame body.
+ * The length and body together are exactly the frame a binary client is sent, so a record can be
+ * replayed as a slice of the mapping without being copied onto the heap.
+ *
+ * Records are only appended, by one thread at a time. Readers see everything before
+ * {@link #end}, which only moves once a record is fully written. When a segment is opened again
+ * with a sealed {@link LogIndex}, the index says where its records end. Otherwise its records are
+ * checked one by one and anything after the first damaged record is ignored and later overwritten
+ *
+ * @author Will Dunklin
+ *
+ */
+public class LogSegment {
+	/**
+	 * The number of bytes in front of each record's body: its CRC-32 and length
+	 */
+	public static final int recordOverhead = 8;
+	/**
+	 * The segment file
+	 */
+	private File file;
+	/**
+	 * The sequence number of the segment's first record
+	 */
+	private long baseSequence;
+	/**
+	 * The whole file, mapped for reading and writing
+	 */
+	private MappedByteBuffer buffer;
+	/**
+	 * The position after the last complete record
+	 */
+	private volatile int end;
+	/**
+	 * The number of complete records
+	 */
+	private volatile int records;
+	/**
+	 * The date of the first record, in epoch milliseconds, 0 while the segment is empty
+	 */
+	private long firstTimestamp;
+	/**
+	 * The date of the last record, in epoch milliseconds, 0 while the segment is empty
+	 */
+	private long lastTimestamp;
+	/**
+	 * Whether records were appended since the segment was last forced to disk
+	 */
+	private volatile boolean dirty;
+	/**
+	 * The index of the segment's records
+	 */
+	private LogIndex index;
+
+	/**
+	 * Initializes LogSegment instance variables, creating the file or finding the records already in
+	 * it, from their sealed index if there is one and by checking them one by one otherwise
+	 * @param directory The directory of the log
+	 * @param baseSequence The sequence number of the segment's first record
+	 * @param capacity The size the file is mapped at, or at least if it is already larger
+	 * @param index The sealed index of the records already in the file, null to check them instead
+	 * @throws IOException If the file cannot be created or mapped
+	 */
+	public LogSegment(File directory, long baseSequence, int capacity, LogIndex index) throws IOException {
+		this.file = new File(directory, String.format("%020d.log", baseSequence));
+		this.baseSequence = baseSequence;
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			long size = Math.max(capacity, channel.size());
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(size, Integer.MAX_VALUE));
+		}
+		this.end = 0;
+		this.records = 0;
+		this.firstTimestamp = 0;
+		this.lastTimestamp = 0;
+		this.dirty = false;
+		this.index = index;
+		if(index != null && index.getEnd() <= buffer.capacity()) {
+			end = index.getEnd();
+			records = index.getRecords();
+			firstTimestamp = index.getFirstTime();
+			lastTimestamp = index.getLastTime();
+		} else {
+			this.index = null;
+			recover();
+		}
+	}
+
+	/**
+	 * Defaults {@link #index} to none, checking the records already in the file one by one
+	 * @param directory The directory of the log
+	 * @param baseSequence The sequence number of the segment's first record
+	 * @param capacity The size the file is mapped at, or at least if it is already larger
+	 * @throws IOException If the file cannot be created or mapped
+	 */
+	public LogSegment(File directory, long baseSequence, int capacity) throws IOException {
+		this(directory, baseSequence, capacity, null);
+	}
+
+	/**
+	 * Finds the records already in the file, stopping at the first that is incomplete or damaged
+	 */
+	private void recover() {
+		int position = 0;
+		int count = 0;
+		while(position + recordOverhead <= buffer.capacity()) {
+			int crc = buffer.getInt(position);
+			int length = buffer.getInt(position + 4);
+			if(length <= 0 || length > buffer.capacity() - position - recordOverhead || crc != checksum(position + recordOverhead, length))
+				break;
+			long timestamp = timestampAt(position);
+			if(count == 0)
+				firstTimestamp = timestamp;
+			lastTimestamp = timestamp;
+			position += recordOverhead + length;
+			count++;
+		}
+		end = position;
+		records = count;
+	}
+
+	/**
+	 * Checks whether a record of a given body length fits after the last record
+	 * @param length The length of the body
+	 * @return True if it fits
+	 */
+	public boolean fits(int length) {
+		return (long) end + recordOverhead + length <= buffer.capacity();
+	}
+
+	/**
+	 * Appends a record, which must fit, only called by one thread at a time
+	 * @param body The self-contained binary frame body
+	 * @param timestamp The date of the data in the body, in epoch milliseconds
+	 * @return The position of the record
+	 */
+	public int append(byte[] body, long timestamp) {
+		int position = end;
+		ByteBuffer target = buffer.duplicate();
+		target.position(position + recordOverhead);
+		target.put(body);
+		buffer.putInt(position + 4, body.length);
+		buffer.putInt(position, checksum(position + recordOverhead, body.length));
+		if(records == 0)
+			firstTimestamp = timestamp;
+		lastTimestamp = timestamp;
+		dirty = true;
+		records++;
+		end = position + recordOverhead + body.length;
+		return position;
+	}
+
+	/**
+	 * Computes the CRC-32 of bytes in the mapping
+	 * @param position The position of the first byte
+	 * @param length The number of bytes
+	 * @return The checksum
+	 */
+	private int checksum(int position, int length) {
+		ByteBuffer bytes = buffer.duplicate();
+		bytes.limit(position + length).position(position);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Reads the date of the record at a position without decoding the rest of it
+	 * @param position The position of the record
+	 * @return The date, in epoch milliseconds
+	 */
+	public long timestampAt(int position) {
+		return FrameCodec.dateOf(buffer, position + recordOverhead);
+	}
+
+	/**
+	 * Reads the user name of the record at a position without decoding the rest of it
+	 * @param position The position of the record
+	 * @return The user name
+	 */
+	public String userNameAt(int position) {
+		return FrameCodec.userNameOf(buffer, position + recordOverhead);
+	}
+
+	/**
+	 * Gets the length of the record at a position
+	 * @param position The position of the record
+	 * @return The number of bytes in the whole record
+	 */
+	public int recordLengthAt(int position) {
+		return recordOverhead + buffer.getInt(position + 4);
+	}
+
+	/**
+	 * Gets the frame of the record at a position as a view of the mapping
+	 * @param position The position of the record
+	 * @return A read-only buffer over the frame header and body
+	 */
+	public ByteBuffer frameAt(int position) {
+		ByteBuffer frame = buffer.asReadOnlyBuffer();
+		frame.limit(position + recordLengthAt(position)).position(position + 4);
+		return frame.slice();
+	}
+
+	/**
+	 * Writes every appended record to disk if any were appended since the last time
+	 * @return True if anything was written
+	 */
+	public synchronized boolean force() {
+		if(!dirty)
+			return false;
+		dirty = false;
+		buffer.force();
+		return true;
+	}
+
+	/**
+	 * Deletes the segment file. The mapping stays readable until no frame from it is left, since
+	 * the operating system keeps the pages of a deleted file while they are mapped
+	 * @return True if the file was deleted
+	 */
+	public boolean delete() {
+		return file.delete();
+	}
+
+	/**
+	 * Gets the index of the segment's records
+	 * @return index, null until it is set or built
+	 */
+	public LogIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Sets the index of the segment's records
+	 * @param index The index
+	 */
+	public void setIndex(LogIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Gets the segment file
+	 * @return file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the sequence number of the segment's first record
+	 * @return baseSequence
+	 */
+	public long getBaseSequence() {
+		return baseSequence;
+	}
+
+	/**
+	 * Gets the position after the last complete record, which is also the number of bytes used
+	 * @return end
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	/**
+	 * Gets the number of complete records
+	 * @return records
+	 */
+	public int getRecords() {
+		return records;
+	}
+
+	/**
+	 * Gets the date of the first record
+	 * @return firstTimestamp, in epoch milliseconds, 0 while the segment is empty
+	 */
+	public long getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	/**
+	 * Gets the date of the last record
+	 * @return lastTimestamp, in epoch milliseconds, 0 while the segment is empty
+	 */
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "LogSegment [file=" + file.getName() + ", records=" + records + ", end=" + end + ", capacity=" + buffer.capacity() + "]";
+	}
+
+}
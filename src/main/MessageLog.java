@@ -0,0 +1,621 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import data.FrameCodec;
+import data.SharedFrame;
+
+/**
+ * Append-only log of every message, file and file chunk relayed by the server, kept in a directory of
+ * {@link LogSegment}s so clients that join late can be replayed what they missed.
+ *
+ * Records are appended to the newest segment until it is full, when a new one is started. A
+ * background thread forces the segments written since its last pass to disk every
+ * {@link #syncMillis}, so one flush covers every record appended in between and appending never
+ * waits for the disk. Records appended in the last {@link #syncMillis} may be lost if the machine
+ * fails, but never records before them.
+ *
+ * Whole segments are deleted once their newest record is older than {@link #retainMillis} or the
+ * log has grown past {@link #retainBytes}, never the segment being appended to.
+ *
+ * Every record is dated with the time this server logged it, written into the record in place of
+ * the date its sender gave, so a sender's clock can never move a record out of the time range it
+ * was relayed in, and standbys copying the record index it under the same time.
+ *
+ * Each segment has a {@link LogIndex} finding its records by time and by user, so queries such as
+ * "messages from X between T1 and T2" binary search the segments and their indexes instead of
+ * reading every record. Only the index of the segment being appended to is held on the heap and
+ * rebuilt after a crash; the others are sealed to files when their segment fills.
+ *
+ * Replays and queries are read in order straight out of the mapped segments, and each record is
+ * handed out as a view of the mapping that binary clients are sent as it is
+ *
+ * @author Will Dunklin
+ *
+ */
+public class MessageLog {
+	/**
+	 * The default segment size is 16 MiB
+	 */
+	public static final int defaultSegmentBytes = 16 * 1024 * 1024;
+	/**
+	 * The default sync interval is 50 milliseconds
+	 */
+	public static final long defaultSyncMillis = 50;
+	/**
+	 * The most records one replay may send
+	 */
+	public static final int maxReplay = 10000;
+	/**
+	 * The directory holding the segments
+	 */
+	private File directory;
+	/**
+	 * The size new segments are created at
+	 */
+	private int segmentBytes;
+	/**
+	 * How long records are kept, in milliseconds, 0 to keep them regardless of age
+	 */
+	private long retainMillis;
+	/**
+	 * How many bytes of records are kept, 0 to keep them regardless of size
+	 */
+	private long retainBytes;
+	/**
+	 * How often appended records are forced to disk, in milliseconds, 0 to force every record as it is appended
+	 */
+	private long syncMillis;
+	/**
+	 * Every segment, oldest first, the last being appended to
+	 */
+	private ArrayList<LogSegment> segments;
+	/**
+	 * The sequence number the next record will get
+	 */
+	private long nextSequence;
+	/**
+	 * The number of times segments were forced to disk
+	 */
+	private long syncs;
+	/**
+	 * The number of segments deleted by retention
+	 */
+	private long segmentsDeleted;
+	/**
+	 * The thread forcing appended records to disk, null if every record is forced as it is appended
+	 */
+	private Thread syncer;
+	/**
+	 * Boolean signifier showing if the log is closed
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Initializes MessageLog instance variables, recovering the segments already in the directory
+	 * @param directory The directory holding the segments, created if missing
+	 * @param segmentBytes The size new segments are created at
+	 * @param retainMillis How long records are kept, in milliseconds, 0 to keep them regardless of age
+	 * @param retainBytes How many bytes of records are kept, 0 to keep them regardless of size
+	 * @param syncMillis How often appended records are forced to disk, in milliseconds, 0 to force every record
+	 * @throws IllegalArgumentException If the segment size is below 64 KiB or a limit is negative
+	 * @throws IOException If the directory or a segment cannot be opened
+	 */
+	public MessageLog(File directory, int segmentBytes, long retainMillis, long retainBytes, long syncMillis)
+			throws IllegalArgumentException, IOException {
+		if(segmentBytes < 64 * 1024 || retainMillis < 0 || retainBytes < 0 || syncMillis < 0)
+			throw new IllegalArgumentException("MessageLog cannot be initialized with those variables");
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create log directory " + directory);
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.retainMillis = retainMillis;
+		this.retainBytes = retainBytes;
+		this.syncMillis = syncMillis;
+		this.segments = new ArrayList<LogSegment>();
+		this.nextSequence = 0;
+		this.syncs = 0;
+		this.segmentsDeleted = 0;
+		this.closed = false;
+		recover();
+		this.syncer = null;
+		if(syncMillis > 0) {
+			syncer = new Thread(this::syncPeriodically, "clype-log-sync");
+			syncer.setDaemon(true);
+			syncer.start();
+		}
+	}
+
+	/**
+	 * Defaults {@link #segmentBytes} to {@link #defaultSegmentBytes}, keeps every record and
+	 * defaults {@link #syncMillis} to {@link #defaultSyncMillis}
+	 * @param directory The directory holding the segments, created if missing
+	 * @throws IOException If the directory or a segment cannot be opened
+	 */
+	public MessageLog(File directory) throws IOException {
+		this(directory, defaultSegmentBytes, 0, 0, defaultSyncMillis);
+	}
+
+	/**
+	 * Opens every segment in the directory in order, the last one at full size so it can be
+	 * appended to, and starts an empty one if there are none. Segments with a sealed index are
+	 * taken as the index describes them; the indexes of the others are rebuilt from their records,
+	 * and sealed unless the segment is the one being appended to
+	 * @throws IOException If a segment cannot be opened
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles((dir, name) -> name.matches("\\d{20}\\.log"));
+		Arrays.sort(files);
+		long floor = Long.MIN_VALUE;
+		for(int i = 0; i < files.length; i++) {
+			long base = Long.parseLong(files[i].getName().substring(0, 20));
+			boolean active = i == files.length - 1;
+			LogIndex index = active ? null : LogIndex.load(LogIndex.fileOf(directory, base));
+			LogSegment segment = new LogSegment(directory, base, active ? segmentBytes : 0, index);
+			if(segment.getIndex() == null) {
+				segment.setIndex(rebuild(segment, floor));
+				if(!active)
+					segment.getIndex().seal();
+			}
+			segments.add(segment);
+			floor = segment.getIndex().getLastTime();
+			nextSequence = base + segment.getRecords();
+		}
+		if(segments.isEmpty())
+			segments.add(newSegment(0, segmentBytes, floor));
+	}
+
+	/**
+	 * Builds the index of a segment by reading its records in order
+	 * @param segment The segment
+	 * @param floor The time of the previous segment's last record
+	 * @return The index, held on the heap
+	 */
+	private LogIndex rebuild(LogSegment segment, long floor) {
+		LogIndex index = new LogIndex(LogIndex.fileOf(directory, segment.getBaseSequence()), floor);
+		int position = 0;
+		for(int i = 0; i < segment.getRecords(); i++) {
+			int length = segment.recordLengthAt(position);
+			index.add(position, length, segment.timestampAt(position), segment.userNameAt(position));
+			position += length;
+		}
+		return index;
+	}
+
+	/**
+	 * Creates a segment and its empty index
+	 * @param baseSequence The sequence number of the segment's first record
+	 * @param capacity The size of the segment
+	 * @param floor The time of the previous segment's last record
+	 * @return The segment
+	 * @throws IOException If the segment cannot be created
+	 */
+	private LogSegment newSegment(long baseSequence, int capacity, long floor) throws IOException {
+		LogSegment segment = new LogSegment(directory, baseSequence, capacity);
+		segment.setIndex(new LogIndex(LogIndex.fileOf(directory, baseSequence), floor));
+		return segment;
+	}
+
+	/**
+	 * Appends a relayed message, file or file chunk to the log, dated when it is logged
+	 * @param frame The shared frame being broadcast
+	 * @return The record's sequence number, -1 if the log is closed or the record could not be written
+	 */
+	public long append(SharedFrame frame) {
+		long now = System.currentTimeMillis();
+		return append(frame.recordBody(now), now, frame.getData().getUserName());
+	}
+
+	/**
+	 * Appends a record copied from another server's log, as a standby does
+	 * @param body The record's self-contained binary frame body
+	 * @return The record's sequence number, -1 if the log is closed or the record could not be written
+	 */
+	public long append(byte[] body) {
+		ByteBuffer record = ByteBuffer.wrap(body);
+		return append(body, FrameCodec.dateOf(record, 0), FrameCodec.userNameOf(record, 0));
+	}
+
+	/**
+	 * Appends a record, waking every thread waiting for it in {@link #awaitAppend(long, long)}
+	 * @param body The record's self-contained binary frame body
+	 * @param timestamp The date of the record, in epoch milliseconds
+	 * @param userName The name of the record's user
+	 * @return The record's sequence number, -1 if the log is closed or the record could not be written
+	 */
+	private long append(byte[] body, long timestamp, String userName) {
+		LogSegment segment;
+		long sequence;
+		synchronized(this) {
+			if(closed)
+				return -1;
+			segment = segments.get(segments.size() - 1);
+			try {
+				if(!segment.fits(body.length))
+					segment = roll(body.length);
+			} catch(IOException ioe) {
+				System.err.println("An error occurred. " + ioe.getMessage());
+				return -1;
+			}
+			int position = segment.append(body, timestamp);
+			segment.getIndex().add(position, body.length + LogSegment.recordOverhead, timestamp, userName);
+			sequence = nextSequence++;
+			notifyAll();
+		}
+		if(syncer == null)
+			sync();
+		return sequence;
+	}
+
+	/**
+	 * Starts a new segment, forcing the full one to disk and sealing its index first, then applying
+	 * retention. A record larger than {@link #segmentBytes} gets a segment of its own, just big enough.
+	 * If the index cannot be sealed it stays on the heap and is rebuilt the next time the log is opened
+	 * @param length The length of the record body that did not fit
+	 * @return The new segment
+	 * @throws IOException If the segment cannot be created
+	 */
+	private LogSegment roll(int length) throws IOException {
+		LogSegment full = segments.get(segments.size() - 1);
+		full.force();
+		try {
+			full.getIndex().seal();
+		} catch(IOException ioe) {
+			System.err.println("An error occurred. " + ioe.getMessage());
+		}
+		LogSegment segment = newSegment(nextSequence, Math.max(segmentBytes, length + LogSegment.recordOverhead),
+				full.getIndex().getLastTime());
+		segments.add(segment);
+		retain();
+		return segment;
+	}
+
+	/**
+	 * Moves the log on to a later sequence number, as a standby does when the records before it were
+	 * deleted from the log it copies before they could be sent. The next record starts a new segment,
+	 * replacing the one being appended to if it is still empty
+	 * @param sequence The sequence number the next record will get
+	 * @throws IOException If the new segment cannot be created
+	 */
+	public synchronized void skipTo(long sequence) throws IOException {
+		if(closed || sequence <= nextSequence)
+			return;
+		LogSegment last = segments.get(segments.size() - 1);
+		long floor = last.getIndex().getLastTime();
+		if(last.getRecords() == 0) {
+			segments.remove(segments.size() - 1);
+			last.getIndex().delete();
+			last.delete();
+		} else {
+			last.force();
+			try {
+				last.getIndex().seal();
+			} catch(IOException ioe) {
+				System.err.println("An error occurred. " + ioe.getMessage());
+			}
+		}
+		segments.add(newSegment(sequence, segmentBytes, floor));
+		nextSequence = sequence;
+	}
+
+	/**
+	 * Deletes the oldest segments past {@link #retainMillis} or {@link #retainBytes}, never the one being appended to
+	 */
+	private synchronized void retain() {
+		long bytes = 0;
+		for(LogSegment segment : segments)
+			bytes += segment.getEnd();
+		long oldest = retainMillis == 0 ? Long.MIN_VALUE : System.currentTimeMillis() - retainMillis;
+		while(segments.size() > 1) {
+			LogSegment segment = segments.get(0);
+			boolean tooOld = segment.getLastTimestamp() < oldest;
+			boolean tooBig = retainBytes > 0 && bytes > retainBytes;
+			if(!tooOld && !tooBig)
+				break;
+			segments.remove(0);
+			bytes -= segment.getEnd();
+			segmentsDeleted++;
+			boolean deleted = segment.getIndex().delete();
+			if(!segment.delete() || !deleted)
+				System.err.println("An error occurred. Cannot delete " + segment.getFile());
+		}
+	}
+
+	/**
+	 * Forces every record appended so far to disk
+	 */
+	public void sync() {
+		LogSegment[] snapshot;
+		synchronized(this) {
+			snapshot = segments.toArray(new LogSegment[segments.size()]);
+		}
+		boolean forced = false;
+		for(LogSegment segment : snapshot)
+			forced |= segment.force();
+		if(forced) {
+			synchronized(this) {
+				syncs++;
+			}
+		}
+	}
+
+	/**
+	 * Waits until a record is appended, or for at most a while
+	 * @param sequence The sequence number of the record waited for
+	 * @param millis The most milliseconds waited
+	 * @return True if the record has been appended
+	 * @throws InterruptedException If the waiting thread is interrupted
+	 */
+	public synchronized boolean awaitAppend(long sequence, long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		long left = millis;
+		while(nextSequence <= sequence && !closed && left > 0) {
+			wait(left);
+			left = deadline - System.currentTimeMillis();
+		}
+		return nextSequence > sequence;
+	}
+
+	/**
+	 * Forces appended records to disk every {@link #syncMillis} and applies retention, until the log is closed
+	 */
+	private void syncPeriodically() {
+		while(!closed) {
+			try {
+				Thread.sleep(syncMillis);
+			} catch(InterruptedException ie) {
+				break;
+			}
+			sync();
+			if(retainMillis > 0)
+				retain();
+		}
+	}
+
+	/**
+	 * Answers a replay request: "last N" for the newest N records or "since T" for every record
+	 * dated at or after T, in epoch milliseconds. Either way no more than {@link #maxReplay} of the
+	 * newest matching records are returned
+	 * @param request The request
+	 * @return The frames of the records, oldest first
+	 * @throws IllegalArgumentException If the request is malformed
+	 */
+	public List<ByteBuffer> replay(String request) throws IllegalArgumentException {
+		String[] parts = request == null ? new String[0] : request.trim().split("\\s+");
+		try {
+			if(parts.length == 2 && parts[0].equalsIgnoreCase("last"))
+				return last(Integer.parseInt(parts[1]));
+			if(parts.length == 2 && parts[0].equalsIgnoreCase("since"))
+				return since(Long.parseLong(parts[1]));
+		} catch(NumberFormatException nfe) {
+			throw new IllegalArgumentException("Replay count or time entered incorrectly.");
+		}
+		throw new IllegalArgumentException("Replay must be \"last N\" or \"since T\"");
+	}
+
+	/**
+	 * Reads the newest records
+	 * @param count The number of records, at most {@link #maxReplay}
+	 * @return The frames of the records, oldest first
+	 * @throws IllegalArgumentException If count is negative
+	 */
+	public List<ByteBuffer> last(int count) throws IllegalArgumentException {
+		if(count < 0)
+			throw new IllegalArgumentException("Replay count cannot be negative");
+		long first;
+		synchronized(this) {
+			first = seek(Math.max(nextSequence - Math.min(count, maxReplay), segments.get(0).getBaseSequence()));
+		}
+		return read(first, count);
+	}
+
+	/**
+	 * Reads records in order from a sequence number on, finding the first one through its segment's
+	 * index so the records before it are not read. Reading stops at the first sequence number not
+	 * kept, such as those skipped by {@link #skipTo(long)}
+	 * @param first The sequence number of the first record
+	 * @param count The most records read
+	 * @return The frames of the records, oldest first, empty if the first record is not kept or not appended yet
+	 */
+	public List<ByteBuffer> read(long first, int count) {
+		LogSegment[] snapshot;
+		long end;
+		synchronized(this) {
+			snapshot = segments.toArray(new LogSegment[segments.size()]);
+			end = nextSequence;
+		}
+		end = Math.min(end, first + count);
+		List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+		long sequence = first;
+		for(LogSegment segment : snapshot) {
+			long base = segment.getBaseSequence();
+			int records = segment.getRecords();
+			if(base + records <= sequence)
+				continue;
+			if(base > sequence || sequence >= end)
+				break;
+			int position = segment.getIndex().positionOf(segment, (int) (sequence - base));
+			for(; sequence < base + records && sequence < end; sequence++) {
+				frames.add(segment.frameAt(position));
+				position += segment.recordLengthAt(position);
+			}
+		}
+		return frames;
+	}
+
+	/**
+	 * Finds the first record kept at or after a sequence number
+	 * @param sequence The sequence number
+	 * @return sequence if its record is kept or not appended yet, otherwise the sequence number of the next record kept
+	 */
+	public synchronized long seek(long sequence) {
+		for(LogSegment segment : segments) {
+			if(sequence < segment.getBaseSequence())
+				return segment.getBaseSequence();
+			if(sequence < segment.getBaseSequence() + segment.getRecords())
+				return sequence;
+		}
+		return sequence;
+	}
+
+	/**
+	 * Reads the records indexed at or after a time
+	 * @param timestamp The time, in epoch milliseconds
+	 * @return The frames of the newest {@link #maxReplay} of the records, oldest first
+	 */
+	public List<ByteBuffer> since(long timestamp) {
+		ArrayDeque<ByteBuffer> frames = new ArrayDeque<ByteBuffer>();
+		range(null, timestamp, Long.MAX_VALUE, frame -> {
+			if(frames.size() == maxReplay)
+				frames.removeFirst();
+			return frames.add(frame);
+		});
+		return new ArrayList<ByteBuffer>(frames);
+	}
+
+	/**
+	 * Answers a query request: "from T1 to T2" for every record indexed between two times, in epoch
+	 * milliseconds, optionally followed by "user NAME" for only that user's records. No more than
+	 * {@link #maxReplay} of the oldest matching records are returned, so a client reads a long range
+	 * by asking again from the time of the last record it was sent
+	 * @param request The request
+	 * @return The frames of the records, oldest first
+	 * @throws IllegalArgumentException If the request is malformed
+	 */
+	public List<ByteBuffer> query(String request) throws IllegalArgumentException {
+		String[] parts = request == null ? new String[0] : request.trim().split("\\s+", 6);
+		if((parts.length == 4 || parts.length == 6) && parts[0].equalsIgnoreCase("from") && parts[2].equalsIgnoreCase("to")
+				&& (parts.length == 4 || parts[4].equalsIgnoreCase("user"))) {
+			try {
+				return query(parts.length == 6 ? parts[5] : null, Long.parseLong(parts[1]), Long.parseLong(parts[3]));
+			} catch(NumberFormatException nfe) {
+				throw new IllegalArgumentException("Query times entered incorrectly.");
+			}
+		}
+		throw new IllegalArgumentException("Query must be \"from T1 to T2\" or \"from T1 to T2 user NAME\"");
+	}
+
+	/**
+	 * Reads the records indexed between two times
+	 * @param userName The name of the user whose records are wanted, null for every user's
+	 * @param from The earliest time, in epoch milliseconds
+	 * @param to The latest time, in epoch milliseconds
+	 * @return The frames of the oldest {@link #maxReplay} of the records, oldest first
+	 */
+	public List<ByteBuffer> query(String userName, long from, long to) {
+		List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+		range(userName, from, to, frame -> frames.add(frame) && frames.size() < maxReplay);
+		return frames;
+	}
+
+	/**
+	 * Finds the records indexed between two times, binary searching for the first segment that
+	 * may hold one and reading each segment's index from there on
+	 * @param userName The name of the user whose records are wanted, null for every user's
+	 * @param from The earliest time, in epoch milliseconds
+	 * @param to The latest time, in epoch milliseconds
+	 * @param sink Takes the frame of each record found, oldest first, returning false to stop
+	 */
+	private void range(String userName, long from, long to, Predicate<ByteBuffer> sink) {
+		LogSegment[] snapshot;
+		synchronized(this) {
+			snapshot = segments.toArray(new LogSegment[segments.size()]);
+		}
+		int low = 0;
+		int high = snapshot.length;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(snapshot[middle].getIndex().getLastTime() < from)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		for(int i = low; i < snapshot.length; i++) {
+			LogIndex index = snapshot[i].getIndex();
+			if(index.getFirstTime() > to || !index.range(snapshot[i], userName, from, to, sink))
+				return;
+		}
+	}
+
+	/**
+	 * Forces every appended record to disk and stops appending and syncing
+	 */
+	public void close() {
+		synchronized(this) {
+			if(closed)
+				return;
+			closed = true;
+		}
+		if(syncer != null)
+			syncer.interrupt();
+		sync();
+	}
+
+	/**
+	 * Gets the directory holding the segments
+	 * @return directory
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Gets the number of records appended since the log was first created, including deleted ones
+	 * @return The next sequence number
+	 */
+	public synchronized long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * Gets the number of segments
+	 * @return The number of segments, including the one being appended to
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Gets the number of bytes of records kept
+	 * @return The number of bytes
+	 */
+	public synchronized long getBytes() {
+		long bytes = 0;
+		for(LogSegment segment : segments)
+			bytes += segment.getEnd();
+		return bytes;
+	}
+
+	/**
+	 * Gets the number of times appended records were forced to disk, each covering every record appended since the last
+	 * @return syncs
+	 */
+	public synchronized long getSyncs() {
+		return syncs;
+	}
+
+	/**
+	 * Gets the number of segments deleted by retention
+	 * @return segmentsDeleted
+	 */
+	public synchronized long getSegmentsDeleted() {
+		return segmentsDeleted;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public synchronized String toString() {
+		return "MessageLog [directory=" + directory + ", segments=" + segments.size() + ", records=" + nextSequence
+				+ ", bytes=" + getBytes() + ", segmentsDeleted=" + segmentsDeleted + ", syncs=" + syncs + "]";
+	}
+
+}
@@ -0,0 +1,672 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import data.ClypeData;
+import data.Compression;
+import data.FileChunkClypeData;
+import data.FrameCodec;
+import data.Handshake;
+import data.SharedFrame;
+
+/**
+ * Serves a single ClypeClient on the server with non-blocking I/O from a {@link ClypeEventLoop}.
+ *
+ * The first frame from the client is its {@link Handshake}; frames sent to the client before it
+ * completes are dropped. Partial reads are kept in {@link #header} and {@link #body} until the rest
+ * of the frame arrives and partial writes stay at the head of {@link #outbound} until the socket
+ * accepts more, so neither ever blocks the loop.
+ *
+ * Binary file chunks longer than {@link ChunkSpooler#prefixLength} are never held on the heap: once
+ * their fields are decoded, the payload is written from the loop's read buffer into a
+ * {@link FileSpool} as it arrives and relayed to every client from there.
+ *
+ * Every frame read and written is counted in the hub's {@link ServerMetrics}, and a relayed
+ * frame's latency is recorded once the gathering write carrying it returns.
+ *
+ * An idle connection holds no buffers of its own. Measured with BenchNioFootprint on a 64-bit
+ * JDK with compressed oops, an idle connection costs about 1 KiB of Java heap (this object, its
+ * empty queue, the SocketChannel and its SelectionKey) on top of the kernel's socket buffers
+ *
+ * @author Will Dunklin
+ *
+ */
+public class NioClientConnection implements ClientConnection {
+	/**
+	 * The server this client is connected to
+	 */
+	private ClypeServer server;
+	/**
+	 * The event loop that owns this connection
+	 */
+	private ClypeEventLoop loop;
+	/**
+	 * The channel connected to the client
+	 */
+	private SocketChannel channel;
+	/**
+	 * The channel's registration with the loop's selector
+	 */
+	private SelectionKey key;
+	/**
+	 * Encodes and decodes frames in the format agreed with the client, null until the handshake completes
+	 */
+	private volatile FrameCodec codec;
+	/**
+	 * The name the client connected with, null until the handshake completes
+	 */
+	private volatile String userName;
+	/**
+	 * The hello of a client connecting under a reserved name, held until it answers its challenge, only used by the loop
+	 */
+	private Handshake challenged;
+	/**
+	 * The nonce the client was challenged with, only used by the loop
+	 */
+	private byte[] nonce;
+	/**
+	 * Frames waiting to be written to the client, the head may be partially written
+	 */
+	private OutboundQueue outbound;
+	/**
+	 * Whether this connection is already waiting for the loop to flush it
+	 */
+	private AtomicBoolean flushScheduled;
+	/**
+	 * The partially received frame header, null until a frame first arrives
+	 */
+	private ByteBuffer header;
+	/**
+	 * The partially received body, or the first bytes of a possible chunk, null while reading a header
+	 */
+	private ByteBuffer body;
+	/**
+	 * The length of the frame being received
+	 */
+	private int frameLength;
+	/**
+	 * Whether {@link #body} only holds the first bytes of a frame that may be a spoolable chunk
+	 */
+	private boolean bodyIsPrefix;
+	/**
+	 * The spools of the files this client is streaming, null until its first spooled chunk
+	 */
+	private ChunkSpooler spooler;
+	/**
+	 * The chunk whose payload is being spooled, null otherwise
+	 */
+	private SpooledChunk spooling;
+	/**
+	 * The number of payload bytes written to {@link #spooling} so far
+	 */
+	private int spooled;
+	/**
+	 * Boolean signifier showing if the connection should close once its queued frames are written
+	 */
+	private boolean closeAfterFlush;
+	/**
+	 * Boolean signifier showing if the connection is closed, set once by whichever thread closes it first
+	 */
+	private AtomicBoolean closeConnection;
+	/**
+	 * What the client has sent and been sent
+	 */
+	private ConnectionStats stats;
+	/**
+	 * What the client wants relayed to it, null for every relayed data
+	 */
+	private volatile SubscriptionFilter filter;
+	/**
+	 * Where frames read and written are counted
+	 */
+	private ServerMetrics metrics;
+
+	/**
+	 * Initializes NioClientConnection instance variables
+	 * @param server The server this client is connected to
+	 * @param loop The event loop that owns this connection
+	 * @param channel The channel connected to the client
+	 * @param key The channel's registration with the loop's selector
+	 */
+	public NioClientConnection(ClypeServer server, ClypeEventLoop loop, SocketChannel channel, SelectionKey key) {
+		this.server = server;
+		this.loop = loop;
+		this.channel = channel;
+		this.key = key;
+		this.codec = null;
+		this.userName = null;
+		this.outbound = server.newOutboundQueue();
+		this.flushScheduled = new AtomicBoolean(false);
+		this.header = null;
+		this.body = null;
+		this.frameLength = 0;
+		this.bodyIsPrefix = false;
+		this.spooler = null;
+		this.spooling = null;
+		this.spooled = 0;
+		this.closeAfterFlush = false;
+		this.closeConnection = new AtomicBoolean(false);
+		this.stats = new ConnectionStats();
+		this.filter = null;
+		this.metrics = server.getHub().getMetrics();
+	}
+
+	/**
+	 * Queues data to be sent to the client, callable from any thread
+	 * @param data The data to be sent to the client
+	 */
+	@Override
+	public void send(ClypeData data) {
+		if(closeConnection.get() || codec == null)
+			return;
+		try {
+			synchronized(this) {
+				boolean named = !codec.knows(data.getUserName());
+				long start = System.nanoTime();
+				byte[] body = codec.encode(data);
+				metrics.encoded(System.nanoTime() - start);
+				queue(new OutboundFrame(frameOf(body)).forType(data.getType(), named));
+			}
+		} catch(IOException ioe) {
+			System.err.println("An error occurred. " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Queues a shared frame to be sent to the client, callable from any thread
+	 * @param frame The shared frame to be sent to the client
+	 */
+	@Override
+	public void sendShared(SharedFrame frame) {
+		if(closeConnection.get() || codec == null)
+			return;
+		try {
+			synchronized(this) {
+				boolean named = !codec.knows(frame.getData().getUserName());
+				queue(new OutboundFrame(codec.frameOf(frame), frame).forType(frame.getData().getType(), named));
+			}
+		} catch(IOException ioe) {
+			System.err.println("An error occurred. " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Queues a spooled file chunk to be sent to the client, callable from any thread.
+	 *
+	 * Binary clients get the payload transferred straight from the spool to the socket; serial
+	 * clients are sent the chunk read back onto the heap
+	 * @param chunk The spooled chunk to be sent to the client
+	 */
+	@Override
+	public void sendSpooled(SpooledChunk chunk) {
+		if(closeConnection.get() || codec == null)
+			return;
+		if(codec.getFormat() != FrameCodec.binary) {
+			try {
+				send(chunk.load());
+			} catch(IOException ioe) {
+				System.err.println("An error occurred. " + ioe.getMessage());
+			}
+			return;
+		}
+		synchronized(this) {
+			queue(new OutboundFrame(chunk.frameHeader(codec), chunk));
+		}
+	}
+
+	/**
+	 * Queues a record of the server's message log to be sent to the client, callable from any thread.
+	 *
+	 * Binary clients are sent the record straight from the log; serial clients are sent it decoded
+	 * onto the heap
+	 * @param frame The frame header and body, a view of the log
+	 */
+	@Override
+	public void sendLogged(ByteBuffer frame) {
+		if(closeConnection.get() || codec == null)
+			return;
+		if(codec.getFormat() != FrameCodec.binary) {
+			try {
+				send(FrameCodec.decodeRecord(frame));
+			} catch(IOException ioe) {
+				System.err.println("An error occurred. " + ioe.getMessage());
+			}
+			return;
+		}
+		synchronized(this) {
+			queue(new OutboundFrame(frame).forType(frame.get(frame.position() + FrameCodec.headerLength), true));
+		}
+	}
+
+	/**
+	 * Puts a frame header in front of an encoded body
+	 * @param body The encoded body
+	 * @return The frame, ready to be written
+	 */
+	private static ByteBuffer frameOf(byte[] body) {
+		ByteBuffer frame = ByteBuffer.allocate(FrameCodec.headerLength + body.length);
+		frame.putInt(body.length).put(body).flip();
+		return frame;
+	}
+
+	/**
+	 * Queues a frame and makes sure the loop will flush it, disconnecting the client if its queue overflows.
+	 * Never waits for room, since frames are queued by event loops, which are what empty the queues
+	 * @param frame The frame
+	 */
+	private void queue(OutboundFrame frame) {
+		if(!outbound.offer(frame, false)) {
+			System.err.println("Client too slow, disconnecting.");
+			close();
+			return;
+		}
+		if(closeConnection.get()) {
+			outbound.clear();
+			return;
+		}
+		if(flushScheduled.compareAndSet(false, true))
+			loop.scheduleFlush(this);
+	}
+
+	/**
+	 * Writes as many queued frames as the socket accepts without blocking, only called by the loop.
+	 * Frames are taken from the queue in batches and each batch goes out with one gathering write
+	 * @param batch The loop's array for the frames of a batch
+	 * @param buffers The loop's array for the buffers of a batch
+	 */
+	void flush(OutboundFrame[] batch, ByteBuffer[] buffers) {
+		flushScheduled.set(false);
+		if(closeConnection.get()) {
+			releaseSpools();
+			return;
+		}
+		try {
+			int frames;
+			while((frames = outbound.peekBatch(batch)) > 0) {
+				int count = 0;
+				for(int i = 0; i < frames; i++) {
+					int next = batch[i].gather(buffers, count);
+					if(next < 0) {
+						frames = Math.max(i, 1);
+						break;
+					}
+					count = next;
+				}
+				if(count > 0)
+					channel.write(buffers, 0, count);
+				Arrays.fill(buffers, 0, count, null);
+				int written = writeBatch(batch, frames);
+				Arrays.fill(batch, null);
+				outbound.getFlushPolicy().flushed(written);
+				if(written < frames) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			if(closeAfterFlush) {
+				close();
+				return;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch(IOException ioe) {
+			close();
+		} catch(CancelledKeyException cke) {
+			// closed by another thread, e.g. the federation shutting down, while the loop was writing
+			close();
+		}
+	}
+
+	/**
+	 * Finishes writing a batch after its gathering write, transferring any spooled payload and
+	 * removing every frame written in full from the queue
+	 * @param batch The frames of the batch, in queue order
+	 * @param frames The number of frames in the batch
+	 * @return The number of frames written in full, less than frames if the socket would not take the whole batch
+	 * @throws IOException If the channel or spool fails
+	 */
+	private int writeBatch(OutboundFrame[] batch, int frames) throws IOException {
+		long now = 0;
+		for(int i = 0; i < frames; i++) {
+			if(!batch[i].writeTo(channel))
+				return i;
+			outbound.poll();
+			metrics.sent(stats, batch[i].getType(), batch[i].getLength());
+			if(batch[i].getReceivedAt() != 0) {
+				if(now == 0)
+					now = System.nanoTime();
+				metrics.relayed(batch[i].getReceivedAt(), now);
+			}
+			batch[i].release();
+		}
+		return frames;
+	}
+
+	/**
+	 * Reads whatever the socket holds and handles every frame completed by it, only called by the loop
+	 * @param readBuffer The loop's shared read buffer
+	 */
+	void onReadable(ByteBuffer readBuffer) {
+		try {
+			readBuffer.clear();
+			if(channel.read(readBuffer) < 0) {
+				close();
+				return;
+			}
+			readBuffer.flip();
+			while(readBuffer.hasRemaining() && !closeConnection.get()) {
+				if(spooling != null) {
+					spool(readBuffer);
+					continue;
+				}
+				if(body == null) {
+					if(header == null)
+						header = ByteBuffer.allocate(FrameCodec.headerLength);
+					if(!fill(header, readBuffer))
+						break;
+					header.flip();
+					frameLength = FrameCodec.checkLength(header.getInt(), codec == null ? Handshake.maxLength : FrameCodec.maxFrameLength);
+					header.clear();
+					bodyIsPrefix = codec != null && codec.getFormat() == FrameCodec.binary
+							&& frameLength > ChunkSpooler.prefixLength;
+					body = ByteBuffer.allocate(bodyIsPrefix ? ChunkSpooler.prefixLength : frameLength);
+				}
+				if(!fill(body, readBuffer))
+					break;
+				if(bodyIsPrefix) {
+					startSpooling();
+					continue;
+				}
+				ByteBuffer complete = body;
+				body = null;
+				receiveFrame(complete.array(), 0, complete.limit());
+			}
+		} catch(IOException ioe) {
+			System.err.println("An error occurred.");
+			close();
+		}
+	}
+
+	/**
+	 * Copies as many bytes as fit from the read buffer into a partial buffer
+	 * @param target The partial buffer
+	 * @param readBuffer The loop's read buffer
+	 * @return True if the partial buffer is now full
+	 */
+	private static boolean fill(ByteBuffer target, ByteBuffer readBuffer) {
+		int count = Math.min(target.remaining(), readBuffer.remaining());
+		int limit = readBuffer.limit();
+		readBuffer.limit(readBuffer.position() + count);
+		target.put(readBuffer);
+		readBuffer.limit(limit);
+		return !target.hasRemaining();
+	}
+
+	/**
+	 * Inspects the first bytes of a long frame and starts spooling its payload if it is a file
+	 * chunk, otherwise goes on receiving the whole frame
+	 * @throws IOException If the frame is malformed or the spool cannot be written
+	 */
+	private void startSpooling() throws IOException {
+		int prefix = codec.chunkPrefixLength(body.array(), 0, body.capacity());
+		if(prefix < 0) {
+			ByteBuffer full = ByteBuffer.allocate(frameLength);
+			body.flip();
+			full.put(body);
+			body = full;
+			bodyIsPrefix = false;
+			return;
+		}
+		FileChunkClypeData metadata = (FileChunkClypeData) codec.decode(body.array(), 0, prefix);
+		if(spooler == null)
+			spooler = new ChunkSpooler(server.getSpoolDirectory());
+		spooling = spooler.begin(metadata, frameLength - prefix);
+		body.flip().position(prefix);
+		spooled = body.remaining();
+		spooling.getSpool().write(body, spooling.getPosition());
+		body = null;
+		if(spooled == spooling.getLength())
+			finishSpooling();
+	}
+
+	/**
+	 * Writes the next part of a chunk's payload from the read buffer to its spool
+	 * @param readBuffer The loop's read buffer
+	 * @throws IOException If the spool cannot be written
+	 */
+	private void spool(ByteBuffer readBuffer) throws IOException {
+		int count = Math.min(spooling.getLength() - spooled, readBuffer.remaining());
+		int limit = readBuffer.limit();
+		readBuffer.limit(readBuffer.position() + count);
+		spooling.getSpool().write(readBuffer, spooling.getPosition() + spooled);
+		readBuffer.limit(limit);
+		spooled += count;
+		if(spooled == spooling.getLength())
+			finishSpooling();
+	}
+
+	/**
+	 * Relays a fully spooled chunk to every client
+	 */
+	private void finishSpooling() {
+		SpooledChunk chunk = spooling;
+		spooling = null;
+		metrics.received(stats, ClypeData.chunk, FrameCodec.headerLength + frameLength, 0);
+		server.getLogger().log(ServerLogger.spooled, userName, ClypeData.chunk, FrameCodec.headerLength + frameLength, chunk.getMetadata().getFileName());
+		server.getHub().relaySpooled(this, chunk);
+		spooler.finish(chunk);
+		paceBulk();
+	}
+
+	/**
+	 * Stops reading from the client after it sent file data while some client, or a link to another
+	 * node the data is forwarded over, is out of bulk credit, until the loop sees the credit return
+	 */
+	private void paceBulk() {
+		if(!closeAfterFlush && !server.getHub().hasBulkCredit(this)) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			loop.pause(this);
+		}
+	}
+
+	/**
+	 * Reads from the client again after {@link #paceBulk()}, only called by the loop
+	 */
+	void resumeReading() {
+		if(!closeConnection.get() && !closeAfterFlush && key.isValid())
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Handles one complete frame, the first being the client's hello, followed by its answer to a
+	 * challenge if it connects under a reserved name
+	 * @param body The buffer holding the frame body
+	 * @param offset The index of the first byte of the body
+	 * @param length The number of bytes in the body
+	 * @throws IOException If the frame is malformed
+	 */
+	private void receiveFrame(byte[] body, int offset, int length) throws IOException {
+		if(codec != null) {
+			long receivedAt = System.nanoTime();
+			ClypeData data = codec.decode(body, offset, length);
+			metrics.received(stats, data.getType(), FrameCodec.headerLength + length, System.nanoTime() - receivedAt);
+			server.getLogger().received(data, FrameCodec.headerLength + length);
+			receiveData(data, receivedAt);
+			return;
+		}
+		metrics.received(stats, -1, FrameCodec.headerLength + length, 0);
+		Handshake hello;
+		boolean admitted;
+		if(challenged != null) {
+			hello = challenged;
+			admitted = server.getHub().admits(hello, nonce, Arrays.copyOfRange(body, offset, offset + length));
+			challenged = null;
+			nonce = null;
+		} else {
+			hello = Handshake.decode(body, offset, length);
+			if(server.getHub().reserves(hello.getUserName())) {
+				challenged = hello;
+				nonce = Handshake.newNonce();
+				queue(new OutboundFrame(frameOf(Handshake.encodeChallenge(nonce))));
+				return;
+			}
+			admitted = true;
+		}
+		int format = admitted ? hello.choose(server.getFormats()) : Handshake.refused;
+		if(format == Handshake.refused) {
+			closeAfterFlush = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			queue(new OutboundFrame(frameOf(Handshake.encodeReply(format, 0))));
+			return;
+		}
+		int userId = server.getUsers().intern(hello.getUserName());
+		int compression = format == FrameCodec.binary ? hello.chooseCompression(server.getCompressions()) : Compression.none;
+		synchronized(this) {
+			queue(new OutboundFrame(frameOf(hello.getCompressions() == 0 ? Handshake.encodeReply(format, userId)
+					: Handshake.encodeReply(format, userId, compression))));
+			userName = hello.getUserName();
+			codec = server.newCodec(format, compression);
+		}
+		server.getHub().joined(this);
+	}
+
+	/**
+	 * Handles one frame received from the client
+	 * @param dataToReceiveFromClient The decoded data
+	 * @param receivedAt The {@link System#nanoTime()} the frame was received at
+	 */
+	private void receiveData(ClypeData dataToReceiveFromClient, long receivedAt) {
+		if(dataToReceiveFromClient.getType() == ClypeData.exit) {
+			closeAfterFlush = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			send(dataToReceiveFromClient);
+		} else if(dataToReceiveFromClient.getType() == ClypeData.list) {
+			server.getHub().listUsers(this, dataToReceiveFromClient);
+		} else if(dataToReceiveFromClient.getType() == ClypeData.replay || dataToReceiveFromClient.getType() == ClypeData.query) {
+			server.getHub().replay(this, dataToReceiveFromClient);
+		} else if(dataToReceiveFromClient.getType() == ClypeData.stats) {
+			server.getHub().stats(this, dataToReceiveFromClient);
+		} else if(dataToReceiveFromClient.getType() == ClypeData.rooms) {
+			server.getHub().rooms(this, dataToReceiveFromClient);
+		} else if(dataToReceiveFromClient.getType() == ClypeData.filter) {
+			server.getHub().filter(this, dataToReceiveFromClient);
+		} else if(dataToReceiveFromClient.getType() == ClypeData.replica) {
+			server.getHub().replica(this, dataToReceiveFromClient);
+		} else {
+			server.getHub().relay(this, dataToReceiveFromClient, receivedAt);
+			if(dataToReceiveFromClient.getType() == ClypeData.file || dataToReceiveFromClient.getType() == ClypeData.chunk)
+				paceBulk();
+		}
+	}
+
+	/**
+	 * Closes the connection to the client, callable from any thread. The spools of files the client
+	 * was streaming are only let go of by the loop, which is the only thread using them, so a close
+	 * from another thread hands that to the loop as pending writes are
+	 */
+	@Override
+	public void close() {
+		if(!closeConnection.compareAndSet(false, true))
+			return;
+		server.getHub().remove(this);
+		key.cancel();
+		try {
+			channel.close();
+		} catch(IOException ioe) {
+			System.err.println("An error occurred.");
+		}
+		outbound.close();
+		if(loop.isLoopThread())
+			releaseSpools();
+		else
+			loop.scheduleFlush(this);
+	}
+
+	/**
+	 * Lets go of the spools of files the client was streaming once it is closed, only called by the loop
+	 */
+	private void releaseSpools() {
+		spooling = null;
+		if(spooler != null)
+			spooler.closeAll();
+	}
+
+	/**
+	 * Gets what the client has sent and been sent
+	 * @return stats
+	 */
+	@Override
+	public ConnectionStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Gets what the client wants relayed to it
+	 * @return filter, null if every relayed data is wanted
+	 */
+	@Override
+	public SubscriptionFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Sets what the client wants relayed to it
+	 * @param filter The filter, null to relay every data
+	 */
+	@Override
+	public void setFilter(SubscriptionFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Gets the name the client connected with
+	 * @return userName, null until the handshake completes
+	 */
+	@Override
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * Gets the payload compression agreed with the client
+	 * @return The compression, null if none was agreed or the handshake has not completed
+	 */
+	@Override
+	public Compression getCompression() {
+		FrameCodec codec = this.codec;
+		return codec == null ? null : codec.getCompression();
+	}
+
+	/**
+	 * Gets the frames waiting to be written to the client
+	 * @return outbound
+	 */
+	@Override
+	public OutboundQueue getOutbound() {
+		return outbound;
+	}
+
+	/**
+	 * Checks whether the connection to the client is closed
+	 * @return closeConnection
+	 */
+	@Override
+	public boolean isClosed() {
+		return closeConnection.get();
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "NioClientConnection [closeConnection=" + closeConnection.get() + ", remoteAddress="
+				+ channel.socket().getRemoteSocketAddress() + ", outbound=" + outbound + "]";
+	}
+
+}
@@ -0,0 +1,248 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import data.ClypeData;
+import data.SharedFrame;
+
+/**
+ * A frame queued for a non-blocking connection: bytes on the heap, optionally followed by a
+ * payload transferred straight from a {@link FileSpool}.
+ *
+ * The heap bytes may be split over several buffers, such as a {@link SharedFrame}'s head and the
+ * payload shared by every recipient, which are written together with one gathering write.
+ * Remembers how much has been written so a partially written frame can be resumed
+ *
+ * @author Will Dunklin
+ *
+ */
+public class OutboundFrame {
+	/**
+	 * The bytes written first, the whole frame unless it has a spooled payload
+	 */
+	private ByteBuffer[] buffers;
+	/**
+	 * The shared frame the buffers belong to, null if there is none
+	 */
+	private SharedFrame shared;
+	/**
+	 * The spooled payload written after the buffer, null if there is none
+	 */
+	private SpooledChunk region;
+	/**
+	 * The number of payload bytes written so far
+	 */
+	private long regionWritten;
+	/**
+	 * The number of bytes in the whole frame
+	 */
+	private long length;
+	/**
+	 * Whether the frame may be dropped for a slow client, only true for text messages
+	 */
+	private boolean droppable;
+	/**
+	 * Whether the frame is bulk file data, sent after every queued control and text frame
+	 */
+	private boolean bulk;
+	/**
+	 * The {@link System#nanoTime()} the frame was queued at
+	 */
+	private long queuedAt;
+	/**
+	 * The type of the data in the frame, one of the {@link ClypeData} types, -1 if it carries none
+	 */
+	private int type;
+	/**
+	 * The {@link System#nanoTime()} the data was received from a client at, 0 if the frame is not a relay
+	 */
+	private long receivedAt;
+
+	/**
+	 * Initializes OutboundFrame instance variables for a frame held entirely on the heap
+	 * @param buffer The whole frame
+	 */
+	public OutboundFrame(ByteBuffer buffer) {
+		this(new ByteBuffer[] { buffer }, null);
+	}
+
+	/**
+	 * Initializes OutboundFrame instance variables for a shared frame, holding it until released
+	 * @param buffers The buffers making up the frame, written in order
+	 * @param shared The shared frame the buffers belong to, null if there is none
+	 */
+	public OutboundFrame(ByteBuffer[] buffers, SharedFrame shared) {
+		this.buffers = buffers;
+		this.shared = shared;
+		this.region = null;
+		this.regionWritten = 0;
+		this.length = 0;
+		for(ByteBuffer buffer : buffers)
+			this.length += buffer.remaining();
+		this.droppable = false;
+		this.bulk = false;
+		this.queuedAt = 0;
+		this.type = -1;
+		this.receivedAt = shared == null ? 0 : shared.getReceivedAt();
+		if(shared != null)
+			shared.retain();
+	}
+
+	/**
+	 * Initializes OutboundFrame instance variables for a frame with a spooled payload, holding the spool until released
+	 * @param header The frame header and every byte before the payload
+	 * @param region The spooled payload
+	 */
+	public OutboundFrame(ByteBuffer header, SpooledChunk region) {
+		this.buffers = new ByteBuffer[] { header };
+		this.shared = null;
+		this.region = region;
+		this.regionWritten = 0;
+		this.length = header.remaining() + region.getLength();
+		this.droppable = false;
+		this.bulk = true;
+		this.queuedAt = 0;
+		this.type = ClypeData.chunk;
+		this.receivedAt = 0;
+		region.getSpool().retain();
+	}
+
+	/**
+	 * Writes as much of the frame as the channel accepts
+	 * @param channel The channel being written to
+	 * @return True once the whole frame has been written
+	 * @throws IOException If the channel or spool fails
+	 */
+	public boolean writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer last = buffers[buffers.length - 1];
+		if(last.hasRemaining()) {
+			if(buffers.length > 1 && channel instanceof GatheringByteChannel) {
+				((GatheringByteChannel) channel).write(buffers);
+			} else {
+				for(ByteBuffer buffer : buffers) {
+					channel.write(buffer);
+					if(buffer.hasRemaining())
+						break;
+				}
+			}
+			if(last.hasRemaining())
+				return false;
+		}
+		if(region != null) {
+			while(regionWritten < region.getLength()) {
+				long count = region.getSpool().transferTo(region.getPosition() + regionWritten,
+						region.getLength() - regionWritten, channel);
+				if(count <= 0)
+					return false;
+				regionWritten += count;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the heap buffers still to be written to an array, so several frames can be written with one
+	 * gathering write. The spooled payload, if any, is left for {@link #writeTo(WritableByteChannel)}
+	 * @param into The array of buffers to write
+	 * @param offset The index of the first free slot in the array
+	 * @return The index of the first free slot after this frame's buffers, -1 if they do not fit
+	 */
+	public int gather(ByteBuffer[] into, int offset) {
+		if(offset + buffers.length > into.length)
+			return -1;
+		for(ByteBuffer buffer : buffers) {
+			if(buffer.hasRemaining())
+				into[offset++] = buffer;
+		}
+		return offset;
+	}
+
+	/**
+	 * Gets the number of bytes in the whole frame
+	 * @return length
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Checks whether the frame may be dropped for a slow client
+	 * @return droppable
+	 */
+	public boolean isDroppable() {
+		return droppable;
+	}
+
+	/**
+	 * Checks whether the frame is bulk file data
+	 * @return bulk
+	 */
+	public boolean isBulk() {
+		return bulk;
+	}
+
+	/**
+	 * Sets how the frame is queued from the type of data it holds: text may be dropped for a slow
+	 * client unless it is what tells the client its user's name, files and chunks are bulk, and
+	 * everything else is neither
+	 * @param type The type of the data, one of the {@link ClypeData} types
+	 * @param named Whether the frame carries the name of a user the client does not know yet
+	 * @return This frame
+	 */
+	public OutboundFrame forType(int type, boolean named) {
+		this.droppable = type == ClypeData.text && !named;
+		this.bulk = type == ClypeData.file || type == ClypeData.chunk;
+		this.type = type;
+		return this;
+	}
+
+	/**
+	 * Gets the type of the data in the frame
+	 * @return type, -1 if the frame carries no data such as a handshake reply
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the time the data in the frame was received from a client at
+	 * @return receivedAt, in {@link System#nanoTime()} units, 0 if the frame is not a relay
+	 */
+	public long getReceivedAt() {
+		return receivedAt;
+	}
+
+	/**
+	 * Gets the time the frame was queued at
+	 * @return queuedAt, in {@link System#nanoTime()} units
+	 */
+	public long getQueuedAt() {
+		return queuedAt;
+	}
+
+	/**
+	 * Sets the time the frame was queued at
+	 * @param queuedAt The {@link System#nanoTime()} it was queued at
+	 */
+	public void setQueuedAt(long queuedAt) {
+		this.queuedAt = queuedAt;
+	}
+
+	/**
+	 * Lets go of the spool or shared frame, called once the frame is written or dropped
+	 */
+	public void release() {
+		if(shared != null) {
+			shared.release();
+			shared = null;
+		}
+		if(region != null) {
+			region.getSpool().release();
+			region = null;
+		}
+	}
+
+}
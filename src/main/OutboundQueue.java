@@ -0,0 +1,510 @@
+package main;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A bounded queue of frames waiting to be written to one client, split into two lanes.
+ *
+ * Control and text frames go in the urgent lane and are always written before bulk file frames,
+ * so chat never waits behind more than the one file chunk already being written. The bulk lane
+ * gets whatever bandwidth is left over, within a credit of a quarter of {@link #maxBytes}: a
+ * thread queueing bulk frames waits until the client has read enough to be under its credit,
+ * and {@link #hasBulkCredit()} tells event loops when to stop reading file data from its sender.
+ *
+ * A lane overflows when its queued bytes would pass {@link #maxBytes} or its oldest frame has
+ * waited longer than {@link #maxMillis}. What happens to an urgent frame then is set by the policy:
+ *
+ * {@link #block} makes the thread queueing the frame wait for room, for at most maxMillis.
+ * {@link #dropOldest} drops the oldest queued text messages until the frame fits.
+ * {@link #dropNewest} drops the frame being queued if it is a text message.
+ * {@link #disconnect} disconnects the client.
+ *
+ * Only text messages are ever dropped, since dropping part of a file or an exit would break the
+ * client. When dropping cannot make room, or waiting times out, the client is disconnected
+ * instead, so one slow reader never holds up everyone else for long.
+ *
+ * Writers may take several frames at once with {@link #peekBatch(OutboundFrame[])} and write them
+ * with one call, and a {@link FlushPolicy} fed by every queued frame tells them how long to wait
+ * for more frames before flushing
+ *
+ * @author Will Dunklin
+ *
+ */
+public class OutboundQueue {
+	/**
+	 * Constant variables representing the overflow policies
+	 */
+	public static final int block = 0, dropOldest = 1, dropNewest = 2, disconnect = 3;
+	/**
+	 * The names of the overflow policies, by policy
+	 */
+	private static final String[] policyNames = {"block", "dropOldest", "dropNewest", "disconnect"};
+	/**
+	 * The default byte threshold is 8 MiB
+	 */
+	public static final long defaultMaxBytes = 8L * 1024 * 1024;
+	/**
+	 * The default latency threshold is 30 seconds
+	 */
+	public static final long defaultMaxMillis = 30000;
+	/**
+	 * Control and text frames waiting to be written, oldest first
+	 */
+	private ArrayDeque<OutboundFrame> urgent;
+	/**
+	 * Bulk file frames waiting to be written, oldest first
+	 */
+	private ArrayDeque<OutboundFrame> bulk;
+	/**
+	 * The frames being written, oldest first, taken from the front of a lane and counted in it until written
+	 */
+	private ArrayDeque<OutboundFrame> writing;
+	/**
+	 * What to do when the urgent lane overflows
+	 */
+	private int policy;
+	/**
+	 * The number of bytes in either lane past which it overflows
+	 */
+	private long maxBytes;
+	/**
+	 * The number of bytes of bulk frames queued before their producers wait, a quarter of {@link #maxBytes}
+	 */
+	private long bulkCredit;
+	/**
+	 * The number of milliseconds the oldest frame of a lane may wait before it overflows
+	 */
+	private long maxMillis;
+	/**
+	 * The number of bytes queued in the urgent lane
+	 */
+	private long urgentBytes;
+	/**
+	 * The number of bytes queued in the bulk lane
+	 */
+	private long bulkBytes;
+	/**
+	 * Decides when the frames taken from the queue are flushed
+	 */
+	private FlushPolicy flushPolicy;
+	/**
+	 * The number of frames dropped
+	 */
+	private long droppedFrames;
+	/**
+	 * The number of bytes dropped
+	 */
+	private long droppedBytes;
+	/**
+	 * Boolean signifier showing if the queue overflowed and its client must be disconnected
+	 */
+	private boolean overflowed;
+	/**
+	 * Boolean signifier showing if the queue is closed
+	 */
+	private boolean closed;
+
+	/**
+	 * Initializes OutboundQueue instance variables
+	 * @param policy What to do when the urgent lane overflows
+	 * @param maxBytes The number of bytes in either lane past which it overflows
+	 * @param maxMillis The number of milliseconds the oldest frame of a lane may wait before it overflows
+	 * @param flushWindowMicros The longest written frames are held back to be flushed together, 0 to flush every frame at once
+	 * @throws IllegalArgumentException If the policy is unknown, a threshold is not positive or the window is negative
+	 */
+	public OutboundQueue(int policy, long maxBytes, long maxMillis, long flushWindowMicros) throws IllegalArgumentException {
+		if(policy < block || policy > disconnect || maxBytes < 1 || maxMillis < 1)
+			throw new IllegalArgumentException("OutboundQueue cannot be initialized with those variables");
+		this.urgent = new ArrayDeque<OutboundFrame>();
+		this.bulk = new ArrayDeque<OutboundFrame>();
+		this.writing = new ArrayDeque<OutboundFrame>();
+		this.flushPolicy = new FlushPolicy(flushWindowMicros);
+		this.policy = policy;
+		this.maxBytes = maxBytes;
+		this.bulkCredit = Math.max(1, maxBytes / 4);
+		this.maxMillis = maxMillis;
+		this.urgentBytes = 0;
+		this.bulkBytes = 0;
+		this.droppedFrames = 0;
+		this.droppedBytes = 0;
+		this.overflowed = false;
+		this.closed = false;
+	}
+
+	/**
+	 * Defaults the flush window to {@link FlushPolicy#defaultMaxWindowMicros}
+	 * @param policy What to do when the urgent lane overflows
+	 * @param maxBytes The number of bytes in either lane past which it overflows
+	 * @param maxMillis The number of milliseconds the oldest frame of a lane may wait before it overflows
+	 * @throws IllegalArgumentException If the policy is unknown or a threshold is not positive
+	 */
+	public OutboundQueue(int policy, long maxBytes, long maxMillis) throws IllegalArgumentException {
+		this(policy, maxBytes, maxMillis, FlushPolicy.defaultMaxWindowMicros);
+	}
+
+	/**
+	 * Defaults {@link #policy} to {@link #dropOldest} and the thresholds to {@link #defaultMaxBytes}
+	 * and {@link #defaultMaxMillis}
+	 */
+	public OutboundQueue() {
+		this(dropOldest, defaultMaxBytes, defaultMaxMillis);
+	}
+
+	/**
+	 * Queues a frame in its lane, applying the policy if the lane overflows
+	 * @param frame The frame, released here if it is dropped
+	 * @param mayBlock Whether the calling thread may wait for room, false on threads that write queues themselves
+	 * @return False if the queue overflowed and its client must be disconnected
+	 */
+	public synchronized boolean offer(OutboundFrame frame, boolean mayBlock) {
+		if(closed) {
+			frame.release();
+			return true;
+		}
+		if(frame.isBulk()) {
+			if(mayBlock && policy != disconnect && !hasBulkCredit())
+				awaitRoom(frame);
+		} else if(overflows(frame)) {
+			if(policy == block && mayBlock) {
+				awaitRoom(frame);
+			} else if(policy == dropOldest) {
+				dropOldestText(frame);
+				if(overflows(frame) && frame.isDroppable()) {
+					drop(frame);
+					return true;
+				}
+			} else if(policy == dropNewest && frame.isDroppable()) {
+				drop(frame);
+				return true;
+			}
+		}
+		if(closed) {
+			frame.release();
+			return true;
+		}
+		if(overflows(frame)) {
+			overflowed = true;
+			frame.release();
+			return false;
+		}
+		frame.setQueuedAt(System.nanoTime());
+		if(frame.isBulk()) {
+			bulk.add(frame);
+			bulkBytes += frame.getLength();
+		} else {
+			urgent.add(frame);
+			urgentBytes += frame.getLength();
+		}
+		flushPolicy.arrived();
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Checks whether queueing a frame would overflow its lane. A frame is always let into an empty lane
+	 * @param frame The frame being queued
+	 * @return True if the lane would overflow
+	 */
+	private boolean overflows(OutboundFrame frame) {
+		OutboundFrame oldest = oldestIn(frame.isBulk());
+		if(oldest == null)
+			return false;
+		long queued = frame.isBulk() ? bulkBytes : urgentBytes;
+		return queued + frame.getLength() > maxBytes || System.nanoTime() - oldest.getQueuedAt() > maxMillis * 1000000L;
+	}
+
+	/**
+	 * Finds the frame that has waited longest in a lane
+	 * @param inBulk Whether to look in the bulk lane
+	 * @return The oldest frame, null if the lane is empty
+	 */
+	private OutboundFrame oldestIn(boolean inBulk) {
+		for(OutboundFrame frame : writing) {
+			if(frame.isBulk() == inBulk)
+				return frame;
+		}
+		return inBulk ? bulk.peek() : urgent.peek();
+	}
+
+	/**
+	 * Waits until a frame fits its lane, or for a bulk frame until the lane is under its credit,
+	 * for at most {@link #maxMillis}
+	 * @param frame The frame being queued
+	 */
+	private void awaitRoom(OutboundFrame frame) {
+		long deadline = System.currentTimeMillis() + maxMillis;
+		try {
+			while(!closed && (frame.isBulk() ? !hasBulkCredit() : overflows(frame))) {
+				long wait = deadline - System.currentTimeMillis();
+				if(wait <= 0)
+					return;
+				wait(wait);
+			}
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Drops the oldest text messages not yet being written until a frame fits
+	 * @param frame The frame being queued
+	 */
+	private void dropOldestText(OutboundFrame frame) {
+		Iterator<OutboundFrame> oldest = urgent.iterator();
+		while(oldest.hasNext() && overflows(frame)) {
+			OutboundFrame queued = oldest.next();
+			if(queued.isDroppable()) {
+				oldest.remove();
+				urgentBytes -= queued.getLength();
+				drop(queued);
+			}
+		}
+	}
+
+	/**
+	 * Counts and releases a dropped frame
+	 * @param frame The frame
+	 */
+	private void drop(OutboundFrame frame) {
+		droppedFrames++;
+		droppedBytes += frame.getLength();
+		frame.release();
+	}
+
+	/**
+	 * Gets the frame to write next without removing it: the oldest frame already being written, otherwise
+	 * the oldest urgent frame, otherwise the oldest bulk frame
+	 * @return The next frame, null if the queue is empty
+	 */
+	public synchronized OutboundFrame peek() {
+		if(writing.isEmpty())
+			takeNext();
+		return writing.peek();
+	}
+
+	/**
+	 * Gets the frames to write next without removing them, in the order {@link #peek()} would return them.
+	 * A batch holds at most one bulk frame, and always ends with it, so text queued meanwhile never
+	 * waits behind more than one file chunk
+	 * @param batch The array to fill, from its start
+	 * @return The number of frames put in the batch, 0 if the queue is empty
+	 */
+	public synchronized int peekBatch(OutboundFrame[] batch) {
+		int count = 0;
+		for(OutboundFrame frame : writing) {
+			if(count == batch.length)
+				return count;
+			batch[count++] = frame;
+		}
+		while(count < batch.length && (count == 0 || !batch[count - 1].isBulk())) {
+			OutboundFrame frame = takeNext();
+			if(frame == null)
+				break;
+			batch[count++] = frame;
+		}
+		return count;
+	}
+
+	/**
+	 * Moves the oldest urgent frame, otherwise the oldest bulk frame, to the frames being written
+	 * @return The frame moved, null if both lanes are empty
+	 */
+	private OutboundFrame takeNext() {
+		OutboundFrame frame = urgent.poll();
+		if(frame == null)
+			frame = bulk.poll();
+		if(frame != null)
+			writing.add(frame);
+		return frame;
+	}
+
+	/**
+	 * Removes the frame returned by {@link #peek()} once it has been written, waking any thread waiting for room
+	 * @return The written frame, null if the queue is empty
+	 */
+	public synchronized OutboundFrame poll() {
+		OutboundFrame frame = peek();
+		if(frame != null) {
+			writing.poll();
+			if(frame.isBulk())
+				bulkBytes -= frame.getLength();
+			else
+				urgentBytes -= frame.getLength();
+			notifyAll();
+		}
+		return frame;
+	}
+
+	/**
+	 * Drops every queued frame without counting them as dropped, letting go of what they hold
+	 */
+	public synchronized void clear() {
+		OutboundFrame frame;
+		while((frame = writing.poll()) != null)
+			frame.release();
+		while((frame = urgent.poll()) != null)
+			frame.release();
+		while((frame = bulk.poll()) != null)
+			frame.release();
+		urgentBytes = 0;
+		bulkBytes = 0;
+		notifyAll();
+	}
+
+	/**
+	 * Clears the queue and releases every frame queued after this
+	 */
+	public synchronized void close() {
+		closed = true;
+		clear();
+	}
+
+	/**
+	 * Waits until a frame is queued, for at most the given time
+	 * @param nanos The longest to wait, in nanoseconds
+	 * @return True if the queue holds a frame
+	 */
+	public synchronized boolean awaitFrame(long nanos) {
+		long deadline = System.nanoTime() + nanos;
+		try {
+			while(!closed && isEmpty()) {
+				long wait = deadline - System.nanoTime();
+				if(wait <= 0)
+					break;
+				wait(wait / 1000000L, (int) (wait % 1000000L));
+			}
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		return !isEmpty();
+	}
+
+	/**
+	 * Checks whether bulk frames queued now would be written without waiting on the client, that is
+	 * whether the bulk lane is under its credit
+	 * @return True if more bulk frames may be queued
+	 */
+	public synchronized boolean hasBulkCredit() {
+		return closed || bulkBytes < bulkCredit;
+	}
+
+	/**
+	 * Checks whether the queue is empty
+	 * @return True if no frames are queued
+	 */
+	public synchronized boolean isEmpty() {
+		return writing.isEmpty() && urgent.isEmpty() && bulk.isEmpty();
+	}
+
+	/**
+	 * Gets the number of frames queued
+	 * @return The queue depth
+	 */
+	public synchronized int size() {
+		return writing.size() + urgent.size() + bulk.size();
+	}
+
+	/**
+	 * Gets the number of bytes queued
+	 * @return The bytes queued in both lanes
+	 */
+	public synchronized long getQueuedBytes() {
+		return urgentBytes + bulkBytes;
+	}
+
+	/**
+	 * Gets the number of bytes of bulk frames queued
+	 * @return bulkBytes
+	 */
+	public synchronized long getBulkBytes() {
+		return bulkBytes;
+	}
+
+	/**
+	 * Gets the number of milliseconds the oldest queued frame has waited
+	 * @return The age of the oldest frame, 0 if the queue is empty
+	 */
+	public synchronized long getOldestMillis() {
+		long oldest = Long.MAX_VALUE;
+		for(boolean inBulk : new boolean[] {false, true}) {
+			OutboundFrame frame = oldestIn(inBulk);
+			if(frame != null)
+				oldest = Math.min(oldest, frame.getQueuedAt());
+		}
+		return oldest == Long.MAX_VALUE ? 0 : (System.nanoTime() - oldest) / 1000000L;
+	}
+
+	/**
+	 * Gets the number of frames dropped
+	 * @return droppedFrames
+	 */
+	public synchronized long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * Gets the number of bytes dropped
+	 * @return droppedBytes
+	 */
+	public synchronized long getDroppedBytes() {
+		return droppedBytes;
+	}
+
+	/**
+	 * Checks whether the queue overflowed and its client had to be disconnected
+	 * @return overflowed
+	 */
+	public synchronized boolean isOverflowed() {
+		return overflowed;
+	}
+
+	/**
+	 * Gets the policy deciding when the frames taken from the queue are flushed
+	 * @return flushPolicy
+	 */
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Gets what the queue does when it overflows
+	 * @return policy
+	 */
+	public int getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Finds an overflow policy by name
+	 * @param name The name, such as "dropOldest"
+	 * @return The policy
+	 * @throws IllegalArgumentException If no policy has that name
+	 */
+	public static int policyOf(String name) throws IllegalArgumentException {
+		for(int i = 0; i < policyNames.length; i++) {
+			if(policyNames[i].equalsIgnoreCase(name))
+				return i;
+		}
+		throw new IllegalArgumentException("Unknown overflow policy " + name);
+	}
+
+	/**
+	 * Gets the name of an overflow policy
+	 * @param policy The policy
+	 * @return The name
+	 */
+	public static String nameOf(int policy) {
+		return policyNames[policy];
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public synchronized String toString() {
+		return "OutboundQueue [policy=" + nameOf(policy) + ", frames=" + size() + ", urgentBytes=" + urgentBytes + ", bulkBytes=" + bulkBytes
+				+ ", droppedFrames=" + droppedFrames + ", droppedBytes=" + droppedBytes + ", overflowed=" + overflowed + "]";
+	}
+
+}
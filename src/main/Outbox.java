@@ -0,0 +1,59 @@
+package main;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends decided while a lock is held, run in the order they were decided once it is released.
+ *
+ * The owner posts each send while it holds its lock, so the order of the posts is the order of the
+ * changes they tell of, and runs {@link #deliver()} after releasing it. One thread at a time empties
+ * the outbox; a thread finding another already doing so leaves its sends to it, so a send that
+ * waits on a slow connection holds up neither the lock nor any caller but the one delivering
+ *
+ * @author Will Dunklin
+ *
+ */
+public class Outbox {
+	/**
+	 * The sends waiting to run, in the order they were posted
+	 */
+	private ConcurrentLinkedQueue<Runnable> sends;
+	/**
+	 * Whether a thread is emptying the outbox
+	 */
+	private AtomicBoolean delivering;
+
+	/**
+	 * Initializes Outbox instance variables
+	 */
+	public Outbox() {
+		this.sends = new ConcurrentLinkedQueue<Runnable>();
+		this.delivering = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Puts a send in the outbox, called while holding the lock that orders the changes
+	 * @param send The send
+	 */
+	public void post(Runnable send) {
+		sends.add(send);
+	}
+
+	/**
+	 * Runs the sends in the outbox, called after releasing the lock. If another thread is already
+	 * running them, that thread runs these too
+	 */
+	public void deliver() {
+		while(!sends.isEmpty() && delivering.compareAndSet(false, true)) {
+			try {
+				Runnable send;
+				while((send = sends.poll()) != null)
+					send.run();
+			} finally {
+				delivering.set(false);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,267 @@
+package main;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import data.ClypeData;
+import data.FrameCodec;
+
+/**
+ * The connection one node of a {@link Federation} dials to another, carrying the data forwarded
+ * to it one way and what it tells of its users and rooms the other.
+ *
+ * The link is a {@link ClypeConnection} speaking the binary format and proving the secret the
+ * nodes share, without which the other node refuses it, so forwarded data is written
+ * by its writer thread without holding up the thread that relayed it. What the link may hold
+ * unwritten is bounded as a client's {@link OutboundQueue} is: once the link holds a quarter of the
+ * federation's {@link Federation#getMaxQueuedBytes()} it is out of bulk credit, and clients sending
+ * files are paced until it has credit again, as they are for this node's clients. Data that would
+ * take it past the whole of it drops the link, so a node that stops reading never grows this one's
+ * heap, and no chunk of a file is ever left out of what the link carries. While the link is down, its
+ * thread dials again every {@link Federation#reconnectMillis} milliseconds, and the other node's
+ * users are no longer counted present
+ *
+ * @author Will Dunklin
+ *
+ */
+public class PeerLink implements ClypeListener, Runnable {
+	/**
+	 * The federation the link belongs to
+	 */
+	private Federation federation;
+	/**
+	 * The name of the computer running the other node
+	 */
+	private String hostName;
+	/**
+	 * The port the other node is hosted on
+	 */
+	private int port;
+	/**
+	 * The connection to the other node, null while it is not connected
+	 */
+	private volatile ClypeConnection connection;
+	/**
+	 * The number of payload bytes forwarded over the current connection and not yet written
+	 */
+	private volatile AtomicLong queuedBytes;
+	/**
+	 * The id of the other node, 0 until it has told it
+	 */
+	private volatile int node;
+	/**
+	 * The user names present on the other node
+	 */
+	private Set<String> users;
+	/**
+	 * The rooms with members on the other node
+	 */
+	private Set<String> rooms;
+	/**
+	 * The thread dialing the other node
+	 */
+	private Thread dialer;
+	/**
+	 * Boolean signifier showing if the link has been closed for good
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Initializes PeerLink instance variables, the link is dialed by {@link #start()}
+	 * @param federation The federation the link belongs to
+	 * @param hostName The name of the computer running the other node
+	 * @param port The port the other node is hosted on
+	 * @throws IllegalArgumentException If the host name is missing or the port is invalid
+	 */
+	public PeerLink(Federation federation, String hostName, int port) throws IllegalArgumentException {
+		if(hostName == null || hostName.isEmpty() || port < 1024 || port > 0xFFFF)
+			throw new IllegalArgumentException("The PeerLink cannot be initialized with those variables");
+		this.federation = federation;
+		this.hostName = hostName;
+		this.port = port;
+		this.connection = null;
+		this.queuedBytes = new AtomicLong();
+		this.node = 0;
+		this.users = ConcurrentHashMap.newKeySet();
+		this.rooms = ConcurrentHashMap.newKeySet();
+		this.dialer = null;
+		this.closed = false;
+	}
+
+	/**
+	 * Starts the thread dialing the other node
+	 */
+	public void start() {
+		dialer = new Thread(this, "clype-peer-" + hostName + ":" + port);
+		dialer.setDaemon(true);
+		dialer.start();
+	}
+
+	/**
+	 * Dials the other node, and again whenever the link drops, until the link is closed
+	 */
+	@Override
+	public void run() {
+		while(!closed) {
+			try {
+				ClypeConnection connection = new ClypeConnection(hostName, port, Federation.peerPrefix + federation.getNode(),
+						1 << FrameCodec.binary, ClypeClient.key, federation.getHub().getSecret());
+				connection.addListener(this);
+				connection.connect();
+				this.queuedBytes = new AtomicLong();
+				this.connection = connection;
+				synchronized(this) {
+					while(!closed && !connection.isClosed())
+						wait(Federation.reconnectMillis);
+				}
+				this.connection = null;
+			} catch(IOException ioe) {
+				// the other node is not up yet, so it is dialed again below
+			} catch(InterruptedException ie) {
+				return;
+			}
+			try {
+				if(!closed)
+					Thread.sleep(Federation.reconnectMillis);
+			} catch(InterruptedException ie) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Applies what the other node tells of its users and rooms
+	 * @param data A {@link ClypeData#peer} message, anything else is ignored
+	 */
+	@Override
+	public void onData(ClypeData data) {
+		if(data.getType() != ClypeData.peer || data.getData() == null)
+			return;
+		PresenceRegistry presence = federation.getHub().getPresence();
+		for(String line : data.getData().split("\n")) {
+			if(line.startsWith("=")) {
+				try {
+					node = Integer.parseInt(line.substring(1));
+				} catch(NumberFormatException nfe) {
+					System.err.println("An error occurred. " + nfe.getMessage());
+				}
+			} else if(line.startsWith("+u ") && users.add(line.substring(3))) {
+				presence.joinRemote(this, line.substring(3));
+			} else if(line.startsWith("-u ") && users.remove(line.substring(3))) {
+				presence.leaveRemote(this, line.substring(3));
+			} else if(line.startsWith("+r ")) {
+				rooms.add(line.substring(3));
+			} else if(line.startsWith("-r ")) {
+				rooms.remove(line.substring(3));
+			}
+		}
+	}
+
+	/**
+	 * Forgets the other node's users and rooms once the link drops, and wakes the dialing thread
+	 * @param cause The error that closed the link, null if it was closed on purpose
+	 */
+	@Override
+	public void onClose(IOException cause) {
+		connection = null;
+		node = 0;
+		users.clear();
+		rooms.clear();
+		federation.getHub().getPresence().leaveNode(this);
+		synchronized(this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Checks whether the other node wants data
+	 * @param room The room the data is sent to, null if it is sent to everyone
+	 * @return True if the link is up and the other node has users present, or members of the room
+	 */
+	public boolean wants(String room) {
+		if(connection == null)
+			return false;
+		return room == null ? !users.isEmpty() : rooms.contains(room);
+	}
+
+	/**
+	 * Checks whether files and chunks forwarded now would be written without waiting on the other node
+	 * @return True if the link is down or holds less than a quarter of what it may hold unwritten
+	 */
+	public boolean hasBulkCredit() {
+		return connection == null || queuedBytes.get() < federation.getMaxQueuedBytes() / 4;
+	}
+
+	/**
+	 * Forwards data to the other node without waiting for it to be written, dropping the link if the
+	 * data would overflow it
+	 * @param data The data
+	 * @return True if the data was queued, false if the link is down or dropped
+	 */
+	public boolean forward(ClypeData data) {
+		ClypeConnection connection = this.connection;
+		AtomicLong queuedBytes = this.queuedBytes;
+		if(connection == null || connection.isClosed())
+			return false;
+		long size = SubscriptionFilter.sizeOf(data);
+		long queued = queuedBytes.get();
+		long maxBytes = federation.getMaxQueuedBytes();
+		if(queued + size > maxBytes) {
+			federation.overflowed();
+			connection.abort();
+			return false;
+		}
+		queuedBytes.addAndGet(size);
+		connection.send(data).whenComplete((sent, error) -> queuedBytes.addAndGet(-size));
+		return true;
+	}
+
+	/**
+	 * Gets the number of payload bytes forwarded over the current connection and not yet written
+	 * @return The number of queued bytes
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * Closes the link for good
+	 */
+	public void close() {
+		closed = true;
+		ClypeConnection connection = this.connection;
+		if(connection != null)
+			connection.close();
+		if(dialer != null)
+			dialer.interrupt();
+	}
+
+	/**
+	 * Checks whether the link is connected to the other node
+	 * @return True if it is connected
+	 */
+	public boolean isLinked() {
+		ClypeConnection connection = this.connection;
+		return connection != null && !connection.isClosed();
+	}
+
+	/**
+	 * Gets the id of the other node
+	 * @return node, 0 until the other node has told it
+	 */
+	public int getNode() {
+		return node;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return hostName + ":" + port + (isLinked() ? " linked to node " + node + " users=" + users.size() + " rooms=" + rooms.size()
+				+ " queuedBytes=" + queuedBytes.get() : " down");
+	}
+
+}
@@ -0,0 +1,405 @@
+package main;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import data.ClypeData;
+import data.MessageClypeData;
+import data.SharedFrame;
+import data.UserDirectory;
+
+/**
+ * Who is connected to the server, kept up to date as clients join and leave so LISTUSERS can be
+ * answered without asking every connection.
+ *
+ * Every join or leave of a user name bumps a version number and is kept in a ring of the last
+ * {@link #historyLength} changes, both in constant time. A client fetches the whole list once and
+ * afterwards asks only for what changed since the version it has, or subscribes and is pushed each
+ * change as it happens. A name with several connections is present until the last one leaves.
+ *
+ * Requests and replies are {@link ClypeData#list} messages. A request holds "snapshot",
+ * "subscribe" (a snapshot, then every change), "unsubscribe" or "since V"; anything else is
+ * answered with a snapshot. Replies are one frame from the asking user: a snapshot is "=V"
+ * followed by a line per name, and the changes since a version are "~V" followed by a line per
+ * name starting with + for joined or - for left. A pushed change comes from the user who joined
+ * or left and holds "+V" or "-V", so the binary format sends it in a few bytes once the name's id
+ * is known.
+ *
+ * When the server is part of a {@link Federation}, the names present on other nodes are counted
+ * too, so the list covers the whole cluster, and the names present on this node alone are kept
+ * apart so they can be told to the other nodes
+ *
+ * Nothing is sent while the registry is locked, so a slow connection never holds up a join or
+ * leave. Every push, reply and change told to other nodes is put in an {@link Outbox} in the
+ * order it happened, and run from it once the lock is released.
+ *
+ * @author Will Dunklin
+ *
+ */
+public class PresenceRegistry {
+	/**
+	 * The number of changes kept for clients asking what changed since their version
+	 */
+	public static final int historyLength = 4096;
+	/**
+	 * The number of connections and other nodes of each present user name
+	 */
+	private ConcurrentHashMap<String, Integer> present;
+	/**
+	 * The number of connections to this node of each user name
+	 */
+	private ConcurrentHashMap<String, Integer> local;
+	/**
+	 * The user names present on each other node
+	 */
+	private ConcurrentHashMap<Object, Set<String>> remote;
+	/**
+	 * Told, in order and after the registry is unlocked, of every user name that joins or leaves this node, null if nothing is
+	 */
+	private volatile BiConsumer<String, Boolean> localChanges;
+	/**
+	 * The user name of every joined connection
+	 */
+	private ConcurrentHashMap<ClientConnection, String> members;
+	/**
+	 * The connections pushed every change
+	 */
+	private Set<ClientConnection> subscribers;
+	/**
+	 * The user ids pushed changes are encoded with
+	 */
+	private UserDirectory users;
+	/**
+	 * The version of the latest change, 0 before the first
+	 */
+	private long version;
+	/**
+	 * The user names of the latest changes, the change with version v at v % {@link #historyLength}
+	 */
+	private String[] historyNames;
+	/**
+	 * Whether each of the latest changes was a join
+	 */
+	private boolean[] historyJoins;
+	/**
+	 * The sends decided while synchronized, run in order once unlocked
+	 */
+	private Outbox outbox;
+
+	/**
+	 * Initializes PresenceRegistry instance variables
+	 * @param users The user ids pushed changes are encoded with
+	 */
+	public PresenceRegistry(UserDirectory users) {
+		this.present = new ConcurrentHashMap<String, Integer>();
+		this.local = new ConcurrentHashMap<String, Integer>();
+		this.remote = new ConcurrentHashMap<Object, Set<String>>();
+		this.localChanges = null;
+		this.members = new ConcurrentHashMap<ClientConnection, String>();
+		this.subscribers = ConcurrentHashMap.newKeySet();
+		this.users = users;
+		this.version = 0;
+		this.historyNames = new String[historyLength];
+		this.historyJoins = new boolean[historyLength];
+		this.outbox = new Outbox();
+	}
+
+	/**
+	 * Records that a client completed its handshake
+	 * @param client The client, whose user name is now known
+	 */
+	public void join(ClientConnection client) {
+		String userName = client.getUserName();
+		synchronized(this) {
+			if(userName == null || members.putIfAbsent(client, userName) != null)
+				return;
+			if(local.merge(userName, 1, Integer::sum) == 1)
+				tell(userName, true);
+			if(present.merge(userName, 1, Integer::sum) == 1)
+				changed(userName, true);
+		}
+		deliver();
+	}
+
+	/**
+	 * Records that a client disconnected or exited, doing nothing if it never joined
+	 * @param client The client
+	 */
+	public void leave(ClientConnection client) {
+		synchronized(this) {
+			subscribers.remove(client);
+			String userName = members.remove(client);
+			if(userName == null)
+				return;
+			if(local.merge(userName, -1, Integer::sum) == 0) {
+				local.remove(userName);
+				tell(userName, false);
+			}
+			decrement(userName);
+		}
+		deliver();
+	}
+
+	/**
+	 * Records that a user name is present on another node
+	 * @param node The other node
+	 * @param userName The user name
+	 */
+	public void joinRemote(Object node, String userName) {
+		synchronized(this) {
+			if(remote.computeIfAbsent(node, n -> new HashSet<String>()).add(userName) && present.merge(userName, 1, Integer::sum) == 1)
+				changed(userName, true);
+		}
+		deliver();
+	}
+
+	/**
+	 * Records that a user name is no longer present on another node
+	 * @param node The other node
+	 * @param userName The user name
+	 */
+	public void leaveRemote(Object node, String userName) {
+		synchronized(this) {
+			Set<String> names = remote.get(node);
+			if(names != null && names.remove(userName))
+				decrement(userName);
+		}
+		deliver();
+	}
+
+	/**
+	 * Records that another node is no longer reachable, so none of its user names are present on it
+	 * @param node The other node
+	 */
+	public void leaveNode(Object node) {
+		synchronized(this) {
+			Set<String> names = remote.remove(node);
+			if(names == null)
+				return;
+			for(String userName : names)
+				decrement(userName);
+		}
+		deliver();
+	}
+
+	/**
+	 * Takes one connection or node away from a user name's count, only called while synchronized
+	 * @param userName The user name
+	 */
+	private void decrement(String userName) {
+		if(present.merge(userName, -1, Integer::sum) == 0) {
+			present.remove(userName);
+			changed(userName, false);
+		}
+	}
+
+	/**
+	 * Lists the user names with a connection to this node, only called while synchronized so the
+	 * list is not changed before it is sent
+	 * @return The names, sorted
+	 */
+	Set<String> localNames() {
+		return new TreeSet<String>(local.keySet());
+	}
+
+	/**
+	 * Puts a send in the outbox, only called while synchronized so sends run in the order the
+	 * changes they tell of happened. The caller runs {@link #deliver()} once it is unlocked
+	 * @param send The send
+	 */
+	void post(Runnable send) {
+		outbox.post(send);
+	}
+
+	/**
+	 * Runs the sends in the outbox, only called while not synchronized. If another thread is already
+	 * running them, that thread runs these too, so no caller waits for another's send
+	 */
+	void deliver() {
+		outbox.deliver();
+	}
+
+	/**
+	 * Tells a join or leave of this node to what is told of them, only called while synchronized
+	 * @param userName The user name that joined or left
+	 * @param joined True if it joined
+	 */
+	private void tell(String userName, boolean joined) {
+		BiConsumer<String, Boolean> localChanges = this.localChanges;
+		if(localChanges != null)
+			post(() -> localChanges.accept(userName, joined));
+	}
+
+	/**
+	 * Sets what is told of every user name that joins or leaves this node
+	 * @param localChanges Called with the name and true for a join or false for a leave, null for nothing
+	 */
+	public void setLocalChanges(BiConsumer<String, Boolean> localChanges) {
+		this.localChanges = localChanges;
+	}
+
+	/**
+	 * Records a change in the history and posts a push of it to every subscriber, only called while synchronized
+	 * @param userName The user name that joined or left
+	 * @param joined True if it joined
+	 */
+	private void changed(String userName, boolean joined) {
+		version++;
+		int slot = (int) (version % historyLength);
+		historyNames[slot] = userName;
+		historyJoins[slot] = joined;
+		if(subscribers.isEmpty())
+			return;
+		SharedFrame frame = new SharedFrame(new MessageClypeData(userName, (joined ? "+" : "-") + version, ClypeData.list), users);
+		ClientConnection[] targets = subscribers.toArray(new ClientConnection[0]);
+		post(() -> {
+			for(ClientConnection subscriber : targets)
+				subscriber.sendShared(frame);
+			frame.release();
+		});
+	}
+
+	/**
+	 * Answers a LISTUSERS request. The reply is posted before any change after it can be, so a
+	 * subscriber never sees a change before the snapshot it follows
+	 * @param client The client asking
+	 * @param request The request
+	 */
+	public void answer(ClientConnection client, ClypeData request) {
+		String[] parts = request.getData() == null ? new String[0] : request.getData().trim().split("\\s+");
+		synchronized(this) {
+			String reply;
+			if(parts.length == 1 && parts[0].equals("subscribe")) {
+				reply = snapshot();
+				subscribers.add(client);
+			} else if(parts.length == 1 && parts[0].equals("unsubscribe")) {
+				subscribers.remove(client);
+				reply = changesSince(version);
+			} else if(parts.length == 2 && parts[0].equals("since") && parts[1].matches("\\d{1,18}")) {
+				reply = changesSince(Long.parseLong(parts[1]));
+			} else {
+				reply = snapshot();
+			}
+			MessageClypeData message = new MessageClypeData(client.getUserName(), reply, ClypeData.list);
+			post(() -> client.send(message));
+		}
+		deliver();
+	}
+
+	/**
+	 * Lists every present user name, only called while synchronized
+	 * @return "=V" followed by a line per name
+	 */
+	private String snapshot() {
+		StringBuilder reply = new StringBuilder(16 + present.size() * 12).append('=').append(version);
+		for(String userName : present.keySet())
+			reply.append('\n').append(userName);
+		return reply.toString();
+	}
+
+	/**
+	 * Lists what changed since a version, or every present user name if the history no longer reaches back that far,
+	 * only called while synchronized
+	 * @param since The version the client has
+	 * @return "~V" followed by a line per changed name, or a snapshot
+	 */
+	private String changesSince(long since) {
+		if(since > version || version - since >= historyLength)
+			return snapshot();
+		LinkedHashMap<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+		for(long v = since + 1; v <= version; v++) {
+			int slot = (int) (v % historyLength);
+			changes.remove(historyNames[slot]);
+			changes.put(historyNames[slot], historyJoins[slot]);
+		}
+		StringBuilder reply = new StringBuilder(16 + changes.size() * 12).append('~').append(version);
+		for(Map.Entry<String, Boolean> change : changes.entrySet())
+			reply.append('\n').append(change.getValue() ? '+' : '-').append(change.getKey());
+		return reply.toString();
+	}
+
+	/**
+	 * Applies a LISTUSERS reply or pushed change to a client's copy of the list
+	 * @param roster The client's copy of the present user names
+	 * @param version The version of the client's copy, -1 if it has none yet
+	 * @param data The reply or change, a {@link ClypeData#list} message
+	 * @return The version of the copy afterwards, unchanged if data was not a reply or change
+	 */
+	public static long apply(Collection<String> roster, long version, ClypeData data) {
+		String body = data.getData();
+		if(data.getType() != ClypeData.list || body == null || body.isEmpty())
+			return version;
+		String[] lines = body.split("\n");
+		long replyVersion;
+		try {
+			replyVersion = Long.parseLong(lines[0].substring(1));
+		} catch(NumberFormatException nfe) {
+			return version;
+		}
+		switch(lines[0].charAt(0)) {
+		case '=':
+			roster.clear();
+			for(int i = 1; i < lines.length; i++)
+				roster.add(lines[i]);
+			return replyVersion;
+		case '~':
+			for(int i = 1; i < lines.length; i++) {
+				if(lines[i].charAt(0) == '+')
+					roster.add(lines[i].substring(1));
+				else
+					roster.remove(lines[i].substring(1));
+			}
+			return Math.max(version, replyVersion);
+		case '+':
+		case '-':
+			if(replyVersion <= version)
+				return version;
+			if(lines[0].charAt(0) == '+')
+				roster.add(data.getUserName());
+			else
+				roster.remove(data.getUserName());
+			return replyVersion;
+		default:
+			return version;
+		}
+	}
+
+	/**
+	 * Gets the version of the latest change
+	 * @return version
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the number of present user names
+	 * @return The number of names
+	 */
+	public int size() {
+		return present.size();
+	}
+
+	/**
+	 * Gets the number of connections pushed every change
+	 * @return The number of subscribers
+	 */
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public synchronized String toString() {
+		return "PresenceRegistry [present=" + present.size() + ", version=" + version + ", subscribers=" + subscribers.size() + "]";
+	}
+
+}
@@ -0,0 +1,578 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import data.ClypeData;
+import data.MessageClypeData;
+import data.SharedFrame;
+
+/**
+ * Streams this server's {@link MessageLog} to standby servers, so a standby can take over with
+ * every message and file the log kept if this server fails.
+ *
+ * A standby, run with a {@link StandbyLink}, connects like a client under a user name starting
+ * with {@link #standbyPrefix}, proving the secret set by {@link BroadcastHub#setSecret(String)}
+ * without which no client may take such a name, and asks for the log from the sequence number its
+ * own log has reached. A thread per standby then sends the records in order, in {@link ClypeData#replica}
+ * messages of "+FIRST HEAD" followed by a line break and the records' frames, each as its bytes
+ * read as ISO-8859-1 characters, one per byte. FIRST is the sequence number of the first record
+ * and HEAD the number of records this server's log holds. The standby appends them to its own
+ * log and answers "ack N" once its log holds every record before N, and is sent no more than
+ * {@link #windowBytes} that it has not acknowledged, so a slow standby never fills its queue.
+ *
+ * In {@link #async} mode data is relayed to clients as soon as it is logged, and a standby may
+ * trail by up to its window. In {@link #sync} mode a message or file is logged first and held, and
+ * only relayed once a standby has acknowledged it, so a sender sees its data come back only once
+ * it is on a standby. No thread waits meanwhile: held data is relayed, in the order it was logged,
+ * by whichever thread takes in the acknowledgement. If no standby acknowledges within
+ * {@link #timeoutMillis}, or none is connected, the data is relayed anyway and counted as
+ * unreplicated.
+ *
+ * How far each standby trails is measured as the records it has not acknowledged and the time
+ * since the oldest of them was sent, and how long acknowledgements take is kept in a
+ * {@link LatencyHistogram}
+ *
+ * @author Will Dunklin
+ *
+ */
+public class Replication {
+	/**
+	 * The start of the user name every standby connects with
+	 */
+	public static final String standbyPrefix = "@standby/";
+	/**
+	 * Constant variables representing the modes
+	 */
+	public static final int async = 0, sync = 1;
+	/**
+	 * The names of the modes, by mode
+	 */
+	private static final String[] modeNames = {"async", "sync"};
+	/**
+	 * The default time data waits for a standby in sync mode is 1 second
+	 */
+	public static final long defaultTimeoutMillis = 1000;
+	/**
+	 * The most bytes of records sent to a standby and not yet acknowledged
+	 */
+	public static final int windowBytes = 1024 * 1024;
+	/**
+	 * The most bytes of records sent in one message, unless a single record is larger
+	 */
+	private static final int batchBytes = 64 * 1024;
+	/**
+	 * The most records sent in one message
+	 */
+	private static final int batchRecords = 1024;
+	/**
+	 * The hub whose log is streamed and which relays held data
+	 */
+	private BroadcastHub hub;
+	/**
+	 * The log streamed
+	 */
+	private MessageLog log;
+	/**
+	 * Whether data waits for a standby before it is relayed, {@link #async} or {@link #sync}
+	 */
+	private int mode;
+	/**
+	 * The most milliseconds data waits for a standby in sync mode
+	 */
+	private long timeoutMillis;
+	/**
+	 * The standbys connected, by connection
+	 */
+	private ConcurrentHashMap<ClientConnection, Standby> standbys;
+	/**
+	 * The highest sequence number every record before which some standby has acknowledged, guarded by this
+	 */
+	private long acked;
+	/**
+	 * The data logged in sync mode and not yet relayed, oldest first, guarded by this
+	 */
+	private ArrayDeque<Held> held;
+	/**
+	 * Taken while relaying held data, so data released by different threads is still relayed in order
+	 */
+	private Object releasing;
+	/**
+	 * The thread relaying held data once it has waited {@link #timeoutMillis}, null in async mode
+	 */
+	private Thread expirer;
+	/**
+	 * The number of records sent to standbys
+	 */
+	private LongAdder shipped;
+	/**
+	 * The number of messages and files relayed in sync mode once a standby acknowledged them
+	 */
+	private LongAdder replicated;
+	/**
+	 * The number of messages and files relayed in sync mode without a standby acknowledging them
+	 */
+	private LongAdder unreplicated;
+	/**
+	 * The time from sending records to a standby until it acknowledges them, in nanoseconds
+	 */
+	private LatencyHistogram ackLatency;
+
+	/**
+	 * Initializes Replication instance variables
+	 * @param hub The hub whose log is streamed, which must already have its log
+	 * @param mode {@link #async} or {@link #sync}
+	 * @param timeoutMillis The most milliseconds data waits for a standby in sync mode
+	 * @throws IllegalArgumentException If the hub keeps no log, the mode is unknown or the timeout is negative
+	 */
+	public Replication(BroadcastHub hub, int mode, long timeoutMillis) throws IllegalArgumentException {
+		if(hub.getLog() == null || mode < async || mode > sync || timeoutMillis < 0)
+			throw new IllegalArgumentException("Replication cannot be initialized with those variables");
+		this.hub = hub;
+		this.log = hub.getLog();
+		this.mode = mode;
+		this.timeoutMillis = timeoutMillis;
+		this.standbys = new ConcurrentHashMap<ClientConnection, Standby>();
+		this.acked = 0;
+		this.held = new ArrayDeque<Held>();
+		this.releasing = new Object();
+		this.expirer = null;
+		this.shipped = new LongAdder();
+		this.replicated = new LongAdder();
+		this.unreplicated = new LongAdder();
+		this.ackLatency = new LatencyHistogram();
+	}
+
+	/**
+	 * Defaults {@link #mode} to {@link #async}
+	 * @param hub The hub whose log is streamed, which must already have its log
+	 * @throws IllegalArgumentException If the hub keeps no log
+	 */
+	public Replication(BroadcastHub hub) throws IllegalArgumentException {
+		this(hub, async, defaultTimeoutMillis);
+	}
+
+	/**
+	 * Starts relaying held data that has waited too long, in sync mode
+	 */
+	public void start() {
+		if(mode != sync || expirer != null)
+			return;
+		expirer = new Thread(this::expire, "clype-replication");
+		expirer.setDaemon(true);
+		expirer.start();
+	}
+
+	/**
+	 * Finds a mode by name
+	 * @param name "async" or "sync"
+	 * @return The mode
+	 * @throws IllegalArgumentException If the name is unknown
+	 */
+	public static int modeOf(String name) throws IllegalArgumentException {
+		for(int i = 0; i < modeNames.length; i++) {
+			if(modeNames[i].equalsIgnoreCase(name))
+				return i;
+		}
+		throw new IllegalArgumentException("Replication must be async or sync");
+	}
+
+	/**
+	 * Checks whether a user name is one standbys connect with
+	 * @param userName The user name
+	 * @return True if it starts with {@link #standbyPrefix}
+	 */
+	public static boolean isStandbyName(String userName) {
+		return userName != null && userName.startsWith(standbyPrefix);
+	}
+
+	/**
+	 * Checks whether a connection is from a standby
+	 * @param client The connection
+	 * @return True if it is a standby
+	 */
+	public boolean isStandby(ClientConnection client) {
+		return standbys.containsKey(client);
+	}
+
+	/**
+	 * Takes in a connection from a standby once its handshake completes. Records are sent once it
+	 * says where its log is up to
+	 * @param client The connection
+	 */
+	void accepted(ClientConnection client) {
+		standbys.put(client, new Standby(client));
+	}
+
+	/**
+	 * Forgets a standby once it disconnects, stopping the thread sending it records
+	 * @param client The connection
+	 */
+	void removed(ClientConnection client) {
+		Standby standby = standbys.remove(client);
+		if(standby != null)
+			standby.stop();
+		if(standbys.isEmpty())
+			release(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Answers a {@link ClypeData#replica} message from a standby: "from N" to be sent the records from
+	 * sequence number N on, or "ack N" once its log holds every record before N
+	 * @param client The standby
+	 * @param request The message
+	 */
+	void answer(ClientConnection client, ClypeData request) {
+		Standby standby = standbys.get(client);
+		String[] parts = request.getData() == null ? new String[0] : request.getData().trim().split("\\s+");
+		if(standby == null || parts.length != 2)
+			return;
+		long sequence;
+		try {
+			sequence = Long.parseLong(parts[1]);
+		} catch(NumberFormatException nfe) {
+			System.err.println("An error occurred. " + nfe.getMessage());
+			return;
+		}
+		if(parts[0].equals("from")) {
+			if(sequence > log.getNextSequence()) {
+				client.send(new MessageClypeData(client.getUserName(), "!The standby's log is ahead of this server's", ClypeData.replica));
+				return;
+			}
+			standby.start(sequence);
+		} else if(parts[0].equals("ack")) {
+			standby.acknowledged(sequence);
+			synchronized(this) {
+				if(sequence > acked)
+					acked = sequence;
+			}
+			release(0);
+		}
+	}
+
+	/**
+	 * Holds logged data in sync mode until a standby acknowledges it, or relays it at once
+	 * @param sequence The sequence number of the data's record, negative if it could not be logged
+	 * @param data The data
+	 * @param frame The frame relayed, released once the data is relayed
+	 * @return True if the data is held, false if the caller should relay it now
+	 */
+	boolean hold(long sequence, ClypeData data, SharedFrame frame) {
+		if(mode != sync || sequence < 0 || standbys.isEmpty()) {
+			if(mode == sync)
+				unreplicated.increment();
+			return false;
+		}
+		synchronized(this) {
+			held.addLast(new Held(sequence, data, frame, System.nanoTime() + timeoutMillis * 1000000));
+		}
+		release(0);
+		return true;
+	}
+
+	/**
+	 * Relays, in order, the held data a standby has acknowledged and the data that waited too long
+	 * @param now The current {@link System#nanoTime()}, 0 to relay only acknowledged data, Long.MAX_VALUE to relay everything
+	 */
+	private void release(long now) {
+		synchronized(releasing) {
+			while(true) {
+				Held next;
+				boolean done;
+				synchronized(this) {
+					next = held.peekFirst();
+					if(next == null)
+						return;
+					done = next.sequence < acked;
+					if(!done && (now == 0 || next.deadline - now > 0))
+						return;
+					held.removeFirst();
+				}
+				if(done)
+					replicated.increment();
+				else
+					unreplicated.increment();
+				hub.deliver(next.data, next.frame);
+			}
+		}
+	}
+
+	/**
+	 * Relays held data that has waited {@link #timeoutMillis}, until the replication is closed
+	 */
+	private void expire() {
+		long pause = Math.max(1, Math.min(timeoutMillis, 100));
+		while(!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(pause);
+			} catch(InterruptedException ie) {
+				break;
+			}
+			release(System.nanoTime());
+		}
+	}
+
+	/**
+	 * Disconnects every standby and relays everything still held
+	 */
+	public void close() {
+		if(expirer != null)
+			expirer.interrupt();
+		for(ClientConnection client : standbys.keySet()) {
+			client.close();
+			removed(client);
+		}
+		release(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Checks whether data waits for a standby before it is relayed
+	 * @return True in sync mode
+	 */
+	public boolean isSync() {
+		return mode == sync;
+	}
+
+	/**
+	 * Gets the number of standbys connected
+	 * @return The number of standbys
+	 */
+	public int getStandbyCount() {
+		return standbys.size();
+	}
+
+	/**
+	 * Gets how many records the standby furthest behind has not acknowledged
+	 * @return The number of records, 0 if no standby is connected
+	 */
+	public long getLagRecords() {
+		long head = log.getNextSequence();
+		long lag = 0;
+		for(Standby standby : standbys.values())
+			lag = Math.max(lag, head - standby.getAcked());
+		return lag;
+	}
+
+	/**
+	 * Gets how long ago the oldest record a standby has not acknowledged was sent
+	 * @return The time, in milliseconds, 0 if every standby is up to date
+	 */
+	public long getLagMillis() {
+		long now = System.nanoTime();
+		long lag = 0;
+		for(Standby standby : standbys.values())
+			lag = Math.max(lag, standby.getPendingSince(now));
+		return lag / 1000000;
+	}
+
+	/**
+	 * Gets the replication's counters as text, one "name=value" per line
+	 * @return The summary
+	 */
+	public String getSummary() {
+		return "replication=" + modeNames[mode] + "\nstandbys=" + standbys.size() + "\nshipped=" + shipped.sum()
+				+ "\nreplicationLag=" + getLagRecords() + "\nreplicationLagMillis=" + getLagMillis()
+				+ "\nackP50Micros=" + ackLatency.valueAtPercentile(50) / 1000 + "\nackP99Micros=" + ackLatency.valueAtPercentile(99) / 1000
+				+ "\nreplicated=" + replicated.sum() + "\nunreplicated=" + unreplicated.sum();
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "Replication [mode=" + modeNames[mode] + ", timeoutMillis=" + timeoutMillis + ", standbys=" + standbys.size() + "]";
+	}
+
+	/**
+	 * Data logged in sync mode and waiting for a standby to acknowledge it
+	 */
+	private static class Held {
+		/**
+		 * The sequence number of the data's record
+		 */
+		private long sequence;
+		/**
+		 * The data
+		 */
+		private ClypeData data;
+		/**
+		 * The frame relayed
+		 */
+		private SharedFrame frame;
+		/**
+		 * The {@link System#nanoTime()} past which the data is relayed anyway
+		 */
+		private long deadline;
+
+		/**
+		 * Initializes Held instance variables
+		 * @param sequence The sequence number of the data's record
+		 * @param data The data
+		 * @param frame The frame relayed
+		 * @param deadline The {@link System#nanoTime()} past which the data is relayed anyway
+		 */
+		Held(long sequence, ClypeData data, SharedFrame frame, long deadline) {
+			this.sequence = sequence;
+			this.data = data;
+			this.frame = frame;
+			this.deadline = deadline;
+		}
+
+	}
+
+	/**
+	 * One standby and the thread sending it records
+	 */
+	private class Standby implements Runnable {
+		/**
+		 * The connection to the standby
+		 */
+		private ClientConnection client;
+		/**
+		 * The sequence number of the next record to send
+		 */
+		private long next;
+		/**
+		 * The sequence number every record before which the standby has acknowledged
+		 */
+		private volatile long acked;
+		/**
+		 * The messages sent and not yet acknowledged, oldest first, each as the sequence number after
+		 * its last record, its length in bytes and the {@link System#nanoTime()} it was sent at
+		 */
+		private ArrayDeque<long[]> pending;
+		/**
+		 * The number of bytes of records sent and not yet acknowledged
+		 */
+		private long pendingBytes;
+		/**
+		 * The thread sending records, null until the standby says where its log is up to
+		 */
+		private Thread sender;
+		/**
+		 * Boolean signifier showing if the standby has disconnected
+		 */
+		private volatile boolean stopped;
+
+		/**
+		 * Initializes Standby instance variables
+		 * @param client The connection to the standby
+		 */
+		Standby(ClientConnection client) {
+			this.client = client;
+			this.next = 0;
+			this.acked = 0;
+			this.pending = new ArrayDeque<long[]>();
+			this.pendingBytes = 0;
+			this.sender = null;
+			this.stopped = false;
+		}
+
+		/**
+		 * Starts sending records
+		 * @param from The sequence number the standby's log is up to
+		 */
+		synchronized void start(long from) {
+			if(sender != null)
+				return;
+			next = from;
+			acked = from;
+			sender = new Thread(this, "clype-replica-" + client.getUserName().substring(standbyPrefix.length()));
+			sender.setDaemon(true);
+			sender.start();
+		}
+
+		/**
+		 * Sends records as they are appended, up to the window, until the standby disconnects
+		 */
+		@Override
+		public void run() {
+			try {
+				while(!stopped) {
+					synchronized(this) {
+						while(pendingBytes >= windowBytes && !stopped)
+							wait(100);
+					}
+					next = log.seek(next);
+					if(!log.awaitAppend(next, 100))
+						continue;
+					List<ByteBuffer> frames = log.read(next, batchRecords);
+					if(frames.isEmpty())
+						continue;
+					int length = 0;
+					int count = 0;
+					while(count < frames.size() && (count == 0 || length + frames.get(count).remaining() <= batchBytes))
+						length += frames.get(count++).remaining();
+					byte[] records = new byte[length];
+					ByteBuffer batch = ByteBuffer.wrap(records);
+					for(int i = 0; i < count; i++)
+						batch.put(frames.get(i).duplicate());
+					String message = "+" + next + " " + log.getNextSequence() + "\n" + new String(records, StandardCharsets.ISO_8859_1);
+					synchronized(this) {
+						pending.addLast(new long[] {next + count, length, System.nanoTime()});
+						pendingBytes += length;
+					}
+					client.send(new MessageClypeData(client.getUserName(), message, ClypeData.replica));
+					next += count;
+					shipped.add(count);
+				}
+			} catch(InterruptedException ie) {
+				// the standby disconnected
+			}
+		}
+
+		/**
+		 * Takes in an acknowledgement, recording how long the messages it covers took
+		 * @param sequence The sequence number every record before which the standby holds
+		 */
+		synchronized void acknowledged(long sequence) {
+			long now = System.nanoTime();
+			while(!pending.isEmpty() && pending.peekFirst()[0] <= sequence) {
+				long[] sent = pending.removeFirst();
+				pendingBytes -= sent[1];
+				ackLatency.record(now - sent[2]);
+			}
+			if(sequence > acked)
+				acked = sequence;
+			notifyAll();
+		}
+
+		/**
+		 * Gets how long the oldest message not yet acknowledged has waited
+		 * @param now The current {@link System#nanoTime()}
+		 * @return The time, in nanoseconds, 0 if none is waiting
+		 */
+		synchronized long getPendingSince(long now) {
+			return pending.isEmpty() ? 0 : now - pending.peekFirst()[2];
+		}
+
+		/**
+		 * Gets the sequence number every record before which the standby has acknowledged
+		 * @return acked
+		 */
+		long getAcked() {
+			return acked;
+		}
+
+		/**
+		 * Stops sending records
+		 */
+		void stop() {
+			stopped = true;
+			Thread sender;
+			synchronized(this) {
+				sender = this.sender;
+				notifyAll();
+			}
+			if(sender != null)
+				sender.interrupt();
+		}
+
+	}
+
+}
@@ -0,0 +1,314 @@
+package main;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import data.ClypeData;
+import data.MessageClypeData;
+
+/**
+ * The named rooms clients have joined, indexed from each room to its members so data sent to a
+ * room reaches only them, at a cost that depends on the room's size and not on how many clients
+ * are connected.
+ *
+ * Rooms are spread over {@link #defaultShards} shards by the hash of their names, each shard a map
+ * guarded by its own lock, so joins and leaves in different rooms rarely wait on each other. A
+ * room's members are kept in an array that is copied on every join or leave and never changed
+ * afterwards, so sending to a room only holds its shard's lock long enough to read the array. A
+ * room is created by its first join and removed with its last leave. What is told of rooms being
+ * created and removed is posted to an {@link Outbox} under the shard's lock and run after it is
+ * released, so it is told in order without a slow listener holding up the shard.
+ *
+ * Requests and replies are {@link ClypeData#rooms} messages. A request holds "join NAME",
+ * "leave NAME" or "list". The reply is "+NAME" once joined, "-NAME" once left, "=" followed by a
+ * line per room the client is in, or "!NAME" if the name is not allowed or the client is in too
+ * many rooms. A name is at most {@link #maxNameLength} characters with no whitespace
+ *
+ * @author Will Dunklin
+ *
+ */
+public class RoomIndex {
+	/**
+	 * The number of shards rooms are spread over
+	 */
+	public static final int defaultShards = 64;
+	/**
+	 * The longest allowed room name
+	 */
+	public static final int maxNameLength = 64;
+	/**
+	 * The most rooms a client can be in at once
+	 */
+	public static final int maxRoomsPerClient = 256;
+	/**
+	 * The members of every room, each map guarded by its own lock
+	 */
+	private HashMap<String, ClientConnection[]>[] shards;
+	/**
+	 * The rooms each client is in, so they can all be left when it disconnects
+	 */
+	private ConcurrentHashMap<ClientConnection, Set<String>> memberships;
+	/**
+	 * Told, in order and after the room's shard is unlocked, of every room created or removed, null if nothing is
+	 */
+	private volatile BiConsumer<String, Boolean> changes;
+	/**
+	 * What is told of rooms created or removed, posted while their shard is locked
+	 */
+	private Outbox outbox;
+
+	/**
+	 * Initializes RoomIndex instance variables
+	 * @param shards The number of shards rooms are spread over, a power of two
+	 * @throws IllegalArgumentException If shards is not a positive power of two
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public RoomIndex(int shards) throws IllegalArgumentException {
+		if(shards < 1 || Integer.bitCount(shards) != 1)
+			throw new IllegalArgumentException("The number of shards must be a positive power of two.");
+		this.shards = new HashMap[shards];
+		for(int i = 0; i < shards; i++)
+			this.shards[i] = new HashMap<String, ClientConnection[]>();
+		this.memberships = new ConcurrentHashMap<ClientConnection, Set<String>>();
+		this.changes = null;
+		this.outbox = new Outbox();
+	}
+
+	/**
+	 * Defaults {@link #shards} to {@link #defaultShards}
+	 */
+	public RoomIndex() {
+		this(defaultShards);
+	}
+
+	/**
+	 * Checks whether a room name is allowed
+	 * @param room The name
+	 * @return True if it is not empty, at most {@link #maxNameLength} characters and has no whitespace
+	 */
+	public static boolean isValidName(String room) {
+		if(room == null || room.isEmpty() || room.length() > maxNameLength)
+			return false;
+		for(int i = 0; i < room.length(); i++) {
+			if(Character.isWhitespace(room.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the shard a room is kept in
+	 * @param room The name of the room
+	 * @return The shard
+	 */
+	private HashMap<String, ClientConnection[]> shardOf(String room) {
+		int hash = room.hashCode();
+		return shards[(hash ^ (hash >>> 16)) & (shards.length - 1)];
+	}
+
+	/**
+	 * Adds a client to a room, creating the room if it is empty. Whether the client still holds the
+	 * room is checked again under the shard's lock, so a client leaving or disconnecting meanwhile is
+	 * never left among the members
+	 * @param client The client
+	 * @param room The name of the room
+	 * @return True if the client is now in the room, false if the name is not allowed, the client is in
+	 * too many rooms or it left or disconnected meanwhile
+	 */
+	public boolean join(ClientConnection client, String room) {
+		if(!isValidName(room))
+			return false;
+		Set<String> rooms = memberships.computeIfAbsent(client, c -> ConcurrentHashMap.newKeySet());
+		if(!rooms.contains(room) && rooms.size() >= maxRoomsPerClient)
+			return false;
+		if(!rooms.add(room))
+			return true;
+		HashMap<String, ClientConnection[]> shard = shardOf(room);
+		synchronized(shard) {
+			if(client.isClosed() || memberships.get(client) != rooms || !rooms.contains(room)) {
+				rooms.remove(room);
+				if(client.isClosed())
+					memberships.remove(client, rooms);
+				return false;
+			}
+			ClientConnection[] members = shard.get(room);
+			if(members == null) {
+				shard.put(room, new ClientConnection[] {client});
+				changed(room, true);
+			} else {
+				members = Arrays.copyOf(members, members.length + 1);
+				members[members.length - 1] = client;
+				shard.put(room, members);
+			}
+		}
+		outbox.deliver();
+		return true;
+	}
+
+	/**
+	 * Removes a client from a room, removing the room once it is empty
+	 * @param client The client
+	 * @param room The name of the room
+	 * @return True if the client was in the room
+	 */
+	public boolean leave(ClientConnection client, String room) {
+		Set<String> rooms = memberships.get(client);
+		if(room == null || rooms == null || !rooms.remove(room))
+			return false;
+		remove(client, room);
+		outbox.deliver();
+		return true;
+	}
+
+	/**
+	 * Removes a client from every room it is in, when it disconnects
+	 * @param client The client
+	 */
+	public void leaveAll(ClientConnection client) {
+		Set<String> rooms = memberships.remove(client);
+		if(rooms == null)
+			return;
+		for(String room : rooms)
+			remove(client, room);
+		outbox.deliver();
+	}
+
+	/**
+	 * Takes a client out of a room's members, the caller delivering the {@link #outbox} afterwards
+	 * @param client The client
+	 * @param room The name of the room
+	 */
+	private void remove(ClientConnection client, String room) {
+		HashMap<String, ClientConnection[]> shard = shardOf(room);
+		synchronized(shard) {
+			ClientConnection[] members = shard.get(room);
+			if(members == null)
+				return;
+			int index = -1;
+			for(int i = 0; i < members.length && index < 0; i++) {
+				if(members[i] == client)
+					index = i;
+			}
+			if(index < 0)
+				return;
+			if(members.length == 1) {
+				shard.remove(room);
+				changed(room, false);
+				return;
+			}
+			ClientConnection[] left = new ClientConnection[members.length - 1];
+			System.arraycopy(members, 0, left, 0, index);
+			System.arraycopy(members, index + 1, left, index, left.length - index);
+			shard.put(room, left);
+		}
+	}
+
+	/**
+	 * Posts what is told of a room created or removed, only called while its shard is locked
+	 * @param room The name of the room
+	 * @param created True if it was created
+	 */
+	private void changed(String room, boolean created) {
+		BiConsumer<String, Boolean> changes = this.changes;
+		if(changes != null)
+			outbox.post(() -> changes.accept(room, created));
+	}
+
+	/**
+	 * Gets the members of a room. The array is never changed afterwards, so it can be sent to
+	 * without holding any lock, but must not be changed by the caller either
+	 * @param room The name of the room
+	 * @return The members, empty if the room does not exist
+	 */
+	public ClientConnection[] members(String room) {
+		HashMap<String, ClientConnection[]> shard = shardOf(room);
+		ClientConnection[] members;
+		synchronized(shard) {
+			members = shard.get(room);
+		}
+		return members == null ? new ClientConnection[0] : members;
+	}
+
+	/**
+	 * Gets the rooms a client is in
+	 * @param client The client
+	 * @return The names of the rooms, sorted
+	 */
+	public Set<String> roomsOf(ClientConnection client) {
+		Set<String> rooms = memberships.get(client);
+		return rooms == null ? new TreeSet<String>() : new TreeSet<String>(rooms);
+	}
+
+	/**
+	 * Lists every room with at least one member
+	 * @return The names of the rooms, sorted
+	 */
+	public Set<String> names() {
+		TreeSet<String> names = new TreeSet<String>();
+		for(HashMap<String, ClientConnection[]> shard : shards) {
+			synchronized(shard) {
+				names.addAll(shard.keySet());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Sets what is told of every room created or removed
+	 * @param changes Called with the room's name and true when it is created or false when it is removed, null for nothing
+	 */
+	public void setChanges(BiConsumer<String, Boolean> changes) {
+		this.changes = changes;
+	}
+
+	/**
+	 * Gets the number of rooms with at least one member
+	 * @return The number of rooms
+	 */
+	public int size() {
+		int size = 0;
+		for(HashMap<String, ClientConnection[]> shard : shards) {
+			synchronized(shard) {
+				size += shard.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Answers a client's request to join, leave or list rooms
+	 * @param client The client asking
+	 * @param request The request
+	 */
+	public void answer(ClientConnection client, ClypeData request) {
+		String[] parts = request.getData() == null ? new String[0] : request.getData().trim().split("\\s+", 2);
+		String reply;
+		if(parts.length == 2 && parts[0].equals("join")) {
+			reply = (join(client, parts[1]) ? "+" : "!") + parts[1];
+		} else if(parts.length == 2 && parts[0].equals("leave")) {
+			leave(client, parts[1]);
+			reply = "-" + parts[1];
+		} else {
+			StringBuilder list = new StringBuilder("=");
+			for(String room : roomsOf(client))
+				list.append('\n').append(room);
+			reply = list.toString();
+		}
+		client.send(new MessageClypeData(client.getUserName(), reply, ClypeData.rooms));
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "The number of rooms is: " + size() + "\n" +
+				"The number of shards is: " + shards.length + "\n" +
+				"The number of clients in a room is: " + memberships.size() + "\n";
+	}
+
+}
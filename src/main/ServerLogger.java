@@ -0,0 +1,431 @@
+package main;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import data.ClypeData;
+import data.FileChunkClypeData;
+import data.FileClypeData;
+
+/**
+ * Writes what the server does to a stream on a background thread, so logging never slows
+ * relaying down.
+ *
+ * A record is only the metadata of an event: its time, what happened, the user, the type of data
+ * and its size, and one detail such as a file name. Records are put in a bounded ring by any
+ * thread without locking, into slots allocated once, and a single writer thread turns them into
+ * lines such as "2026-10-18T05:37:19.123Z received user=bob type=text bytes=42". A detail is
+ * only turned into text by the writer, so logging an event allocates nothing.
+ *
+ * Messages can be sampled, logging one in {@link #sampleEvery}, and every event is limited to
+ * {@link #maxPerSecond}. When the ring is full, because the stream is slower than the server,
+ * records are dropped rather than waited for. Sampled, limited and dropped records are counted
+ * and reported in the log itself
+ *
+ * @author Will Dunklin
+ *
+ */
+public class ServerLogger {
+	/**
+	 * Constant variables representing the events logged
+	 */
+	public static final int started = 0, accepted = 1, joined = 2, received = 3, spooled = 4, left = 5, stopped = 6, promoted = 7;
+	/**
+	 * The name of each event, as written in the log
+	 */
+	private static final String[] eventNames = { "started", "accepted", "joined", "received", "spooled", "left", "stopped", "promoted" };
+	/**
+	 * What the detail of each event is written as
+	 */
+	private static final String[] detailKeys = { "engine", "from", null, "file", "file", "compression", null, "from" };
+	/**
+	 * The default number of records the ring holds is 8192
+	 */
+	public static final int defaultCapacity = 8192;
+	/**
+	 * The highest {@link #maxPerSecond} that can be set
+	 */
+	public static final int maxRate = (1 << 20) - 1;
+	/**
+	 * The number of milliseconds the writer sleeps once the ring is empty
+	 */
+	private static final long idleMillis = 10;
+	/**
+	 * The stream lines are written to, null to log nothing
+	 */
+	private OutputStream stream;
+	/**
+	 * Whether {@link #stream} is closed with the logger
+	 */
+	private boolean ownsStream;
+	/**
+	 * The number of slots in the ring, a power of two
+	 */
+	private int capacity;
+	/**
+	 * {@link #capacity} - 1, taking a position to its slot
+	 */
+	private int mask;
+	/**
+	 * The position each slot is ready for: the position to be written next while free, one past it once written
+	 */
+	private AtomicLongArray sequences;
+	/**
+	 * The next position to be claimed by a thread logging a record
+	 */
+	private AtomicLong tail;
+	/**
+	 * The next position to be written by the writer, only used by the writer
+	 */
+	private long head;
+	/**
+	 * The time of the record in each slot, in epoch milliseconds
+	 */
+	private long[] times;
+	/**
+	 * The event of the record in each slot
+	 */
+	private int[] events;
+	/**
+	 * The type of data of the record in each slot, -1 for none
+	 */
+	private int[] types;
+	/**
+	 * The user of the record in each slot
+	 */
+	private String[] userNames;
+	/**
+	 * The size of the record in each slot, in bytes
+	 */
+	private long[] sizes;
+	/**
+	 * The detail of the record in each slot, turned into text by the writer
+	 */
+	private Object[] details;
+	/**
+	 * One in how many messages is logged
+	 */
+	private int sampleEvery;
+	/**
+	 * The most records logged in any second, 0 for no limit
+	 */
+	private int maxPerSecond;
+	/**
+	 * The second records are being counted for, shifted left 20 bits, and the number logged in it
+	 */
+	private AtomicLong window;
+	/**
+	 * The number of messages left out by sampling
+	 */
+	private LongAdder sampledOut;
+	/**
+	 * The number of records left out by the rate limit
+	 */
+	private LongAdder limited;
+	/**
+	 * The number of records dropped because the ring was full
+	 */
+	private LongAdder dropped;
+	/**
+	 * The thread writing records, null until started
+	 */
+	private Thread writer;
+	/**
+	 * Boolean signifier showing if the logger is closed
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Initializes ServerLogger instance variables
+	 * @param stream The stream lines are written to, null to log nothing
+	 * @param ownsStream Whether the stream is closed with the logger
+	 * @param capacity The number of records the ring holds, rounded up to a power of two, ignored when logging nothing
+	 * @param sampleEvery One in how many messages is logged, 1 for all of them
+	 * @param maxPerSecond The most records logged in any second, 0 for no limit
+	 * @throws IllegalArgumentException If the capacity, sampling or rate is out of range
+	 */
+	public ServerLogger(OutputStream stream, boolean ownsStream, int capacity, int sampleEvery, int maxPerSecond) throws IllegalArgumentException {
+		if(capacity < 2 || capacity > (1 << 24) || sampleEvery < 1 || maxPerSecond < 0 || maxPerSecond > maxRate)
+			throw new IllegalArgumentException("ServerLogger cannot be initialized with those variables");
+		this.stream = stream;
+		this.ownsStream = ownsStream;
+		this.capacity = stream == null ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = this.capacity - 1;
+		this.sequences = new AtomicLongArray(this.capacity);
+		for(int i = 0; i < this.capacity; i++)
+			sequences.set(i, i);
+		this.tail = new AtomicLong();
+		this.head = 0;
+		this.times = new long[this.capacity];
+		this.events = new int[this.capacity];
+		this.types = new int[this.capacity];
+		this.userNames = new String[this.capacity];
+		this.sizes = new long[this.capacity];
+		this.details = new Object[this.capacity];
+		this.sampleEvery = sampleEvery;
+		this.maxPerSecond = maxPerSecond;
+		this.window = new AtomicLong();
+		this.sampledOut = new LongAdder();
+		this.limited = new LongAdder();
+		this.dropped = new LongAdder();
+		this.writer = null;
+		this.closed = false;
+	}
+
+	/**
+	 * Defaults to a ring of {@link #defaultCapacity} records and logging every one of them, to a stream the logger does not close
+	 * @param stream The stream lines are written to, null to log nothing
+	 */
+	public ServerLogger(OutputStream stream) {
+		this(stream, false, defaultCapacity, 1, 0);
+	}
+
+	/**
+	 * Starts the writer thread. Records logged before are kept in the ring until then
+	 */
+	public synchronized void start() {
+		if(writer != null || stream == null || closed)
+			return;
+		writer = new Thread(this::writeRecords, "clype-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Logs an event, or leaves it out if sampling, the rate limit or a full ring says so. Never waits
+	 * @param event One of the events
+	 * @param userName The user, null if there is none
+	 * @param type The type of data, one of the {@link ClypeData} types, -1 if there is none
+	 * @param size The size of the data in bytes, 0 if there is none
+	 * @param detail The detail of the event, turned into text by the writer, null if there is none
+	 */
+	public void log(int event, String userName, int type, long size, Object detail) {
+		if(stream == null)
+			return;
+		if(sampleEvery > 1 && (event == received || event == spooled) && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+			sampledOut.increment();
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if(maxPerSecond > 0 && !underLimit(now / 1000)) {
+			limited.increment();
+			return;
+		}
+		long position = tail.get();
+		while(true) {
+			long diff = sequences.get((int) position & mask) - position;
+			if(diff == 0) {
+				if(tail.compareAndSet(position, position + 1))
+					break;
+				position = tail.get();
+			} else if(diff < 0) {
+				dropped.increment();
+				return;
+			} else {
+				position = tail.get();
+			}
+		}
+		int slot = (int) position & mask;
+		times[slot] = now;
+		events[slot] = event;
+		types[slot] = type;
+		userNames[slot] = userName;
+		sizes[slot] = size;
+		details[slot] = detail;
+		sequences.lazySet(slot, position + 1);
+	}
+
+	/**
+	 * Logs that a client sent data, with the name of its file if it is one
+	 * @param data The data
+	 * @param size The length of the frame it came in
+	 */
+	public void received(ClypeData data, long size) {
+		String fileName = null;
+		if(data instanceof FileClypeData)
+			fileName = ((FileClypeData) data).getFileName();
+		else if(data instanceof FileChunkClypeData)
+			fileName = ((FileChunkClypeData) data).getFileName();
+		log(received, data.getUserName(), data.getType(), size, fileName);
+	}
+
+	/**
+	 * Counts a record against the current second's limit
+	 * @param second The current second since the epoch
+	 * @return True if the record is under the limit
+	 */
+	private boolean underLimit(long second) {
+		while(true) {
+			long current = window.get();
+			long next;
+			if(current >>> 20 != second)
+				next = (second << 20) | 1;
+			else if((current & maxRate) >= maxPerSecond)
+				return false;
+			else
+				next = current + 1;
+			if(window.compareAndSet(current, next))
+				return true;
+		}
+	}
+
+	/**
+	 * Writes records as they arrive until the logger is closed, then writes what is left
+	 */
+	private void writeRecords() {
+		Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024);
+		StringBuilder line = new StringBuilder(256);
+		long reportedSampled = 0;
+		long reportedLimited = 0;
+		long reportedDropped = 0;
+		try {
+			while(true) {
+				boolean stopping = closed;
+				int written = 0;
+				while(writeNext(out, line))
+					written++;
+				long sampled = sampledOut.sum();
+				long limitedNow = limited.sum();
+				long droppedNow = dropped.sum();
+				if(limitedNow != reportedLimited || droppedNow != reportedDropped || (stopping && sampled != reportedSampled)) {
+					line.setLength(0);
+					line.append(Instant.now()).append(" skipped sampled=").append(sampled - reportedSampled).append(" limited=")
+							.append(limitedNow - reportedLimited).append(" dropped=").append(droppedNow - reportedDropped).append('\n');
+					out.append(line);
+					reportedSampled = sampled;
+					reportedLimited = limitedNow;
+					reportedDropped = droppedNow;
+					written++;
+				}
+				if(written > 0)
+					out.flush();
+				if(stopping)
+					break;
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(idleMillis));
+			}
+		} catch(IOException ioe) {
+			System.err.println("An error occurred. " + ioe.getMessage());
+		} finally {
+			if(ownsStream) {
+				try {
+					out.close();
+				} catch(IOException ioe) {
+					System.err.println("An error occurred.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the next record if there is one, freeing its slot, only called by the writer
+	 * @param out The writer lines go to
+	 * @param line The builder reused for each line
+	 * @return True if a record was written
+	 * @throws IOException If the stream fails
+	 */
+	private boolean writeNext(Writer out, StringBuilder line) throws IOException {
+		int slot = (int) head & mask;
+		if(sequences.get(slot) != head + 1)
+			return false;
+		int event = events[slot];
+		line.setLength(0);
+		line.append(Instant.ofEpochMilli(times[slot])).append(' ').append(eventNames[event]);
+		if(userNames[slot] != null)
+			line.append(" user=").append(userNames[slot]);
+		if(types[slot] >= 0)
+			line.append(" type=").append(ServerMetrics.nameOf(types[slot]));
+		if(sizes[slot] > 0)
+			line.append(" bytes=").append(sizes[slot]);
+		if(details[slot] != null && detailKeys[event] != null)
+			line.append(' ').append(detailKeys[event]).append('=').append(details[slot]);
+		line.append('\n');
+		userNames[slot] = null;
+		details[slot] = null;
+		sequences.lazySet(slot, head + capacity);
+		head++;
+		out.append(line);
+		return true;
+	}
+
+	/**
+	 * Writes every record already logged and stops the writer, closing the stream if the logger owns it
+	 */
+	public void close() {
+		Thread writer;
+		synchronized(this) {
+			if(closed)
+				return;
+			closed = true;
+			writer = this.writer;
+		}
+		if(writer == null)
+			return;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Gets the number of messages left out by sampling
+	 * @return The number sampled out
+	 */
+	public long getSampledOut() {
+		return sampledOut.sum();
+	}
+
+	/**
+	 * Gets the number of records left out by the rate limit
+	 * @return The number limited
+	 */
+	public long getLimited() {
+		return limited.sum();
+	}
+
+	/**
+	 * Gets the number of records dropped because the ring was full
+	 * @return The number dropped
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Gets one in how many messages is logged
+	 * @return sampleEvery
+	 */
+	public int getSampleEvery() {
+		return sampleEvery;
+	}
+
+	/**
+	 * Gets the most records logged in any second
+	 * @return maxPerSecond, 0 for no limit
+	 */
+	public int getMaxPerSecond() {
+		return maxPerSecond;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "ServerLogger [capacity=" + capacity + ", sampleEvery=" + sampleEvery + ", maxPerSecond=" + maxPerSecond
+				+ ", sampledOut=" + getSampledOut() + ", limited=" + getLimited() + ", dropped=" + getDropped() + "]";
+	}
+
+}
@@ -0,0 +1,559 @@
+package main;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import data.ClypeData;
+
+/**
+ * Counts what the server receives and sends, and how long relaying takes, cheaply enough to be
+ * left on all the time.
+ *
+ * Frames and bytes in and out are counted for each {@link ClypeData} type in {@link LongAdder}s,
+ * which threads add to without contending, and for each connection in its
+ * {@link ConnectionStats}. The time from a frame being read off a client's socket to being
+ * written to each recipient's socket goes in a {@link LatencyHistogram}, and decoding and encoding
+ * are timed too: encoding once per broadcast rather than once per recipient, since recipients
+ * share one {@link data.SharedFrame}. Payloads reach the server already encrypted, so the codec
+ * time is all the cryptographic and serialization work the server does.
+ *
+ * Everything can be read over JMX through {@link ServerMetricsMBean}, with a
+ * {@link ClypeData#stats} request, or from a file the metrics are appended to periodically
+ *
+ * @author Will Dunklin
+ *
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	/**
+	 * The default number of milliseconds between lines appended to the metrics file is 10000
+	 */
+	public static final long defaultDumpMillis = 10000;
+	/**
+	 * The name of each type counted, the {@link ClypeData} types followed by "other" for handshakes
+	 */
+	private static final String[] typeNames = { "list", "exit", "file", "text", "chunk", "replay", "query", "stats", "rooms", "filter", "peer", "replica", "other" };
+	/**
+	 * The slot frames that carry no {@link ClypeData}, or an unknown type, are counted in
+	 */
+	private static final int other = typeNames.length - 1;
+	/**
+	 * The hub whose clients are measured
+	 */
+	private BroadcastHub hub;
+	/**
+	 * The number of frames received for each type
+	 */
+	private LongAdder[] messagesIn;
+	/**
+	 * The number of bytes received for each type
+	 */
+	private LongAdder[] bytesIn;
+	/**
+	 * The number of frames written for each type
+	 */
+	private LongAdder[] messagesOut;
+	/**
+	 * The number of bytes written for each type
+	 */
+	private LongAdder[] bytesOut;
+	/**
+	 * The number of frames decoded
+	 */
+	private LongAdder decodes;
+	/**
+	 * The nanoseconds spent decoding
+	 */
+	private LongAdder decodeNanos;
+	/**
+	 * The number of encodings
+	 */
+	private LongAdder encodes;
+	/**
+	 * The nanoseconds spent encoding
+	 */
+	private LongAdder encodeNanos;
+	/**
+	 * The number of relayed frames kept from clients by their filters
+	 */
+	private LongAdder filtered;
+	/**
+	 * The nanoseconds from receiving each relayed frame to writing it to a recipient
+	 */
+	private LatencyHistogram relayLatency;
+	/**
+	 * The name the metrics are registered under over JMX, null while unregistered
+	 */
+	private ObjectName objectName;
+	/**
+	 * The thread appending the metrics to a file, null if none does
+	 */
+	private Thread dumper;
+
+	/**
+	 * Initializes ServerMetrics instance variables with every counter at 0
+	 * @param hub The hub whose clients are measured
+	 */
+	public ServerMetrics(BroadcastHub hub) {
+		this.hub = hub;
+		this.messagesIn = newAdders();
+		this.bytesIn = newAdders();
+		this.messagesOut = newAdders();
+		this.bytesOut = newAdders();
+		this.decodes = new LongAdder();
+		this.decodeNanos = new LongAdder();
+		this.encodes = new LongAdder();
+		this.encodeNanos = new LongAdder();
+		this.filtered = new LongAdder();
+		this.relayLatency = new LatencyHistogram();
+		this.objectName = null;
+		this.dumper = null;
+	}
+
+	/**
+	 * Creates a counter for each type
+	 * @return The counters
+	 */
+	private static LongAdder[] newAdders() {
+		LongAdder[] adders = new LongAdder[typeNames.length];
+		for(int i = 0; i < adders.length; i++)
+			adders[i] = new LongAdder();
+		return adders;
+	}
+
+	/**
+	 * Finds the slot a type is counted in
+	 * @param type One of the {@link ClypeData} types, or -1 for a frame that carries none
+	 * @return The slot
+	 */
+	private static int slotOf(int type) {
+		return type >= 0 && type < other ? type : other;
+	}
+
+	/**
+	 * Gets the name of a type, as counted in the summary
+	 * @param type One of the {@link ClypeData} types, or -1 for a frame that carries none
+	 * @return The name, "other" for -1 or an unknown type
+	 */
+	static String nameOf(int type) {
+		return typeNames[slotOf(type)];
+	}
+
+	/**
+	 * Finds the type with a name, as counted in the summary
+	 * @param name The name
+	 * @return One of the {@link ClypeData} types, -1 if no type has the name
+	 */
+	static int typeOf(String name) {
+		for(int type = 0; type < other; type++) {
+			if(typeNames[type].equals(name))
+				return type;
+		}
+		return -1;
+	}
+
+	/**
+	 * Counts a frame received from a client
+	 * @param stats The client's counters
+	 * @param type The type of the data in the frame
+	 * @param bytes The length of the frame
+	 * @param decodeNanos The nanoseconds taken to decode it, 0 if it was not decoded
+	 */
+	public void received(ConnectionStats stats, int type, long bytes, long decodeNanos) {
+		int slot = slotOf(type);
+		messagesIn[slot].increment();
+		bytesIn[slot].add(bytes);
+		if(decodeNanos > 0) {
+			decodes.increment();
+			this.decodeNanos.add(decodeNanos);
+		}
+		stats.received(bytes);
+	}
+
+	/**
+	 * Counts a frame written to a client
+	 * @param stats The client's counters
+	 * @param type The type of the data in the frame, -1 if it carries none
+	 * @param bytes The length of the frame
+	 */
+	public void sent(ConnectionStats stats, int type, long bytes) {
+		int slot = slotOf(type);
+		messagesOut[slot].increment();
+		bytesOut[slot].add(bytes);
+		stats.sent(bytes);
+	}
+
+	/**
+	 * Records how long a relayed frame took to reach a recipient
+	 * @param receivedAt The {@link System#nanoTime()} the frame was received at
+	 * @param writtenAt The {@link System#nanoTime()} it was written to the recipient at
+	 */
+	public void relayed(long receivedAt, long writtenAt) {
+		relayLatency.record(writtenAt - receivedAt);
+	}
+
+	/**
+	 * Counts an encoding of data sent to clients
+	 * @param nanos The nanoseconds it took
+	 */
+	public void encoded(long nanos) {
+		encodes.increment();
+		encodeNanos.add(nanos);
+	}
+
+	/**
+	 * Counts relayed frames kept from clients by their {@link SubscriptionFilter}s
+	 * @param frames The number of clients that did not want a frame
+	 */
+	public void filtered(long frames) {
+		filtered.add(frames);
+	}
+
+	/**
+	 * Registers the metrics over JMX as main:type=ClypeServer,port=N
+	 * @param port The port of the server, telling several servers in one JVM apart
+	 */
+	public synchronized void register(int port) {
+		if(objectName != null)
+			return;
+		try {
+			ObjectName name = new ObjectName("main:type=ClypeServer,port=" + port);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			objectName = name;
+		} catch(JMException jme) {
+			System.err.println("An error occurred. " + jme.getMessage());
+		}
+	}
+
+	/**
+	 * Appends the metrics to a file periodically, one line each time, until {@link #close()} is called
+	 * @param file The file, created if it does not exist
+	 * @param intervalMillis The milliseconds between lines
+	 * @throws IllegalArgumentException If the interval is not positive
+	 */
+	public synchronized void dumpTo(File file, long intervalMillis) throws IllegalArgumentException {
+		if(intervalMillis < 1)
+			throw new IllegalArgumentException("The metrics interval must be positive");
+		if(dumper != null)
+			dumper.interrupt();
+		dumper = new Thread(() -> dumpPeriodically(file, intervalMillis), "clype-metrics");
+		dumper.setDaemon(true);
+		dumper.start();
+	}
+
+	/**
+	 * Appends a line to the metrics file every interval until interrupted, and once more then
+	 * @param file The file
+	 * @param intervalMillis The milliseconds between lines
+	 */
+	private void dumpPeriodically(File file, long intervalMillis) {
+		boolean stopping = false;
+		while(!stopping) {
+			try {
+				Thread.sleep(intervalMillis);
+			} catch(InterruptedException ie) {
+				stopping = true;
+			}
+			try(Writer out = new FileWriter(file, true)) {
+				out.write(System.currentTimeMillis() + " " + getSummary().replace('\n', ' ') + System.lineSeparator());
+			} catch(IOException ioe) {
+				System.err.println("An error occurred. " + ioe.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Unregisters the metrics from JMX and stops appending them to a file
+	 */
+	public synchronized void close() {
+		if(dumper != null) {
+			dumper.interrupt();
+			dumper = null;
+		}
+		if(objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch(JMException jme) {
+				System.err.println("An error occurred. " + jme.getMessage());
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Answers a {@link ClypeData#stats} request
+	 * @param request "connections" for the counters of every connected client, anything else for the summary
+	 * @return The reply
+	 */
+	public String answer(String request) {
+		if(request != null && request.trim().equals("connections"))
+			return String.join("\n", getConnectionStats());
+		return getSummary();
+	}
+
+	/**
+	 * Adds up one of the counters of every type
+	 * @param adders The counters
+	 * @return The total
+	 */
+	private static long sum(LongAdder[] adders) {
+		long total = 0;
+		for(LongAdder adder : adders)
+			total += adder.sum();
+		return total;
+	}
+
+	/**
+	 * Gets the number of connected clients
+	 * @return The number of connections
+	 */
+	@Override
+	public int getConnections() {
+		return hub.size();
+	}
+
+	/**
+	 * Gets the number of user names with at least one connection
+	 * @return The number of users present
+	 */
+	@Override
+	public int getPresentUsers() {
+		return hub.getPresence().size();
+	}
+
+	/**
+	 * Gets the number of frames received from clients
+	 * @return The number of frames in
+	 */
+	@Override
+	public long getMessagesIn() {
+		return sum(messagesIn);
+	}
+
+	/**
+	 * Gets the number of bytes received from clients
+	 * @return The number of bytes in
+	 */
+	@Override
+	public long getBytesIn() {
+		return sum(bytesIn);
+	}
+
+	/**
+	 * Gets the number of frames written to clients
+	 * @return The number of frames out
+	 */
+	@Override
+	public long getMessagesOut() {
+		return sum(messagesOut);
+	}
+
+	/**
+	 * Gets the number of bytes written to clients
+	 * @return The number of bytes out
+	 */
+	@Override
+	public long getBytesOut() {
+		return sum(bytesOut);
+	}
+
+	/**
+	 * Gets the number of frames waiting to be written to every client
+	 * @return The number of queued frames
+	 */
+	@Override
+	public long getQueuedFrames() {
+		return hub.getQueuedFrames();
+	}
+
+	/**
+	 * Gets the number of bytes waiting to be written to every client
+	 * @return The number of queued bytes
+	 */
+	@Override
+	public long getQueuedBytes() {
+		return hub.getQueuedBytes();
+	}
+
+	/**
+	 * Gets the number of frames dropped for slow clients
+	 * @return The number of dropped frames
+	 */
+	@Override
+	public long getDroppedFrames() {
+		return hub.getDroppedFrames();
+	}
+
+	/**
+	 * Gets the number of relayed frames kept from clients by their filters
+	 * @return The number of filtered frames
+	 */
+	@Override
+	public long getFilteredFrames() {
+		return filtered.sum();
+	}
+
+	/**
+	 * Gets how many records the standby furthest behind has not acknowledged
+	 * @return The number of records, 0 if the log is not streamed to a standby
+	 */
+	@Override
+	public long getReplicationLag() {
+		Replication replication = hub.getReplication();
+		return replication == null ? 0 : replication.getLagRecords();
+	}
+
+	/**
+	 * Gets how long ago the oldest record a standby has not acknowledged was sent
+	 * @return The time, in milliseconds, 0 if every standby is up to date or none is connected
+	 */
+	@Override
+	public long getReplicationLagMillis() {
+		Replication replication = hub.getReplication();
+		return replication == null ? 0 : replication.getLagMillis();
+	}
+
+	/**
+	 * Gets the number of relayed frames whose latency was recorded
+	 * @return The number of relays
+	 */
+	@Override
+	public long getRelayCount() {
+		return relayLatency.getCount();
+	}
+
+	/**
+	 * Gets the mean time from receiving a frame to writing it to a recipient
+	 * @return The mean, in microseconds
+	 */
+	@Override
+	public double getRelayMeanMicros() {
+		return relayLatency.getMean() / 1000;
+	}
+
+	/**
+	 * Gets the median time from receiving a frame to writing it to a recipient
+	 * @return The median, in microseconds
+	 */
+	@Override
+	public long getRelayP50Micros() {
+		return relayLatency.valueAtPercentile(50) / 1000;
+	}
+
+	/**
+	 * Gets the 99th percentile of the time from receiving a frame to writing it to a recipient
+	 * @return The percentile, in microseconds
+	 */
+	@Override
+	public long getRelayP99Micros() {
+		return relayLatency.valueAtPercentile(99) / 1000;
+	}
+
+	/**
+	 * Gets the 99.9th percentile of the time from receiving a frame to writing it to a recipient
+	 * @return The percentile, in microseconds
+	 */
+	@Override
+	public long getRelayP999Micros() {
+		return relayLatency.valueAtPercentile(99.9) / 1000;
+	}
+
+	/**
+	 * Gets the longest time from receiving a frame to writing it to a recipient
+	 * @return The maximum, in microseconds
+	 */
+	@Override
+	public long getRelayMaxMicros() {
+		return relayLatency.getMax() / 1000;
+	}
+
+	/**
+	 * Gets the mean time taken to decode a frame received from a client
+	 * @return The mean, in microseconds
+	 */
+	@Override
+	public double getDecodeMeanMicros() {
+		long count = decodes.sum();
+		return count == 0 ? 0 : decodeNanos.sum() / 1000.0 / count;
+	}
+
+	/**
+	 * Gets the mean time taken to encode data sent to clients, once per broadcast
+	 * @return The mean, in microseconds
+	 */
+	@Override
+	public double getEncodeMeanMicros() {
+		long count = encodes.sum();
+		return count == 0 ? 0 : encodeNanos.sum() / 1000.0 / count;
+	}
+
+	/**
+	 * Gets every counter and latency as text, one "name=value" per line
+	 * @return The summary
+	 */
+	@Override
+	public String getSummary() {
+		StringBuilder summary = new StringBuilder(1024);
+		summary.append("connections=").append(getConnections());
+		summary.append("\nusers=").append(getPresentUsers());
+		summary.append("\nqueuedFrames=").append(getQueuedFrames());
+		summary.append("\nqueuedBytes=").append(getQueuedBytes());
+		summary.append("\ndroppedFrames=").append(getDroppedFrames());
+		summary.append("\nfilteredFrames=").append(getFilteredFrames());
+		for(int i = 0; i < typeNames.length; i++) {
+			if(messagesIn[i].sum() != 0)
+				summary.append("\nin.").append(typeNames[i]).append('=').append(messagesIn[i].sum()).append('/').append(bytesIn[i].sum()).append('B');
+		}
+		for(int i = 0; i < typeNames.length; i++) {
+			if(messagesOut[i].sum() != 0)
+				summary.append("\nout.").append(typeNames[i]).append('=').append(messagesOut[i].sum()).append('/').append(bytesOut[i].sum()).append('B');
+		}
+		summary.append("\ndecodeMeanMicros=").append(String.format("%.2f", getDecodeMeanMicros()));
+		summary.append("\nencodeMeanMicros=").append(String.format("%.2f", getEncodeMeanMicros()));
+		summary.append("\nrelays=").append(getRelayCount());
+		summary.append("\nrelayMeanMicros=").append(String.format("%.1f", getRelayMeanMicros()));
+		summary.append("\nrelayP50Micros=").append(getRelayP50Micros());
+		summary.append("\nrelayP99Micros=").append(getRelayP99Micros());
+		summary.append("\nrelayP999Micros=").append(getRelayP999Micros());
+		summary.append("\nrelayMaxMicros=").append(getRelayMaxMicros());
+		Federation federation = hub.getFederation();
+		if(federation != null)
+			summary.append('\n').append(federation.getSummary());
+		Replication replication = hub.getReplication();
+		if(replication != null)
+			summary.append('\n').append(replication.getSummary());
+		return summary.toString();
+	}
+
+	/**
+	 * Gets the counters of every connected client
+	 * @return A line per client, starting with its user name
+	 */
+	@Override
+	public String[] getConnectionStats() {
+		return hub.connectionStats();
+	}
+
+	/**
+	 * Empties the relay latency histogram, so percentiles cover only what is relayed afterwards
+	 */
+	@Override
+	public void resetLatency() {
+		relayLatency.drain();
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "ServerMetrics [messagesIn=" + getMessagesIn() + ", messagesOut=" + getMessagesOut() + ", relayLatency=" + relayLatency + "]";
+	}
+
+}
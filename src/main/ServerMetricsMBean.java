@@ -0,0 +1,149 @@
+package main;
+
+/**
+ * The attributes and operations of {@link ServerMetrics} shown over JMX, such as in JConsole
+ * under main:type=ClypeServer
+ *
+ * @author Will Dunklin
+ *
+ */
+public interface ServerMetricsMBean {
+
+	/**
+	 * Gets the number of connected clients
+	 * @return The number of connections
+	 */
+	int getConnections();
+
+	/**
+	 * Gets the number of user names with at least one connection
+	 * @return The number of users present
+	 */
+	int getPresentUsers();
+
+	/**
+	 * Gets the number of frames received from clients
+	 * @return The number of frames in
+	 */
+	long getMessagesIn();
+
+	/**
+	 * Gets the number of bytes received from clients
+	 * @return The number of bytes in
+	 */
+	long getBytesIn();
+
+	/**
+	 * Gets the number of frames written to clients
+	 * @return The number of frames out
+	 */
+	long getMessagesOut();
+
+	/**
+	 * Gets the number of bytes written to clients
+	 * @return The number of bytes out
+	 */
+	long getBytesOut();
+
+	/**
+	 * Gets the number of frames waiting to be written to every client
+	 * @return The number of queued frames
+	 */
+	long getQueuedFrames();
+
+	/**
+	 * Gets the number of bytes waiting to be written to every client
+	 * @return The number of queued bytes
+	 */
+	long getQueuedBytes();
+
+	/**
+	 * Gets the number of frames dropped for slow clients
+	 * @return The number of dropped frames
+	 */
+	long getDroppedFrames();
+
+	/**
+	 * Gets the number of relayed frames not sent to clients because their filters did not want them
+	 * @return The number of filtered frames
+	 */
+	long getFilteredFrames();
+
+	/**
+	 * Gets how many records the standby furthest behind has not acknowledged
+	 * @return The number of records, 0 if the log is not streamed to a standby
+	 */
+	long getReplicationLag();
+
+	/**
+	 * Gets how long ago the oldest record a standby has not acknowledged was sent
+	 * @return The time, in milliseconds, 0 if every standby is up to date or none is connected
+	 */
+	long getReplicationLagMillis();
+
+	/**
+	 * Gets the number of relayed frames whose latency was recorded
+	 * @return The number of relays
+	 */
+	long getRelayCount();
+
+	/**
+	 * Gets the mean time from receiving a frame to writing it to a recipient
+	 * @return The mean, in microseconds
+	 */
+	double getRelayMeanMicros();
+
+	/**
+	 * Gets the median time from receiving a frame to writing it to a recipient
+	 * @return The median, in microseconds
+	 */
+	long getRelayP50Micros();
+
+	/**
+	 * Gets the 99th percentile of the time from receiving a frame to writing it to a recipient
+	 * @return The percentile, in microseconds
+	 */
+	long getRelayP99Micros();
+
+	/**
+	 * Gets the 99.9th percentile of the time from receiving a frame to writing it to a recipient
+	 * @return The percentile, in microseconds
+	 */
+	long getRelayP999Micros();
+
+	/**
+	 * Gets the longest time from receiving a frame to writing it to a recipient
+	 * @return The maximum, in microseconds
+	 */
+	long getRelayMaxMicros();
+
+	/**
+	 * Gets the mean time taken to decode a frame received from a client
+	 * @return The mean, in microseconds
+	 */
+	double getDecodeMeanMicros();
+
+	/**
+	 * Gets the mean time taken to encode data sent to clients, once per broadcast
+	 * @return The mean, in microseconds
+	 */
+	double getEncodeMeanMicros();
+
+	/**
+	 * Gets every counter and latency as text, one "name=value" per line
+	 * @return The summary
+	 */
+	String getSummary();
+
+	/**
+	 * Gets the counters of every connected client
+	 * @return A line per client, starting with its user name
+	 */
+	String[] getConnectionStats();
+
+	/**
+	 * Empties the relay latency histogram, so percentiles cover only what is relayed afterwards
+	 */
+	void resetLatency();
+
+}
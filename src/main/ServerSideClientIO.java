@@ -0,0 +1,652 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import data.ClypeData;
+import data.Compression;
+import data.FileChunkClypeData;
+import data.FrameCodec;
+import data.Handshake;
+import data.SharedFrame;
+
+/**
+ * Serves a single ClypeClient on the server with blocking I/O.
+ *
+ * Runs on its own thread, receiving data from its client and handing it to the
+ * server's {@link BroadcastHub}, which calls back into {@link #send(ClypeData)} for every client.
+ *
+ * Frames sent to the client are put on a bounded {@link OutboundQueue} and written by a task on
+ * the server's writer executor, which only runs while frames are queued, so a client that reads
+ * slowly never blocks the thread relaying to it beyond what the queue's policy allows. While
+ * frames arrive close together the task waits briefly for more before flushing, as the queue's
+ * {@link FlushPolicy} says, so a busy client gets several frames per write.
+ *
+ * Binary file chunks longer than {@link ChunkSpooler#prefixLength} are copied into a
+ * {@link FileSpool} through a small reusable buffer rather than being read onto the heap whole.
+ *
+ * Every frame read and written is counted in the hub's {@link ServerMetrics}, and a relayed
+ * frame's latency is recorded once the write carrying it has been flushed to the socket
+ *
+ * @author Will Dunklin
+ *
+ */
+public class ServerSideClientIO implements ClientConnection, Runnable {
+	/**
+	 * Boolean signifier showing if the connection is closed
+	 */
+	private volatile boolean closeConnection;
+	/**
+	 * Data to be received from the client
+	 */
+	private ClypeData dataToReceiveFromClient;
+	/**
+	 * Data to be sent to the client
+	 */
+	private ClypeData dataToSendToClient;
+	/**
+	 * Receives framed data from ClypeClient
+	 */
+	private DataInputStream inFromClient;
+	/**
+	 * Sends framed data to ClypeClient
+	 */
+	private DataOutputStream outToClient;
+	/**
+	 * Encodes and decodes frames in the format agreed with the client
+	 */
+	private volatile FrameCodec codec;
+	/**
+	 * The name the client connected with, null until the handshake completes
+	 */
+	private volatile String userName;
+	/**
+	 * The server this client is connected to
+	 */
+	private ClypeServer server;
+	/**
+	 * The socket connected to the client
+	 */
+	private Socket clientSocket;
+	/**
+	 * The spools of the files this client is streaming, null until its first spooled chunk
+	 */
+	private ChunkSpooler spooler;
+	/**
+	 * Buffer reused to copy spooled payloads, null until the first spooled chunk
+	 */
+	private byte[] spoolBuffer;
+	/**
+	 * The frames waiting to be written to the client
+	 */
+	private OutboundQueue outbound;
+	/**
+	 * Writes frames to {@link #outToClient}, only used by the writer task
+	 */
+	private WritableByteChannel outChannel;
+	/**
+	 * Whether a writer task is running or about to run
+	 */
+	private AtomicBoolean writeScheduled;
+	/**
+	 * Boolean signifier showing if the connection should close once its queued frames are written
+	 */
+	private volatile boolean closeAfterFlush;
+	/**
+	 * What the client has sent and been sent
+	 */
+	private ConnectionStats stats;
+	/**
+	 * What the client wants relayed to it, null for every relayed data
+	 */
+	private volatile SubscriptionFilter filter;
+	/**
+	 * Where frames read and written are counted
+	 */
+	private ServerMetrics metrics;
+	/**
+	 * The {@link System#nanoTime()} the last frame was read from the client at
+	 */
+	private long receivedAt;
+	/**
+	 * When each relayed frame written since the last flush was received, only used by the writer task
+	 */
+	private long[] relayStamps;
+	/**
+	 * The number of stamps in {@link #relayStamps}
+	 */
+	private int relays;
+
+	/**
+	 * Initializes ServerSideClientIO instance variables
+	 * @param server The server this client is connected to
+	 * @param clientSocket The socket connected to the client
+	 */
+	public ServerSideClientIO(ClypeServer server, Socket clientSocket) {
+		this.server = server;
+		this.clientSocket = clientSocket;
+		this.closeConnection = false;
+		this.dataToReceiveFromClient = null;
+		this.dataToSendToClient = null;
+		this.inFromClient = null;
+		this.outToClient = null;
+		this.codec = null;
+		this.userName = null;
+		this.spooler = null;
+		this.spoolBuffer = null;
+		this.outbound = server.newOutboundQueue();
+		this.outChannel = null;
+		this.writeScheduled = new AtomicBoolean(false);
+		this.closeAfterFlush = false;
+		this.stats = new ConnectionStats();
+		this.filter = null;
+		this.metrics = server.getHub().getMetrics();
+		this.receivedAt = 0;
+		this.relayStamps = new long[16];
+		this.relays = 0;
+	}
+
+	/**
+	 * Receives data from the client until it exits and relays everything else to all clients
+	 */
+	@Override
+	public void run() {
+		try {
+			synchronized(this) {
+				outToClient = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+				outChannel = Channels.newChannel(outToClient);
+			}
+			inFromClient = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+			if(!acceptHandshake())
+				return;
+			server.getHub().joined(this);
+			while(!closeConnection) {
+				receiveData();
+				if(dataToReceiveFromClient == null)
+					continue;
+				if(dataToReceiveFromClient.getType() == ClypeData.exit)
+					send(dataToReceiveFromClient);
+				else if(dataToReceiveFromClient.getType() == ClypeData.list)
+					server.getHub().listUsers(this, dataToReceiveFromClient);
+				else if(dataToReceiveFromClient.getType() == ClypeData.replay || dataToReceiveFromClient.getType() == ClypeData.query)
+					server.getHub().replay(this, dataToReceiveFromClient);
+				else if(dataToReceiveFromClient.getType() == ClypeData.stats)
+					server.getHub().stats(this, dataToReceiveFromClient);
+				else if(dataToReceiveFromClient.getType() == ClypeData.rooms)
+					server.getHub().rooms(this, dataToReceiveFromClient);
+				else if(dataToReceiveFromClient.getType() == ClypeData.filter)
+					server.getHub().filter(this, dataToReceiveFromClient);
+				else if(dataToReceiveFromClient.getType() == ClypeData.replica)
+					server.getHub().replica(this, dataToReceiveFromClient);
+				else
+					server.getHub().relay(this, dataToReceiveFromClient, receivedAt);
+				if(dataToReceiveFromClient.getType() == ClypeData.file || dataToReceiveFromClient.getType() == ClypeData.chunk)
+					paceBulk();
+			}
+		} catch (IOException ioe) {
+			System.err.println("An error occurred.");
+		} finally {
+			server.getHub().remove(this);
+			if(dataToReceiveFromClient != null && dataToReceiveFromClient.getType() == ClypeData.exit) {
+				closeAfterFlush = true;
+				scheduleWrite();
+			} else {
+				close();
+			}
+			if(spooler != null)
+				spooler.closeAll();
+		}
+	}
+
+	/**
+	 * Reads the client's hello and answers with the chosen frame format, first challenging a client
+	 * connecting under a reserved name to prove the hub's secret
+	 * @return True if a format was agreed
+	 * @throws IOException If the hello is malformed or the streams fail
+	 */
+	private boolean acceptHandshake() throws IOException {
+		byte[] body = FrameCodec.readBody(inFromClient, Handshake.maxLength);
+		metrics.received(stats, -1, FrameCodec.headerLength + body.length, 0);
+		Handshake hello = Handshake.decode(body, 0, body.length);
+		boolean admitted = true;
+		if(server.getHub().reserves(hello.getUserName())) {
+			byte[] nonce = Handshake.newNonce();
+			byte[] challenge = Handshake.encodeChallenge(nonce);
+			synchronized(this) {
+				FrameCodec.writeBody(outToClient, challenge);
+				outToClient.flush();
+			}
+			metrics.sent(stats, -1, FrameCodec.headerLength + challenge.length);
+			byte[] proof = FrameCodec.readBody(inFromClient, Handshake.maxLength);
+			metrics.received(stats, -1, FrameCodec.headerLength + proof.length, 0);
+			admitted = server.getHub().admits(hello, nonce, proof);
+		}
+		int format = admitted ? hello.choose(server.getFormats()) : Handshake.refused;
+		int userId = format == Handshake.refused ? 0 : server.getUsers().intern(hello.getUserName());
+		int compression = format == FrameCodec.binary ? hello.chooseCompression(server.getCompressions()) : Compression.none;
+		synchronized(this) {
+			byte[] reply = hello.getCompressions() == 0 ? Handshake.encodeReply(format, userId) : Handshake.encodeReply(format, userId, compression);
+			FrameCodec.writeBody(outToClient, reply);
+			outToClient.flush();
+			metrics.sent(stats, -1, FrameCodec.headerLength + reply.length);
+			if(format != Handshake.refused) {
+				userName = hello.getUserName();
+				codec = server.newCodec(format, compression);
+			}
+		}
+		return codec != null;
+	}
+
+	/**
+	 * Receives data from the client
+	 */
+	public void receiveData() {
+		try {
+			dataToReceiveFromClient = readFrame();
+			if(dataToReceiveFromClient == null)
+				return;
+
+			if(dataToReceiveFromClient.getType() == ClypeData.exit)
+				closeConnection = true;
+		} catch (EOFException eofe) {
+			dataToReceiveFromClient = null;
+			closeConnection = true;
+		} catch (IOException ioe) {
+			dataToReceiveFromClient = null;
+			closeConnection = true;
+			if(!clientSocket.isClosed())
+				System.err.println("An error occurred.");
+		}
+	}
+
+	/**
+	 * Reads one frame from the client, spooling it instead if it is a long binary file chunk
+	 * @return The decoded data, or null if the frame was a chunk that has been spooled and relayed
+	 * @throws IOException If the frame is malformed or the streams fail
+	 */
+	private ClypeData readFrame() throws IOException {
+		int length = FrameCodec.checkLength(inFromClient.readInt());
+		if(codec.getFormat() != FrameCodec.binary || length <= ChunkSpooler.prefixLength) {
+			byte[] body = new byte[length];
+			inFromClient.readFully(body);
+			return decode(body);
+		}
+		byte[] prefix = new byte[ChunkSpooler.prefixLength];
+		inFromClient.readFully(prefix);
+		int prefixLength = codec.chunkPrefixLength(prefix, 0, prefix.length);
+		if(prefixLength < 0) {
+			byte[] body = new byte[length];
+			System.arraycopy(prefix, 0, body, 0, prefix.length);
+			inFromClient.readFully(body, prefix.length, length - prefix.length);
+			return decode(body);
+		}
+		if(spooler == null) {
+			spooler = new ChunkSpooler(server.getSpoolDirectory());
+			spoolBuffer = new byte[8192];
+		}
+		SpooledChunk chunk = spooler.begin((FileChunkClypeData) codec.decode(prefix, 0, prefixLength),
+				length - prefixLength);
+		chunk.getSpool().write(ByteBuffer.wrap(prefix, prefixLength, prefix.length - prefixLength), chunk.getPosition());
+		long position = chunk.getPosition() + prefix.length - prefixLength;
+		int remaining = length - prefix.length;
+		while(remaining > 0) {
+			int count = inFromClient.read(spoolBuffer, 0, Math.min(spoolBuffer.length, remaining));
+			if(count < 0)
+				throw new EOFException();
+			chunk.getSpool().write(ByteBuffer.wrap(spoolBuffer, 0, count), position);
+			position += count;
+			remaining -= count;
+		}
+		metrics.received(stats, ClypeData.chunk, FrameCodec.headerLength + length, 0);
+		server.getLogger().log(ServerLogger.spooled, userName, ClypeData.chunk, FrameCodec.headerLength + length, chunk.getMetadata().getFileName());
+		server.getHub().relaySpooled(this, chunk);
+		spooler.finish(chunk);
+		paceBulk();
+		return null;
+	}
+
+	/**
+	 * Waits after the client sent file data until the links to other nodes it is forwarded over have
+	 * bulk credit again, or for at most the server's queue time. Queueing it for this node's clients
+	 * already waits for theirs
+	 */
+	private void paceBulk() {
+		server.getHub().awaitForwardCredit(this, server.getMaxQueuedMillis());
+	}
+
+	/**
+	 * Decodes a frame body read whole, counting it and noting when it was received
+	 * @param body The frame body
+	 * @return The decoded data
+	 * @throws IOException If the body is malformed
+	 */
+	private ClypeData decode(byte[] body) throws IOException {
+		receivedAt = System.nanoTime();
+		ClypeData data = codec.decode(body, 0, body.length);
+		metrics.received(stats, data.getType(), FrameCodec.headerLength + body.length, System.nanoTime() - receivedAt);
+		server.getLogger().received(data, FrameCodec.headerLength + body.length);
+		return data;
+	}
+
+	/**
+	 * Sets the data to be sent to the client and sends it
+	 * @param data The data to be sent to the client
+	 */
+	@Override
+	public void send(ClypeData data) {
+		OutboundFrame frame;
+		synchronized(this) {
+			dataToSendToClient = data;
+			frame = encodeData();
+			if(frame == null || !frame.isBulk()) {
+				queue(frame);
+				return;
+			}
+		}
+		queue(frame);
+	}
+
+	/**
+	 * Queues data to be sent to the client
+	 */
+	public void sendData() {
+		OutboundFrame frame;
+		synchronized(this) {
+			frame = encodeData();
+			if(frame == null || !frame.isBulk()) {
+				queue(frame);
+				return;
+			}
+		}
+		queue(frame);
+	}
+
+	/**
+	 * Encodes the data to be sent to the client, only called holding the connection's monitor
+	 * @return The frame, null if there is no codec yet or the data cannot be encoded
+	 */
+	private OutboundFrame encodeData() {
+		if(codec == null)
+			return null;
+		try {
+			boolean named = !codec.knows(dataToSendToClient.getUserName());
+			long start = System.nanoTime();
+			byte[] body = codec.encode(dataToSendToClient);
+			metrics.encoded(System.nanoTime() - start);
+			ByteBuffer frame = ByteBuffer.allocate(FrameCodec.headerLength + body.length);
+			frame.putInt(body.length).put(body).flip();
+			return new OutboundFrame(frame).forType(dataToSendToClient.getType(), named);
+		} catch (IOException ioe) {
+			System.err.println("An error occurred. " + ioe.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Queues a shared frame to be sent to the client
+	 * @param frame The shared frame to be sent to the client
+	 */
+	@Override
+	public void sendShared(SharedFrame frame) {
+		OutboundFrame outboundFrame;
+		synchronized(this) {
+			if(codec == null)
+				return;
+			try {
+				boolean named = !codec.knows(frame.getData().getUserName());
+				outboundFrame = new OutboundFrame(codec.frameOf(frame), frame).forType(frame.getData().getType(), named);
+			} catch (IOException ioe) {
+				System.err.println("An error occurred. " + ioe.getMessage());
+				return;
+			}
+			if(!outboundFrame.isBulk()) {
+				queue(outboundFrame);
+				return;
+			}
+		}
+		queue(outboundFrame);
+	}
+
+	/**
+	 * Queues a spooled file chunk to be sent to the client, whose payload is copied from the spool
+	 * to the socket when written. Serial clients are sent the chunk read back onto the heap
+	 * @param chunk The spooled chunk to be sent to the client
+	 */
+	@Override
+	public void sendSpooled(SpooledChunk chunk) {
+		OutboundFrame frame;
+		synchronized(this) {
+			if(codec == null)
+				return;
+			if(codec.getFormat() == FrameCodec.binary)
+				frame = new OutboundFrame(chunk.frameHeader(codec), chunk);
+			else
+				frame = null;
+		}
+		if(frame != null) {
+			queue(frame);
+			return;
+		}
+		try {
+			send(chunk.load());
+		} catch (IOException ioe) {
+			System.err.println("An error occurred. " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Queues a record of the server's message log to be sent to the client, written straight from
+	 * the log. Serial clients are sent the record decoded onto the heap
+	 * @param frame The frame header and body, a view of the log
+	 */
+	@Override
+	public synchronized void sendLogged(ByteBuffer frame) {
+		if(codec == null)
+			return;
+		if(codec.getFormat() != FrameCodec.binary) {
+			try {
+				send(FrameCodec.decodeRecord(frame));
+			} catch (IOException ioe) {
+				System.err.println("An error occurred. " + ioe.getMessage());
+			}
+			return;
+		}
+		queue(new OutboundFrame(frame).forType(frame.get(frame.position() + FrameCodec.headerLength), true));
+	}
+
+	/**
+	 * Queues a frame and makes sure a writer task will write it, disconnecting the client if its queue overflows.
+	 *
+	 * Control and text frames are queued holding the connection's monitor, in the order they were
+	 * encoded, since the first frame naming a user must be written before those that leave the name
+	 * out. Files and chunks always carry the name, so they are queued after the monitor is released,
+	 * and a thread waiting for bulk credit never holds up another relaying text to the client
+	 * @param frame The frame, null for none
+	 */
+	private void queue(OutboundFrame frame) {
+		if(frame == null)
+			return;
+		if(!outbound.offer(frame, true)) {
+			System.err.println("Client too slow, disconnecting.");
+			close();
+			return;
+		}
+		scheduleWrite();
+	}
+
+	/**
+	 * Starts a writer task unless one is already running
+	 */
+	private void scheduleWrite() {
+		if(!writeScheduled.compareAndSet(false, true))
+			return;
+		try {
+			server.getWriters().execute(this::write);
+		} catch(RejectedExecutionException ree) {
+			writeScheduled.set(false);
+			close();
+		}
+	}
+
+	/**
+	 * Writes queued frames until none are left, flushing once the queue is empty and no more frames
+	 * are expected within the flush policy's window
+	 */
+	private void write() {
+		FlushPolicy flushPolicy = outbound.getFlushPolicy();
+		try {
+			do {
+				OutboundFrame frame;
+				int held = 0;
+				long heldSince = 0;
+				while((frame = outbound.peek()) != null) {
+					if(!frame.writeTo(outChannel))
+						throw new EOFException("Spool ended before the chunk");
+					outbound.poll();
+					metrics.sent(stats, frame.getType(), frame.getLength());
+					if(frame.getReceivedAt() != 0)
+						stampRelay(frame.getReceivedAt());
+					frame.release();
+					if(held++ == 0)
+						heldSince = System.nanoTime();
+					long wait = flushPolicy.waitNanos(heldSince);
+					if(wait > 0)
+						outbound.awaitFrame(wait);
+				}
+				outToClient.flush();
+				flushPolicy.flushed(held);
+				recordRelays();
+				writeScheduled.set(false);
+			} while(!outbound.isEmpty() && writeScheduled.compareAndSet(false, true));
+			if(closeAfterFlush)
+				close();
+		} catch (IOException ioe) {
+			writeScheduled.set(false);
+			if(!clientSocket.isClosed())
+				System.err.println("An error occurred. " + ioe.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Keeps when a relayed frame written to the stream was received, until the stream is flushed
+	 * @param frameReceivedAt The {@link System#nanoTime()} the frame was received at
+	 */
+	private void stampRelay(long frameReceivedAt) {
+		if(relays == relayStamps.length)
+			relayStamps = Arrays.copyOf(relayStamps, relays * 2);
+		relayStamps[relays++] = frameReceivedAt;
+	}
+
+	/**
+	 * Records the latency of every relayed frame the last flush carried to the socket
+	 */
+	private void recordRelays() {
+		if(relays == 0)
+			return;
+		long now = System.nanoTime();
+		for(int i = 0; i < relays; i++)
+			metrics.relayed(relayStamps[i], now);
+		relays = 0;
+	}
+
+	/**
+	 * Closes the connection to the client
+	 */
+	@Override
+	public void close() {
+		closeConnection = true;
+		try {
+			clientSocket.close();
+		} catch (IOException ioe) {
+			System.err.println("An error occurred.");
+		}
+		outbound.close();
+	}
+
+	/**
+	 * Gets what the client has sent and been sent
+	 * @return stats
+	 */
+	@Override
+	public ConnectionStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Gets what the client wants relayed to it
+	 * @return filter, null if every relayed data is wanted
+	 */
+	@Override
+	public SubscriptionFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Sets what the client wants relayed to it
+	 * @param filter The filter, null to relay every data
+	 */
+	@Override
+	public void setFilter(SubscriptionFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Gets the name the client connected with
+	 * @return userName, null until the handshake completes
+	 */
+	@Override
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * Gets the payload compression agreed with the client
+	 * @return The compression, null if none was agreed or the handshake has not completed
+	 */
+	@Override
+	public Compression getCompression() {
+		FrameCodec codec = this.codec;
+		return codec == null ? null : codec.getCompression();
+	}
+
+	/**
+	 * Gets the frames waiting to be written to the client
+	 * @return outbound
+	 */
+	@Override
+	public OutboundQueue getOutbound() {
+		return outbound;
+	}
+
+	/**
+	 * Checks whether the connection to the client is closed
+	 * @return closeConnection
+	 */
+	@Override
+	public boolean isClosed() {
+		return closeConnection;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "ServerSideClientIO [closeConnection=" + closeConnection + ", remoteAddress="
+				+ clientSocket.getRemoteSocketAddress() + ", dataToReceiveFromClient=" + dataToReceiveFromClient
+				+ ", dataToSendToClient=" + dataToSendToClient + ", outbound=" + outbound + "]";
+	}
+
+}
@@ -0,0 +1,122 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import data.FileChunkClypeData;
+import data.FrameCodec;
+
+/**
+ * A received file chunk whose payload lives in a {@link FileSpool} rather than on the heap.
+ *
+ * Only the chunk's metadata is decoded; recipients are sent a frame header encoded with their own
+ * codec followed by the payload transferred straight from the spool
+ *
+ * @author Will Dunklin
+ *
+ */
+public class SpooledChunk {
+	/**
+	 * The spool holding the payload
+	 */
+	private FileSpool spool;
+	/**
+	 * The position of the payload in the spool
+	 */
+	private long position;
+	/**
+	 * The length of the payload
+	 */
+	private int length;
+	/**
+	 * The chunk's metadata, with empty contents
+	 */
+	private FileChunkClypeData metadata;
+
+	/**
+	 * Initializes SpooledChunk instance variables
+	 * @param spool The spool holding the payload
+	 * @param position The position of the payload in the spool
+	 * @param length The length of the payload
+	 * @param metadata The chunk's metadata, with empty contents
+	 */
+	public SpooledChunk(FileSpool spool, long position, int length, FileChunkClypeData metadata) {
+		this.spool = spool;
+		this.position = position;
+		this.length = length;
+		this.metadata = metadata;
+	}
+
+	/**
+	 * Encodes the frame header and every field before the payload for one recipient
+	 * @param codec The recipient's codec, which must use the binary format
+	 * @return The frame header and body prefix
+	 */
+	public ByteBuffer frameHeader(FrameCodec codec) {
+		return ByteBuffer.wrap(codec.encodeChunkPrefix(metadata, length));
+	}
+
+	/**
+	 * Reads the payload onto the heap as a regular chunk, for recipients that cannot take a raw frame
+	 * @return The chunk with its contents
+	 * @throws IOException If the spool cannot be read
+	 */
+	public FileChunkClypeData load() throws IOException {
+		ByteBuffer contents = ByteBuffer.allocate(length);
+		spool.read(contents, position);
+		FileChunkClypeData chunk = new FileChunkClypeData(metadata.getUserName(), metadata.getFileName(), metadata.getOffset(),
+				metadata.getTotalLength(), metadata.getKeyIndex(), contents.array());
+		chunk.setRoom(metadata.getRoom());
+		chunk.setOrigin(metadata.getOrigin());
+		return chunk;
+	}
+
+	/**
+	 * Checks whether this is the final chunk of its file
+	 * @return True if this chunk reaches the end of the file
+	 */
+	public boolean isLast() {
+		return metadata.getOffset() + length >= metadata.getTotalLength();
+	}
+
+	/**
+	 * Gets the spool holding the payload
+	 * @return spool
+	 */
+	public FileSpool getSpool() {
+		return spool;
+	}
+
+	/**
+	 * Gets the position of the payload in the spool
+	 * @return position
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Gets the length of the payload
+	 * @return length
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the chunk's metadata, with empty contents
+	 * @return metadata
+	 */
+	public FileChunkClypeData getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "SpooledChunk [metadata=" + metadata + ", position=" + position + ", length=" + length + "]";
+	}
+
+}
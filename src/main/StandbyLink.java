@@ -0,0 +1,317 @@
+package main;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import data.ClypeData;
+import data.FrameCodec;
+import data.MessageClypeData;
+
+/**
+ * The connection a standby server keeps to its primary, copying the primary's {@link MessageLog}
+ * into its own as the primary's {@link Replication} sends it.
+ *
+ * The link is a {@link ClypeConnection} speaking the binary format, made under
+ * {@link Replication#standbyPrefix} followed by the standby's port and proving the secret the
+ * primary and its standbys share. On connecting it asks for the records from the sequence number
+ * its own log has reached, so a standby that restarts or loses the primary for a while picks up
+ * where it left off. Records are appended as they arrive, each
+ * under the same sequence number it has on the primary, and acknowledged once appended.
+ *
+ * The standby does not serve clients until it is promoted, either by {@link #promote()} or once the
+ * primary has been unreachable for {@link #promoteAfterMillis}. Since every record arriving was
+ * appended before the next was read, promotion only has to stop the link: the log is already
+ * complete up to the last record the primary sent, and at most
+ * {@link Replication#windowBytes} behind the primary's in async mode
+ *
+ * @author Will Dunklin
+ *
+ */
+public class StandbyLink implements ClypeListener, Runnable {
+	/**
+	 * The name of the computer running the primary
+	 */
+	private String hostName;
+	/**
+	 * The port the primary is hosted on
+	 */
+	private int port;
+	/**
+	 * The user name the link connects with
+	 */
+	private String userName;
+	/**
+	 * The log the primary's records are copied into
+	 */
+	private MessageLog log;
+	/**
+	 * The secret the primary and its standbys share, proven when connecting
+	 */
+	private String secret;
+	/**
+	 * How long the primary must be unreachable before the standby promotes itself, in milliseconds, 0 to never
+	 */
+	private long promoteAfterMillis;
+	/**
+	 * The connection to the primary, null while it is not connected
+	 */
+	private volatile ClypeConnection connection;
+	/**
+	 * The number of records the primary's log held when it last sent records
+	 */
+	private volatile long head;
+	/**
+	 * The number of records copied from the primary
+	 */
+	private volatile long applied;
+	/**
+	 * The {@link System#currentTimeMillis()} the link was last connected at, or was started at
+	 */
+	private volatile long lastConnected;
+	/**
+	 * The thread dialing the primary
+	 */
+	private Thread dialer;
+	/**
+	 * Boolean signifier showing if the standby has been promoted
+	 */
+	private volatile boolean promoted;
+	/**
+	 * Boolean signifier showing if the link has stopped for good, promoted or not
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Initializes StandbyLink instance variables, the link is dialed by {@link #start()}
+	 * @param hostName The name of the computer running the primary
+	 * @param port The port the primary is hosted on
+	 * @param standbyPort The port the standby will serve clients on once promoted, naming the link
+	 * @param log The log the primary's records are copied into
+	 * @param secret The secret the primary and its standbys share, proven when connecting
+	 * @param promoteAfterMillis How long the primary must be unreachable before the standby promotes itself, 0 to never
+	 * @throws IllegalArgumentException If the host name, log or secret is missing, a port is invalid or promoteAfterMillis is negative
+	 */
+	public StandbyLink(String hostName, int port, int standbyPort, MessageLog log, String secret, long promoteAfterMillis) throws IllegalArgumentException {
+		if(hostName == null || hostName.isEmpty() || port < 1024 || port > 0xFFFF || log == null || secret == null || promoteAfterMillis < 0)
+			throw new IllegalArgumentException("The StandbyLink cannot be initialized with those variables");
+		this.hostName = hostName;
+		this.port = port;
+		this.userName = Replication.standbyPrefix + standbyPort;
+		this.log = log;
+		this.secret = secret;
+		this.promoteAfterMillis = promoteAfterMillis;
+		this.connection = null;
+		this.head = 0;
+		this.applied = 0;
+		this.lastConnected = 0;
+		this.dialer = null;
+		this.promoted = false;
+		this.closed = false;
+	}
+
+	/**
+	 * Starts the thread dialing the primary
+	 */
+	public void start() {
+		lastConnected = System.currentTimeMillis();
+		dialer = new Thread(this, "clype-standby-" + hostName + ":" + port);
+		dialer.setDaemon(true);
+		dialer.start();
+	}
+
+	/**
+	 * Dials the primary, and again whenever the link drops, until the standby is promoted or the link closed
+	 */
+	@Override
+	public void run() {
+		while(!closed) {
+			try {
+				ClypeConnection connection = new ClypeConnection(hostName, port, userName, 1 << FrameCodec.binary, ClypeClient.key, secret);
+				connection.addListener(this);
+				connection.connect();
+				this.connection = connection;
+				connection.send(new MessageClypeData(userName, "from " + log.getNextSequence(), ClypeData.replica));
+				synchronized(this) {
+					while(!closed && !connection.isClosed()) {
+						lastConnected = System.currentTimeMillis();
+						wait(Federation.reconnectMillis);
+					}
+				}
+				this.connection = null;
+			} catch(StreamCorruptedException sce) {
+				System.err.println("The primary refused this standby: " + sce.getMessage());
+				close();
+				return;
+			} catch(IOException ioe) {
+				// the primary is not up, so it is dialed again below
+			} catch(InterruptedException ie) {
+				return;
+			}
+			if(promoteAfterMillis > 0 && System.currentTimeMillis() - lastConnected >= promoteAfterMillis) {
+				promote();
+				return;
+			}
+			try {
+				if(!closed)
+					Thread.sleep(Federation.reconnectMillis);
+			} catch(InterruptedException ie) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Appends the records the primary sends, acknowledging them once appended
+	 * @param data A {@link ClypeData#replica} message, anything else is ignored
+	 */
+	@Override
+	public void onData(ClypeData data) {
+		String message = data.getData();
+		if(data.getType() != ClypeData.replica || message == null || closed)
+			return;
+		if(message.startsWith("!")) {
+			System.err.println("The primary refused this standby: " + message.substring(1));
+			close();
+			return;
+		}
+		int newline = message.indexOf('\n');
+		String[] parts = newline < 0 || !message.startsWith("+") ? new String[0] : message.substring(1, newline).split(" ");
+		if(parts.length != 2)
+			return;
+		long sequence;
+		try {
+			sequence = Long.parseLong(parts[0]);
+			head = Long.parseLong(parts[1]);
+			log.skipTo(sequence);
+		} catch(NumberFormatException | IOException e) {
+			System.err.println("An error occurred. " + e.getMessage());
+			return;
+		}
+		ByteBuffer records = ByteBuffer.wrap(message.substring(newline + 1).getBytes(StandardCharsets.ISO_8859_1));
+		while(records.remaining() >= FrameCodec.headerLength) {
+			byte[] body = new byte[records.getInt()];
+			records.get(body);
+			if(sequence++ >= log.getNextSequence() && log.append(body) >= 0)
+				applied++;
+		}
+		ClypeConnection connection = this.connection;
+		if(connection != null)
+			connection.send(new MessageClypeData(userName, "ack " + log.getNextSequence(), ClypeData.replica));
+	}
+
+	/**
+	 * Wakes the dialing thread once the link drops
+	 * @param cause The error that closed the link, null if it was closed on purpose
+	 */
+	@Override
+	public void onClose(IOException cause) {
+		connection = null;
+		synchronized(this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Promotes the standby, stopping the link so the server can serve clients from the copied log
+	 */
+	public void promote() {
+		synchronized(this) {
+			if(closed)
+				return;
+			promoted = true;
+			closed = true;
+			notifyAll();
+		}
+		ClypeConnection connection = this.connection;
+		if(connection != null)
+			connection.close();
+	}
+
+	/**
+	 * Stops the link without promoting the standby, as when the server is stopped or the primary refuses it
+	 */
+	public void close() {
+		synchronized(this) {
+			closed = true;
+			notifyAll();
+		}
+		ClypeConnection connection = this.connection;
+		if(connection != null)
+			connection.close();
+		if(dialer != null)
+			dialer.interrupt();
+	}
+
+	/**
+	 * Waits until the standby is promoted or the link is closed
+	 * @return True if the standby was promoted
+	 * @throws InterruptedException If the waiting thread is interrupted
+	 */
+	public synchronized boolean awaitPromotion() throws InterruptedException {
+		while(!closed)
+			wait();
+		return promoted;
+	}
+
+	/**
+	 * Checks whether the standby has been promoted
+	 * @return True once promoted
+	 */
+	public boolean isPromoted() {
+		return promoted;
+	}
+
+	/**
+	 * Checks whether the link is connected to the primary
+	 * @return True if it is connected
+	 */
+	public boolean isLinked() {
+		ClypeConnection connection = this.connection;
+		return connection != null && !connection.isClosed();
+	}
+
+	/**
+	 * Gets how many records the standby was behind the primary when the primary last sent records
+	 * @return The number of records
+	 */
+	public long getLag() {
+		return Math.max(0, head - log.getNextSequence());
+	}
+
+	/**
+	 * Gets where the primary is
+	 * @return The primary's host name and port, as "host:port"
+	 */
+	public String getPrimary() {
+		return hostName + ":" + port;
+	}
+
+	/**
+	 * Gets the number of records copied from the primary
+	 * @return applied
+	 */
+	public long getApplied() {
+		return applied;
+	}
+
+	/**
+	 * Gets the link's counters as text, one "name=value" per line
+	 * @return The summary
+	 */
+	public String getSummary() {
+		return "standbyOf=" + hostName + ":" + port + "\nstandbyLinked=" + isLinked() + "\nstandbyApplied=" + applied
+				+ "\nstandbyLag=" + getLag();
+	}
+
+	/**
+	 * Prints class and instance variables
+	 */
+	@Override
+	public String toString() {
+		return "StandbyLink [" + hostName + ":" + port + (promoted ? " promoted" : closed ? " closed" : isLinked() ? " linked" : " down")
+				+ ", applied=" + applied + ", lag=" + getLag() + "]";
+	}
+
+}
@@ -0,0 +1,192 @@
+package main;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import data.ClypeData;
+import data.FileChunkClypeData;
+
+/**
+ * What a client wants relayed to it, checked by the server for every recipient before the data is
+ * queued, so data the client does not want is never encoded for it, written or read.
+ *
+ * A filter is written as pairs of a key and a comma-separated value, e.g.
+ * "types file,chunk users alice,bob size 0-65536 rooms general". The keys are "types" for the
+ * names of the {@link ClypeData} types, "users" for the user names of the senders, "size" for a
+ * range of payload lengths either end of which may be left out, and "rooms" for the rooms the
+ * data is sent to, which keeps out data sent to everyone. Data passes if it matches every key
+ * given. A payload's length is the number of bytes of a chunk's contents and the number of
+ * characters of any other data.
+ *
+ * Filters cannot be changed once built, so a connection replaces its filter in one write and
+ * checking one takes no lock: a bit test, two comparisons and at most two hash lookups
+ *
+ * @author Will Dunklin
+ *
+ */
+public class SubscriptionFilter {
+	/**
+	 * The types passed, a bit per type
+	 */
+	private int types;
+	/**
+	 * The senders passed, null for any
+	 */
+	private Set<String> users;
+	/**
+	 * The shortest payload passed
+	 */
+	private long minSize;
+	/**
+	 * The longest payload passed
+	 */
+	private long maxSize;
+	/**
+	 * The rooms passed, null for any room or none
+	 */
+	private Set<String> rooms;
+
+	/**
+	 * Initializes SubscriptionFilter instance variables
+	 * @param types The types passed, a bit per type, -1 for any
+	 * @param users The senders passed, null for any
+	 * @param minSize The shortest payload passed
+	 * @param maxSize The longest payload passed
+	 * @param rooms The rooms passed, null for any room or none
+	 * @throws IllegalArgumentException If the sizes are negative or minSize is more than maxSize
+	 */
+	public SubscriptionFilter(int types, Set<String> users, long minSize, long maxSize, Set<String> rooms) throws IllegalArgumentException {
+		if(minSize < 0 || maxSize < minSize)
+			throw new IllegalArgumentException("The size range must not be negative or empty.");
+		this.types = types;
+		this.users = users == null ? null : new HashSet<String>(users);
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.rooms = rooms == null ? null : new HashSet<String>(rooms);
+	}
+
+	/**
+	 * Defaults every key to pass any data
+	 */
+	public SubscriptionFilter() {
+		this(-1, null, 0, Long.MAX_VALUE, null);
+	}
+
+	/**
+	 * Builds a filter from its written form, described above
+	 * @param text The written filter
+	 * @return The filter, null if the text is empty or "clear" so every relayed data passes
+	 * @throws IllegalArgumentException If a key is unknown, given without a value, or its value is not valid
+	 */
+	public static SubscriptionFilter parse(String text) throws IllegalArgumentException {
+		String[] parts = text == null ? new String[0] : text.trim().split("\\s+");
+		if(parts.length == 0 || parts[0].isEmpty() || (parts.length == 1 && parts[0].equals("clear")))
+			return null;
+		if(parts.length % 2 != 0)
+			throw new IllegalArgumentException("Every key of a filter must be followed by a value.");
+		int types = -1;
+		Set<String> users = null;
+		long minSize = 0;
+		long maxSize = Long.MAX_VALUE;
+		Set<String> rooms = null;
+		for(int i = 0; i < parts.length; i += 2) {
+			String[] values = parts[i + 1].split(",");
+			if(parts[i].equals("types")) {
+				types = 0;
+				for(String name : values) {
+					int type = ServerMetrics.typeOf(name);
+					if(type < 0)
+						throw new IllegalArgumentException("Unknown type " + name + ".");
+					types |= 1 << type;
+				}
+			} else if(parts[i].equals("users")) {
+				users = new HashSet<String>(Arrays.asList(values));
+			} else if(parts[i].equals("rooms")) {
+				rooms = new HashSet<String>(Arrays.asList(values));
+			} else if(parts[i].equals("size")) {
+				int dash = parts[i + 1].indexOf('-');
+				try {
+					if(dash < 0) {
+						minSize = Long.parseLong(parts[i + 1]);
+						maxSize = minSize;
+					} else {
+						minSize = dash == 0 ? 0 : Long.parseLong(parts[i + 1].substring(0, dash));
+						maxSize = dash == parts[i + 1].length() - 1 ? Long.MAX_VALUE : Long.parseLong(parts[i + 1].substring(dash + 1));
+					}
+				} catch(NumberFormatException nfe) {
+					throw new IllegalArgumentException("The size must be MIN-MAX.");
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown key " + parts[i] + ".");
+			}
+		}
+		return new SubscriptionFilter(types, users, minSize, maxSize, rooms);
+	}
+
+	/**
+	 * Gets the length of the payload of some data, as filtered on
+	 * @param data The data
+	 * @return The number of bytes of a chunk's contents, or the number of characters of any other data
+	 */
+	public static long sizeOf(ClypeData data) {
+		if(data instanceof FileChunkClypeData)
+			return ((FileChunkClypeData) data).getContents().length;
+		String payload = data.getData();
+		return payload == null ? 0 : payload.length();
+	}
+
+	/**
+	 * Checks whether data passes the filter
+	 * @param type The type of the data
+	 * @param userName The user name of the sender
+	 * @param room The room the data is sent to, null if it is sent to everyone
+	 * @param size The length of the payload, as given by {@link #sizeOf(ClypeData)}
+	 * @return True if the data should be relayed to the client
+	 */
+	public boolean matches(int type, String userName, String room, long size) {
+		if(type < 0 || type > 31 || (types & (1 << type)) == 0)
+			return false;
+		if(size < minSize || size > maxSize)
+			return false;
+		if(users != null && !users.contains(userName))
+			return false;
+		return rooms == null || (room != null && rooms.contains(room));
+	}
+
+	/**
+	 * Checks whether data passes the filter
+	 * @param data The data
+	 * @return True if the data should be relayed to the client
+	 */
+	public boolean matches(ClypeData data) {
+		return matches(data.getType(), data.getUserName(), data.getRoom(), sizeOf(data));
+	}
+
+	/**
+	 * Prints the filter in the form {@link #parse(String)} reads, leaving out keys that pass any data
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		if(types != -1) {
+			text.append("types ");
+			for(int type = 0; type < 32; type++) {
+				if((types & (1 << type)) != 0 && ServerMetrics.typeOf(ServerMetrics.nameOf(type)) == type)
+					text.append(ServerMetrics.nameOf(type)).append(',');
+			}
+			if(text.charAt(text.length() - 1) == ',')
+				text.setLength(text.length() - 1);
+			text.append(' ');
+		}
+		if(users != null)
+			text.append("users ").append(String.join(",", new TreeSet<String>(users))).append(' ');
+		if(minSize != 0 || maxSize != Long.MAX_VALUE)
+			text.append("size ").append(minSize).append('-').append(maxSize == Long.MAX_VALUE ? "" : String.valueOf(maxSize)).append(' ');
+		if(rooms != null)
+			text.append("rooms ").append(String.join(",", new TreeSet<String>(rooms))).append(' ');
+		return text.length() == 0 ? "clear" : text.substring(0, text.length() - 1);
+	}
+
+}
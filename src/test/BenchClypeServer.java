@@ -0,0 +1,119 @@
+package test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import data.ClypeData;
+import data.FrameCodec;
+import data.Handshake;
+import data.MessageClypeData;
+import main.ClypeServer;
+
+/**
+ * Loopback throughput and latency benchmark for the concurrent ClypeServer.
+ *
+ * Usage: BenchClypeServer [clientCounts] [messages] [port] [eventLoops] [formats]
+ * e.g. BenchClypeServer 1,10,100,1000,10000 200 7001 4 3
+ * An eventLoops of 0 (the default) benchmarks the thread per client engine and formats
+ * is the bit mask of frame formats offered by the clients (1 serial, 2 binary, 3 both).
+ *
+ * For every client count one client sends the given number of messages and every
+ * client (the sender included) waits for all of them to be broadcast back.
+ * Large client counts need a raised open file limit (ulimit -n).
+ */
+public class BenchClypeServer {
+	public static void main(String[] args) throws Exception {
+		String counts = args.length > 0 ? args[0] : "1,10,100,1000,10000";
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 7001;
+		int eventLoops = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+		int formats = args.length > 4 ? Integer.parseInt(args[4]) : FrameCodec.allFormats;
+
+		System.out.println("clients\tmessages\tms\tdelivered/s\tp50 us\tp99 us\tmax us");
+		for(String count : counts.split(",")) {
+			runRound(port++, Integer.parseInt(count.trim()), messages, eventLoops, formats);
+		}
+	}
+
+	private static void runRound(int port, int clients, int messages, int eventLoops, int formats) throws Exception {
+		final ClypeServer server = new ClypeServer(port, clients + 16, eventLoops);
+		Thread serverThread = new Thread(server::start, "bench-server");
+		serverThread.start();
+
+		Socket[] sockets = new Socket[clients];
+		DataOutputStream[] outs = new DataOutputStream[clients];
+		FrameCodec[] codecs = new FrameCodec[clients];
+		final long[] latencies = new long[clients * messages];
+		final AtomicInteger recorded = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(clients);
+
+		for(int i = 0; i < clients; i++) {
+			sockets[i] = connect(port);
+			outs[i] = new DataOutputStream(new BufferedOutputStream(sockets[i].getOutputStream()));
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+			final FrameCodec codec = new Handshake("bench" + i, formats).connect(in, outs[i]);
+			codecs[i] = codec;
+			Thread receiver = new Thread(() -> {
+				try {
+					for(int received = 0; received < messages; received++) {
+						ClypeData data = codec.readFrame(in);
+						long sent = Long.parseLong(data.getData());
+						latencies[recorded.getAndIncrement()] = System.nanoTime() - sent;
+					}
+				} catch(IOException e) {
+					System.err.println("Receiver failed: " + e);
+				} finally {
+					done.countDown();
+				}
+			}, "bench-receiver-" + i);
+			receiver.setDaemon(true);
+			receiver.start();
+		}
+		while(server.getHub().size() < clients)
+			Thread.sleep(10);
+
+		long start = System.nanoTime();
+		for(int m = 0; m < messages; m++) {
+			codecs[0].writeFrame(outs[0], new MessageClypeData("bench0", Long.toString(System.nanoTime()), ClypeData.text));
+			outs[0].flush();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		int n = recorded.get();
+		long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		double seconds = elapsed / 1e9;
+		System.out.printf("%d\t%d\t%d\t%.0f\t%d\t%d\t%d%n", clients, messages, elapsed / 1000000,
+				n / seconds, percentile(sorted, 0.50) / 1000, percentile(sorted, 0.99) / 1000,
+				n == 0 ? 0 : sorted[n - 1] / 1000);
+
+		for(Socket socket : sockets)
+			socket.close();
+		server.stop();
+		serverThread.join();
+	}
+
+	private static Socket connect(int port) throws InterruptedException {
+		while(true) {
+			try {
+				return new Socket("localhost", port);
+			} catch(IOException ioe) {
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if(sorted.length == 0)
+			return 0;
+		return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))];
+	}
+}
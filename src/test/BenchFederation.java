@@ -0,0 +1,142 @@
+package test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import data.ClypeData;
+import data.FrameCodec;
+import data.Handshake;
+import data.MessageClypeData;
+import main.ClypeServer;
+import main.Federation;
+import main.ServerLogger;
+
+/**
+ * Loopback throughput benchmark for a federated mesh of ClypeServer nodes.
+ *
+ * Usage: BenchFederation [nodeCounts] [clients] [messages] [port] [eventLoops] [senders]
+ * e.g. BenchFederation 1,2,4,8 64 200 7101 1 4
+ * An eventLoops of 0 (the default) benchmarks the thread per client engine.
+ *
+ * For every node count the clients are spread evenly over the nodes, the given number of
+ * clients on every node (4 by default) send the given number of messages each at once, and
+ * every client waits for the messages of all senders, so each message crosses every link of
+ * the mesh once and a message lost between nodes leaves the round waiting.
+ */
+public class BenchFederation {
+	public static void main(String[] args) throws Exception {
+		String counts = args.length > 0 ? args[0] : "1,2,4,8";
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int port = args.length > 3 ? Integer.parseInt(args[3]) : 7101;
+		int eventLoops = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+		int senders = args.length > 5 ? Integer.parseInt(args[5]) : 4;
+
+		System.out.println("nodes\tclients\tsenders\tmessages\tms\tdelivered/s");
+		for(String count : counts.split(",")) {
+			int nodes = Integer.parseInt(count.trim());
+			runRound(port, nodes, Math.max(clients, nodes * senders), senders, messages, eventLoops);
+			port += nodes;
+		}
+	}
+
+	private static void runRound(int port, int nodes, int clients, int senders, int messages, int eventLoops) throws Exception {
+		ClypeServer[] servers = new ClypeServer[nodes];
+		Thread[] serverThreads = new Thread[nodes];
+		for(int i = 0; i < nodes; i++) {
+			servers[i] = new ClypeServer(port + i, clients + 16, eventLoops);
+			servers[i].setLogger(new ServerLogger(null));
+			servers[i].setSecret("bench");
+			if(nodes > 1) {
+				Federation federation = new Federation(servers[i].getHub(), i + 1);
+				for(int j = 0; j < nodes; j++) {
+					if(j != i)
+						federation.addPeer("localhost", port + j);
+				}
+				servers[i].setFederation(federation);
+			}
+			serverThreads[i] = new Thread(servers[i]::start, "bench-server-" + i);
+			serverThreads[i].start();
+		}
+
+		final int expected = nodes * senders * messages;
+		Socket[] sockets = new Socket[clients];
+		DataOutputStream[] outs = new DataOutputStream[clients];
+		FrameCodec[] codecs = new FrameCodec[clients];
+		final CountDownLatch done = new CountDownLatch(clients);
+		final LongAdder delivered = new LongAdder();
+
+		for(int i = 0; i < clients; i++) {
+			sockets[i] = connect(port + i % nodes);
+			outs[i] = new DataOutputStream(new BufferedOutputStream(sockets[i].getOutputStream()));
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream()));
+			final FrameCodec codec = new Handshake("bench" + i, 1 << FrameCodec.binary).connect(in, outs[i]);
+			codecs[i] = codec;
+			Thread receiver = new Thread(() -> {
+				try {
+					for(int received = 0; received < expected; ) {
+						if(codec.readFrame(in).getType() == ClypeData.text) {
+							received++;
+							delivered.increment();
+						}
+					}
+				} catch(IOException e) {
+					System.err.println("Receiver failed: " + e);
+				} finally {
+					done.countDown();
+				}
+			}, "bench-receiver-" + i);
+			receiver.setDaemon(true);
+			receiver.start();
+		}
+		for(ClypeServer server : servers) {
+			while(server.getHub().getPresence().size() < clients)
+				Thread.sleep(10);
+		}
+
+		long start = System.nanoTime();
+		for(int s = 0; s < nodes * senders; s++) {
+			final int sender = s;
+			new Thread(() -> {
+				try {
+					for(int m = 0; m < messages; m++)
+						codecs[sender].writeFrame(outs[sender], new MessageClypeData("bench" + sender, Integer.toString(m), ClypeData.text));
+					outs[sender].flush();
+				} catch(IOException e) {
+					System.err.println("Sender failed: " + e);
+				}
+			}, "bench-sender-" + s).start();
+		}
+		if(!done.await(60, TimeUnit.SECONDS))
+			System.out.println("Lost messages: delivered " + delivered.sum() + " of " + (long) clients * expected);
+		long elapsed = System.nanoTime() - start;
+
+		double seconds = elapsed / 1e9;
+		System.out.printf("%d\t%d\t%d\t%d\t%d\t%.0f%n", nodes, clients, senders, messages, elapsed / 1000000,
+				(double) clients * expected / seconds);
+
+		for(Socket socket : sockets)
+			socket.close();
+		for(int i = 0; i < nodes; i++) {
+			servers[i].stop();
+			serverThreads[i].join();
+		}
+	}
+
+	private static Socket connect(int port) throws InterruptedException {
+		while(true) {
+			try {
+				return new Socket("localhost", port);
+			} catch(IOException ioe) {
+				Thread.sleep(10);
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import data.ClypeData;
+import data.Compression;
+import data.DeflateCodec;
+import data.FileClypeData;
+import data.FrameCodec;
+import data.MessageClypeData;
+import data.UserDirectory;
+
+/**
+ * Compares bytes on the wire and encode/decode cost of the serial and binary frame formats,
+ * and of the binary format with Deflate compression.
+ *
+ * Usage: BenchFrameCodec [iterations]
+ *
+ * Binary sizes are for the steady state, after the sender's name has been announced once.
+ */
+public class BenchFrameCodec {
+	private static final String key = "WSPLXZXJQSMCACZYCQDUFSBWJAFUMYDZVPMPX";
+	private static volatile long blackhole;
+
+	public static void main(String[] args) throws IOException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		StringBuilder contents = new StringBuilder();
+		while(contents.length() < 4096)
+			contents.append("The quick brown fox jumps over the lazy dog. ");
+		ClypeData message = new MessageClypeData("Will", "Hello everyone, how is it going?", key, ClypeData.text);
+		ClypeData file = decoded(new FrameCodec(FrameCodec.serial), new FileClypeData("Will", "document.txt", ClypeData.file),
+				contents.toString());
+
+		System.out.println("data\tformat\tbytes\tencode ns/op\tdecode ns/op");
+		for(ClypeData data : new ClypeData[] { message, file }) {
+			run(data, FrameCodec.serial, false, iterations);
+			run(data, FrameCodec.binary, false, iterations);
+			run(data, FrameCodec.binary, true, iterations);
+		}
+	}
+
+	private static void run(ClypeData data, int format, boolean deflate, int iterations) throws IOException {
+		UserDirectory users = new UserDirectory();
+		users.intern(data.getUserName());
+		FrameCodec sender = new FrameCodec(format, users, true);
+		FrameCodec receiver = new FrameCodec(format, users, true);
+		if(deflate) {
+			sender.setCompression(new Compression(Compression.codecOf(DeflateCodec.id)));
+			receiver.setCompression(new Compression(Compression.codecOf(DeflateCodec.id)));
+		}
+		sender.encode(data);
+
+		byte[] body = null;
+		long sink = 0;
+		for(int warmup = 0; warmup < 2; warmup++) {
+			for(int i = 0; i < iterations / 10; i++) {
+				body = sender.encode(data);
+				sink += receiver.decode(body, 0, body.length).getType();
+			}
+		}
+
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++)
+			sink += sender.encode(data).length;
+		long encode = (System.nanoTime() - start) / iterations;
+
+		start = System.nanoTime();
+		for(int i = 0; i < iterations; i++)
+			sink += receiver.decode(body, 0, body.length).getType();
+		long decode = (System.nanoTime() - start) / iterations;
+
+		System.out.println(data.getClass().getSimpleName() + "\t" + (format == FrameCodec.serial ? "serial" : "binary")
+				+ (deflate ? "+deflate" : "") + "\t" + (FrameCodec.headerLength + body.length) + "\t" + encode + "\t" + decode);
+		blackhole = sink;
+	}
+
+	private static ClypeData decoded(FrameCodec codec, FileClypeData file, String contents) throws IOException {
+		File temp = File.createTempFile("clype", ".txt");
+		temp.deleteOnExit();
+		Files.write(temp.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+		file.setFileName(temp.getPath());
+		file.readFileContents(key);
+		file.setFileName("document.txt");
+		byte[] body = codec.encode(file);
+		return codec.decode(body, 0, body.length);
+	}
+}
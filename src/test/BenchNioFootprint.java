@@ -0,0 +1,64 @@
+package test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+import main.ClypeServer;
+
+/**
+ * Measures the Java heap held per idle connection by the event loop engine.
+ *
+ * Usage: BenchNioFootprint [connections] [eventLoops] [port]
+ * e.g. BenchNioFootprint 100000 4 7001
+ *
+ * The idle clients are opened by a child JVM so only the server's heap is measured.
+ * 100k connections need a raised open file limit (ulimit -n) and ephemeral port range.
+ */
+public class BenchNioFootprint {
+	public static void main(String[] args) throws Exception {
+		if(args.length > 0 && args[0].equals("client")) {
+			openIdleClients(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+			return;
+		}
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int eventLoops = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 7001;
+
+		ClypeServer server = new ClypeServer(port, 1024, eventLoops);
+		Thread serverThread = new Thread(server::start, "bench-server");
+		serverThread.start();
+		Thread.sleep(500);
+		long before = usedHeap();
+
+		Process clients = new ProcessBuilder(System.getProperty("java.home") + "/bin/java", "-cp",
+				System.getProperty("java.class.path"), BenchNioFootprint.class.getName(), "client",
+				Integer.toString(port), Integer.toString(connections)).inheritIO().start();
+		while(server.getHub().size() < connections)
+			Thread.sleep(100);
+		long after = usedHeap();
+
+		System.out.println("connections\teventLoops\theap bytes\tbytes/connection");
+		System.out.println(connections + "\t" + eventLoops + "\t" + (after - before) + "\t" + (after - before) / connections);
+
+		clients.destroy();
+		server.stop();
+		serverThread.join();
+	}
+
+	private static void openIdleClients(int port, int connections) throws IOException, InterruptedException {
+		SocketChannel[] channels = new SocketChannel[connections];
+		for(int i = 0; i < connections; i++)
+			channels[i] = SocketChannel.open(new InetSocketAddress("localhost", port));
+		Thread.sleep(Long.MAX_VALUE);
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(200);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
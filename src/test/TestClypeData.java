@@ -1,6 +1,10 @@
 package test;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 import data.*;
 
@@ -39,6 +43,20 @@ public class TestClypeData {
 			fcd2.readFileContents(key);
 			System.out.println("Data for encrypted file new.txt (fcd2): " + fcd2.getData());
 			System.out.println("Data for decrypted file new.txt (fcd2): " + fcd2.getData(key));
+
+			System.out.println();
+
+			FileChunkReader reader = new FileChunkReader("Anon", "test.txt", key, 16);
+			FileChunkWriter writer = new FileChunkWriter(new File("downloads"), "test.txt", reader.getTotalLength(), key);
+			FileChunkClypeData chunk;
+			while((chunk = reader.next()) != null) {
+				System.out.println("Chunk of test.txt: " + chunk);
+				writer.write(chunk);
+			}
+			reader.close();
+			writer.close();
+			System.out.println("Streamed test.txt complete (" + writer.isComplete() + ") and identical: " +
+					Arrays.equals(Files.readAllBytes(Paths.get("test.txt")), Files.readAllBytes(writer.getFile().toPath())));
 		
 		} catch(IOException ioe) {
 			System.err.println("There was an IO error");